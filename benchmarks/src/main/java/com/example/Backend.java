@@ -0,0 +1,156 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Backend
+ *
+ * Queue backends compared by the benchmarks, with helpers to create, fill and
+ * remove the queues of a trial.
+ *
+ * @author Edgar Resma
+ */
+public enum Backend {
+	IN_MEMORY, PRINT_WRITER, RAF, MAPPED;
+
+	private static final String SQS_URL = "https://sqs.us-east-2.amazonaws.com/benchmark/";
+	private static final int FILL_CHUNK_SIZE = 1024;
+
+	/**
+	 * @param executorService
+	 *            Executor running the visibility timeouts
+	 * @return Queue service of the backend
+	 */
+	public QueueService newQueueService(ScheduledExecutorService executorService) {
+		if (this == IN_MEMORY) {
+			return new InMemoryQueueService(executorService);
+		}
+		return new FileQueueService(executorService, newFileQueue());
+	}
+
+	/**
+	 * @return File storage service of the backend
+	 * @throws IllegalArgumentException
+	 *             for the in-memory backend
+	 */
+	public FileQueue newFileQueue() {
+		switch (this) {
+		case PRINT_WRITER:
+			return new FileQueuePrintWriter();
+		case RAF:
+			return new FileQueueRAF();
+		case MAPPED:
+			return new FileQueueMapped();
+		default:
+			throw new IllegalArgumentException(this + " has no file storage");
+		}
+	}
+
+	/**
+	 * Returns a pulled message into its queue.
+	 */
+	public void reQueue(QueueService queueService, String queueUrl, Message message) {
+		if (queueService instanceof FileQueueService) {
+			((FileQueueService) queueService).reQueue(queueUrl, message.getReceiptHandle(), message.getBody());
+		} else {
+			((InMemoryQueueService) queueService).reQueue(queueUrl, message.getReceiptHandle(), message.getBody());
+		}
+	}
+
+	/**
+	 * Stops the background threads of a queue service.
+	 */
+	public void shutdown(QueueService queueService) {
+		if (queueService instanceof FileQueueService) {
+			((FileQueueService) queueService).shutdown();
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            Name of the benchmark
+	 * @param count
+	 *            Number of queues
+	 * @return URLs of queues not used by an earlier trial
+	 */
+	public static String[] queueUrls(String prefix, int count) {
+		String[] queueUrls = new String[count];
+		long trial = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			queueUrls[i] = SQS_URL + prefix + "-" + trial + "-" + i;
+		}
+		return queueUrls;
+	}
+
+	/**
+	 * @param size
+	 *            Number of characters
+	 * @return Message body of the given size
+	 */
+	public static String message(int size) {
+		char[] body = new char[size];
+		Arrays.fill(body, 'm');
+		return new String(body);
+	}
+
+	/**
+	 * Pushes messages into a queue in chunks.
+	 */
+	public static void fill(QueueService queueService, String queueUrl, String message, int depth) {
+		if (queueService instanceof FileQueueService) {
+			((FileQueueService) queueService).push(queueUrl, message, depth);
+			return;
+		}
+		List<String> batch = Collections.nCopies(QueueService.MAX_BATCH_SIZE, message);
+		int filled = 0;
+		while (filled + batch.size() <= depth) {
+			queueService.pushBatch(queueUrl, batch);
+			filled += batch.size();
+		}
+		for (; filled < depth; filled++) {
+			queueService.push(queueUrl, message);
+		}
+	}
+
+	/**
+	 * Adds messages into a queue file in chunks.
+	 */
+	public static void fill(FileQueue queueFile, String queueUrl, String message, int depth) {
+		for (int filled = 0; filled < depth; filled += FILL_CHUNK_SIZE) {
+			queueFile.addAll(queueUrl, new ArrayList<String>(
+					Collections.nCopies(Math.min(FILL_CHUNK_SIZE, depth - filled), message)));
+		}
+	}
+
+	/**
+	 * Removes the files of the queues of a trial.
+	 */
+	public static void deleteQueues(String[] queueUrls) {
+		String storageLocation = QueueConfig.getProperty("filequeue.location", "");
+		for (String queueUrl : queueUrls) {
+			String queueName = queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
+			Path directory = new File(storageLocation, queueName).toPath();
+			if (!Files.exists(directory)) {
+				continue;
+			}
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
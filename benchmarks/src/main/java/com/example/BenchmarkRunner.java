@@ -0,0 +1,36 @@
+package com.example;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark Runner
+ *
+ * Runs the benchmarks selected on the JMH command line. Unless given there,
+ * results are written as JSON to jmh-result.json and the GC profiler reports
+ * the allocation rate of every benchmark.
+ *
+ * @author Edgar Resma
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (!commandLine.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if (!commandLine.getResult().hasValue()) {
+			options.result("jmh-result.json");
+		}
+		if (commandLine.getProfilers().isEmpty()) {
+			options.addProfiler(GCProfiler.class);
+		}
+		new Runner(options.build()).run();
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * File Queue Benchmark
+ *
+ * Throughput and latency of the FileQueue storages without the queue service,
+ * so no group commit and no visibility timers are measured. The queues are
+ * filled to the given depth before measuring and each benchmark puts back
+ * what it takes, so the depth stays the same except in the producer/consumer
+ * group. Thread counts are set with -t, or with -tg for the group.
+ *
+ * @author Edgar Resma
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileQueueBenchmark {
+
+	@Param({ "PRINT_WRITER", "RAF", "MAPPED" })
+	public Backend backend;
+
+	@Param({ "64", "1024", "16384", "262144" })
+	public int messageSize;
+
+	@Param({ "0", "10000" })
+	public int depth;
+
+	@Param({ "1", "16" })
+	public int queues;
+
+	private FileQueue queueFile;
+	private String[] queueUrls;
+	private String message;
+	private List<String> batch;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		queueFile = backend.newFileQueue();
+		queueUrls = Backend.queueUrls("file", queues);
+		message = Backend.message(messageSize);
+		batch = new ArrayList<String>(Collections.nCopies(QueueService.MAX_BATCH_SIZE, message));
+		for (String queueUrl : queueUrls) {
+			Backend.fill(queueFile, queueUrl, message, depth);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Backend.deleteQueues(queueUrls);
+	}
+
+	/**
+	 * Queue used by a benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadQueue {
+		private static final AtomicInteger threads = new AtomicInteger();
+		private final int index = threads.getAndIncrement();
+
+		String queueUrl(FileQueueBenchmark benchmark) {
+			return benchmark.queueUrls[index % benchmark.queueUrls.length];
+		}
+	}
+
+	@Benchmark
+	public Message addPullDelete(ThreadQueue thread) {
+		String queueUrl = thread.queueUrl(this);
+		queueFile.add(queueUrl, message);
+		Message pulled = queueFile.pull(queueUrl);
+		if (pulled != null) {
+			queueFile.delete(queueUrl, pulled.getMessageId());
+		}
+		return pulled;
+	}
+
+	@Benchmark
+	public List<Message> addAllPullAllDeleteAll(ThreadQueue thread) {
+		String queueUrl = thread.queueUrl(this);
+		queueFile.addAll(queueUrl, batch);
+		List<Message> pulled = queueFile.pullAll(queueUrl, batch.size());
+		List<String> messageIds = new ArrayList<String>(pulled.size());
+		for (Message message : pulled) {
+			messageIds.add(message.getMessageId());
+		}
+		queueFile.deleteAll(queueUrl, messageIds);
+		return pulled;
+	}
+
+	@Benchmark
+	public Message pullReQueue(ThreadQueue thread) {
+		String queueUrl = thread.queueUrl(this);
+		Message pulled = queueFile.pull(queueUrl);
+		if (pulled != null) {
+			queueFile.reQueue(queueUrl, pulled.getMessageId(), pulled.getBody());
+		} else {
+			queueFile.add(queueUrl, message);
+		}
+		return pulled;
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public void add(ThreadQueue thread) {
+		queueFile.add(thread.queueUrl(this), message);
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public Message pullDelete(ThreadQueue thread) {
+		String queueUrl = thread.queueUrl(this);
+		Message pulled = queueFile.pull(queueUrl);
+		if (pulled != null) {
+			queueFile.delete(queueUrl, pulled.getMessageId());
+		}
+		return pulled;
+	}
+
+}
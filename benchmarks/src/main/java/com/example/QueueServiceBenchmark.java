@@ -0,0 +1,135 @@
+package com.example;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Queue Service Benchmark
+ *
+ * Throughput and latency of push, pull, delete and re-queue through the
+ * QueueService of every backend. The queues are filled to the given depth
+ * before measuring and each benchmark puts back what it takes, so the depth
+ * stays the same except in the producer/consumer group. Threads are spread
+ * over the queues. Thread counts are set with -t, or with -tg for the group.
+ *
+ * @author Edgar Resma
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueueServiceBenchmark {
+
+	@Param({ "IN_MEMORY", "PRINT_WRITER", "RAF", "MAPPED" })
+	public Backend backend;
+
+	@Param({ "64", "1024", "16384", "262144" })
+	public int messageSize;
+
+	@Param({ "0", "10000" })
+	public int depth;
+
+	@Param({ "1", "16" })
+	public int queues;
+
+	private ScheduledExecutorService executorService;
+	private QueueService queueService;
+	private String[] queueUrls;
+	private String message;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		executorService = Executors.newScheduledThreadPool(1);
+		queueService = backend.newQueueService(executorService);
+		queueUrls = Backend.queueUrls("service", queues);
+		message = Backend.message(messageSize);
+		for (String queueUrl : queueUrls) {
+			Backend.fill(queueService, queueUrl, message, depth);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		backend.shutdown(queueService);
+		executorService.shutdownNow();
+		Backend.deleteQueues(queueUrls);
+	}
+
+	/**
+	 * Queue used by a benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadQueue {
+		private static final AtomicInteger threads = new AtomicInteger();
+		private final int index = threads.getAndIncrement();
+
+		String queueUrl(QueueServiceBenchmark benchmark) {
+			return benchmark.queueUrls[index % benchmark.queueUrls.length];
+		}
+	}
+
+	@Benchmark
+	public Message pushPullDelete(ThreadQueue thread) {
+		String queueUrl = thread.queueUrl(this);
+		queueService.push(queueUrl, message);
+		Message pulled = queueService.pull(queueUrl);
+		if (pulled != null) {
+			queueService.delete(queueUrl, pulled.getReceiptHandle());
+		}
+		return pulled;
+	}
+
+	@Benchmark
+	public Message pullReQueue(ThreadQueue thread) {
+		String queueUrl = thread.queueUrl(this);
+		Message pulled = queueService.pull(queueUrl);
+		if (pulled != null) {
+			backend.reQueue(queueService, queueUrl, pulled);
+		} else {
+			queueService.push(queueUrl, message);
+		}
+		return pulled;
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public void push(ThreadQueue thread) {
+		queueService.push(thread.queueUrl(this), message);
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public Message pullDelete(ThreadQueue thread) {
+		String queueUrl = thread.queueUrl(this);
+		Message pulled = queueService.pull(queueUrl);
+		if (pulled != null) {
+			queueService.delete(queueUrl, pulled.getReceiptHandle());
+		}
+		return pulled;
+	}
+
+}
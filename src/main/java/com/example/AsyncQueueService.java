@@ -0,0 +1,49 @@
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Async Queue Service
+ * 
+ * Non-blocking counterpart of QueueService. The returned futures complete once
+ * the operation is done, so a few caller threads can keep many queues busy
+ * without waiting for file locks and disk writes. Failures complete the
+ * futures exceptionally.
+ * 
+ * @author Edgar Resma
+ */
+public interface AsyncQueueService {
+
+	/**
+	 * This method adds a message into the end of the Queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @return Future completed once the message is written
+	 */
+	CompletableFuture<Void> pushAsync(String queueUrl, String message);
+	/**
+	 * This method pulls the value from the top of the Queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Future completed with the pulled message, or with null if the
+	 *         queue is empty
+	 */
+	CompletableFuture<Message> pullAsync(String queueUrl);
+	/**
+	 * This method deletes the message using the given receipt handle.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param receiptHandle
+	 *            Identifier of the message to be deleted
+	 * @return Future completed once the deletion is written
+	 */
+	CompletableFuture<Void> deleteAsync(String queueUrl, String receiptHandle);
+
+}
@@ -0,0 +1,155 @@
+package com.example;
+
+import java.util.List;
+
+import com.amazonaws.services.sqs.model.EmptyBatchRequestException;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
+
+/**
+ * Batch Requests
+ * 
+ * Validation of batch, delay, long poll and FIFO requests shared by the Queue
+ * Service implementations. Limits and errors follow the SQS actions.
+ * 
+ * @author Edgar Resma
+ */
+final class BatchRequests {
+
+	private BatchRequests() {
+	}
+
+	/**
+	 * Checks the number of entries of a push or delete batch.
+	 * 
+	 * @param entries
+	 *            Entries of the batch
+	 */
+	static void checkEntries(List<?> entries) {
+		if (entries == null || entries.isEmpty()) {
+			throw new EmptyBatchRequestException("There should be at least one entry in the request.");
+		}
+		if (entries.size() > QueueService.MAX_BATCH_SIZE) {
+			throw new TooManyEntriesInBatchRequestException(
+					"Maximum number of entries per request are " + QueueService.MAX_BATCH_SIZE + ".");
+		}
+	}
+
+	/**
+	 * Checks the body of a pushed message, which must not be empty like in
+	 * SQS.
+	 * 
+	 * @param message
+	 *            Body of the message
+	 */
+	static void checkBody(String message) {
+		if (message == null || message.isEmpty()) {
+			throw new IllegalArgumentException("The message body must be at least 1 character long.");
+		}
+	}
+
+	/**
+	 * Checks the bodies of a push batch.
+	 * 
+	 * @param messages
+	 *            Bodies of the messages
+	 */
+	static void checkBodies(List<String> messages) {
+		for (String message : messages) {
+			checkBody(message);
+		}
+	}
+
+	/**
+	 * Checks the maximum number of messages of a pull batch.
+	 * 
+	 * @param maxMessages
+	 *            Requested number of messages
+	 */
+	static void checkMaxMessages(int maxMessages) {
+		if (maxMessages < 1 || maxMessages > QueueService.MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException(
+					"Value " + maxMessages + " for maxMessages must be between 1 and " + QueueService.MAX_BATCH_SIZE);
+		}
+	}
+
+	/**
+	 * Checks the delay of a push.
+	 * 
+	 * @param delaySeconds
+	 *            Requested delay in seconds
+	 */
+	static void checkDelay(int delaySeconds) {
+		if (delaySeconds < 0 || delaySeconds > QueueService.MAX_DELAY_SECONDS) {
+			throw new IllegalArgumentException("Value " + delaySeconds + " for delaySeconds must be between 0 and "
+					+ QueueService.MAX_DELAY_SECONDS);
+		}
+	}
+
+	/**
+	 * Returns the default delay of a queue from queue.delay.<queue name> or
+	 * else queue.delay.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Delay in seconds
+	 */
+	static int defaultDelay(String queueUrl) {
+		String queueName = QueueConfig.queueName(queueUrl);
+		int delaySeconds = QueueConfig.getInt("queue.delay." + queueName, QueueConfig.getInt("queue.delay", 0));
+		return Math.max(0, Math.min(QueueService.MAX_DELAY_SECONDS, delaySeconds));
+	}
+
+	/**
+	 * Checks the wait time of a long poll.
+	 * 
+	 * @param waitTimeSeconds
+	 *            Requested wait time in seconds
+	 */
+	static void checkWaitTime(int waitTimeSeconds) {
+		if (waitTimeSeconds < 0 || waitTimeSeconds > QueueService.MAX_WAIT_TIME_SECONDS) {
+			throw new IllegalArgumentException("Value " + waitTimeSeconds + " for waitTimeSeconds must be between 0 and "
+					+ QueueService.MAX_WAIT_TIME_SECONDS);
+		}
+	}
+
+	/**
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return true if the queue is a FIFO queue, named with the .fifo suffix
+	 */
+	static boolean isFifo(String queueUrl) {
+		return QueueConfig.queueName(queueUrl).endsWith(".fifo");
+	}
+
+	/**
+	 * Checks a push to a FIFO queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messageGroupId
+	 *            Requested message group id
+	 */
+	static void checkFifo(String queueUrl, String messageGroupId) {
+		if (!isFifo(queueUrl)) {
+			throw new IllegalArgumentException("Queue " + queueUrl + " is not a FIFO queue.");
+		}
+		if (messageGroupId == null || messageGroupId.isEmpty()
+				|| messageGroupId.length() > QueueService.MAX_MESSAGE_GROUP_ID_LENGTH) {
+			throw new IllegalArgumentException("A MessageGroupId of 1 to " + QueueService.MAX_MESSAGE_GROUP_ID_LENGTH
+					+ " characters is required.");
+		}
+	}
+
+	/**
+	 * Checks a push without message group to a queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	static void checkStandard(String queueUrl) {
+		if (isFifo(queueUrl)) {
+			throw new IllegalArgumentException("The request must contain a MessageGroupId for FIFO queue " + queueUrl);
+		}
+	}
+
+}
@@ -0,0 +1,384 @@
+package com.example;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Consumer Container
+ *
+ * Runs the pull, process and delete loop for message handlers registered on a
+ * QueueService. Each subscription has a concurrency level that caps the
+ * messages being handled at once; the container only pulls as many messages as
+ * there are free slots, so a slow handler holds messages back in the queue
+ * instead of piling them up in memory.
+ *
+ * A message is deleted once its handler returns. If the handler throws, the
+ * message is left to its visibility timeout and delivered again.
+ *
+ * Handlers run on virtual threads on JDKs that provide them, unless
+ * consumer.virtual.threads is false, or else on a worker pool of the
+ * subscription whose threads time out when idle. On virtual threads the
+ * container long polls for consumer.wait.seconds, as a parked virtual thread
+ * holds no platform thread. On the worker pool it pulls without waiting and
+ * backs off from consumer.idle.min to consumer.idle.max milliseconds while the
+ * queue stays empty, scheduled by a single timer thread, so idle queues use no
+ * threads of their own.
+ *
+ * @author Edgar Resma
+ */
+public class ConsumerContainer implements Closeable {
+
+	private final static Logger LOGGER = Logger.getLogger(ConsumerContainer.class.getName());
+
+	/**
+	 * Processes one message. Throwing leaves the message to be delivered
+	 * again.
+	 */
+	@FunctionalInterface
+	public interface MessageHandler {
+		void handle(Message message) throws Exception;
+	}
+
+	private final QueueService queueService;
+	private final boolean virtualThreads;
+	private final long minIdleMillis;
+	private final long maxIdleMillis;
+	private final int waitTimeSeconds;
+	private final ScheduledExecutorService scheduler;
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor using consumer.virtual.threads, consumer.idle.min,
+	 * consumer.idle.max and consumer.wait.seconds.
+	 *
+	 * @param queueService
+	 *            Service the messages are pulled from and deleted in
+	 */
+	public ConsumerContainer(QueueService queueService) {
+		this(queueService, Boolean.parseBoolean(QueueConfig.getProperty("consumer.virtual.threads", "true")),
+				QueueConfig.getLong("consumer.idle.min", 10), QueueConfig.getLong("consumer.idle.max", 1000),
+				QueueConfig.getInt("consumer.wait.seconds", QueueService.MAX_WAIT_TIME_SECONDS));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param queueService
+	 *            Service the messages are pulled from and deleted in
+	 * @param virtualThreads
+	 *            Whether virtual threads are used when the JDK has them
+	 * @param minIdleMillis
+	 *            First delay before pulling again from an empty queue
+	 * @param maxIdleMillis
+	 *            Longest delay before pulling again from an empty queue
+	 * @param waitTimeSeconds
+	 *            Long poll time on virtual threads, from 0 to 20 seconds
+	 */
+	public ConsumerContainer(QueueService queueService, boolean virtualThreads, long minIdleMillis,
+			long maxIdleMillis, int waitTimeSeconds) {
+		this.queueService = queueService;
+		this.virtualThreads = virtualThreads && hasVirtualThreads();
+		this.minIdleMillis = Math.max(1, minIdleMillis);
+		this.maxIdleMillis = Math.max(this.minIdleMillis, maxIdleMillis);
+		this.waitTimeSeconds = Math.max(0, Math.min(QueueService.MAX_WAIT_TIME_SECONDS, waitTimeSeconds));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "consumer-container-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static boolean hasVirtualThreads() {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (executor == null) {
+			return false;
+		}
+		executor.shutdown();
+		return true;
+	}
+
+	/**
+	 * Creates an executor running every task on a new virtual thread.
+	 *
+	 * @return Executor or null if the JDK has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if handlers run on virtual threads.
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Starts consuming a queue.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param handler
+	 *            Handler called for every message
+	 * @param concurrency
+	 *            Maximum number of messages handled at once
+	 * @return Subscription to cancel the consumption
+	 */
+	public Subscription subscribe(String queueUrl, MessageHandler handler, int concurrency) {
+		if (!running) {
+			throw new IllegalStateException("Consumer container is closed");
+		}
+		Subscription subscription = new Subscription(queueUrl, handler, Math.max(1, concurrency));
+		subscriptions.add(subscription);
+		subscription.schedulePoll(0);
+		return subscription;
+	}
+
+	/**
+	 * @return Active subscriptions.
+	 */
+	public List<Subscription> getSubscriptions() {
+		return Collections.unmodifiableList(subscriptions);
+	}
+
+	/**
+	 * Stops pulling and waits up to the given time for the messages being
+	 * handled.
+	 *
+	 * @param timeout
+	 *            Maximum time to wait
+	 * @param unit
+	 *            Unit of the timeout
+	 * @return true if every handler finished in time
+	 */
+	public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+		running = false;
+		scheduler.shutdownNow();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean finished = true;
+		for (Subscription subscription : subscriptions) {
+			finished &= subscription.stop(deadline - System.nanoTime());
+		}
+		return finished;
+	}
+
+	/**
+	 * Stops pulling and waits up to consumer.shutdown.seconds for the messages
+	 * being handled.
+	 */
+	@Override
+	public void close() {
+		try {
+			close(QueueConfig.getLong("consumer.shutdown.seconds", 30), TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Handler registered for a queue with its own executor and in-flight
+	 * limit. At most one pull of the subscription is scheduled or running at
+	 * a time.
+	 */
+	public class Subscription {
+		private final String queueUrl;
+		private final MessageHandler handler;
+		private final int concurrency;
+		private final Semaphore permits;
+		private final ExecutorService executor;
+		private final AtomicBoolean polling = new AtomicBoolean();
+		private volatile boolean active = true;
+		private volatile Thread longPoller;
+		private long idleMillis;
+
+		Subscription(String queueUrl, MessageHandler handler, int concurrency) {
+			this.queueUrl = queueUrl;
+			this.handler = handler;
+			this.concurrency = concurrency;
+			this.permits = new Semaphore(concurrency);
+			this.executor = virtualThreads ? newVirtualThreadExecutor() : newWorkerPool(concurrency);
+		}
+
+		private ExecutorService newWorkerPool(int concurrency) {
+			// one extra thread for the pull, all of them time out when idle
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency + 1, concurrency + 1, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), runnable -> {
+						Thread thread = new Thread(runnable, "consumer-" + queueUrl);
+						thread.setDaemon(true);
+						return thread;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			return pool;
+		}
+
+		public String getQueueUrl() {
+			return queueUrl;
+		}
+
+		/**
+		 * @return Number of messages being handled.
+		 */
+		public int getInFlight() {
+			return concurrency - permits.availablePermits();
+		}
+
+		/**
+		 * Stops pulling for this subscription. Messages being handled are
+		 * still deleted when their handler returns.
+		 */
+		public void cancel() {
+			active = false;
+			Thread poller = longPoller;
+			if (poller != null) {
+				poller.interrupt();
+			}
+			executor.shutdown();
+			subscriptions.remove(this);
+		}
+
+		boolean stop(long timeoutNanos) throws InterruptedException {
+			cancel();
+			if (executor.awaitTermination(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS)) {
+				return true;
+			}
+			executor.shutdownNow();
+			return false;
+		}
+
+		/**
+		 * Schedules a pull unless one is already scheduled or running.
+		 *
+		 * @param delayMillis
+		 *            Time to wait before pulling
+		 */
+		void schedulePoll(long delayMillis) {
+			if (!active || !running || !polling.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				if (delayMillis == 0) {
+					executor.execute(this::poll);
+				} else {
+					scheduler.schedule(() -> execute(this::poll), delayMillis, TimeUnit.MILLISECONDS);
+				}
+			} catch (RejectedExecutionException e) {
+				// the subscription or the container was stopped meanwhile
+				polling.set(false);
+			}
+		}
+
+		private void execute(Runnable task) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				polling.set(false);
+			}
+		}
+
+		/**
+		 * Pulls as many messages as there are free slots and hands them to
+		 * the executor.
+		 */
+		private void poll() {
+			long delay = 0;
+			try {
+				int slots = Math.min(QueueService.MAX_BATCH_SIZE, permits.availablePermits());
+				if (slots == 0) {
+					// a finishing handler pulls again
+					return;
+				}
+				List<Message> messages = fetch(slots);
+				if (messages.isEmpty()) {
+					// a long poll already waited
+					idleMillis = virtualThreads ? 0 : Math.min(maxIdleMillis, Math.max(minIdleMillis, idleMillis * 2));
+					delay = idleMillis;
+					return;
+				}
+				idleMillis = 0;
+				for (Message message : messages) {
+					permits.acquireUninterruptibly();
+					dispatch(message);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.severe(e.getMessage());
+				e.printStackTrace();
+				delay = maxIdleMillis;
+			} finally {
+				polling.set(false);
+				// handlers finishing while polling did not schedule a pull
+				if (permits.availablePermits() > 0) {
+					schedulePoll(delay);
+				}
+			}
+		}
+
+		private List<Message> fetch(int slots) {
+			if (!virtualThreads || waitTimeSeconds == 0) {
+				return queueService.pullBatch(queueUrl, slots);
+			}
+			longPoller = Thread.currentThread();
+			Message first;
+			try {
+				first = queueService.pull(queueUrl, waitTimeSeconds);
+			} finally {
+				longPoller = null;
+				// an interrupt of cancel must not reach the next task
+				Thread.interrupted();
+			}
+			if (first == null || first.getBody() == null) {
+				return Collections.emptyList();
+			}
+			if (slots == 1) {
+				return Collections.singletonList(first);
+			}
+			List<Message> messages = new ArrayList<Message>(slots);
+			messages.add(first);
+			messages.addAll(queueService.pullBatch(queueUrl, slots - 1));
+			return messages;
+		}
+
+		private void dispatch(Message message) {
+			try {
+				executor.execute(() -> handle(message));
+			} catch (RejectedExecutionException e) {
+				// stopped meanwhile, the message is delivered again later
+				permits.release();
+			}
+		}
+
+		private void handle(Message message) {
+			try {
+				handler.handle(message);
+				queueService.delete(queueUrl, message.getReceiptHandle());
+			} catch (Exception e) {
+				LOGGER.warning("Handler of " + queueUrl + " failed for " + message.getMessageId() + ": " + e);
+			} finally {
+				permits.release();
+				schedulePoll(0);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.example;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Deduplication Window
+ *
+ * Deduplication ids of the messages pushed to a FIFO queue within the last
+ * windowMillis. The ids are kept in a hash map in the order they were first
+ * seen, so checking an id is a hash lookup and the expired ids are evicted
+ * from the front of the map while adding. A push retried by its producer
+ * within the window is dropped instead of being queued twice.
+ *
+ * A window with a journal file appends every id with the end of its window,
+ * so a restarted process still drops the retries of pushes made before. The
+ * journal is not forced, a crash of the machine may forget the last ids. It
+ * is rewritten with the ids still in the window once most of its lines have
+ * expired.
+ *
+ * Journal Line: <Window End millis> <Deduplication Id in Base64>
+ *
+ * @author Edgar Resma
+ */
+public class DeduplicationWindow {
+
+	private final static Logger LOGGER = Logger.getLogger(DeduplicationWindow.class.getName());
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int MIN_REWRITE_LINES = 1024;
+
+	private final long windowMillis;
+	private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>();
+	private final File journal;
+	private OutputStream journalStream;
+	private int journalLines;
+
+	/**
+	 * Constructor
+	 *
+	 * @param windowMillis
+	 *            Time an id is remembered
+	 */
+	public DeduplicationWindow(long windowMillis) {
+		this.windowMillis = Math.max(0, windowMillis);
+		this.journal = null;
+	}
+
+	/**
+	 * Constructor, reading the ids still in the window from the journal.
+	 *
+	 * @param windowMillis
+	 *            Time an id is remembered
+	 * @param journal
+	 *            Journal file of the ids, created if missing
+	 */
+	public DeduplicationWindow(long windowMillis, File journal) {
+		this.windowMillis = Math.max(0, windowMillis);
+		this.journal = journal;
+		try {
+			load(System.currentTimeMillis());
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Remembers an id unless it was seen within the window.
+	 *
+	 * @param deduplicationId
+	 *            Deduplication id of the pushed message
+	 * @param nowMillis
+	 *            Current time in milliseconds
+	 * @return true if the id is new and the message must be queued
+	 */
+	public synchronized boolean add(String deduplicationId, long nowMillis) {
+		evict(nowMillis);
+		if (seen.containsKey(deduplicationId)) {
+			return false;
+		}
+		long windowEnd = nowMillis + windowMillis;
+		if (journal != null) {
+			try {
+				journal(deduplicationId, windowEnd);
+			} catch (IOException e) {
+				LOGGER.severe(e.getMessage());
+				e.printStackTrace();
+				throw new UncheckedIOException(e);
+			}
+		}
+		seen.put(deduplicationId, windowEnd);
+		return true;
+	}
+
+	/**
+	 * @return Number of ids remembered, expired ones included until the next
+	 *         add.
+	 */
+	public synchronized int size() {
+		return seen.size();
+	}
+
+	/**
+	 * Drops the ids whose window has passed. The first id in the map expires
+	 * first.
+	 */
+	private void evict(long nowMillis) {
+		for (Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue() > nowMillis) {
+				return;
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Appends an id to the journal, rewriting the journal first once most of
+	 * its lines have expired.
+	 */
+	private void journal(String deduplicationId, long windowEnd) throws IOException {
+		if (journalLines >= MIN_REWRITE_LINES && journalLines > 2 * seen.size()) {
+			rewrite();
+		}
+		journalStream.write(line(deduplicationId, windowEnd));
+		journalLines++;
+	}
+
+	/**
+	 * Reads the ids of the journal still in the window and rewrites it with
+	 * them. A last line cut short by a crash is dropped.
+	 */
+	private void load(long nowMillis) throws IOException {
+		if (journal.exists()) {
+			for (String line : Files.readAllLines(journal.toPath(), StandardCharsets.US_ASCII)) {
+				int separator = line.indexOf(' ');
+				try {
+					long windowEnd = Long.parseLong(line.substring(0, separator));
+					String deduplicationId = new String(Base64.getUrlDecoder().decode(line.substring(separator + 1)),
+							StandardCharsets.UTF_8);
+					if (windowEnd > nowMillis) {
+						seen.put(deduplicationId, windowEnd);
+					}
+				} catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+					LOGGER.info("Ignoring journal line " + line + " of " + journal);
+				}
+			}
+		}
+		rewrite();
+	}
+
+	/**
+	 * Replaces the journal by the ids in the window.
+	 */
+	private void rewrite() throws IOException {
+		if (journalStream != null) {
+			journalStream.close();
+		}
+		File rewritten = new File(journal.getPath() + ".tmp");
+		rewritten.getParentFile().mkdirs();
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(rewritten))) {
+			for (Map.Entry<String, Long> entry : seen.entrySet()) {
+				out.write(line(entry.getKey(), entry.getValue()));
+			}
+		}
+		Files.move(rewritten.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		journalStream = new FileOutputStream(journal, true);
+		journalLines = seen.size();
+	}
+
+	private static byte[] line(String deduplicationId, long windowEnd) {
+		return (windowEnd + " "
+				+ Base64.getUrlEncoder().withoutPadding().encodeToString(deduplicationId.getBytes(StandardCharsets.UTF_8))
+				+ "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Derives the deduplication id of a message from its body, for pushes
+	 * without an id of their own.
+	 *
+	 * @param message
+	 *            Body of the message
+	 * @return Hex SHA-256 of the body
+	 */
+	public static String contentId(String message) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(message.getBytes(StandardCharsets.UTF_8));
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX[digest[i] & 0xF];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			// every JDK provides SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delay Index
+ *
+ * Messages waiting for their due time, grouped into buckets of bucketMillis.
+ * A message goes into the bucket ending at or after its due time, so adding a
+ * message is one lookup in a skip list of buckets and releasing the due
+ * messages takes whole buckets off its front. No timer is kept per message;
+ * the owner polls the index on a single timer or before a pull, and a message
+ * is released at most one bucket late.
+ *
+ * @param <T>
+ *            Type of the delayed messages
+ * @author Edgar Resma
+ */
+public class DelayIndex<T> {
+
+	private final long bucketMillis;
+	private final ConcurrentSkipListMap<Long, Bucket<T>> buckets = new ConcurrentSkipListMap<Long, Bucket<T>>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param bucketMillis
+	 *            Time span of a bucket
+	 */
+	public DelayIndex(long bucketMillis) {
+		this.bucketMillis = Math.max(1, bucketMillis);
+	}
+
+	/**
+	 * @param dueMillis
+	 *            Time the message becomes visible
+	 * @param bucketMillis
+	 *            Time span of a bucket
+	 * @return End of the bucket holding the message
+	 */
+	public static long bucket(long dueMillis, long bucketMillis) {
+		return (dueMillis + bucketMillis - 1) / bucketMillis * bucketMillis;
+	}
+
+	/**
+	 * Adds a message to the bucket of its due time.
+	 *
+	 * @param dueMillis
+	 *            Time the message becomes visible
+	 * @param message
+	 *            Delayed message
+	 */
+	public void add(long dueMillis, T message) {
+		long key = bucket(dueMillis, bucketMillis);
+		while (true) {
+			Bucket<T> bucket = buckets.computeIfAbsent(key, k -> new Bucket<T>());
+			synchronized (bucket) {
+				// a bucket released meanwhile is replaced by a new one
+				if (!bucket.released) {
+					bucket.messages.add(message);
+					size.incrementAndGet();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the messages of every bucket ending at or before now.
+	 *
+	 * @param nowMillis
+	 *            Current time in milliseconds
+	 * @return Due messages by due time, empty if none
+	 */
+	public List<T> pollDue(long nowMillis) {
+		List<T> due = new ArrayList<T>();
+		Map.Entry<Long, Bucket<T>> first;
+		while ((first = buckets.firstEntry()) != null && first.getKey() <= nowMillis) {
+			Bucket<T> bucket = first.getValue();
+			if (buckets.remove(first.getKey(), bucket)) {
+				synchronized (bucket) {
+					bucket.released = true;
+					due.addAll(bucket.messages);
+					size.addAndGet(-bucket.messages.size());
+				}
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * @return Time the first bucket is due or Long.MAX_VALUE if none.
+	 */
+	public long nextDue() {
+		Map.Entry<Long, Bucket<T>> first = buckets.firstEntry();
+		return first != null ? first.getKey() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return Number of messages waiting.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Messages due within the same bucket, in the order they were added.
+	 */
+	private static class Bucket<T> {
+		private final List<T> messages = new ArrayList<T>();
+		private boolean released;
+	}
+
+}
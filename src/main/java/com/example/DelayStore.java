@@ -0,0 +1,361 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.google.common.io.Files;
+
+/**
+ * Delay Store
+ *
+ * Durable storage of delayed messages of file queues, independent of the
+ * FileQueue implementation. The messages of a queue are kept in a delayed
+ * directory next to the queue files, in one bucket file per delay.bucket
+ * milliseconds of due time, named by the end of the bucket. A delayed push
+ * appends to the file of its bucket; once the bucket is due its messages are
+ * appended to the queue in chunks and the bucket file is deleted. Releasing
+ * millions of delayed messages therefore takes a file read per bucket instead
+ * of a timer per message.
+ *
+ * Bucket File: Entry Blocks <Record Size 4 Bytes><Record n Bytes> holding the
+ * MessageCodec record of the message and its attributes, with the size
+ * negated. Blocks of earlier buckets with a positive size hold the body in
+ * UTF-8 and are still read. A block cut short by a crash is ignored.
+ *
+ * Adds and releases of a queue hold its delayed lock, also across processes.
+ * The buckets written by other processes are found by listing the directory
+ * on every release. A crash between the append to the queue and the deletion
+ * of the bucket releases its messages twice, never loses them.
+ *
+ * @author Edgar Resma
+ */
+public class DelayStore {
+
+	private final static Logger LOGGER = Logger.getLogger(DelayStore.class.getName());
+
+	public static final String DIRECTORY_NAME = "delayed";
+
+	private static final String BUCKET_SUFFIX = ".bucket";
+	private static final int RELEASE_CHUNK_SIZE = 1024;
+
+	private final File storageLocation;
+	private final long bucketMillis;
+	private final boolean force;
+	private final QueueFileRegistry names = QueueFileRegistry.getInstance();
+	private final ConcurrentMap<String, ConcurrentSkipListSet<Long>> buckets = new ConcurrentHashMap<String, ConcurrentSkipListSet<Long>>();
+	private final EventTracer tracer = EventTracer.getInstance();
+
+	/**
+	 * Constructor using filequeue.location, delay.bucket and filequeue.fsync.
+	 */
+	public DelayStore() {
+		this(QueueConfig.getProperty("filequeue.location", ""), QueueConfig.getLong("delay.bucket", 1000),
+				GroupCommitWriter.DurabilityPolicy.fromString(QueueConfig.getProperty("filequeue.fsync",
+						"never")) != GroupCommitWriter.DurabilityPolicy.NEVER);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param storageLocation
+	 *            Directory containing one sub-directory per queue
+	 * @param bucketMillis
+	 *            Time span of a bucket file
+	 * @param force
+	 *            Whether appended messages are forced to the storage device
+	 */
+	public DelayStore(String storageLocation, long bucketMillis, boolean force) {
+		this.storageLocation = new File(storageLocation);
+		this.bucketMillis = Math.max(1, bucketMillis);
+		this.force = force;
+	}
+
+	/**
+	 * Appends messages to the bucket of their due time.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param dueMillis
+	 *            Time the messages become visible
+	 * @param messages
+	 *            Messages to be added into the queue once due
+	 */
+	public void add(String queueUrl, long dueMillis, List<String> messages) {
+		List<Message> bodies = new ArrayList<Message>(messages.size());
+		for (String message : messages) {
+			bodies.add(new Message().withBody(message));
+		}
+		addMessages(queueUrl, dueMillis, bodies);
+	}
+
+	/**
+	 * Appends messages with their message attributes to the bucket of their
+	 * due time. Failures are thrown to the caller, as the messages are not
+	 * stored.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param dueMillis
+	 *            Time the messages become visible
+	 * @param messages
+	 *            Messages to be added into the queue once due
+	 */
+	public void addMessages(String queueUrl, long dueMillis, List<Message> messages) {
+		long bucket = DelayIndex.bucket(dueMillis, bucketMillis);
+		File directory = directory(queueUrl);
+		QueueLock lock = QueueLockManager.getInstance().forDelayed(directory.getParentFile());
+		boolean locked = false;
+		try {
+			lock.lock();
+			locked = true;
+			File file = new File(directory, String.format("%020d", bucket) + BUCKET_SUFFIX);
+			Files.createParentDirs(file);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				ByteBuffer blocks = encode(messages);
+				while (blocks.hasRemaining()) {
+					channel.write(blocks);
+				}
+				if (force) {
+					channel.force(false);
+				}
+			}
+			buckets(queueUrl).add(bucket);
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			tracer.dumpOnError(e);
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while delaying messages of " + queueUrl, e);
+		} finally {
+			if (locked) {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return End of the first bucket known to this process or Long.MAX_VALUE
+	 *         if none. Buckets of other processes are known after a release.
+	 */
+	public long nextDue(String queueUrl) {
+		ConcurrentSkipListSet<Long> known = buckets(queueUrl);
+		return known.isEmpty() ? Long.MAX_VALUE : known.first();
+	}
+
+	/**
+	 * Hands the messages of every due bucket to the queue and deletes the
+	 * bucket files.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param nowMillis
+	 *            Current time in milliseconds
+	 * @param queue
+	 *            Appends a chunk of messages to the queue, returning once
+	 *            they are written
+	 * @return Number of messages released
+	 */
+	public int release(String queueUrl, long nowMillis, Consumer<List<String>> queue) {
+		return releaseMessages(queueUrl, nowMillis, messages -> {
+			List<String> bodies = new ArrayList<String>(messages.size());
+			for (Message message : messages) {
+				bodies.add(message.getBody());
+			}
+			queue.accept(bodies);
+		});
+	}
+
+	/**
+	 * Hands the messages of every due bucket with their message attributes to
+	 * the queue and deletes the bucket files.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param nowMillis
+	 *            Current time in milliseconds
+	 * @param queue
+	 *            Appends a chunk of messages to the queue, returning once
+	 *            they are written
+	 * @return Number of messages released
+	 */
+	public int releaseMessages(String queueUrl, long nowMillis, Consumer<List<Message>> queue) {
+		File directory = directory(queueUrl);
+		QueueLock lock = QueueLockManager.getInstance().forDelayed(directory.getParentFile());
+		boolean locked = false;
+		int released = 0;
+		try {
+			lock.lock();
+			locked = true;
+			ConcurrentSkipListSet<Long> known = buckets(queueUrl);
+			scan(directory, known);
+			Long bucket;
+			while ((bucket = known.isEmpty() ? null : known.first()) != null && bucket <= nowMillis) {
+				File file = new File(directory, String.format("%020d", bucket) + BUCKET_SUFFIX);
+				if (file.exists()) {
+					released += releaseBucket(file, queue);
+					if (!file.delete()) {
+						LOGGER.warning("Unable to delete bucket " + file);
+						break;
+					}
+				}
+				known.remove(bucket);
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			tracer.dumpOnError(e);
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			if (locked) {
+				lock.unlock();
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * Reads a bucket file and hands its messages to the queue in chunks.
+	 */
+	private int releaseBucket(File file, Consumer<List<Message>> queue) throws IOException {
+		int released = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			List<Message> chunk = new ArrayList<Message>();
+			long position = 0;
+			long size = channel.size();
+			while (position + length.capacity() <= size) {
+				length.clear();
+				readFully(channel, length, position);
+				// records are stored with their size negated
+				boolean record = length.getInt(0) < 0;
+				int bodySize = record ? -length.getInt(0) : length.getInt(0);
+				if (bodySize < 0 || position + length.capacity() + bodySize > size) {
+					LOGGER.info("Incomplete delayed entry at " + position + " of " + file);
+					break;
+				}
+				ByteBuffer body = ByteBuffer.allocate(bodySize);
+				readFully(channel, body, position + length.capacity());
+				position += length.capacity() + bodySize;
+				body.flip();
+				Message message = decode(body, record, file);
+				if (message == null) {
+					continue;
+				}
+				chunk.add(message);
+				if (chunk.size() == RELEASE_CHUNK_SIZE) {
+					queue.accept(chunk);
+					released += chunk.size();
+					chunk = new ArrayList<Message>();
+				}
+			}
+			if (!chunk.isEmpty()) {
+				queue.accept(chunk);
+				released += chunk.size();
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * Adds the bucket files found in the directory to the known buckets.
+	 */
+	private void scan(File directory, ConcurrentSkipListSet<Long> known) {
+		String[] files = directory.list();
+		if (files == null) {
+			return;
+		}
+		for (String name : files) {
+			if (name.endsWith(BUCKET_SUFFIX)) {
+				try {
+					known.add(Long.parseLong(name.substring(0, name.length() - BUCKET_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					LOGGER.warning("Ignoring file " + name + " in " + directory);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the known buckets of a queue, listing its directory on first
+	 * use so that buckets left by an earlier run are released.
+	 */
+	private ConcurrentSkipListSet<Long> buckets(String queueUrl) {
+		ConcurrentSkipListSet<Long> known = buckets.get(queueUrl);
+		if (known == null) {
+			ConcurrentSkipListSet<Long> created = new ConcurrentSkipListSet<Long>();
+			scan(directory(queueUrl), created);
+			known = buckets.putIfAbsent(queueUrl, created);
+			if (known == null) {
+				known = created;
+			}
+		}
+		return known;
+	}
+
+	private File directory(String queueUrl) {
+		return new File(new File(storageLocation, names.queueName(queueUrl)), DIRECTORY_NAME).getAbsoluteFile();
+	}
+
+	private ByteBuffer encode(List<Message> messages) {
+		ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+		ByteBuffer size = ByteBuffer.allocate(4);
+		for (Message message : messages) {
+			ByteBuffer record = MessageCodec.encode(message.getBody(), message.getMessageAttributes());
+			size.putInt(0, -record.remaining());
+			blocks.write(size.array(), 0, size.capacity());
+			blocks.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+		}
+		return ByteBuffer.wrap(blocks.toByteArray());
+	}
+
+	/**
+	 * Reads the message of a block.
+	 *
+	 * @return Message or null if the record is malformed and dropped
+	 */
+	private Message decode(ByteBuffer body, boolean record, File file) {
+		if (!record) {
+			return new Message().withBody(new String(body.array(), StandardCharsets.UTF_8));
+		}
+		try {
+			return MessageCodec.decode(body);
+		} catch (IllegalArgumentException e) {
+			LOGGER.severe("Dropping malformed delayed entry of " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Fills the whole buffer without moving the file pointer.
+	 */
+	private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+}
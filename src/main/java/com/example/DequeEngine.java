@@ -0,0 +1,58 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deque Engine
+ *
+ * Queue engine storing the messages in an unbounded LinkedBlockingDeque.
+ * Returned messages are added to the front of the deque.
+ *
+ * @param <E>
+ *            Type of the stored messages
+ *
+ * @author Edgar Resma
+ */
+public class DequeEngine<E> implements QueueEngine<E> {
+
+	private final BlockingDeque<E> messages = new LinkedBlockingDeque<E>();
+
+	@Override
+	public void add(E message) {
+		messages.add(message);
+	}
+
+	@Override
+	public void addAll(List<E> messages) {
+		this.messages.addAll(messages);
+	}
+
+	@Override
+	public void addFirst(E message) {
+		messages.addFirst(message);
+	}
+
+	@Override
+	public E poll() {
+		return messages.poll();
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return messages.poll(timeout, unit);
+	}
+
+	@Override
+	public int drainTo(List<E> messages, int maxMessages) {
+		return this.messages.drainTo(messages, maxMessages);
+	}
+
+	@Override
+	public int size() {
+		return messages.size();
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.example;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Event Tracer
+ *
+ * Records queue operations into a preallocated ring buffer in place of a log
+ * line per message. Recording threads claim a slot with a single atomic
+ * increment and never take a lock; once the ring is full the oldest events are
+ * overwritten. Every slot carries the sequence of its event, written last, so
+ * a dump skips slots that are being overwritten while read.
+ *
+ * Tracing is off unless trace.enabled is true, and then one event in
+ * trace.sample is kept. Message bodies are only kept with trace.bodies, and
+ * only as the reference the caller already holds, so nothing is converted to a
+ * string on the hot path. The buffer is dumped on demand or to the log when a
+ * storage operation fails.
+ *
+ * @author Edgar Resma
+ */
+public class EventTracer {
+
+	private final static Logger LOGGER = Logger.getLogger(EventTracer.class.getName());
+
+	public enum Type {
+		PUSH, PULL, EMPTY, REQUEUE, EXPIRE, DELETE
+	}
+
+	private static final Type[] TYPES = Type.values();
+
+	private static EventTracer eventTracer;
+
+	private final boolean enabled;
+	private final int sampleRate;
+	private final boolean bodies;
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLongArray sequences;
+	private final AtomicLongArray times;
+	private final AtomicIntegerArray types;
+	private final AtomicReferenceArray<String> queues;
+	private final AtomicLongArray counts;
+	private final AtomicLongArray positions;
+	private final AtomicReferenceArray<String> details;
+
+	public static synchronized EventTracer getInstance() {
+		if (eventTracer == null) {
+			eventTracer = new EventTracer(Boolean.parseBoolean(QueueConfig.getProperty("trace.enabled", "false")),
+					QueueConfig.getInt("trace.buffer.size", 8192), QueueConfig.getInt("trace.sample", 1),
+					Boolean.parseBoolean(QueueConfig.getProperty("trace.bodies", "false")));
+		}
+		return eventTracer;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param enabled
+	 *            Whether events are recorded at all
+	 * @param capacity
+	 *            Number of events kept, rounded up to a power of two
+	 * @param sampleRate
+	 *            One event in sampleRate is recorded
+	 * @param bodies
+	 *            Whether message bodies are kept with their events
+	 */
+	public EventTracer(boolean enabled, int capacity, int sampleRate, boolean bodies) {
+		int size = enabled ? Integer.highestOneBit(Math.max(2, capacity) - 1) << 1 : 1;
+		this.enabled = enabled;
+		this.sampleRate = Math.max(1, sampleRate);
+		this.bodies = bodies;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.times = new AtomicLongArray(size);
+		this.types = new AtomicIntegerArray(size);
+		this.queues = new AtomicReferenceArray<String>(size);
+		this.counts = new AtomicLongArray(size);
+		this.positions = new AtomicLongArray(size);
+		this.details = new AtomicReferenceArray<String>(size);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param body
+	 *            Message body held by the caller
+	 * @return The body if bodies are traced, otherwise null
+	 */
+	public String body(String body) {
+		return bodies ? body : null;
+	}
+
+	/**
+	 * Records an event.
+	 *
+	 * @param type
+	 *            Operation
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param count
+	 *            Number of messages involved
+	 */
+	public void record(Type type, String queueUrl, long count) {
+		record(type, queueUrl, count, -1, null);
+	}
+
+	/**
+	 * Records an event.
+	 *
+	 * @param type
+	 *            Operation
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param count
+	 *            Number of messages involved
+	 * @param position
+	 *            Position in the queue file after the operation, -1 if none
+	 * @param detail
+	 *            Message body or identifier held by the caller, may be null
+	 */
+	public void record(Type type, String queueUrl, long count, long position, String detail) {
+		if (!enabled || (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)) {
+			return;
+		}
+		long sequence = next.getAndIncrement();
+		int slot = (int) (sequence & mask);
+		// readers skip the slot until its new sequence is written
+		sequences.set(slot, 0);
+		times.set(slot, System.currentTimeMillis());
+		types.set(slot, type.ordinal());
+		queues.set(slot, queueUrl);
+		counts.set(slot, count);
+		positions.set(slot, position);
+		details.set(slot, detail);
+		sequences.set(slot, sequence + 1);
+	}
+
+	/**
+	 * @return Recorded events oldest first, one line each. Events overwritten
+	 *         while reading are left out.
+	 */
+	public List<String> dump() {
+		List<String> events = new ArrayList<String>();
+		if (!enabled) {
+			return events;
+		}
+		long last = next.get();
+		for (long sequence = Math.max(0, last - mask - 1); sequence < last; sequence++) {
+			int slot = (int) (sequence & mask);
+			if (sequences.get(slot) != sequence + 1) {
+				continue;
+			}
+			StringBuilder event = new StringBuilder();
+			event.append(Instant.ofEpochMilli(times.get(slot))).append(' ').append(TYPES[types.get(slot)]).append(' ')
+					.append(queues.get(slot)).append(" count=").append(counts.get(slot));
+			long position = positions.get(slot);
+			if (position >= 0) {
+				event.append(" position=").append(position);
+			}
+			String detail = details.get(slot);
+			if (detail != null) {
+				event.append(' ').append(detail);
+			}
+			if (sequences.get(slot) == sequence + 1) {
+				events.add(event.toString());
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Logs the recorded events leading to a failed operation.
+	 *
+	 * @param e
+	 *            Failure of the operation
+	 */
+	public void dumpOnError(Throwable e) {
+		if (!enabled) {
+			return;
+		}
+		StringBuilder trace = new StringBuilder("Events before ").append(e);
+		for (String event : dump()) {
+			trace.append(System.lineSeparator()).append(event);
+		}
+		LOGGER.severe(trace.toString());
+	}
+
+}
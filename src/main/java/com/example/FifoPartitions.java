@@ -0,0 +1,539 @@
+package com.example;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * FIFO Partitions
+ *
+ * Message groups of a FIFO queue kept by a file storage. The storages keep the
+ * messages of a queue in order but know nothing of groups, so the groups are
+ * hashed onto fifo.partitions partition queues next to the FIFO queue, named
+ * <queue url>-<partition>, and every message is stored with its group in the
+ * MessageGroupId message attribute.
+ *
+ * Messages pulled from a partition are staged in memory in MessageGroups, so
+ * the messages of a group keep their order and only one of them is in flight,
+ * while a group does not wait for the other groups of its partition. Groups
+ * are dropped once drained. At most fifo.staged.max messages are staged and a
+ * full stage pulls no partition until messages are delivered, so a group with
+ * many messages behind its message in flight may still hold back the other
+ * groups of its partition.
+ *
+ * Partitions that may have messages are kept in a ready deque, so the next
+ * partition to pull is found in constant time. A partition found empty waits
+ * for the next write to it. Deliveries are found by their receipt in a map.
+ * The delivery of a group ends when its message is deleted. A message
+ * re-queued or whose visibility timeout has passed is staged again at the
+ * front of its group with one more receive.
+ *
+ * A storage keeping the visibility of its entries expires staged messages as
+ * well. A message pulled again is matched to its staged entry by its position
+ * and takes the place of the entry. A message whose visibility can no longer
+ * be renewed when it is delivered has been made visible again, so its group is
+ * abandoned and the messages staged for it are returned to the storage, to be
+ * pulled again in their order.
+ *
+ * The state of a FIFO queue is kept in the directory of the queue under
+ * filequeue.location:
+ *
+ * 1. fifo.lock - claimed by the first process using the queue until it exits.
+ * A second process is rejected, as the deliveries in flight are known only to
+ * the process that pulled them.
+ *
+ * 2. deduplication - journal of the DeduplicationWindow of the queue.
+ *
+ * After a restart every partition is ready. A storage keeping the visibility
+ * of its entries is asked for a message still in flight before the first pull
+ * of a partition, so the partition is held until the deadline of that message
+ * has passed. The staged messages of other storages are lost with the process,
+ * like their messages in flight.
+ *
+ * @author Edgar Resma
+ */
+class FifoPartitions {
+
+	private static final String FIFO_SUFFIX = ".fifo";
+	private static final String DEDUPLICATION_FILE_NAME = "deduplication";
+	private static final ConcurrentMap<String, FifoPartitions> queues = new ConcurrentHashMap<String, FifoPartitions>();
+
+	private final Partition[] partitions;
+	private final Map<Integer, Partition> tags = new HashMap<Integer, Partition>();
+	private final ArrayDeque<Partition> ready = new ArrayDeque<Partition>();
+	private final List<Partition> held = new ArrayList<Partition>();
+	private final MessageGroups<Entry> groups = new MessageGroups<Entry>();
+	private final Map<Long, Entry> positions = new HashMap<Long, Entry>();
+	private final Map<String, Entry> receipts = new HashMap<String, Entry>();
+	private final PriorityQueue<Entry> deadlines = new PriorityQueue<Entry>(
+			Comparator.comparingLong((Entry entry) -> entry.deadlineMillis));
+	private final int maxStaged;
+	private final DeduplicationWindow deduplicationWindow;
+
+	/**
+	 * Constructor
+	 *
+	 * @param queueUrl
+	 *            URL of the FIFO queue
+	 * @param directory
+	 *            Directory holding the state of the queue
+	 * @param partitions
+	 *            Number of partition queues
+	 * @param maxStaged
+	 *            Number of pulled messages staged at most
+	 * @param deduplicationWindowMillis
+	 *            Time a deduplication id is remembered
+	 */
+	FifoPartitions(String queueUrl, File directory, int partitions, int maxStaged, long deduplicationWindowMillis) {
+		this.partitions = new Partition[Math.max(1, partitions)];
+		for (int index = 0; index < this.partitions.length; index++) {
+			Partition partition = new Partition(index, queueUrl + "-" + index);
+			this.partitions[index] = partition;
+			tags.put(partition.name.hashCode(), partition);
+			partition.recovered = true;
+			partition.queued = true;
+			ready.add(partition);
+		}
+		this.maxStaged = Math.max(1, maxStaged);
+		this.deduplicationWindow = new DeduplicationWindow(deduplicationWindowMillis,
+				new File(directory, DEDUPLICATION_FILE_NAME));
+	}
+
+	/**
+	 * Returns the partitions of a FIFO queue, shared by every service of the
+	 * process. The first use claims the queue for the process.
+	 *
+	 * @param queueUrl
+	 *            URL of the FIFO queue
+	 * @return Partitions of the queue
+	 * @throws IllegalStateException
+	 *             If another process uses the queue
+	 */
+	static FifoPartitions forQueue(String queueUrl) {
+		FifoPartitions partitions = queues.get(queueUrl);
+		return partitions != null ? partitions : queues.computeIfAbsent(queueUrl, url -> {
+			File directory = new File(QueueConfig.getProperty("filequeue.location", ""), QueueConfig.queueName(url))
+					.getAbsoluteFile();
+			QueueLockManager.getInstance().claim(directory);
+			return new FifoPartitions(url, directory, QueueConfig.getInt("fifo.partitions", 16),
+					QueueConfig.getInt("fifo.staged.max", 1000),
+					QueueConfig.getLong("fifo.deduplication.window", 300000));
+		});
+	}
+
+	/**
+	 * Returns the FIFO queue of a partition queue.
+	 *
+	 * @param queueUrl
+	 *            URL of a queue
+	 * @return URL of the FIFO queue or null if the queue is no partition
+	 */
+	static String fifoUrl(String queueUrl) {
+		int separator = queueUrl.lastIndexOf('-');
+		if (separator < 0 || !queueUrl.startsWith(FIFO_SUFFIX, separator - FIFO_SUFFIX.length())) {
+			return null;
+		}
+		for (int i = separator + 1; i < queueUrl.length(); i++) {
+			if (!Character.isDigit(queueUrl.charAt(i))) {
+				return null;
+			}
+		}
+		return separator + 1 < queueUrl.length() ? queueUrl.substring(0, separator) : null;
+	}
+
+	/**
+	 * @param message
+	 *            Message pulled from a partition queue
+	 * @return Group the message was pushed with, empty for a message without
+	 */
+	static String groupOf(Message message) {
+		MessageAttributeValue groupId = message.getMessageAttributes().get(MessageGroups.MESSAGE_GROUP_ID);
+		return groupId != null && groupId.getStringValue() != null ? groupId.getStringValue() : "";
+	}
+
+	/**
+	 * @return Deduplication ids of the messages pushed to the queue
+	 */
+	DeduplicationWindow deduplicationWindow() {
+		return deduplicationWindow;
+	}
+
+	/**
+	 * @param groupId
+	 *            Message group id
+	 * @return URL of the partition queue the group is hashed onto
+	 */
+	String partitionUrl(String groupId) {
+		return partitions[Math.floorMod(groupId.hashCode(), partitions.length)].url;
+	}
+
+	/**
+	 * Makes a partition ready after messages were written to it.
+	 *
+	 * @param partitionUrl
+	 *            URL of the partition queue
+	 */
+	synchronized void written(String partitionUrl) {
+		Partition partition = partitionOf(partitionUrl);
+		if (partition != null) {
+			partition.written = true;
+			if (!partition.reserved && partition.heldUntil == 0) {
+				enqueue(partition);
+			}
+		}
+	}
+
+	/**
+	 * Reserves the next ready partition for a pull, unless the stage is full.
+	 *
+	 * @param nowMillis
+	 *            Current time in milliseconds
+	 * @return URL of the partition queue to pull from or null if none is
+	 *         ready
+	 */
+	synchronized String take(long nowMillis) {
+		for (Iterator<Partition> it = held.iterator(); it.hasNext();) {
+			Partition partition = it.next();
+			if (partition.heldUntil <= nowMillis) {
+				it.remove();
+				partition.heldUntil = 0;
+				enqueue(partition);
+			}
+		}
+		if (groups.size() >= maxStaged) {
+			return null;
+		}
+		Partition partition = ready.poll();
+		if (partition == null) {
+			return null;
+		}
+		partition.queued = false;
+		partition.written = false;
+		partition.reserved = true;
+		return partition.url;
+	}
+
+	/**
+	 * Tells whether a partition has not yet been checked for a message left in
+	 * flight by an earlier process.
+	 *
+	 * @param partitionUrl
+	 *            URL of the reserved partition queue
+	 * @return true until the partition is held
+	 */
+	synchronized boolean recovered(String partitionUrl) {
+		Partition partition = partitionOf(partitionUrl);
+		return partition != null && partition.recovered;
+	}
+
+	/**
+	 * Ends the check of a recovered partition. A message left in flight by an
+	 * earlier process holds the reserved partition until its deadline has
+	 * passed, else the partition stays reserved for the pull.
+	 *
+	 * @param partitionUrl
+	 *            URL of the reserved partition queue
+	 * @param deadlineMillis
+	 *            Visibility deadline of the message in flight, 0 if none
+	 */
+	synchronized void held(String partitionUrl, long deadlineMillis) {
+		Partition partition = partitionOf(partitionUrl);
+		partition.recovered = false;
+		if (deadlineMillis > 0) {
+			partition.reserved = false;
+			partition.heldUntil = deadlineMillis;
+			held.add(partition);
+		}
+	}
+
+	/**
+	 * Stages the messages pulled from a reserved partition and releases it. A
+	 * partition stays ready if it may hold more messages or was written during
+	 * the pull.
+	 *
+	 * @param partitionUrl
+	 *            URL of the reserved partition queue
+	 * @param messages
+	 *            Pulled messages in queue order, with their receipt as message
+	 *            id
+	 * @param more
+	 *            true if the pull stopped before the end of the partition
+	 * @param redelivered
+	 *            true if the storage makes expired messages visible again, so
+	 *            a pulled message may be staged already
+	 */
+	synchronized void pulled(String partitionUrl, List<Message> messages, boolean more, boolean redelivered) {
+		Partition partition = partitionOf(partitionUrl);
+		partition.reserved = false;
+		for (Message message : messages) {
+			ReceiptHandle receipt = redelivered ? ReceiptHandle.decode(partition.name, message.getMessageId()) : null;
+			long position = receipt != null ? (long) partition.index << 56 ^ receipt.getPosition() : -1;
+			Entry entry = position >= 0 ? positions.get(position) : null;
+			if (entry != null) {
+				// expired in the storage and pulled with a new receipt
+				if (receipts.remove(entry.message.getMessageId(), entry)) {
+					deadlines.remove(entry);
+					groups.retry(entry.groupId, entry);
+				}
+				entry.message = message;
+				continue;
+			}
+			entry = new Entry(partition, groupOf(message), message, position);
+			if (position >= 0) {
+				positions.put(position, entry);
+			}
+			groups.add(entry.groupId, entry);
+		}
+		if (more || partition.written) {
+			enqueue(partition);
+		}
+	}
+
+	/**
+	 * Takes the first staged message of up to maxMessages ready groups and
+	 * puts the groups in flight, after staging again the messages whose
+	 * visibility timeout has passed.
+	 *
+	 * @param entries
+	 *            Receives the taken messages
+	 * @param maxMessages
+	 *            Maximum number of messages taken
+	 * @param nowMillis
+	 *            Current time in milliseconds
+	 */
+	synchronized void drainTo(List<Entry> entries, int maxMessages, long nowMillis) {
+		Entry expired;
+		while ((expired = deadlines.peek()) != null && expired.deadlineMillis <= nowMillis) {
+			retry(expired);
+		}
+		List<MessageGroups.Delivery<Entry>> deliveries = new ArrayList<MessageGroups.Delivery<Entry>>(maxMessages);
+		groups.drainTo(deliveries, maxMessages);
+		for (MessageGroups.Delivery<Entry> delivery : deliveries) {
+			entries.add(delivery.getMessage());
+		}
+	}
+
+	/**
+	 * Keeps a taken message in flight until its deadline.
+	 *
+	 * @param entry
+	 *            Taken message
+	 * @param deadlineMillis
+	 *            End of the visibility timeout
+	 */
+	synchronized void delivered(Entry entry, long deadlineMillis) {
+		entry.deadlineMillis = deadlineMillis;
+		receipts.put(entry.message.getMessageId(), entry);
+		deadlines.add(entry);
+	}
+
+	/**
+	 * Ends the delivery of a taken message that left its partition, making the
+	 * next message of its group ready.
+	 *
+	 * @param entry
+	 *            Taken message moved to the dead-letter queue
+	 */
+	synchronized void completed(Entry entry) {
+		positions.remove(entry.position, entry);
+		groups.complete(entry.groupId);
+	}
+
+	/**
+	 * Abandons the group of a taken message whose visibility could not be
+	 * renewed, as the storage has made it visible again. The partition is
+	 * pulled again.
+	 *
+	 * @param entry
+	 *            Taken message
+	 * @return Messages staged for the group, to be returned to the storage
+	 */
+	synchronized List<Entry> abandon(Entry entry) {
+		positions.remove(entry.position, entry);
+		List<Entry> abandoned = groups.drop(entry.groupId);
+		for (Entry staged : abandoned) {
+			positions.remove(staged.position, staged);
+		}
+		entry.partition.written = true;
+		if (!entry.partition.reserved && entry.partition.heldUntil == 0) {
+			enqueue(entry.partition);
+		}
+		return abandoned;
+	}
+
+	/**
+	 * Finds the partition queue of a receipt, by its delivery or else by the
+	 * queue tag of the receipt for deliveries no longer in flight.
+	 *
+	 * @param receiptHandle
+	 *            Receipt of the pulled message
+	 * @return URL of the partition queue or null if the receipt belongs to no
+	 *         partition
+	 */
+	synchronized String partitionUrlOf(String receiptHandle) {
+		Entry entry = receipts.get(receiptHandle);
+		if (entry != null) {
+			return entry.partition.url;
+		}
+		Partition partition = tags.get(ReceiptHandle.tag(receiptHandle));
+		return partition != null && ReceiptHandle.decode(partition.name, receiptHandle) != null ? partition.url
+				: null;
+	}
+
+	/**
+	 * Ends the delivery of a deleted message, making the next message of its
+	 * group ready.
+	 *
+	 * @param receiptHandle
+	 *            Receipt of the pulled message
+	 * @return false if the delivery has already ended
+	 */
+	synchronized boolean complete(String receiptHandle) {
+		Entry entry = receipts.remove(receiptHandle);
+		if (entry == null) {
+			return false;
+		}
+		deadlines.remove(entry);
+		completed(entry);
+		return true;
+	}
+
+	/**
+	 * Ends the delivery of a re-queued message by staging it again at the
+	 * front of its group.
+	 *
+	 * @param receiptHandle
+	 *            Receipt of the pulled message
+	 * @return false if the delivery has already ended
+	 */
+	synchronized boolean retry(String receiptHandle) {
+		Entry entry = receipts.get(receiptHandle);
+		if (entry == null) {
+			return false;
+		}
+		retry(entry);
+		return true;
+	}
+
+	/**
+	 * Moves the end of the visibility timeout of a delivery.
+	 *
+	 * @param receiptHandle
+	 *            Receipt of the pulled message
+	 * @param deadlineMillis
+	 *            New end of the visibility timeout
+	 * @return false if the delivery has already ended
+	 */
+	synchronized boolean extend(String receiptHandle, long deadlineMillis) {
+		Entry entry = receipts.get(receiptHandle);
+		if (entry == null) {
+			return false;
+		}
+		deadlines.remove(entry);
+		entry.deadlineMillis = deadlineMillis;
+		deadlines.add(entry);
+		return true;
+	}
+
+	/**
+	 * @return End of the first visibility timeout in flight, Long.MAX_VALUE if
+	 *         none
+	 */
+	synchronized long nextDeadline() {
+		Entry entry = deadlines.peek();
+		return entry != null ? entry.deadlineMillis : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Stages a message in flight again, counting one more receive.
+	 */
+	private void retry(Entry entry) {
+		receipts.remove(entry.message.getMessageId());
+		deadlines.remove(entry);
+		entry.message.getAttributes().put(RedrivePolicy.RECEIVE_COUNT,
+				Integer.toString(RedrivePolicy.receiveCount(entry.message) + 1));
+		groups.retry(entry.groupId, entry);
+	}
+
+	private void enqueue(Partition partition) {
+		if (!partition.queued) {
+			partition.queued = true;
+			ready.add(partition);
+		}
+	}
+
+	private Partition partitionOf(String partitionUrl) {
+		int separator = partitionUrl.lastIndexOf('-');
+		try {
+			int index = Integer.parseInt(partitionUrl.substring(separator + 1));
+			if (index < partitions.length && partitions[index].url.equals(partitionUrl)) {
+				return partitions[index];
+			}
+		} catch (NumberFormatException e) {
+			// no partition of this queue
+		}
+		return null;
+	}
+
+	/**
+	 * Partition queue of the groups hashed onto it.
+	 */
+	private static class Partition {
+		private final int index;
+		private final String url;
+		private final String name;
+		private boolean queued;
+		private boolean written;
+		private boolean reserved;
+		private boolean recovered;
+		private long heldUntil;
+
+		Partition(int index, String url) {
+			this.index = index;
+			this.url = url;
+			this.name = QueueConfig.queueName(url);
+		}
+	}
+
+	/**
+	 * Message pulled from a partition, staged in its group or in flight.
+	 */
+	static class Entry {
+		private final Partition partition;
+		private final String groupId;
+		private final long position;
+		private Message message;
+		private long deadlineMillis;
+
+		Entry(Partition partition, String groupId, Message message, long position) {
+			this.partition = partition;
+			this.groupId = groupId;
+			this.message = message;
+			this.position = position;
+		}
+
+		String getPartitionUrl() {
+			return partition.url;
+		}
+
+		String getGroupId() {
+			return groupId;
+		}
+
+		Message getMessage() {
+			return message;
+		}
+	}
+
+}
@@ -1,5 +1,9 @@
 package com.example;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 import com.amazonaws.services.sqs.model.Message;
 
 /**
@@ -10,8 +14,11 @@ import com.amazonaws.services.sqs.model.Message;
  * 1. FileQueuePrintWriter - New line delimited storage.
  * 
  * 2. FileQueueRAF - Position-based file storage. Should have approximately
- * equal push and pull times by removing the file re-write dependency. Requires
- * to run the clean up method eventually to reduce the filesize.
+ * equal push and pull times by removing the file re-write dependency. Deleted
+ * entries are removed by an incremental compaction.
+ * 
+ * 3. FileQueueMapped - Segmented memory mapped storage. Consumed segments are
+ * deleted as a whole so no clean up is needed.
  * 
  * 
  * @author Edgar Resma
@@ -22,13 +29,140 @@ public interface FileQueue {
 	 * Add message to the end file queue.
 	 */
 	public void add(String queueUrl, String message);
+	/*
+	 * Add messages to the end of the file queue with a single write. Storage
+	 * failures are thrown as UncheckedIOException.
+	 */
+	public default void addAll(String queueUrl, List<String> messages) {
+		for (String message : messages) {
+			add(queueUrl, message);
+		}
+	}
+	/*
+	 * Add messages with their message attributes to the end of the file queue
+	 * with a single write. Storages that keep no attributes keep the bodies.
+	 */
+	public default void addMessages(String queueUrl, List<Message> messages) {
+		List<String> bodies = new ArrayList<String>(messages.size());
+		for (Message message : messages) {
+			bodies.add(message.getBody());
+		}
+		addAll(queueUrl, bodies);
+	}
+	/*
+	 * Flush written messages of the queue to the storage device. Storage
+	 * failures are thrown as UncheckedIOException.
+	 */
+	public default void force(String queueUrl) {
+	}
+	/*
+	 * Returns a value that changes whenever messages are added or returned to
+	 * the queue, also by other processes. Used to wake waiting consumers.
+	 */
+	public default long version(String queueUrl) {
+		return 0;
+	}
 	/*
 	 * Returns a pulled message on top of the queue.
 	 */
 	public void reQueue(String queueUrl, String messageId, String message);
+	/*
+	 * Returns a pulled message on top of the queue. Storages that keep the
+	 * receive count outside the entry read it from the message attributes.
+	 */
+	public default void reQueue(String queueUrl, Message message) {
+		reQueue(queueUrl, message.getMessageId(), message.getBody());
+	}
 	/*
 	 * Pull then delete the message from the top of the queue.
 	 */
 	public Message pull(String queueUrl);
+	/*
+	 * Pull then delete up to maxMessages messages from the top of the queue.
+	 */
+	public default List<Message> pullAll(String queueUrl, int maxMessages) {
+		List<Message> messages = new ArrayList<Message>(maxMessages);
+		Message message;
+		while (messages.size() < maxMessages && (message = pull(queueUrl)) != null) {
+			messages.add(message);
+		}
+		return messages;
+	}
+	/*
+	 * Returns true if pulled messages are tagged with their visibility
+	 * deadline in the file and made visible again by the storage, so the
+	 * caller needs no timer.
+	 */
+	public default boolean tracksVisibility() {
+		return false;
+	}
+	/*
+	 * Pull up to maxMessages messages, invisible for the given time when the
+	 * storage tracks visibility.
+	 */
+	public default List<Message> pullAll(String queueUrl, int maxMessages, long visibilityTimeoutMillis) {
+		return pullAll(queueUrl, maxMessages);
+	}
+	/*
+	 * Delete a pulled message when the storage tracks visibility.
+	 */
+	public default void delete(String queueUrl, String messageId) {
+	}
+	/*
+	 * Delete pulled messages with a single write of the queue state when the
+	 * storage tracks visibility, returning the number of messages deleted.
+	 * Storages deleting one message at a time count every message. Storage
+	 * failures are thrown as UncheckedIOException.
+	 */
+	public default int deleteAll(String queueUrl, List<String> messageIds) {
+		for (String messageId : messageIds) {
+			delete(queueUrl, messageId);
+		}
+		return messageIds.size();
+	}
+	/*
+	 * Set a new visibility timeout for a pulled message when the storage
+	 * tracks visibility.
+	 */
+	public default boolean changeVisibility(String queueUrl, String messageId, long visibilityTimeoutMillis) {
+		return false;
+	}
+	/*
+	 * Make the pulled messages whose deadline has passed visible again.
+	 * Returns the number of messages made visible.
+	 */
+	public default int sweep(String queueUrl) {
+		return 0;
+	}
+	/*
+	 * Returns the latest visibility deadline of the pulled messages neither
+	 * deleted nor visible again, 0 if there are none. Storage failures are
+	 * thrown as UncheckedIOException.
+	 */
+	public default long inFlightDeadline(String queueUrl) {
+		return 0;
+	}
+	/*
+	 * Remove deleted messages from the file once they take up enough space.
+	 * Returns the number of bytes removed.
+	 */
+	public default long compact(String queueUrl) {
+		return 0;
+	}
+	/*
+	 * Returns the size in bytes of the files of the queue.
+	 */
+	public default long fileSize(String queueUrl) {
+		File directory = new File(QueueConfig.getProperty("filequeue.location", ""),
+				QueueFileRegistry.getInstance().queueName(queueUrl));
+		File[] files = directory.listFiles();
+		long size = 0;
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
 
 }
@@ -0,0 +1,758 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.google.common.io.Files;
+
+/**
+ * FileQueueMapped
+ *
+ * Segmented queue file storage service. Each queue is stored in a directory
+ * holding a small meta file and a series of fixed-size segment files. All
+ * files are accessed through memory mapped buffers so adding and pulling an
+ * entry is a memory copy instead of a sequence of seeks and reads.
+ *
+ * Meta File 40 Bytes: <Head Segment 8 Bytes><Head Offset 8 Bytes><Tail Segment
+ * 8 Bytes><Tail Offset 8 Bytes><Generation 8 Bytes> - Position of the next
+ * entry to pull and of the next entry to write, and generation of the last
+ * delivery.
+ *
+ * Segment File: preallocated to filequeue.segment.size bytes and filled with
+ * Entry Blocks: <Message Size 4 Bytes><Flag 1 Byte><Receive Count 2
+ * Bytes><Generation 6 Bytes><Message n Bytes>. The message is the
+ * MessageCodec record of the body and message attributes. The flag is 5 for
+ * visible and 6 for invisible entries, a zero flag marks the unused remainder
+ * of a segment. A message larger than a segment gets a segment of its own
+ * sized to fit. Entries with flags 3 and 4 hold the body alone in UTF-8,
+ * entries written before generations were kept have flags 1 and 2 and no
+ * generation or receive count, they are still read. Entries written before
+ * receive counts were kept read as received 0 times.
+ *
+ * Every pull gives the entry a new generation, counts the receive and returns
+ * a ReceiptHandle of its segment, offset and generation as message id. A
+ * re-queue with the receipt of an earlier delivery finds another generation in
+ * the entry and is ignored.
+ *
+ * Once the head moves past the end of a segment the segment is unmapped and
+ * deleted, which reclaims consumed entries in constant time without
+ * rewriting the queue. An invisible entry whose segment has already been
+ * deleted is re-queued by appending it to the tail with its receive count.
+ *
+ * The JDK has no public way to unmap a buffer, segments are unmapped through
+ * the cleaner of the buffer, sun.misc.Unsafe.invokeCleaner from Java 9 on
+ * and DirectBuffer.cleaner before. Where neither is accessible the mapping
+ * is only dropped and released once the buffer is garbage collected. Unix
+ * deletes the file of a mapped segment right away, Windows refuses to delete
+ * it and leaves the consumed segment file behind with a warning.
+ *
+ * A queue is claimed by the first process using it with a FileLock on its
+ * mapped lock file, held until the process exits, so operations only take a
+ * lock of the process. Every access, including version, checks under that lock
+ * that the queue has not been closed, as close unmaps its buffers and any
+ * later access to them would crash the process.
+ *
+ * @author Edgar Resma
+ */
+public class FileQueueMapped implements FileQueue {
+
+	private final static Logger LOGGER = Logger.getLogger(FileQueueMapped.class.getName());
+
+	private static final int META_SIZE = 40;
+	private static final int META_HEAD_SEGMENT = 0;
+	private static final int META_HEAD_OFFSET = 8;
+	private static final int META_TAIL_SEGMENT = 16;
+	private static final int META_TAIL_OFFSET = 24;
+	private static final int META_GENERATION = 32;
+	private static final int ENTRY_HEADER_SIZE = 13;
+	private static final int LEGACY_ENTRY_HEADER_SIZE = 5;
+	private static final int FLAG_POSITION = 4;
+	private static final int GENERATION_POSITION = 5;
+	private static final byte FLAG_END = 0;
+	private static final byte LEGACY_VISIBLE = 1;
+	private static final byte LEGACY_INVISIBLE = 2;
+	private static final byte FLAG_VISIBLE = 3;
+	private static final byte FLAG_INVISIBLE = 4;
+	private static final byte FLAG_RECORD_VISIBLE = 5;
+	private static final byte FLAG_RECORD_INVISIBLE = 6;
+	private static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final Consumer<MappedByteBuffer> UNMAPPER = unmapper();
+	private static final int RECEIVE_COUNT_SHIFT = 48;
+	private static final long GENERATION_MASK = (1L << RECEIVE_COUNT_SHIFT) - 1;
+	private static final int MAX_RECEIVE_COUNT = 0xFFFF;
+
+	private final File storageLocation;
+	private final long segmentSize;
+	private final EventTracer tracer = EventTracer.getInstance();
+	// shared by all instances as a queue is claimed per process
+	private static final ConcurrentMap<File, MappedQueue> queues = new ConcurrentHashMap<File, MappedQueue>();
+
+	/**
+	 * Constructor using filequeue.location and filequeue.segment.size.
+	 */
+	public FileQueueMapped() {
+		this(QueueConfig.getProperty("filequeue.location", ""),
+				QueueConfig.getLong("filequeue.segment.size", DEFAULT_SEGMENT_SIZE));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param storageLocation
+	 *            Directory containing one sub-directory per queue
+	 * @param segmentSize
+	 *            Size in bytes of a segment file
+	 */
+	public FileQueueMapped(String storageLocation, long segmentSize) {
+		this.storageLocation = new File(storageLocation);
+		this.segmentSize = Math.min(Integer.MAX_VALUE, Math.max(ENTRY_HEADER_SIZE, segmentSize));
+	}
+
+	/**
+	 * Add a message at the tail of the queue, starting a new segment when the
+	 * current one is full.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            message to be added into the queue
+	 */
+	@Override
+	public void add(String queueUrl, String message) {
+		addAll(queueUrl, Collections.singletonList(message));
+	}
+
+	/**
+	 * Add messages at the tail of the queue under a single lock.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            messages to be added into the queue in order
+	 */
+	@Override
+	public void addAll(String queueUrl, List<String> messages) {
+		List<Message> bodies = new ArrayList<Message>(messages.size());
+		for (String message : messages) {
+			bodies.add(new Message().withBody(message));
+		}
+		addMessages(queueUrl, bodies);
+	}
+
+	/**
+	 * Add messages with their message attributes at the tail of the queue
+	 * under a single lock.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            messages to be added into the queue in order
+	 */
+	@Override
+	public void addMessages(String queueUrl, List<Message> messages) {
+		try {
+			MappedQueue queue = lockQueue(queueUrl);
+			try {
+				for (Message message : messages) {
+					queue.append(MessageCodec.encode(message.getBody(), message.getMessageAttributes()), 0);
+				}
+			} finally {
+				queue.lock.unlock();
+			}
+			tracer.record(EventTracer.Type.PUSH, queueUrl, messages.size());
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			tracer.dumpOnError(e);
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			throw new IllegalStateException("Interrupted while writing " + queueUrl, e);
+		}
+	}
+
+	/**
+	 * Reads the head and tail of the queue from the meta file under the lock
+	 * of the process.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	@Override
+	public long version(String queueUrl) {
+		try {
+			MappedQueue queue = lockQueue(queueUrl);
+			try {
+				return queue.version();
+			} finally {
+				queue.lock.unlock();
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			return 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+
+	/**
+	 * Flushes the segments written since the last call and the meta file to
+	 * the storage device.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	@Override
+	public void force(String queueUrl) {
+		try {
+			MappedQueue queue = lockQueue(queueUrl);
+			try {
+				queue.force();
+			} finally {
+				queue.lock.unlock();
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			throw new IllegalStateException("Interrupted while forcing " + queueUrl, e);
+		}
+	}
+
+	/**
+	 * Returns the size of the segments and meta file, counting the full
+	 * preallocated size of every segment.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	@Override
+	public long fileSize(String queueUrl) {
+		File[] files = new File(storageLocation, fromUrl(queueUrl)).listFiles();
+		long size = 0;
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Re-queue a pulled message by flagging its entry as visible again and
+	 * moving the head back to it. If the segment of the entry was already
+	 * deleted the message is added to the tail instead. A receipt of an
+	 * earlier delivery or of another queue is ignored.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messageId
+	 *            Receipt handle returned by pull
+	 * @param message
+	 *            Message to be re-queued
+	 */
+	@Override
+	public void reQueue(String queueUrl, String messageId, String message) {
+		reQueue(queueUrl, new Message().withMessageId(messageId).withBody(message), 0);
+	}
+
+	/**
+	 * Re-queue a pulled message, keeping its receive count and message
+	 * attributes if it is added to the tail.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message returned by pull
+	 */
+	@Override
+	public void reQueue(String queueUrl, Message message) {
+		reQueue(queueUrl, message, RedrivePolicy.receiveCount(message));
+	}
+
+	private void reQueue(String queueUrl, Message message, int receiveCount) {
+		try {
+			MappedQueue queue = lockQueue(queueUrl);
+			try {
+				if (!queue.makeVisible(message.getMessageId())) {
+					queue.append(MessageCodec.encode(message.getBody(), message.getMessageAttributes()), receiveCount);
+				}
+			} finally {
+				queue.lock.unlock();
+			}
+			tracer.record(EventTracer.Type.REQUEUE, queueUrl, 1, -1, message.getMessageId());
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			tracer.dumpOnError(e);
+		}
+	}
+
+	/**
+	 * Pull the first visible message of the queue and flag it as invisible.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Message with a receipt handle as messageId or null if the queue
+	 *         is empty
+	 */
+	@Override
+	public Message pull(String queueUrl) {
+		List<Message> messages = pullAll(queueUrl, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * Pull up to maxMessages visible messages under a single lock and flag
+	 * them as invisible.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            maximum number of messages to pull
+	 */
+	@Override
+	public List<Message> pullAll(String queueUrl, int maxMessages) {
+		List<Message> messages = new ArrayList<Message>(maxMessages);
+		try {
+			MappedQueue queue = lockQueue(queueUrl);
+			try {
+				Message message;
+				while (messages.size() < maxMessages && (message = queue.poll()) != null) {
+					messages.add(message);
+				}
+			} finally {
+				queue.lock.unlock();
+			}
+			tracer.record(messages.isEmpty() ? EventTracer.Type.EMPTY : EventTracer.Type.PULL, queueUrl, messages.size());
+		} catch (IOException | InterruptedException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			tracer.dumpOnError(e);
+		}
+		return messages;
+	}
+
+	/**
+	 * Unmaps and closes the files of every queue opened in this process. A
+	 * queue used afterwards is opened again.
+	 */
+	public static void close() {
+		for (Iterator<MappedQueue> it = queues.values().iterator(); it.hasNext();) {
+			MappedQueue queue = it.next();
+			// waits for the accesses in progress, later ones find it closed
+			queue.lock.lock();
+			try {
+				queue.close();
+			} finally {
+				queue.lock.unlock();
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the opened queue holding its lock, opening the queue again if it
+	 * was closed meanwhile.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	private MappedQueue lockQueue(String queueUrl) throws IOException, InterruptedException {
+		while (true) {
+			MappedQueue queue = loadQueue(queueUrl);
+			queue.lock.lockInterruptibly();
+			if (!queue.closed) {
+				return queue;
+			}
+			queue.lock.unlock();
+			queues.remove(queue.directory, queue);
+		}
+	}
+
+	/**
+	 * Returns the opened queue, opening or creating its meta file if needed.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	private MappedQueue loadQueue(String queueUrl) throws IOException {
+		File directory = new File(storageLocation, fromUrl(queueUrl)).getAbsoluteFile();
+		MappedQueue queue = queues.get(directory);
+		if (queue == null) {
+			synchronized (queues) {
+				queue = queues.get(directory);
+				if (queue == null) {
+					queue = new MappedQueue(directory, segmentSize);
+					queues.put(directory, queue);
+				}
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Get queue name from URL
+	 *
+	 * @param queueUrl
+	 *            URL used for sqs service
+	 * @return Queue name
+	 *
+	 */
+	private String fromUrl(String queueUrl) {
+		URI uri = URI.create(queueUrl);
+		String[] segments = uri.getPath().split("/");
+		return segments[segments.length - 1];
+	}
+
+	/**
+	 * Open segments and meta file of a single queue. All methods expect the
+	 * caller to hold the queue lock and to have checked that the queue is not
+	 * closed.
+	 */
+	private static class MappedQueue {
+
+		private final File directory;
+		private final String queueName;
+		private final long segmentSize;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final RandomAccessFile metaFile;
+		private final MappedByteBuffer meta;
+		private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+		private long forcedSegment;
+		private boolean closed;
+
+		MappedQueue(File directory, long segmentSize) throws IOException {
+			this.directory = directory;
+			this.queueName = directory.getName();
+			this.segmentSize = segmentSize;
+			QueueLockManager.getInstance().claim(directory, QueueLockManager.MAPPED_LOCK_FILE_NAME);
+			File file = new File(directory, "meta");
+			Files.createParentDirs(file);
+			this.metaFile = new RandomAccessFile(file, "rw");
+			// a new zero-filled meta file points head and tail at segment 0,
+			// a meta file of 32 bytes grows by a zero generation
+			this.meta = metaFile.getChannel().map(MapMode.READ_WRITE, 0, META_SIZE);
+		}
+
+		/**
+		 * @return Value changing with every move of the head or tail
+		 */
+		long version() {
+			long version = meta.getLong(META_HEAD_SEGMENT);
+			version = 31 * version + meta.getLong(META_HEAD_OFFSET);
+			version = 31 * version + meta.getLong(META_TAIL_SEGMENT);
+			return 31 * version + meta.getLong(META_TAIL_OFFSET);
+		}
+
+		void append(ByteBuffer record, int receiveCount) throws IOException {
+			long tailSegment = meta.getLong(META_TAIL_SEGMENT);
+			int tailOffset = (int) meta.getLong(META_TAIL_OFFSET);
+			int entrySize = ENTRY_HEADER_SIZE + record.remaining();
+			MappedByteBuffer segment = segment(tailSegment, true);
+			if (tailOffset + entrySize > segment.capacity()) {
+				tailSegment++;
+				tailOffset = 0;
+				segment = createSegment(tailSegment, Math.max(segmentSize, entrySize));
+			}
+			segment.putInt(tailOffset, record.remaining());
+			segment.putLong(tailOffset + GENERATION_POSITION,
+					(long) Math.min(MAX_RECEIVE_COUNT, receiveCount) << RECEIVE_COUNT_SHIFT);
+			ByteBuffer entry = segment.duplicate();
+			entry.position(tailOffset + ENTRY_HEADER_SIZE);
+			entry.put(record);
+			// flag is written last so a partially written entry is never read
+			segment.put(tailOffset + FLAG_POSITION, FLAG_RECORD_VISIBLE);
+			meta.putLong(META_TAIL_SEGMENT, tailSegment);
+			meta.putLong(META_TAIL_OFFSET, tailOffset + entrySize);
+		}
+
+		Message poll() throws IOException {
+			long headSegment = meta.getLong(META_HEAD_SEGMENT);
+			int headOffset = (int) meta.getLong(META_HEAD_OFFSET);
+			long tailSegment = meta.getLong(META_TAIL_SEGMENT);
+			long tailOffset = meta.getLong(META_TAIL_OFFSET);
+			while (headSegment < tailSegment || headOffset < tailOffset) {
+				MappedByteBuffer segment = segment(headSegment, false);
+				if (segment == null || headOffset + LEGACY_ENTRY_HEADER_SIZE > segment.capacity()
+						|| segment.get(headOffset + FLAG_POSITION) == FLAG_END) {
+					// end of a consumed segment
+					retireSegment(headSegment);
+					headSegment++;
+					headOffset = 0;
+					continue;
+				}
+				int length = segment.getInt(headOffset);
+				int entryPosition = headOffset;
+				byte flag = segment.get(entryPosition + FLAG_POSITION);
+				int headerSize = headerSize(flag);
+				headOffset += headerSize + length;
+				if (flag == FLAG_RECORD_VISIBLE || flag == FLAG_VISIBLE || flag == LEGACY_VISIBLE) {
+					ByteBuffer entry = segment.duplicate();
+					entry.limit(entryPosition + headerSize + length);
+					entry.position(entryPosition + headerSize);
+					Message message;
+					if (flag == FLAG_RECORD_VISIBLE) {
+						try {
+							message = MessageCodec.decode(entry);
+						} catch (IllegalArgumentException e) {
+							// left invisible without a receipt, so never delivered
+							LOGGER.warning("Dropped malformed entry of " + queueName + ": " + e.getMessage());
+							segment.put(entryPosition + FLAG_POSITION, FLAG_RECORD_INVISIBLE);
+							continue;
+						}
+					} else {
+						byte[] body = new byte[length];
+						entry.get(body);
+						message = new Message().withBody(new String(body, StandardCharsets.UTF_8));
+					}
+					// legacy entries have no room for a generation and keep 0
+					long generation = 0;
+					int receiveCount = 0;
+					if (flag != LEGACY_VISIBLE) {
+						generation = (meta.getLong(META_GENERATION) + 1) & GENERATION_MASK;
+						meta.putLong(META_GENERATION, generation);
+						long received = segment.getLong(entryPosition + GENERATION_POSITION) >>> RECEIVE_COUNT_SHIFT;
+						receiveCount = (int) Math.min(MAX_RECEIVE_COUNT, received + 1);
+						segment.putLong(entryPosition + GENERATION_POSITION,
+								(long) receiveCount << RECEIVE_COUNT_SHIFT | generation);
+					}
+					segment.put(entryPosition + FLAG_POSITION, invisible(flag));
+					meta.putLong(META_HEAD_SEGMENT, headSegment);
+					meta.putLong(META_HEAD_OFFSET, headOffset);
+					message.setMessageId(
+							ReceiptHandle.encode(queueName, headSegment << 32 | entryPosition, generation));
+					if (flag != LEGACY_VISIBLE) {
+						message.addAttributesEntry(RedrivePolicy.RECEIVE_COUNT, Integer.toString(receiveCount));
+					}
+					return message;
+				}
+			}
+			meta.putLong(META_HEAD_SEGMENT, headSegment);
+			meta.putLong(META_HEAD_OFFSET, headOffset);
+			return null;
+		}
+
+		void force() {
+			long tailSegment = meta.getLong(META_TAIL_SEGMENT);
+			for (MappedByteBuffer segment : segments.subMap(forcedSegment, true, tailSegment, true).values()) {
+				segment.force();
+			}
+			meta.force();
+			forcedSegment = tailSegment;
+		}
+
+		/**
+		 * Flags the entry of a receipt as visible again if it is still in
+		 * flight with the generation of the receipt.
+		 *
+		 * @param messageId
+		 *            Receipt handle returned by poll
+		 * @return false if the segment of the entry no longer exists
+		 */
+		boolean makeVisible(String messageId) throws IOException {
+			ReceiptHandle receipt = ReceiptHandle.decode(queueName, messageId);
+			if (receipt == null) {
+				return true;
+			}
+			long entrySegment = receipt.getPosition() >>> 32;
+			int entryPosition = (int) receipt.getPosition();
+			long headSegment = meta.getLong(META_HEAD_SEGMENT);
+			long headOffset = meta.getLong(META_HEAD_OFFSET);
+			if (entrySegment < headSegment) {
+				return false;
+			}
+			MappedByteBuffer segment = segment(entrySegment, false);
+			if (segment == null) {
+				return false;
+			}
+			if (entryPosition < 0 || entryPosition + LEGACY_ENTRY_HEADER_SIZE > segment.capacity()) {
+				return true;
+			}
+			byte flag = segment.get(entryPosition + FLAG_POSITION);
+			if ((flag == FLAG_RECORD_INVISIBLE || flag == FLAG_INVISIBLE) && (segment.getLong(
+					entryPosition + GENERATION_POSITION) & GENERATION_MASK) == receipt.getGeneration()) {
+				segment.put(entryPosition + FLAG_POSITION,
+						flag == FLAG_INVISIBLE ? FLAG_VISIBLE : FLAG_RECORD_VISIBLE);
+			} else if (flag == LEGACY_INVISIBLE && receipt.getGeneration() == 0) {
+				segment.put(entryPosition + FLAG_POSITION, LEGACY_VISIBLE);
+			} else {
+				// delivered again or visible already
+				return true;
+			}
+			if (entrySegment == headSegment && entryPosition < headOffset) {
+				meta.putLong(META_HEAD_OFFSET, entryPosition);
+			}
+			return true;
+		}
+
+		/**
+		 * @return Flag of a pulled entry with the visible flag
+		 */
+		private static byte invisible(byte flag) {
+			return flag == FLAG_RECORD_VISIBLE ? FLAG_RECORD_INVISIBLE
+					: flag == FLAG_VISIBLE ? FLAG_INVISIBLE : LEGACY_INVISIBLE;
+		}
+
+		/**
+		 * @return Size of the header of an entry with the flag
+		 */
+		private static int headerSize(byte flag) {
+			return flag == LEGACY_VISIBLE || flag == LEGACY_INVISIBLE ? LEGACY_ENTRY_HEADER_SIZE : ENTRY_HEADER_SIZE;
+		}
+
+		/**
+		 * Returns the mapped segment, mapping it on first use.
+		 *
+		 * @param index
+		 *            Segment number
+		 * @param create
+		 *            Create the segment if it does not exist
+		 * @return Mapped segment or null if it does not exist
+		 */
+		private MappedByteBuffer segment(long index, boolean create) throws IOException {
+			MappedByteBuffer segment = segments.get(index);
+			if (segment == null) {
+				File file = segmentFile(index);
+				if (file.exists()) {
+					try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+						segment = raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length());
+					}
+					segments.put(index, segment);
+				} else if (create) {
+					segment = createSegment(index, segmentSize);
+				}
+			}
+			return segment;
+		}
+
+		private MappedByteBuffer createSegment(long index, long size) throws IOException {
+			MappedByteBuffer segment;
+			try (RandomAccessFile raf = new RandomAccessFile(segmentFile(index), "rw")) {
+				raf.setLength(size);
+				segment = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+			}
+			segments.put(index, segment);
+			return segment;
+		}
+
+		/**
+		 * Unmaps a consumed segment and deletes its file.
+		 *
+		 * @param index
+		 *            Segment number
+		 */
+		private void retireSegment(long index) {
+			MappedByteBuffer segment = segments.remove(index);
+			if (segment != null) {
+				unmap(segment);
+			}
+			File file = segmentFile(index);
+			if (file.exists() && !file.delete()) {
+				LOGGER.warning("Unable to delete segment " + file);
+			}
+			// forget segments left mapped behind the head
+			for (Iterator<Map.Entry<Long, MappedByteBuffer>> it = segments.headMap(index).entrySet().iterator(); it
+					.hasNext();) {
+				unmap(it.next().getValue());
+				it.remove();
+			}
+		}
+
+		private File segmentFile(long index) {
+			return new File(directory, String.format("%020d.segment", index));
+		}
+
+		void close() {
+			closed = true;
+			for (MappedByteBuffer segment : segments.values()) {
+				unmap(segment);
+			}
+			segments.clear();
+			try {
+				metaFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Unmaps a buffer that is no longer referenced, so that its file can be
+	 * deleted on every platform. Does nothing where the cleaner of the buffer
+	 * is not accessible.
+	 *
+	 * @param buffer
+	 *            Mapped buffer, must not be accessed afterwards
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (UNMAPPER == null) {
+			return;
+		}
+		try {
+			UNMAPPER.accept(buffer);
+		} catch (RuntimeException e) {
+			LOGGER.warning("Unable to unmap segment: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Unmapper of the running JDK or null if it has none accessible
+	 */
+	private static Consumer<MappedByteBuffer> unmapper() {
+		try {
+			if (System.getProperty("java.specification.version").startsWith("1.")) {
+				Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+				Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+				return buffer -> invoke(clean, invoke(cleaner, buffer));
+			}
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			return buffer -> invoke(invokeCleaner, unsafe, buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.warning("Mapped segments are not unmapped before deletion: " + e);
+			return null;
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
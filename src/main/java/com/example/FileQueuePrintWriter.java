@@ -1,90 +1,111 @@
 package com.example;
 
-import java.io.BufferedReader;
-import java.io.EOFException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Properties;
-import java.util.UUID;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.sqs.model.Message;
 import com.example.model.FileMessage;
-import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
 /**
  * FileMessageQueue
  * 
  * Implementation of a File Queue Storage Service. Messages are added
- * sequentially and are delimited by a new line. When adding or returning a new
- * message, a temp file is created containing messages from the old file with
- * the new message on top then replaces the old file upon completion.
+ * sequentially and are delimited by a new line. Each line holds a FileMessage
+ * with the message and its message attributes readable as they are, with
+ * their line breaks escaped so messages may hold line breaks. Returned
+ * messages are appended to a separate requeue file and pulled before the
+ * messages of the queue file.
+ * 
+ * A small head file next to them holds the offsets of the first unread line of
+ * both files, so a pull reads its lines from the offsets and moves them instead
+ * of rewriting the files. A file read to its end is truncated. Once the read
+ * part of the queue file reaches filequeue.truncate.size bytes and half of the
+ * file, the unread lines are copied into a temp file which replaces the queue
+ * file.
+ * 
+ * Every operation rewrites or appends to the same file, so each queue is
+ * locked as a whole. Operations on different queues do not wait for each
+ * other.
+ * 
+ * Lines carry no receipt of their own. A line is pulled once, so every pull
+ * gives it a ReceiptHandle of its offset and a new generation. The requeue
+ * count of a line is the number of times the message was queued, 1 for a new
+ * message, and is returned as the receive count of its pull. A re-queue of a
+ * pulled message writes its receive count plus one.
+ * 
+ * Operations are recorded by the EventTracer instead of being logged.
  * 
  * @author Edgar Resma
  */
 public class FileQueuePrintWriter implements FileQueue {
 
 	private final static Logger LOGGER = Logger.getLogger(FileQueuePrintWriter.class.getName());
-	
-	private static File lock;
-	private static File file;
-	private static File temp;
-	private static Properties prop = new Properties();
 
+	private final long truncateSize = QueueConfig.getLong("filequeue.truncate.size", 1048576);
+	private final EventTracer tracer = EventTracer.getInstance();
+	
 	/**
 	 * Creates a new file or opens an existing file.
 	 * 
 	 * @param queueUrl
 	 *            lock file directory to be created
+	 * @return Files of the queue
 	 */
-	public void loadQueueFile(String queueUrl) {
+	private QueueFiles loadQueueFile(String queueUrl) {
+		String storageLocation = QueueConfig.getProperty("filequeue.location", "");
+		QueueFiles queue = new QueueFiles(new File(storageLocation, fromUrl(queueUrl)));
 		try {
-			prop.load(getClass().getClassLoader().getResourceAsStream("aws.local.properties"));
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		String storageLocation = prop.getProperty("filequeue.location");
-		String queueName = fromUrl(queueUrl);
-		try {
-			file = new File(storageLocation + queueName + "\\messages");
-			lock = new File(storageLocation + queueName + "\\.lock\\");
-			temp = new File(storageLocation + queueName + "\\messages.temp");
-			if (!file.exists()) {
-				Files.createParentDirs(file);
-				file.createNewFile();
+			if (!queue.file.exists()) {
+				Files.createParentDirs(queue.file);
+				queue.file.createNewFile();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return queue;
 	}
 
 	/**
-	 * Locks the file. Allows cross-process mutex lock by using mkdir.
+	 * Locks a queue. Allows cross-process mutex lock by using a file lock.
 	 * 
-	 * @param lock
-	 *            Lock file directory to be created.
+	 * @param queue
+	 *            Files of the queue to be locked.
+	 * @return The acquired lock.
 	 */
-	private void lock(File lock) throws InterruptedException {
-		while (!lock.mkdirs()) {
-			Thread.sleep(50);
-		}
+	private QueueLock lock(QueueFiles queue) throws InterruptedException, IOException {
+		QueueLock acquired = queue.lock;
+		acquired.lock();
+		return acquired;
 	}
 
 	/**
-	 * Unlocks the file to allow other processes to read or write.
+	 * Unlocks the queue to allow other processes to read or write.
 	 * 
-	 * @param lock
-	 *            Lock file directory to be deleted.
+	 * @param acquired
+	 *            Lock returned by the lock method, ignored if null.
 	 */
-	private void unlock(File lock) {
-		lock.delete();
+	private void unlock(QueueLock acquired) {
+		if (acquired != null) {
+			acquired.unlock();
+		}
 	}
 
 	/**
@@ -95,64 +116,159 @@ public class FileQueuePrintWriter implements FileQueue {
 	 * @param message
 	 *            message to be added into the queue
 	 */
-	public synchronized void add(String queueUrl, String message) {
-		LOGGER.info("Adding to Queue: " + message);
+	public void add(String queueUrl, String message) {
+		addAll(queueUrl, Collections.singletonList(message));
+	}
+
+	/**
+	 * Add messages to the end of a Queue File with a single open of the file.
+	 * 
+	 * @param queueUrl
+	 *            Filename of the file queue.
+	 * @param messages
+	 *            messages to be added into the queue in order
+	 */
+	@Override
+	public void addAll(String queueUrl, List<String> messages) {
+		List<FileMessage> lines = new ArrayList<FileMessage>(messages.size());
+		for (String message : messages) {
+			lines.add(new FileMessage(1, 0, "", message));
+		}
+		appendLines(queueUrl, lines);
+	}
+
+	/**
+	 * Add messages with their message attributes to the end of a Queue File
+	 * with a single open of the file.
+	 * 
+	 * @param queueUrl
+	 *            Filename of the file queue.
+	 * @param messages
+	 *            messages to be added into the queue in order
+	 */
+	@Override
+	public void addMessages(String queueUrl, List<Message> messages) {
+		List<FileMessage> lines = new ArrayList<FileMessage>(messages.size());
+		for (Message message : messages) {
+			lines.add(new FileMessage(1, 0, "", message.getBody(), message.getMessageAttributes()));
+		}
+		appendLines(queueUrl, lines);
+	}
+
+	private void appendLines(String queueUrl, List<FileMessage> lines) {
+		QueueLock acquired = null;
 		try {
-			loadQueueFile(queueUrl);
-			lock(lock);
-			String messageId = UUID.randomUUID().toString();
-			FileMessage fm = new FileMessage(1, 0, messageId, message);
-			PrintWriter writer = new PrintWriter(new FileOutputStream(file, true));
+			QueueFiles queue = loadQueueFile(queueUrl);
+			File file = queue.file;
+			acquired = lock(queue);
+			PrintWriter writer = new PrintWriter(
+					new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
 			// Writes the content to the file
-			writer.println(fm);
-			writer.flush();
+			for (FileMessage line : lines) {
+				writer.println(line);
+			}
+			// the print writer keeps its errors until asked
+			boolean failed = writer.checkError();
 			writer.close();
+			if (failed) {
+				throw new IOException("Unable to write to " + file);
+			}
+			tracer.record(EventTracer.Type.PUSH, queueUrl, lines.size());
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
+			throw new UncheckedIOException(e);
 		} catch (InterruptedException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			throw new IllegalStateException("Interrupted while writing " + queueUrl, e);
 		} finally {
-			unlock(lock);
+			unlock(acquired);
 		}
 	}
 
 	/**
-	 * Re-queue a message onto the top Queue File
+	 * Flushes the Queue File contents to the storage device.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	@Override
+	public void force(String queueUrl) {
+		QueueFiles queue = loadQueueFile(queueUrl);
+		try (FileChannel channel = FileChannel.open(queue.file.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(false);
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads the sizes of the Queue File and the requeue file and the offsets
+	 * of the head file. Pushes and re-queues change the sizes, pulls the
+	 * offsets.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	@Override
+	public long version(String queueUrl) {
+		QueueFiles queue = loadQueueFile(queueUrl);
+		long[] offsets = readOffsets(queue);
+		return 31 * (31 * queue.file.length() + queue.requeue.length()) + 31 * offsets[0] + offsets[1];
+	}
+
+	/**
+	 * Re-queue a message onto the top Queue File by appending it to the
+	 * requeue file.
 	 * 
 	 * @param queueUrl
 	 *            URL of the queue
 	 * @param message
 	 *            Message to be added into the queue
 	 */
-	public synchronized void reQueue(String queueUrl, String messageId, String messageToReQueue) {
-		LOGGER.severe("Requeueing: " + messageToReQueue);
+	public void reQueue(String queueUrl, String messageId, String messageToReQueue) {
+		reQueue(queueUrl, new FileMessage(1, 0, "", messageToReQueue));
+	}
+
+	/**
+	 * Re-queue a pulled message onto the top Queue File, keeping its receive
+	 * count in the requeue count of the line and its message attributes.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message returned by pull
+	 */
+	@Override
+	public void reQueue(String queueUrl, Message message) {
+		reQueue(queueUrl, new FileMessage(RedrivePolicy.receiveCount(message) + 1, 0, "", message.getBody(),
+				message.getMessageAttributes()));
+	}
+
+	private void reQueue(String queueUrl, FileMessage line) {
+		QueueLock acquired = null;
 		try {
-			loadQueueFile(queueUrl);
-			lock(lock);
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			List<String> messages = Files.readLines(file, Charsets.UTF_8);
-			messageId = UUID.randomUUID().toString();
-			FileMessage fm = new FileMessage(1, 0, messageId, messageToReQueue);
-			PrintWriter writer = new PrintWriter(new FileOutputStream(temp, true));
-			writer.println(fm);
-			for (String message : messages) {
-				writer.println(message);
-			}
+			QueueFiles queue = loadQueueFile(queueUrl);
+			acquired = lock(queue);
+			PrintWriter writer = new PrintWriter(
+					new OutputStreamWriter(new FileOutputStream(queue.requeue, true), StandardCharsets.UTF_8));
+			writer.println(line);
 			writer.flush();
 			writer.close();
-			br.close();
-			Files.move(temp, file);
-			temp.delete();
+			tracer.record(EventTracer.Type.REQUEUE, queueUrl, 1, -1, tracer.body(line.getMessage()));
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
 		} catch (InterruptedException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
 		} finally {
-			unlock(lock);
+			unlock(acquired);
 		}
 	}
 
@@ -163,61 +279,168 @@ public class FileQueuePrintWriter implements FileQueue {
 	 * @param queueUrl
 	 *            URL of the queue
 	 */
-	public synchronized Message pull(String queueUrl) {
+	public Message pull(String queueUrl) {
+		List<Message> messages = pullAll(queueUrl, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * Pull up to maxMessages messages, first from the requeue file then from
+	 * the Queue File, by moving their head offsets past the read lines.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            maximum number of messages to pull
+	 */
+	@Override
+	public List<Message> pullAll(String queueUrl, int maxMessages) {
+		List<Message> pulled = new ArrayList<Message>(maxMessages);
+		QueueLock acquired = null;
 		try {
-			loadQueueFile(queueUrl);
-			lock(lock);
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			FileMessage fm = new FileMessage(br.readLine());
-			List<String> messages = getMessages(br);
-			PrintWriter writer = new PrintWriter(new FileOutputStream(temp, true));
-			if (messages != null) {
-				for (String message : messages) {
-					writer.println(message);
-				}
+			QueueFiles queue = loadQueueFile(queueUrl);
+			acquired = lock(queue);
+			long[] offsets = readOffsets(queue);
+			String queueName = fromUrl(queueUrl);
+			long requeueHead = readLines(queue.requeue, offsets[1], queueName, maxMessages, pulled);
+			long head = readLines(queue.file, offsets[0], queueName, maxMessages, pulled);
+			tracer.record(pulled.isEmpty() ? EventTracer.Type.EMPTY : EventTracer.Type.PULL, queueUrl, pulled.size(),
+					head, null);
+			// offsets are saved before truncating, a failure in between
+			// delivers the read lines again instead of losing unread ones
+			boolean requeueRead = requeueHead > 0 && requeueHead >= queue.requeue.length();
+			boolean fileRead = head > 0 && head >= queue.file.length();
+			boolean reclaim = !fileRead && head >= truncateSize && head * 2 >= queue.file.length();
+			if (reclaim) {
+				copyUnread(queue.file, head, queue.temp);
 			}
-			writer.flush();
-			writer.close();
-			br.close();
-			Files.move(temp, file);
-			LOGGER.info("Pulling from Queue" + fm);
-			if (fm.getMessage() != null) {
-				return new Message().withMessageId(fm.getReceiptId()).withBody(fm.getMessage());
+			writeOffsets(queue, fileRead || reclaim ? 0 : head, requeueRead ? 0 : requeueHead);
+			if (requeueRead) {
+				truncate(queue.requeue);
+			}
+			if (fileRead) {
+				truncate(queue.file);
+			} else if (reclaim) {
+				Files.move(queue.temp, queue.file);
+				LOGGER.info("Reclaimed " + head + " bytes of read messages");
 			}
-		} catch (EOFException e) {
-			LOGGER.info("Queue is Empty");
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
 		} catch (InterruptedException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
 		} finally {
-			unlock(lock);
+			unlock(acquired);
 		}
-		return null;
+		return pulled;
 	}
 
 	/**
-	 * Get all succeeding messages starting from the current pointer
-	 * location of the buffered reader.
+	 * Reads lines of a queue file starting at an offset.
 	 * 
-	 * @param br
-	 * 		Buffered reader of the queue file.
-	 * @return
-	 * 		List of messages succeeding the pointer of the input.
+	 * @param file
+	 *            Queue file or requeue file
+	 * @param offset
+	 *            Offset of the first unread line
+	 * @param queueName
+	 *            Name of the queue, part of the receipt handles
+	 * @param maxMessages
+	 *            Number of messages pulled at most
+	 * @param pulled
+	 *            Messages pulled so far, the read messages are added
+	 * @return Offset of the first line left unread
 	 */
-	private synchronized List<String> getMessages(BufferedReader br) {
-		String message;
-		List<String> messages = new ArrayList<String>();
-		try {
-			while ((message = br.readLine()) != null) {
-				messages.add(message);
+	private long readLines(File file, long offset, String queueName, int maxMessages, List<Message> pulled)
+			throws IOException {
+		if (pulled.size() >= maxMessages || offset >= file.length()) {
+			return offset;
+		}
+		try (FileInputStream input = new FileInputStream(file)) {
+			input.getChannel().position(offset);
+			InputStream in = new BufferedInputStream(input);
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long position = offset;
+			int b;
+			// a line without its line separator is still being written
+			while (pulled.size() < maxMessages && (b = in.read()) != -1) {
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				long linePosition = position;
+				position += line.size() + 1;
+				String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+				line.reset();
+				if (text.endsWith("\r")) {
+					text = text.substring(0, text.length() - 1);
+				}
+				FileMessage fm = new FileMessage(text);
+				if (fm.getMessage() != null) {
+					String messageId = ReceiptHandle.encode(queueName, linePosition, ReceiptHandle.nextGeneration());
+					long receiveCount = Math.max(1, fm.getRequeueCount());
+					Message message = new Message().withMessageId(messageId).withBody(fm.getMessage())
+							.addAttributesEntry(RedrivePolicy.RECEIVE_COUNT, Long.toString(receiveCount));
+					if (!fm.getMessageAttributes().isEmpty()) {
+						message.setMessageAttributes(fm.getMessageAttributes());
+					}
+					pulled.add(message);
+				}
 			}
+			return position;
+		}
+	}
+
+	/**
+	 * Copies the lines after the offset into the temp file.
+	 */
+	private void copyUnread(File file, long offset, File temp) throws IOException {
+		try (FileInputStream in = new FileInputStream(file); FileOutputStream out = new FileOutputStream(temp)) {
+			FileChannel source = in.getChannel();
+			FileChannel target = out.getChannel();
+			long count = source.size() - offset;
+			long copied = 0;
+			while (copied < count) {
+				copied += source.transferTo(offset + copied, count - copied, target);
+			}
+		}
+	}
+
+	private void truncate(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+		}
+	}
+
+	/**
+	 * Reads the head offsets of the Queue File and the requeue file.
+	 * 
+	 * @return Offsets, zero if the head file does not exist yet
+	 */
+	private long[] readOffsets(QueueFiles queue) {
+		long[] offsets = new long[2];
+		if (queue.head.length() < 16) {
+			return offsets;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(queue.head, "r")) {
+			// offsets past the end belong to a file truncated since
+			offsets[0] = raf.readLong();
+			offsets[0] = offsets[0] > queue.file.length() ? 0 : offsets[0];
+			offsets[1] = raf.readLong();
+			offsets[1] = offsets[1] > queue.requeue.length() ? 0 : offsets[1];
 		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
 		}
-		return messages;
+		return offsets;
+	}
+
+	private void writeOffsets(QueueFiles queue, long head, long requeueHead) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(queue.head, "rw")) {
+			raf.writeLong(head);
+			raf.writeLong(requeueHead);
+		}
 	}
 
 	/**
@@ -234,4 +457,23 @@ public class FileQueuePrintWriter implements FileQueue {
 		return segments[segments.length - 1];
 	}
 
+	/**
+	 * Resolved files and lock of a single queue.
+	 */
+	private static class QueueFiles {
+		private final File file;
+		private final File temp;
+		private final File head;
+		private final File requeue;
+		private final QueueLock lock;
+
+		QueueFiles(File directory) {
+			this.file = new File(directory, "messages");
+			this.temp = new File(directory, "messages.temp");
+			this.head = new File(directory, "messages.head");
+			this.requeue = new File(directory, "messages.requeue");
+			this.lock = QueueLockManager.getInstance().forDirectory(directory);
+		}
+	}
+
 }
@@ -1,17 +1,22 @@
 package com.example;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
-import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.net.URI;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.util.Properties;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.sqs.model.Message;
-import com.google.common.io.Files;
 
 /**
  * FileQueue
@@ -19,30 +24,95 @@ import com.google.common.io.Files;
  * My implementation of a queue file storage service for use in local
  * development. A local file is used to store the queue.
  * 
- * Queue file is composed of a 16 Byte Header and succeeded by Message Entries
+ * Queue file is composed of a 80 Byte Header and succeeded by Message Entries
  * of variable length.
  * 
- * Header Block 16 Bytes: <Head Position 8 Bytes><Tail Position 8 Bytes> - Used
- * to save the position of the pointer for the head and the tail
+ * Header Block 80 Bytes: <Magic 4 Bytes><Format Version 4 Bytes><Tail 8
+ * Bytes><Sequence 8 Bytes><Head 8 Bytes><In-flight 8 Bytes><Scanned 8
+ * Bytes><Next Expiry 8 Bytes><Dead Bytes 8 Bytes><Compaction Cursor 8
+ * Bytes><Changes 8 Bytes> - Tail is the end of the last published entry,
+ * where the next entry is appended. Sequence is the next receipt given to a
+ * pulled entry. Head is where the search for visible entries starts.
+ * In-flight and Scanned bound the region holding every pulled entry that is
+ * not deleted yet and Next Expiry is the earliest deadline among them. Dead
+ * Bytes counts the bytes of deleted entries and the Compaction Cursor is where
+ * a running compaction continues. Changes counts the updates of these fields.
+ * Producers only write the tail, consumers only the fields after it.
  * 
- * Entry Block: <Message Size 8 Bytes><Visible Flag 1 Byte><Message n Bytes> -
- * Message Size - contains the number of bytes in a message - Deleted Flag -
- * denotes if the entry is active in the queue or is inactive and ready for
- * removal from the queue - Message - Message of arbitrary size
+ * Entry Block: <Message Size 8 Bytes><Visible Flag 1 Byte><Visibility Deadline
+ * 8 Bytes><Receipt 8 Bytes><Receive Count 4 Bytes><Message n Bytes> - Message
+ * Size - contains the number of bytes in a message - Visible Flag - denotes if
+ * the entry can be pulled - Visibility Deadline - time in milliseconds when a
+ * pulled entry becomes visible again, or Long.MAX_VALUE once deleted - Receipt
+ * - sequence of the last pull - Receive Count - number of pulls, returned in
+ * the ApproximateReceiveCount attribute - Message - MessageCodec record of
+ * the body and message attributes
+ * 
+ * The entry header keeps fixed sizes since its fields are updated in place,
+ * while the record uses variable length sizes. Bodies are stored in UTF-8, so
+ * any text is stored as it is.
+ * 
+ * Queues enabled by filequeue.compress store each batch of added messages as
+ * a RecordBlock, compressed together. The block entry holds the compressed
+ * records and is never pulled, its deadline holds the size of its members and
+ * its receive count the members not deleted yet. Each message of the block
+ * follows as a member entry with the usual header, holding only <Member Tag 1
+ * Byte><Block Distance varint><Index varint> instead of a record. A pull reads
+ * the record from the block, which stays decompressed in the handle for the
+ * following members. A deleted member is retired in place until the last
+ * member of its block is deleted and the block becomes dead as a whole, so
+ * compaction moves a live block with all of its members and the distances
+ * stay the same.
  * 
  * Entries are added sequentially to the end and can be flagged as visible or
  * invisible in the queue. Traversal of entries is done by sequentially moving
  * from block to block using each Entry Block's computed size. Visible entries
- * are retrieved by the pull method then tagged as invisible. Entries are not
- * automatically deleted from the queue and are only flagged by the delete
- * method to improve performance during reading and writing without the need to
+ * are retrieved by the pull method then tagged as invisible with their
+ * visibility deadline and a new receipt. Message ids are ReceiptHandles
+ * holding the position and the receipt of the entry, so a receipt is checked
+ * against the entry header at its position and a stale receipt is rejected
+ * without reading the message. The delete method only marks the deadline of an entry
+ * to improve performance during reading and writing without the need to
  * rewrite the whole document.
  * 
- * The file will grow as more messages are added to the queue. A clean-up method
- * should be invoked to reduce the file size. Clean-up searches for the first
- * visible entry starting from the first entry block position and creates a new file
- * starting with this visible entry. All invisible entries before are removed in
- * the process.
+ * Pulled entries whose deadline has passed are flagged visible again by the
+ * next pull or by a sweep, so in-flight messages need no timer in memory and
+ * are redelivered after a restart. The scan of the in-flight region is skipped
+ * until the next expiry.
+ * 
+ * Entries after the scanned position were never pulled and are all visible.
+ * Entries before it that became visible again are kept in the VisibleIndex of
+ * the queue file handle, so a pull goes straight to them and then to the
+ * scanned position. The index is rebuilt after the file was opened or changed
+ * by another process, which is detected by the Changes field.
+ * 
+ * The file will grow as more messages are added to the queue. Once the dead
+ * bytes exceed filequeue.compact.ratio percent of the entries and
+ * filequeue.compact.min bytes, compact slides the live entries down over the
+ * deleted ones in place, wherever they are in the file. It works in chunks of
+ * about filequeue.compact.chunk bytes and takes the queue lock for one chunk
+ * at a time. The space freed by a chunk becomes a padding entry that the next
+ * chunk moves along, so the dead space ends up before the tail where the file
+ * is truncated. Only that last step takes the tail lock. An entry moved while
+ * in flight is found again by its receipt.
+ * 
+ * Files of previous formats are converted when first opened. Their messages
+ * were stored as the low bytes of their characters and are read back as such
+ * into records. Entries in flight are made visible again and keep their
+ * receive count from the fourth format on, older ones start with 0. The first
+ * format cannot tell them apart from deleted entries, so its invisible entries
+ * are dropped. Files of the fifth format hold no blocks and are kept as they
+ * are.
+ * 
+ * Queue files are opened once and kept open in the QueueFileRegistry, which
+ * closes the least recently used queues when its handle budget is exceeded.
+ * 
+ * Locking is per queue. Consumers hold the queue lock and only read up to the
+ * published tail, producers hold the tail lock and only write past it, so
+ * pushes and pulls of the same queue proceed concurrently. All file access is
+ * positional so that the threads never share a file pointer.
+ * 
+ * Operations are recorded by the EventTracer instead of being logged.
  * 
  * @author Edgar Resma
  */
@@ -50,69 +120,129 @@ public class FileQueueRAF implements FileQueue {
 
 	private final static Logger LOGGER = Logger.getLogger(FileQueueRAF.class.getName());
 
+	private final int MAGIC = 0x52414651;
+	private final int FORMAT_VERSION = 6;
 	private final long HEADER_POSITION = 0;
-	private final long HEADER_HEAD_POSITION = 0;
+	private final long HEADER_MAGIC_POSITION = 0;
+	private final long HEADER_VERSION_POSITION = 4;
 	private final long HEADER_TAIL_POSITION = 8;
-	private final long ENTRY_HEADER_SIZE = 9;
+	private final long HEADER_SEQUENCE_POSITION = 16;
+	private final long HEADER_HEAD_POSITION = 24;
+	private final long HEADER_INFLIGHT_POSITION = 32;
+	private final long HEADER_SCANNED_POSITION = 40;
+	private final long HEADER_EXPIRY_POSITION = 48;
+	private final long HEADER_DEAD_POSITION = 56;
+	private final long HEADER_CURSOR_POSITION = 64;
+	private final long HEADER_CHANGES_POSITION = 72;
+	private final int HEADER_SIZE = 80;
+	private final int CONSUMER_STATE_SIZE = 64;
+	private final int ENTRY_HEADER_SIZE = 29;
 	private final long VISIBLE_FLAG_POSITION = 8;
-	private final long BODY_POSITION = 16;
-	private final boolean FLAG_VISIBLE = true;
-	private final boolean FLAG_INVISIBLE = false;
-	private File file;
-	private File lock;
-	private File temp;
-	private static RandomAccessFile raf;
-	private static Properties prop = new Properties();
+	private final long DEADLINE_POSITION = 9;
+	private final long RECEIPT_POSITION = 17;
+	private final long RECEIVE_COUNT_POSITION = 25;
+	private final long BODY_POSITION = 80;
+	private final byte FLAG_VISIBLE = 1;
+	private final byte FLAG_INVISIBLE = 0;
+	private final byte FLAG_BLOCK = 2;
+	private final byte FLAG_RETIRED = 3;
+	private final byte MEMBER_TAG = 0;
+	private final int MAX_MEMBER_SIZE = 16;
+	private final long DELETED = Long.MAX_VALUE;
+	private final int V1_HEADER_SIZE = 16;
+	private final int V1_ENTRY_HEADER_SIZE = 9;
+	private final int V2_HEADER_SIZE = 64;
+	private final int V2_ENTRY_HEADER_SIZE = 17;
+	private final int V3_ENTRY_HEADER_SIZE = 25;
+	private final int V3_FORMAT_VERSION = 3;
+	private final int V4_FORMAT_VERSION = 4;
+	private final int V5_FORMAT_VERSION = 5;
+	private final QueueFileRegistry handles = QueueFileRegistry.getInstance();
+	private final long visibilityTimeoutMillis = TimeUnit.SECONDS
+			.toMillis(QueueConfig.getLong("timeout.default", 10));
+	private final int compactRatio;
+	private final long compactMinBytes;
+	private final long compactChunkBytes;
+	private final int compressThreshold = QueueConfig.getInt("filequeue.compress.threshold", 4096);
+	private final int compressLevel = QueueConfig.getInt("filequeue.compress.level", 1);
+	private final int compressBlockBytes = QueueConfig.getInt("filequeue.compress.block", 65536);
+	private final EventTracer tracer = EventTracer.getInstance();
+
+	public FileQueueRAF() {
+		this(QueueConfig.getInt("filequeue.compact.ratio", 50), QueueConfig.getLong("filequeue.compact.min", 1048576),
+				QueueConfig.getLong("filequeue.compact.chunk", 262144));
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param compactRatio
+	 *            Percentage of dead bytes starting a compaction
+	 * @param compactMinBytes
+	 *            Dead bytes needed before the ratio is considered
+	 * @param compactChunkBytes
+	 *            Bytes moved by a compaction step under one lock
+	 */
+	public FileQueueRAF(int compactRatio, long compactMinBytes, long compactChunkBytes) {
+		this.compactRatio = compactRatio;
+		this.compactMinBytes = compactMinBytes;
+		this.compactChunkBytes = Math.max(1, compactChunkBytes);
+	}
 	
 	/**
-	 * Creates a new file or opens an existing file.
+	 * Returns the cached handle of the queue file, creating the file if needed.
+	 * The first load of a queue file in the process recovers its tail. The
+	 * handle must be given back with releaseQueueFile.
 	 * 
 	 * @param queueUrl
-	 *            lock file directory to be created
+	 *            URL of the queue
 	 */
-	public void loadQueueFile(String queueUrl) {
-		try {
-			prop.load(getClass().getClassLoader().getResourceAsStream("aws.local.properties"));
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		String storageLocation = prop.getProperty("filequeue.location");
-		String queueName = fromUrl(queueUrl);
-		try {
-			file = new File(storageLocation + queueName + "\\messages");
-			lock = new File(storageLocation + queueName + "\\.lock\\");
-			temp = new File(storageLocation + queueName + "\\messages.temp");
-			if (!file.exists()) {
-				Files.createParentDirs(file);
-				raf = new RandomAccessFile(file, "rw");
-				initializeQueueFile(raf);
-			}
-			raf = new RandomAccessFile(file, "rw");
-		} catch (IOException e) {
-			e.printStackTrace();
+	private QueueFileHandle loadQueueFile(String queueUrl) throws IOException, InterruptedException {
+		QueueFileHandle handle = handles.acquire(queueUrl, this::initializeQueueFile);
+		if (!handle.isRecovered()) {
+			try {
+				recover(handle);
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				releaseQueueFile(handle);
+				throw e;
+			}
 		}
+		return handle;
 	}
 
 	/**
-	 * Locks the file. Allows cross-process mutex lock by using mkdir.
+	 * Gives back a handle obtained from loadQueueFile.
+	 * 
+	 * @param handle
+	 *            handle of the queue file, ignored if null
+	 */
+	private void releaseQueueFile(QueueFileHandle handle) {
+		handles.release(handle);
+	}
+
+	/**
+	 * Locks the queue or its tail. Allows cross-process mutex lock by using a
+	 * file lock.
 	 * 
 	 * @param lock
-	 *            lock file directory to be created
+	 *            queue lock or tail lock of a queue file handle
+	 * @return the acquired lock
 	 */
-	private void lock(File lock) throws InterruptedException {
-		while (!lock.mkdir()) {
-			Thread.sleep(50);
-		}
+	private QueueLock lock(QueueLock lock) throws InterruptedException, IOException {
+		lock.lock();
+		return lock;
 	}
 
 	/**
-	 * Unlocks the file to allow other process to read or write.
+	 * Unlocks the queue to allow other process to read or write.
 	 * 
 	 * @param lock
-	 *            lock file directory to be deleted
+	 *            lock returned by the lock method, ignored if null
 	 */
-	private void unlock(File lock) {
-		lock.delete();
+	private void unlock(QueueLock lock) {
+		if (lock != null) {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -122,18 +252,150 @@ public class FileQueueRAF implements FileQueue {
 	 * @param raf
 	 *            RandomAccessFile to be initialized as a Queue File with headers.
 	 */
-	private synchronized void initializeQueueFile(RandomAccessFile raf) {
+	private void initializeQueueFile(RandomAccessFile raf) {
 		try {
-			raf.getChannel().truncate(0);
-			raf.seek(0);
-			raf.writeLong(BODY_POSITION);
-			raf.writeLong(BODY_POSITION);
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			writeHeader(channel, new Header(BODY_POSITION));
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Checks a queue file on its first load in the process. Files of previous
+	 * formats are converted, then the tail is recovered.
+	 * 
+	 * @param handle
+	 *            handle of the queue file
+	 */
+	private void recover(QueueFileHandle handle) throws IOException, InterruptedException {
+		QueueLock lock = null;
+		QueueLock tailLock = null;
+		try {
+			lock = lock(handle.getLock());
+			tailLock = lock(handle.getTailLock());
+			if (handle.isRecovered()) {
+				return;
+			}
+			FileChannel channel = handle.getChannel();
+			if (channel.size() < V1_HEADER_SIZE) {
+				initializeQueueFile(handle.getRaf());
+			} else if (readInt(channel, HEADER_MAGIC_POSITION) != MAGIC) {
+				convertFile(handle, V1_HEADER_SIZE, V1_ENTRY_HEADER_SIZE);
+			} else if (readInt(channel, HEADER_VERSION_POSITION) < V3_FORMAT_VERSION) {
+				convertFile(handle, V2_HEADER_SIZE, V2_ENTRY_HEADER_SIZE);
+			} else if (readInt(channel, HEADER_VERSION_POSITION) < V4_FORMAT_VERSION) {
+				convertFile(handle, HEADER_SIZE, V3_ENTRY_HEADER_SIZE);
+			} else if (readInt(channel, HEADER_VERSION_POSITION) < V5_FORMAT_VERSION) {
+				convertFile(handle, HEADER_SIZE, ENTRY_HEADER_SIZE);
+			} else if (readInt(channel, HEADER_VERSION_POSITION) < FORMAT_VERSION) {
+				// the fifth format only lacks the compressed blocks
+				writeInt(channel, HEADER_VERSION_POSITION, FORMAT_VERSION);
+			}
+			recoverTail(channel, handle.getQueueName());
+			handle.setRecovered(true);
+		} finally {
+			unlock(tailLock);
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Moves the tail past complete entries found after it and drops the
+	 * incomplete ones. Those are left by a process that stopped between
+	 * writing entries and publishing them.
+	 * 
+	 * @param channel
+	 *            channel of the queue file, both locks held
+	 * @param queueName
+	 *            name of the queue for logging
+	 */
+	private void recoverTail(FileChannel channel, String queueName) throws IOException {
+		long fileEndPosition = channel.size();
+		long tailPosition = readLong(channel, HEADER_TAIL_POSITION);
+		long recovered = tailPosition;
+		ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		while (recovered + ENTRY_HEADER_SIZE <= fileEndPosition) {
+			entryHeader.clear();
+			readFully(channel, entryHeader, recovered);
+			// a block is only complete with all of its members
+			long next = recovered + entrySize(entryHeader);
+			if (next <= recovered || next > fileEndPosition) {
+				break;
+			}
+			recovered = next;
+		}
+		if (recovered != tailPosition) {
+			writeLong(channel, HEADER_TAIL_POSITION, recovered);
+			LOGGER.info("Recovered tail of " + queueName + " at " + recovered);
+		}
+		if (recovered < fileEndPosition) {
+			channel.truncate(recovered);
+		}
+	}
+
+	/**
+	 * Rewrites a queue file of a previous format. The first format has a 16
+	 * byte header and entries with a flag only, the second a 64 byte header and
+	 * entries with a deadline, the third the current header and entries without
+	 * a receive count, the fourth the current entry header. All of them store
+	 * the low byte of each character of a message instead of a record. Visible
+	 * entries and, from the second format on, entries in flight are kept in
+	 * order as visible entries.
+	 * 
+	 * @param handle
+	 *            handle of the queue file, both locks held
+	 * @param headerSize
+	 *            size of the header in the previous format
+	 * @param entryHeaderSize
+	 *            size of an entry header in the previous format
+	 */
+	private void convertFile(QueueFileHandle handle, int headerSize, int entryHeaderSize) throws IOException {
+		LOGGER.info("Converting queue file of " + handle.getQueueName());
+		FileChannel raffc = handle.getChannel();
+		long fileEndPosition = raffc.size();
+		try (RandomAccessFile tempRaf = new RandomAccessFile(handle.getTemp(), "rw")) {
+			FileChannel tempfc = tempRaf.getChannel();
+			tempfc.truncate(0);
+			long position = headerSize;
+			long tailPosition = BODY_POSITION;
+			ByteBuffer entryHeader = ByteBuffer.allocate(entryHeaderSize);
+			while (position + entryHeaderSize <= fileEndPosition) {
+				entryHeader.clear();
+				readFully(raffc, entryHeader, position);
+				long length = entryHeader.getLong(0);
+				if (length < 0 || position + entryHeaderSize + length > fileEndPosition) {
+					break;
+				}
+				boolean visible = entryHeader.get((int) VISIBLE_FLAG_POSITION) == FLAG_VISIBLE;
+				boolean inFlight = entryHeaderSize > DEADLINE_POSITION
+						&& entryHeader.getLong((int) DEADLINE_POSITION) != DELETED;
+				if (visible || inFlight) {
+					ByteBuffer message = ByteBuffer.allocate((int) length);
+					readFully(raffc, message, position + entryHeaderSize);
+					ByteBuffer record = MessageCodec.encode(new String(message.array(), StandardCharsets.ISO_8859_1));
+					ByteBuffer converted = newEntryHeader(record.remaining());
+					if (entryHeaderSize > RECEIVE_COUNT_POSITION) {
+						converted.putInt((int) RECEIVE_COUNT_POSITION,
+								entryHeader.getInt((int) RECEIVE_COUNT_POSITION));
+					}
+					long recordSize = record.remaining();
+					writeFully(tempfc, converted, tailPosition);
+					writeFully(tempfc, record, tailPosition + ENTRY_HEADER_SIZE);
+					tailPosition += ENTRY_HEADER_SIZE + recordSize;
+				}
+				position += entryHeaderSize + length;
+			}
+			writeHeader(tempfc, new Header(tailPosition));
+			raffc.truncate(0);
+			transfer(tempfc, HEADER_POSITION, tempfc.size(), raffc, HEADER_POSITION);
+		} finally {
+			handle.getTemp().delete();
+		}
+	}
+
 	/**
 	 * This method is used to add a message into the Queue File
 	 * 
@@ -142,76 +404,204 @@ public class FileQueueRAF implements FileQueue {
 	 * @param message
 	 *            message to be added into the queue
 	 */
-	public synchronized void add(String queueUrl, String message) {
+	public void add(String queueUrl, String message) {
+		addAll(queueUrl, Collections.singletonList(message));
+	}
+
+	/**
+	 * This method is used to add messages into the Queue File with a single
+	 * write of all their entry blocks. Only the tail is locked, so consumers
+	 * of the queue are not blocked.
+	 * 
+	 * @param queueUrl
+	 *            Filename of the file queue.
+	 * @param messages
+	 *            messages to be added into the queue in order
+	 */
+	@Override
+	public void addAll(String queueUrl, List<String> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		// build all entry blocks before locking to append them at once
+		Entries entries = new Entries(queueUrl);
+		for (String message : messages) {
+			entries.add(MessageCodec.encode(message));
+		}
+		append(queueUrl, messages.size(), entries.finish());
+	}
+
+	/**
+	 * This method is used to add messages with their message attributes into
+	 * the Queue File with a single write of all their entry blocks.
+	 * 
+	 * @param queueUrl
+	 *            Filename of the file queue.
+	 * @param messages
+	 *            messages to be added into the queue in order
+	 */
+	@Override
+	public void addMessages(String queueUrl, List<Message> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		Entries entries = new Entries(queueUrl);
+		for (Message message : messages) {
+			entries.add(MessageCodec.encode(message.getBody(), message.getMessageAttributes()));
+		}
+		append(queueUrl, messages.size(), entries.finish());
+	}
+
+	/**
+	 * Returns true if the messages of a queue are compressed, set by
+	 * filequeue.compress.<queue name> or else by filequeue.compress.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	private boolean compresses(String queueUrl) {
+		return Boolean.parseBoolean(QueueConfig.getProperty("filequeue.compress." + handles.queueName(queueUrl),
+				QueueConfig.getProperty("filequeue.compress", "false")));
+	}
+
+	/**
+	 * Appends entry blocks after the tail and publishes them. Only the tail
+	 * is locked, so consumers of the queue are not blocked.
+	 * 
+	 * @param queueUrl
+	 *            Filename of the file queue.
+	 * @param count
+	 *            number of entries
+	 * @param entries
+	 *            entry blocks in order
+	 */
+	private void append(String queueUrl, int count, ByteArrayOutputStream entries) {
+		QueueFileHandle handle = null;
+		QueueLock lock = null;
 		try {
-			loadQueueFile(queueUrl);
-			lock(lock);
-			long fileEndPosition = raf.length();
-			// go to end of file to append entry block
-			raf.seek(fileEndPosition);
-			// Write Entry
-			raf.writeLong(message.length());
-			raf.writeBoolean(FLAG_VISIBLE);
-			raf.writeBytes(message);
-			// Update queuefile header tail position
-			raf.seek(HEADER_TAIL_POSITION);
-			raf.writeLong(fileEndPosition);
-			LOGGER.info("Adding to Queue: " + message + " new tail at " + fileEndPosition);
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			lock = lock(handle.getTailLock());
+			long tailPosition = readLong(channel, HEADER_TAIL_POSITION);
+			writeFully(channel, ByteBuffer.wrap(entries.toByteArray()), tailPosition);
+			// publish the entries to consumers by moving the tail
+			tailPosition += entries.size();
+			writeLong(channel, HEADER_TAIL_POSITION, tailPosition);
+			tracer.record(EventTracer.Type.PUSH, queueUrl, count, tailPosition, null);
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
+			throw new UncheckedIOException(e);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+			throw new IllegalStateException("Interrupted while writing " + queueUrl, e);
 		} finally {
 			unlock(lock);
+			releaseQueueFile(handle);
 		}
 	}
 
+	/**
+	 * Flushes the Queue File contents to the storage device.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	@Override
+	public void force(String queueUrl) {
+		QueueFileHandle handle = null;
+		try {
+			handle = loadQueueFile(queueUrl);
+			handle.getChannel().force(false);
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Interrupted while forcing " + queueUrl, e);
+		} finally {
+			releaseQueueFile(handle);
+		}
+	}
+
+	/**
+	 * Reads the head and tail positions of the Queue File without locking.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	@Override
+	public long version(String queueUrl) {
+		QueueFileHandle handle = null;
+		try {
+			handle = loadQueueFile(queueUrl);
+			Header header = readHeader(handle.getChannel());
+			return 31 * header.head + header.tail;
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			releaseQueueFile(handle);
+		}
+		return 0;
+	}
+
+	/**
+	 * Visibility deadlines are kept in the entries.
+	 */
+	@Override
+	public boolean tracksVisibility() {
+		return true;
+	}
+
 	/**
 	 * Re-queue a message onto the top Queue File
 	 * 
 	 * @param queueUrl
 	 *            URL of the queue
+	 * @param messageId
+	 *            Identifier returned by pull
 	 * @param message
 	 *            Message to be added into the queue
 	 */
-	public synchronized void reQueue(String queueUrl, String messageId, String message) {
-		long headPosition = Long.valueOf(messageId);
+	public void reQueue(String queueUrl, String messageId, String message) {
+		QueueFileHandle handle = null;
+		QueueLock lock = null;
 		try {
-			loadQueueFile(queueUrl);
-			lock(lock);
-			LOGGER.info("Requeue Started for:" + headPosition);
-			raf.seek(headPosition);
-			// read the message
-			long length = raf.readLong();
-			raf.seek(headPosition + ENTRY_HEADER_SIZE);
-			byte[] b = new byte[(int) length];
-			raf.readFully(b);
-			// compare if it is the same message
-			// block might have been cleaned-up so it will not match
-			String fileMessage = new String(b);
-			if (fileMessage.equals(message)) {
-				// update to visible/re-queue the entry
-				raf.seek(headPosition + VISIBLE_FLAG_POSITION);
-				raf.writeBoolean(FLAG_VISIBLE);
-				raf.seek(HEADER_HEAD_POSITION);
-				// update head position if current point is lower
-				if (headPosition < raf.readLong()) {
-					raf.seek(HEADER_HEAD_POSITION);
-					raf.writeLong(headPosition);
-				}
-				LOGGER.info("Requed: " + new String(b) + " new head position " + headPosition);
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			lock = lock(handle.getLock());
+			Header header = readHeader(channel);
+			VisibleIndex index = visibleIndex(handle, header);
+			ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			long headPosition = locate(channel, header, handle.getQueueName(), messageId, entryHeader);
+			// the receipt no longer matches once the entry was deleted or
+			// pulled again
+			if (headPosition < 0 || !isInFlight(entryHeader)) {
+				tracer.record(EventTracer.Type.REQUEUE, queueUrl, 0, headPosition, messageId);
+				return;
 			}
-		} catch (EOFException e) {
-			LOGGER.info("Unable to requeue entry at: " + headPosition + " file already Cleaned up");
+			// update to visible/re-queue the entry
+			writeFully(channel, flag(FLAG_VISIBLE), headPosition + VISIBLE_FLAG_POSITION);
+			index.add(headPosition);
+			// update head position if current point is lower
+			header.head = Math.min(header.head, headPosition);
+			saveConsumerState(handle, header);
+			tracer.record(EventTracer.Type.REQUEUE, queueUrl, 1, headPosition, messageId);
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
 		} catch (Exception e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
 		} finally {
 			unlock(lock);
+			releaseQueueFile(handle);
 		}
 	}
 
@@ -223,159 +613,1042 @@ public class FileQueueRAF implements FileQueue {
 	 * @param queueUrl
 	 *            URL of the queue
 	 */
-	public synchronized Message pull(String queueUrl) {
+	public Message pull(String queueUrl) {
+		List<Message> messages = pullAll(queueUrl, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * Pull up to maxMessages messages with the default visibility timeout.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            maximum number of messages to pull
+	 */
+	@Override
+	public List<Message> pullAll(String queueUrl, int maxMessages) {
+		return pullAll(queueUrl, maxMessages, visibilityTimeoutMillis);
+	}
+
+	/**
+	 * Pull up to maxMessages messages from the top of the Queue File in a
+	 * single pass and tag them as invisible until their visibility deadline.
+	 * Expired messages are made visible first. Entries appended while pulling
+	 * are only seen once their tail is published.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            maximum number of messages to pull
+	 * @param visibilityTimeoutMillis
+	 *            time until the pulled messages are visible again
+	 */
+	@Override
+	public List<Message> pullAll(String queueUrl, int maxMessages, long visibilityTimeoutMillis) {
+		List<Message> messages = new ArrayList<Message>(maxMessages);
+		QueueFileHandle handle = null;
+		QueueLock lock = null;
 		try {
-			loadQueueFile(queueUrl);
-			lock(lock);
-			// read QueueFile head entry position
-			raf.seek(HEADER_HEAD_POSITION);
-			long headPosition = raf.readLong();
-			boolean visible = false;
-			// while loop for the pointer to sequentially seek the next visible
-			// entry in case head position is wrong
-			while (visible == false) {
-				raf.seek(headPosition);
-				// read entry header
-				long length = raf.readLong();
-				// save entry position for re-queue
-				long entryPosition = headPosition;
-				visible = raf.readBoolean();
-				if (visible == true) {
-					// update to invisible
-					raf.seek(headPosition + VISIBLE_FLAG_POSITION);
-					raf.writeBoolean(FLAG_INVISIBLE);
-					// move to message position and read the message
-					raf.seek(headPosition + ENTRY_HEADER_SIZE);
-					byte[] b = new byte[(int) length];
-					raf.readFully(b);
-					// update new head position to the next entry
-					headPosition += length + ENTRY_HEADER_SIZE;
-					raf.seek(HEADER_HEAD_POSITION);
-					raf.writeLong(headPosition);
-					LOGGER.info("Pulling from Queue: " + new String(b) + " new head position " + headPosition);
-					return new Message().withMessageId(Long.toString(entryPosition)).withBody(new String(b));
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			lock = lock(handle.getLock());
+			// read QueueFile head entry position and published tail
+			Header header = readHeader(channel);
+			VisibleIndex index = visibleIndex(handle, header);
+			long now = System.currentTimeMillis();
+			boolean changed = false;
+			if (now >= header.nextExpiry) {
+				int expired = reclaimExpired(channel, header, index, now);
+				if (expired > 0) {
+					// the sweeper counts its own reclaims through sweep
+					MetricsRegistry.getInstance().forQueue(queueUrl).expired(expired);
+					tracer.record(EventTracer.Type.EXPIRE, queueUrl, expired, header.head, null);
+				}
+				changed = true;
+			}
+			long headPosition = header.scanned;
+			long deadline = now + visibilityTimeoutMillis;
+			ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			ByteBuffer pulled = ByteBuffer.allocate(ENTRY_HEADER_SIZE - (int) VISIBLE_FLAG_POSITION);
+			pulled.put(0, FLAG_INVISIBLE);
+			pulled.putLong((int) (DEADLINE_POSITION - VISIBLE_FLAG_POSITION), deadline);
+			try {
+				// returned entries come first, then the entries never pulled
+				while (messages.size() < maxMessages && (index.size() > 0 || headPosition < header.tail)) {
+					long entryPosition = index.size() > 0 ? index.first() : headPosition;
+					// read entry header
+					entryHeader.clear();
+					readFully(channel, entryHeader, entryPosition);
+					long length = entryHeader.getLong(0);
+					if (index.size() > 0) {
+						index.removeFirst();
+					} else {
+						headPosition += length + ENTRY_HEADER_SIZE;
+					}
+					if (entryHeader.get((int) VISIBLE_FLAG_POSITION) == FLAG_VISIBLE) {
+						// update to invisible until the deadline with a new receipt
+						long receipt = header.sequence++;
+						int receiveCount = entryHeader.getInt((int) RECEIVE_COUNT_POSITION) + 1;
+						pulled.clear();
+						pulled.putLong((int) (RECEIPT_POSITION - VISIBLE_FLAG_POSITION), receipt);
+						pulled.putInt((int) (RECEIVE_COUNT_POSITION - VISIBLE_FLAG_POSITION), receiveCount);
+						writeFully(channel, pulled, entryPosition + VISIBLE_FLAG_POSITION);
+						// read the message that follows the entry header
+						ByteBuffer b = ByteBuffer.allocate((int) length);
+						readFully(channel, b, entryPosition + ENTRY_HEADER_SIZE);
+						b.flip();
+						Message message = decode(handle, b, entryPosition);
+						messages.add(message
+								.withMessageId(ReceiptHandle.encode(handle.getQueueName(), entryPosition, receipt))
+								.addAttributesEntry(RedrivePolicy.RECEIVE_COUNT, Integer.toString(receiveCount)));
+						tracer.record(EventTracer.Type.PULL, queueUrl, 1, entryPosition, tracer.body(message.getBody()));
+					}
 				}
-				headPosition += length + ENTRY_HEADER_SIZE;
+			} catch (EOFException e) {
+				LOGGER.info("Incomplete entry at " + headPosition);
+			}
+			if (messages.isEmpty()) {
+				tracer.record(EventTracer.Type.EMPTY, queueUrl, 0, headPosition, null);
+			} else {
+				// the head is the first returned entry left or the entry after
+				// the last pulled
+				header.head = index.size() > 0 ? index.first() : headPosition;
+				header.scanned = headPosition;
+				header.nextExpiry = Math.min(header.nextExpiry, deadline);
+				changed = true;
+			}
+			if (changed) {
+				saveConsumerState(handle, header);
 			}
-		} catch (EOFException e) {
-			LOGGER.info("Queue is Empty");
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
 		} catch (InterruptedException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
 		} finally {
 			unlock(lock);
+			releaseQueueFile(handle);
+		}
+		return messages;
+	}
+
+	/**
+	 * Reads the record of an entry, from its block if the entry is a member.
+	 * A malformed record gives an empty message, which is not delivered and
+	 * becomes visible again after its timeout.
+	 */
+	private Message decode(QueueFileHandle handle, ByteBuffer payload, long entryPosition) throws IOException {
+		try {
+			if (payload.hasRemaining() && payload.get(payload.position()) == MEMBER_TAG) {
+				return MessageCodec.decode(memberRecord(handle, payload, entryPosition));
+			}
+			return MessageCodec.decode(payload);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			LOGGER.severe("Malformed entry of " + handle.getQueueName() + " at " + entryPosition + ": "
+					+ e.getMessage());
+			return new Message().withBody("");
+		}
+	}
+
+	/**
+	 * Returns the record of a member entry from its block. The last block
+	 * decompressed is kept by the handle, so the following members of a
+	 * block are read without decompressing it again. Called with the queue
+	 * lock.
+	 * 
+	 * @param handle
+	 *            handle of the queue file
+	 * @param reference
+	 *            payload of the member entry
+	 * @param entryPosition
+	 *            position of the member entry
+	 */
+	private ByteBuffer memberRecord(QueueFileHandle handle, ByteBuffer reference, long entryPosition)
+			throws IOException {
+		long blockPosition = blockOf(reference, entryPosition);
+		int index = (int) ReceiptHandle.getVarLong(reference);
+		FileChannel channel = handle.getChannel();
+		ByteBuffer blockHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		readFully(channel, blockHeader, blockPosition);
+		if (blockHeader.get((int) VISIBLE_FLAG_POSITION) != FLAG_BLOCK) {
+			throw new IllegalArgumentException("No block at " + blockPosition);
 		}
-		return null;
+		long id = blockHeader.getLong((int) RECEIPT_POSITION);
+		RecordBlock block = handle.getRecordBlock();
+		if (block == null || !block.isAt(blockPosition, id)) {
+			ByteBuffer compressed = ByteBuffer.allocate((int) blockHeader.getLong(0));
+			readFully(channel, compressed, blockPosition + ENTRY_HEADER_SIZE);
+			compressed.flip();
+			block = RecordBlock.decompress(compressed, blockPosition, id);
+			handle.setRecordBlock(block);
+		}
+		return block.record(index);
+	}
+
+	/**
+	 * Reads the position of the block from the payload of a member entry.
+	 * 
+	 * @param reference
+	 *            payload of the member entry, moved past the block distance
+	 * @param entryPosition
+	 *            position of the member entry
+	 * @return position of the block entry
+	 */
+	private long blockOf(ByteBuffer reference, long entryPosition) {
+		reference.get();
+		return entryPosition - ReceiptHandle.getVarLong(reference);
+	}
+
+	/**
+	 * Marks a pulled message as deleted so that it is never made visible
+	 * again, and counts its bytes as dead.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messageId
+	 *            Identifier returned by pull
+	 */
+	@Override
+	public void delete(String queueUrl, String messageId) {
+		deleteAll(queueUrl, Collections.singletonList(messageId));
 	}
 
 	/**
-	 * The purpose of this method is to remove all the invisible entries at the
-	 * beginning of the QueueFile to save disk space. It begins searching the
-	 * first visible entry and calls the deleteFlaggedItems method to create a
-	 * new file starting from this entry. Invisible flags prior to this visible
-	 * entry are excluded from the new file and are essentially deleted.
+	 * Marks pulled messages as deleted under a single lock. Each entry gets
+	 * the deleted deadline and the header is written once for all of them.
+	 * Storage failures are thrown, so an acknowledgement is never reported
+	 * written when it is not.
 	 * 
 	 * @param queueUrl
 	 *            URL of the queue
+	 * @param messageIds
+	 *            Identifiers returned by pull
+	 * @return Number of messages deleted, without the messages no longer in
+	 *         flight with the given receipt
 	 */
-	public synchronized void cleanUp(String queueUrl) {
-		long pointer = BODY_POSITION;
-		boolean visible = false;
+	@Override
+	public int deleteAll(String queueUrl, List<String> messageIds) {
+		QueueFileHandle handle = null;
+		QueueLock lock = null;
 		try {
-			loadQueueFile(queueUrl);
-			lock(lock);
-			LOGGER.info("Clean-up Started");
-			while (visible == false) {
-				raf.seek(pointer);
-				long length = raf.readLong();
-				raf.seek(pointer + VISIBLE_FLAG_POSITION);
-				visible = raf.readBoolean();
-				if (visible == true) {
-					raf.seek(HEADER_HEAD_POSITION);
-					raf.writeLong(pointer);
-					deleteFlaggedItems(queueUrl, pointer);
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			lock = lock(handle.getLock());
+			Header header = readHeader(channel);
+			ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			int deleted = 0;
+			for (String messageId : messageIds) {
+				long position = locate(channel, header, handle.getQueueName(), messageId, entryHeader);
+				if (position >= 0 && isInFlight(entryHeader)) {
+					long blockPosition = memberOf(channel, position, entryHeader);
+					if (blockPosition >= 0) {
+						retire(channel, header, position, blockPosition);
+					} else {
+						writeLong(channel, position + DEADLINE_POSITION, DELETED);
+						header.deadBytes += entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+					}
+					deleted++;
 				}
-				pointer += length + ENTRY_HEADER_SIZE;
 			}
-			LOGGER.info("Clean-up Completed");
-		} catch (EOFException e) {
-			LOGGER.info("Re-initializing Queue");
-			initializeQueueFile(raf);
+			if (deleted > 0) {
+				advanceInFlight(channel, header);
+				saveConsumerState(handle, header);
+			}
+			tracer.record(EventTracer.Type.DELETE, queueUrl, deleted, header.inflight, null);
+			return deleted;
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
+			throw new UncheckedIOException(e);
 		} catch (InterruptedException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			throw new IllegalStateException("Interrupted while deleting from " + queueUrl, e);
 		} finally {
 			unlock(lock);
+			releaseQueueFile(handle);
+		}
+	}
+
+	/**
+	 * Returns the block of an entry if it is a member. Only entries small
+	 * enough to be a member are read.
+	 * 
+	 * @param channel
+	 *            channel of the queue file, queue lock held
+	 * @param position
+	 *            position of the entry
+	 * @param entryHeader
+	 *            header of the entry
+	 * @return position of the block entry or -1 if the entry holds its record
+	 */
+	private long memberOf(FileChannel channel, long position, ByteBuffer entryHeader) throws IOException {
+		long length = entryHeader.getLong(0);
+		if (length < 1 || length > MAX_MEMBER_SIZE) {
+			return -1;
 		}
+		ByteBuffer reference = ByteBuffer.allocate((int) length);
+		readFully(channel, reference, position + ENTRY_HEADER_SIZE);
+		reference.flip();
+		return reference.get(0) == MEMBER_TAG ? blockOf(reference, position) : -1;
+	}
 
+	/**
+	 * Deletes a member of a block. The member is kept in place as retired
+	 * while other members of its block are not deleted, so that the distance
+	 * to its block does not change. The last deleted member turns the block
+	 * and all its members into deleted entries and counts their bytes as
+	 * dead.
+	 * 
+	 * @param channel
+	 *            channel of the queue file, queue lock held
+	 * @param header
+	 *            header read under the same lock, updated in place
+	 * @param position
+	 *            position of the member entry
+	 * @param blockPosition
+	 *            position of its block entry
+	 */
+	private void retire(FileChannel channel, Header header, long position, long blockPosition) throws IOException {
+		ByteBuffer state = ByteBuffer.allocate((int) (RECEIPT_POSITION - VISIBLE_FLAG_POSITION));
+		state.put(0, FLAG_RETIRED);
+		state.putLong((int) (DEADLINE_POSITION - VISIBLE_FLAG_POSITION), DELETED);
+		writeFully(channel, state, position + VISIBLE_FLAG_POSITION);
+		ByteBuffer blockHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		readFully(channel, blockHeader, blockPosition);
+		int liveMembers = blockHeader.getInt((int) RECEIVE_COUNT_POSITION) - 1;
+		if (liveMembers > 0) {
+			ByteBuffer count = ByteBuffer.allocate(4);
+			count.putInt(0, liveMembers);
+			writeFully(channel, count, blockPosition + RECEIVE_COUNT_POSITION);
+			return;
+		}
+		long end = blockPosition + entrySize(blockHeader);
+		state.clear();
+		state.put(0, FLAG_INVISIBLE);
+		writeFully(channel, state, blockPosition + VISIBLE_FLAG_POSITION);
+		ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		long member = blockPosition + ENTRY_HEADER_SIZE + blockHeader.getLong(0);
+		while (member < end) {
+			entryHeader.clear();
+			readFully(channel, entryHeader, member);
+			writeFully(channel, flag(FLAG_INVISIBLE), member + VISIBLE_FLAG_POSITION);
+			member += entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+		}
+		header.deadBytes += end - blockPosition;
 	}
 
 	/**
-	 * This method is used to delete/truncate the contents of the
-	 * RandomAccessFile prior to the input position. It creates a temp file.
-	 * Starting from the input position, it copies all the contents until the
-	 * end of the main file. This temp will replace the contents of the main
-	 * file and then be deleted.
+	 * Sets a new visibility deadline for a pulled message.
 	 * 
-	 * @param newHeadPosition
-	 *            Starting point of the Queue File to truncate to
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messageId
+	 *            Identifier returned by pull
+	 * @param visibilityTimeoutMillis
+	 *            time from now until the message is visible again
+	 * @return false if the message was deleted or is visible again
 	 */
-	private synchronized void deleteFlaggedItems(String queueUrl, long newHeadPosition) throws IOException {
-		loadQueueFile(queueUrl);
-		RandomAccessFile tempRaf = new RandomAccessFile(temp, "rw");
-		initializeQueueFile(tempRaf);
-		FileChannel raffc = raf.getChannel();
-		FileChannel tempfc = tempRaf.getChannel();
-		FileLock tempfl = tempfc.lock();
-		long headPosition = newHeadPosition;
+	@Override
+	public boolean changeVisibility(String queueUrl, String messageId, long visibilityTimeoutMillis) {
+		QueueFileHandle handle = null;
+		QueueLock lock = null;
 		try {
-			LOGGER.info("Started removing deleted Messages");
-			while (true) {
-				raf.seek(headPosition);
-				long length = raf.readLong();
-				boolean flag = raf.readBoolean();
-				byte[] b = new byte[(int) length];
-				raf.readFully(b);
-				tempRaf.writeLong(length);
-				tempRaf.writeBoolean(flag);
-				tempRaf.write(b);
-				headPosition = headPosition + length + ENTRY_HEADER_SIZE;
-			}
-		} catch (EOFException e) {
-			LOGGER.info("End of File Reached");
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			lock = lock(handle.getLock());
+			Header header = readHeader(channel);
+			ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			long position = locate(channel, header, handle.getQueueName(), messageId, entryHeader);
+			if (position < 0 || !isInFlight(entryHeader)) {
+				return false;
+			}
+			long deadline = System.currentTimeMillis() + visibilityTimeoutMillis;
+			writeLong(channel, position + DEADLINE_POSITION, deadline);
+			if (deadline < header.nextExpiry) {
+				header.nextExpiry = deadline;
+				saveConsumerState(handle, header);
+			}
+			return true;
 		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			unlock(lock);
+			releaseQueueFile(handle);
 		}
+		return false;
+	}
+
+	/**
+	 * Makes the pulled messages whose deadline has passed visible again.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return number of messages made visible
+	 */
+	@Override
+	public int sweep(String queueUrl) {
+		QueueFileHandle handle = null;
+		QueueLock lock = null;
+		try {
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			lock = lock(handle.getLock());
+			Header header = readHeader(channel);
+			long now = System.currentTimeMillis();
+			if (now < header.nextExpiry) {
+				return 0;
+			}
+			int reclaimed = reclaimExpired(channel, header, visibleIndex(handle, header), now);
+			saveConsumerState(handle, header);
+			if (reclaimed > 0) {
+				tracer.record(EventTracer.Type.EXPIRE, queueUrl, reclaimed, header.head, null);
+			}
+			return reclaimed;
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			unlock(lock);
+			releaseQueueFile(handle);
+		}
+		return 0;
+	}
+
+	/**
+	 * Scans the in-flight region for the pulled messages neither deleted nor
+	 * made visible again, whether their deadline has passed or not.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return latest deadline of the messages in flight, 0 if there are none
+	 */
+	@Override
+	public long inFlightDeadline(String queueUrl) {
+		QueueFileHandle handle = null;
+		QueueLock lock = null;
 		try {
-			tempfc.transferTo(HEADER_POSITION, tempfc.size(), raffc.truncate(0));
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			lock = lock(handle.getLock());
+			Header header = readHeader(channel);
+			long latest = 0;
+			long position = header.inflight;
+			ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			while (position < header.scanned) {
+				entryHeader.clear();
+				readFully(channel, entryHeader, position);
+				if (isInFlight(entryHeader)) {
+					latest = Math.max(latest, entryHeader.getLong((int) DEADLINE_POSITION));
+				}
+				position += entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+			}
+			return latest;
 		} catch (IOException e) {
 			LOGGER.severe(e.getMessage());
 			e.printStackTrace();
+			tracer.dumpOnError(e);
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+			throw new IllegalStateException("Interrupted while reading " + queueUrl, e);
 		} finally {
-			tempfl.release();
-			tempRaf.close();
-			file.delete();
+			unlock(lock);
+			releaseQueueFile(handle);
+		}
+	}
+
+	/**
+	 * Scans the in-flight region, flags expired entries visible and moves the
+	 * head back to the first of them. The in-flight start and next expiry are
+	 * recomputed from the entries still in flight. Called with the queue lock.
+	 * 
+	 * @param channel
+	 *            channel of the queue file
+	 * @param header
+	 *            header read under the same lock, updated in place
+	 * @param index
+	 *            visible index matching the header
+	 * @param now
+	 *            current time in milliseconds
+	 * @return number of entries made visible
+	 */
+	private int reclaimExpired(FileChannel channel, Header header, VisibleIndex index, long now)
+			throws IOException {
+		int reclaimed = 0;
+		long firstInFlight = -1;
+		long nextExpiry = Long.MAX_VALUE;
+		long position = header.inflight;
+		ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		while (position < header.scanned) {
+			entryHeader.clear();
+			readFully(channel, entryHeader, position);
+			if (isInFlight(entryHeader)) {
+				long deadline = entryHeader.getLong((int) DEADLINE_POSITION);
+				if (deadline <= now) {
+					writeFully(channel, flag(FLAG_VISIBLE), position + VISIBLE_FLAG_POSITION);
+					index.add(position);
+					header.head = Math.min(header.head, position);
+					reclaimed++;
+				} else {
+					if (firstInFlight < 0) {
+						firstInFlight = position;
+					}
+					nextExpiry = Math.min(nextExpiry, deadline);
+				}
+			}
+			position += entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+		}
+		header.inflight = firstInFlight < 0 ? header.head : Math.min(firstInFlight, header.head);
+		header.nextExpiry = nextExpiry;
+		return reclaimed;
+	}
+
+	/**
+	 * Moves the in-flight start past the deleted entries, blocks and retired
+	 * members it points at.
+	 */
+	private void advanceInFlight(FileChannel channel, Header header) throws IOException {
+		ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		while (header.inflight < header.head) {
+			entryHeader.clear();
+			readFully(channel, entryHeader, header.inflight);
+			if (isInFlight(entryHeader)) {
+				break;
+			}
+			header.inflight += entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+		}
+	}
+
+	/**
+	 * Finds the entry of a message id and reads its entry header. The position
+	 * in the id is tried first. An entry moved by compaction is searched in
+	 * the in-flight region by its receipt.
+	 * 
+	 * @param channel
+	 *            channel of the queue file, queue lock held
+	 * @param header
+	 *            header read under the same lock
+	 * @param queueName
+	 *            name of the queue the receipt must belong to
+	 * @param messageId
+	 *            Identifier returned by pull
+	 * @param entryHeader
+	 *            buffer receiving the entry header
+	 * @return position of the entry or -1 if no entry has the receipt
+	 */
+	private long locate(FileChannel channel, Header header, String queueName, String messageId,
+			ByteBuffer entryHeader)
+			throws IOException {
+		ReceiptHandle receiptHandle = ReceiptHandle.decode(queueName, messageId);
+		if (receiptHandle == null || receiptHandle.getGeneration() <= 0) {
+			return -1;
+		}
+		long position = receiptHandle.getPosition();
+		long receipt = receiptHandle.getGeneration();
+		if (position >= BODY_POSITION && position < header.scanned
+				&& hasReceipt(channel, header, position, receipt, entryHeader)) {
+			return position;
+		}
+		position = header.inflight;
+		while (position < header.scanned) {
+			if (hasReceipt(channel, header, position, receipt, entryHeader)) {
+				return position;
+			}
+			position += entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the entry header at a position and compares its receipt.
+	 */
+	private boolean hasReceipt(FileChannel channel, Header header, long position, long receipt,
+			ByteBuffer entryHeader) throws IOException {
+		entryHeader.clear();
+		readFully(channel, entryHeader, position);
+		long length = entryHeader.getLong(0);
+		return entryHeader.getLong((int) RECEIPT_POSITION) == receipt && length >= 0
+				&& position + ENTRY_HEADER_SIZE + length <= header.tail;
+	}
+
+	/**
+	 * @return true if the entry was pulled and is neither deleted nor visible
+	 */
+	private boolean isInFlight(ByteBuffer entryHeader) {
+		return entryHeader.get((int) VISIBLE_FLAG_POSITION) == FLAG_INVISIBLE
+				&& entryHeader.getLong((int) DEADLINE_POSITION) != DELETED;
+	}
+
+	/**
+	 * @return true if the entry was deleted or is padding left by compaction
+	 */
+	private boolean isDead(ByteBuffer entryHeader) {
+		return entryHeader.get((int) VISIBLE_FLAG_POSITION) == FLAG_INVISIBLE
+				&& entryHeader.getLong((int) DEADLINE_POSITION) == DELETED;
+	}
+
+	/**
+	 * @return size of the entry, with all of its members for a block
+	 */
+	private long entrySize(ByteBuffer entryHeader) {
+		long size = entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+		if (entryHeader.get((int) VISIBLE_FLAG_POSITION) == FLAG_BLOCK) {
+			size += entryHeader.getLong((int) DEADLINE_POSITION);
 		}
+		return size;
 	}
 
 	/**
-	 * Get queue name from URL
+	 * Compacts the Queue File if its dead bytes exceed the configured
+	 * thresholds or a compaction is already running. Runs the compaction to
+	 * its end one chunk at a time.
 	 * 
 	 * @param queueUrl
-	 *            URL used for sqs service
-	 * @return Queue name
+	 *            URL of the queue
+	 * @return number of bytes removed from the file
+	 */
+	@Override
+	public long compact(String queueUrl) {
+		return compact(queueUrl, false);
+	}
+
+	/**
+	 * The purpose of this method is to remove all the deleted entries of the
+	 * QueueFile to save disk space, regardless of the compaction thresholds.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	public void cleanUp(String queueUrl) {
+		LOGGER.info("Clean-up Started");
+		compact(queueUrl, true);
+		LOGGER.info("Clean-up Completed");
+	}
+
+	private long compact(String queueUrl, boolean force) {
+		long removed = 0;
+		QueueFileHandle handle = null;
+		try {
+			handle = loadQueueFile(queueUrl);
+			FileChannel channel = handle.getChannel();
+			// an unlocked read is enough to decide
+			Header header = readHeader(channel);
+			if (!force && header.cursor == 0 && !exceedsThreshold(header)) {
+				return 0;
+			}
+			LOGGER.info("Compaction Started with " + header.deadBytes + " dead bytes");
+			do {
+				removed += compactChunk(handle);
+			} while (readLong(channel, HEADER_CURSOR_POSITION) != 0);
+			LOGGER.info("Compaction Completed removing " + removed + " bytes");
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			releaseQueueFile(handle);
+		}
+		return removed;
+	}
+
+	private boolean exceedsThreshold(Header header) {
+		return header.deadBytes >= compactMinBytes
+				&& header.deadBytes * 100 >= compactRatio * (header.tail - BODY_POSITION);
+	}
+
+	/**
+	 * Runs one step of the compaction under the queue lock. Starting at the
+	 * first dead entry after the cursor, the live entries of about
+	 * compactChunkBytes bytes are moved down over the dead ones with a single
+	 * write. The freed bytes become a padding entry right after them, where
+	 * the next step continues. When the step reaches the tail the freed bytes
+	 * are cut off instead, holding the tail lock as well, and the compaction
+	 * ends.
+	 * 
+	 * @param handle
+	 *            handle of the queue file
+	 * @return number of bytes removed from the file
+	 */
+	private long compactChunk(QueueFileHandle handle) throws IOException, InterruptedException {
+		QueueLock lock = null;
+		QueueLock tailLock = null;
+		try {
+			lock = lock(handle.getLock());
+			FileChannel channel = handle.getChannel();
+			Header header = readHeader(channel);
+			VisibleIndex index = visibleIndex(handle, header);
+			ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			long budget = compactChunkBytes;
+			// skip the live entries before the first dead one
+			long start = Math.max(header.cursor, BODY_POSITION);
+			while (start < header.tail && budget > 0) {
+				entryHeader.clear();
+				readFully(channel, entryHeader, start);
+				if (isDead(entryHeader)) {
+					break;
+				}
+				start += entrySize(entryHeader);
+				budget -= ENTRY_HEADER_SIZE;
+			}
+			if (start >= header.tail || budget <= 0) {
+				header.cursor = start >= header.tail ? 0 : start;
+				saveConsumerState(handle, header);
+				return 0;
+			}
+			// collect the live entries following it
+			ByteArrayOutputStream live = new ByteArrayOutputStream();
+			long[] pointers = { header.head, header.inflight, header.scanned };
+			long[] moved = { -1, -1, -1 };
+			List<Long> relocated = new ArrayList<Long>();
+			long position = start;
+			while (position < header.tail && budget > 0) {
+				entryHeader.clear();
+				readFully(channel, entryHeader, position);
+				// a live block moves with all of its members
+				long size = entrySize(entryHeader);
+				if (!isDead(entryHeader)) {
+					ByteBuffer entry = ByteBuffer.allocate((int) size);
+					readFully(channel, entry, position);
+					long target = start + live.size();
+					for (int i = 0; i < pointers.length; i++) {
+						if (moved[i] < 0 && pointers[i] >= start && pointers[i] < position + size) {
+							moved[i] = target + Math.max(0, pointers[i] - position);
+						}
+					}
+					for (long offset = 0; offset < size; offset += entry.getLong((int) offset) + ENTRY_HEADER_SIZE) {
+						if (index.remove(position + offset)) {
+							relocated.add(target + offset);
+						}
+					}
+					live.write(entry.array(), 0, entry.capacity());
+					budget -= size;
+				} else {
+					budget -= ENTRY_HEADER_SIZE;
+				}
+				position += size;
+			}
+			long end = start + live.size();
+			boolean truncate = false;
+			if (position == header.tail) {
+				tailLock = lock(handle.getTailLock());
+				// producers may have appended since the header was read
+				truncate = readLong(channel, HEADER_TAIL_POSITION) == position;
+			}
+			writeFully(channel, ByteBuffer.wrap(live.toByteArray()), start);
+			// pointers into the window follow the entries they point at
+			for (int i = 0; i < pointers.length; i++) {
+				if (pointers[i] >= start && (pointers[i] < position || truncate && pointers[i] == position)) {
+					pointers[i] = moved[i] < 0 ? end : moved[i];
+				}
+			}
+			header.head = pointers[0];
+			header.inflight = pointers[1];
+			header.scanned = pointers[2];
+			for (long visible : relocated) {
+				index.add(visible);
+			}
+			long removed = 0;
+			if (truncate) {
+				removed = position - end;
+				writeLong(channel, HEADER_TAIL_POSITION, end);
+				channel.truncate(end);
+				header.deadBytes = Math.max(0, header.deadBytes - removed);
+				header.cursor = 0;
+			} else {
+				ByteBuffer padding = newEntryHeader(position - end - ENTRY_HEADER_SIZE);
+				padding.put((int) VISIBLE_FLAG_POSITION, FLAG_INVISIBLE);
+				padding.putLong((int) DEADLINE_POSITION, DELETED);
+				writeFully(channel, padding, end);
+				header.cursor = end;
+			}
+			saveConsumerState(handle, header);
+			return removed;
+		} finally {
+			unlock(tailLock);
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Returns the visible index of the queue file, rebuilt from the entries
+	 * between the head and the scanned position if it does not match the
+	 * header. Called with the queue lock.
+	 * 
+	 * @param handle
+	 *            handle of the queue file
+	 * @param header
+	 *            header read under the same lock
+	 */
+	private VisibleIndex visibleIndex(QueueFileHandle handle, Header header) throws IOException {
+		VisibleIndex index = handle.getVisibleIndex();
+		if (!index.isSynced(header.changes)) {
+			index.reset(header.changes);
+			FileChannel channel = handle.getChannel();
+			ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			long position = header.head;
+			while (position < header.scanned) {
+				entryHeader.clear();
+				readFully(channel, entryHeader, position);
+				if (entryHeader.get((int) VISIBLE_FLAG_POSITION) == FLAG_VISIBLE) {
+					index.add(position);
+				}
+				position += entryHeader.getLong(0) + ENTRY_HEADER_SIZE;
+			}
+			LOGGER.info("Rebuilt visible index of " + handle.getQueueName() + " with " + index.size() + " entries");
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the consumer fields of the header as a new change and keeps the
+	 * visible index in step with it. Called with the queue lock.
+	 */
+	private void saveConsumerState(QueueFileHandle handle, Header header) throws IOException {
+		long seen = header.changes++;
+		writeConsumerState(handle.getChannel(), header);
+		handle.getVisibleIndex().advance(seen, header.changes);
+	}
+
+	/**
+	 * Copies a range of bytes from one file to another.
+	 */
+	private void transfer(FileChannel source, long position, long count, FileChannel target, long targetPosition)
+			throws IOException {
+		long transferred = 0;
+		while (transferred < count) {
+			long n = source.transferTo(position + transferred, count - transferred,
+					target.position(targetPosition + transferred));
+			if (n <= 0) {
+				throw new EOFException();
+			}
+			transferred += n;
+		}
+	}
+
+	/**
+	 * @return header of a visible entry never pulled
+	 */
+	private ByteBuffer newEntryHeader(long length) {
+		ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		buffer.putLong(0, length);
+		buffer.put((int) VISIBLE_FLAG_POSITION, FLAG_VISIBLE);
+		return buffer;
+	}
+
+	private Header readHeader(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, buffer, HEADER_POSITION);
+		Header header = new Header(buffer.getLong((int) HEADER_TAIL_POSITION));
+		header.sequence = buffer.getLong((int) HEADER_SEQUENCE_POSITION);
+		header.head = buffer.getLong((int) HEADER_HEAD_POSITION);
+		header.inflight = buffer.getLong((int) HEADER_INFLIGHT_POSITION);
+		header.scanned = buffer.getLong((int) HEADER_SCANNED_POSITION);
+		header.nextExpiry = buffer.getLong((int) HEADER_EXPIRY_POSITION);
+		header.deadBytes = buffer.getLong((int) HEADER_DEAD_POSITION);
+		header.cursor = buffer.getLong((int) HEADER_CURSOR_POSITION);
+		header.changes = buffer.getLong((int) HEADER_CHANGES_POSITION);
+		return header;
+	}
+
+	private void writeHeader(FileChannel channel, Header header) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+		buffer.putInt((int) HEADER_MAGIC_POSITION, MAGIC);
+		buffer.putInt((int) HEADER_VERSION_POSITION, FORMAT_VERSION);
+		buffer.putLong((int) HEADER_TAIL_POSITION, header.tail);
+		writeFully(channel, buffer, HEADER_POSITION);
+		writeConsumerState(channel, header);
+	}
+
+	/**
+	 * Writes the header fields owned by consumers with a single write, leaving
+	 * the tail to producers.
+	 */
+	private void writeConsumerState(FileChannel channel, Header header) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(CONSUMER_STATE_SIZE);
+		buffer.putLong((int) (HEADER_SEQUENCE_POSITION - HEADER_SEQUENCE_POSITION), header.sequence);
+		buffer.putLong((int) (HEADER_HEAD_POSITION - HEADER_SEQUENCE_POSITION), header.head);
+		buffer.putLong((int) (HEADER_INFLIGHT_POSITION - HEADER_SEQUENCE_POSITION), header.inflight);
+		buffer.putLong((int) (HEADER_SCANNED_POSITION - HEADER_SEQUENCE_POSITION), header.scanned);
+		buffer.putLong((int) (HEADER_EXPIRY_POSITION - HEADER_SEQUENCE_POSITION), header.nextExpiry);
+		buffer.putLong((int) (HEADER_DEAD_POSITION - HEADER_SEQUENCE_POSITION), header.deadBytes);
+		buffer.putLong((int) (HEADER_CURSOR_POSITION - HEADER_SEQUENCE_POSITION), header.cursor);
+		buffer.putLong((int) (HEADER_CHANGES_POSITION - HEADER_SEQUENCE_POSITION), header.changes);
+		writeFully(channel, buffer, HEADER_SEQUENCE_POSITION);
+	}
+
+	private ByteBuffer flag(byte flag) {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		buffer.put(0, flag);
+		return buffer;
+	}
+
+	private int readInt(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		readFully(channel, buffer, position);
+		return buffer.getInt(0);
+	}
+
+	private void writeInt(FileChannel channel, long position, int value) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.putInt(0, value);
+		writeFully(channel, buffer, position);
+	}
+
+	private long readLong(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		readFully(channel, buffer, position);
+		return buffer.getLong(0);
+	}
+
+	private void writeLong(FileChannel channel, long position, long value) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(0, value);
+		writeFully(channel, buffer, position);
+	}
+
+	/**
+	 * Reads until the buffer is full without moving the file pointer.
 	 * 
+	 * @throws EOFException
+	 *             if the end of the file is reached first
+	 */
+	private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Writes the whole buffer without moving the file pointer.
+	 */
+	private void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * Entry blocks of messages being added. Records of a compressed queue are
+	 * gathered into blocks of about filequeue.compress.block bytes. A block of
+	 * at least filequeue.compress.threshold bytes that gets smaller is written
+	 * as a block entry followed by its members, other records as plain
+	 * entries.
 	 */
-	private String fromUrl(String queueUrl) {
-		URI uri = URI.create(queueUrl);
-		String[] segments = uri.getPath().split("/");
-		return segments[segments.length - 1];
+	private class Entries {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private final ByteBuffer entryHeader = newEntryHeader(0);
+		private final RecordBlock block;
+
+		Entries(String queueUrl) {
+			this.block = compresses(queueUrl) ? new RecordBlock() : null;
+		}
+
+		void add(ByteBuffer record) {
+			if (block == null) {
+				write(record);
+				return;
+			}
+			block.add(record);
+			if (block.rawSize() >= compressBlockBytes) {
+				flush();
+			}
+		}
+
+		ByteArrayOutputStream finish() {
+			if (block != null) {
+				flush();
+			}
+			return out;
+		}
+
+		private void flush() {
+			ByteBuffer compressed = block.count() > 1 && block.rawSize() >= compressThreshold
+					? block.compress(compressLevel) : null;
+			if (compressed != null && compressed.remaining() < block.rawSize()) {
+				writeBlock(compressed);
+			} else {
+				for (int i = 0; i < block.count(); i++) {
+					write(block.record(i));
+				}
+			}
+			block.clear();
+		}
+
+		/**
+		 * Adds the entry block of a record, reusing the header of new entries.
+		 */
+		private void write(ByteBuffer record) {
+			entryHeader.putLong(0, record.remaining());
+			out.write(entryHeader.array(), 0, ENTRY_HEADER_SIZE);
+			out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+		}
+
+		/**
+		 * Adds a block entry holding the compressed records and a member entry
+		 * per record, referring to the block by its distance and the index of
+		 * the record.
+		 */
+		private void writeBlock(ByteBuffer compressed) {
+			int blockSize = ENTRY_HEADER_SIZE + compressed.remaining();
+			ByteArrayOutputStream members = new ByteArrayOutputStream();
+			ByteBuffer reference = ByteBuffer.allocate(MAX_MEMBER_SIZE);
+			for (int i = 0; i < block.count(); i++) {
+				reference.clear();
+				reference.put(MEMBER_TAG);
+				ReceiptHandle.putVarLong(reference, blockSize + members.size());
+				ReceiptHandle.putVarLong(reference, i);
+				reference.flip();
+				entryHeader.putLong(0, reference.remaining());
+				members.write(entryHeader.array(), 0, ENTRY_HEADER_SIZE);
+				members.write(reference.array(), 0, reference.remaining());
+			}
+			// the block counts its live members and is never pulled itself
+			ByteBuffer blockHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+			blockHeader.putLong(0, compressed.remaining());
+			blockHeader.put((int) VISIBLE_FLAG_POSITION, FLAG_BLOCK);
+			blockHeader.putLong((int) DEADLINE_POSITION, members.size());
+			blockHeader.putLong((int) RECEIPT_POSITION, ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+			blockHeader.putInt((int) RECEIVE_COUNT_POSITION, block.count());
+			out.write(blockHeader.array(), 0, ENTRY_HEADER_SIZE);
+			out.write(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+			out.write(members.toByteArray(), 0, members.size());
+		}
+	}
+
+	/**
+	 * Positions kept in the Queue File header.
+	 */
+	private class Header {
+		private long tail;
+		private long sequence = 1;
+		private long head = BODY_POSITION;
+		private long inflight = BODY_POSITION;
+		private long scanned = BODY_POSITION;
+		private long nextExpiry = Long.MAX_VALUE;
+		private long deadBytes;
+		private long cursor;
+		private long changes;
+
+		Header(long tail) {
+			this.tail = tail;
+		}
 	}
 
 }
@@ -1,13 +1,20 @@
 package com.example;
 
-import java.io.IOException;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 
 /**
  * File Queue Service
@@ -15,15 +22,66 @@ import com.amazonaws.services.sqs.model.Message;
  * File Queue implementation of Queue Service making use of
  * FileQueue as a file storage service.
  * 
+ * Storages that track visibility keep the deadline of pulled messages in the
+ * file. Expired messages are then made visible by the next pull and by a
+ * sweeper run every filequeue.sweep.interval milliseconds, and no timer is
+ * kept per message. The sweeper also compacts the files of those queues.
+ * Other storages use the visibility timer.
+ * 
+ * Every operation is recorded in the QueueMetrics of its queue.
+ * 
+ * Asynchronous pushes and deletes are handed to the group commit writer
+ * without waiting. Asynchronous pulls run on the filequeue.async.threads I/O
+ * threads of a PullExecutor, which serves the pulls queued for a queue with
+ * one read.
+ * 
+ * Pushes are delayed by the default delay of their queue, see setDelaySeconds.
+ * Delayed messages are kept durably by the DelayStore and appended to the
+ * queue once due, by the next pull of the queue and by a task run every
+ * delay.bucket milliseconds for the queues used by this service.
+ * 
+ * A pulled message received more often than the maxReceiveCount of the
+ * RedrivePolicy of its queue is moved to the dead-letter queue instead of
+ * being delivered. It is written with its message attributes to the
+ * dead-letter queue first and then deleted from its queue. With a storage
+ * tracking visibility a failure in between leaves it invisible in its queue
+ * until it is moved again, possibly leaving a copy in the dead-letter queue.
+ * Other storages have already removed it on pull, so a failed write loses it
+ * like a message in flight of a stopped process.
+ * 
+ * Messages of FIFO queues are pushed with pushFifo into the partition queue of
+ * FifoPartitions their group is hashed onto. Pulled messages are staged per
+ * group by FifoPartitions, which delivers one message of a group at a time and
+ * keeps the visibility timeouts of FIFO deliveries in memory instead of the
+ * visibility timer, and operations on a FIFO queue are routed to the partition
+ * of the receipt. Metrics are recorded per partition. Pushes are deduplicated
+ * by the DeduplicationWindow of the queue. A FIFO queue is used by a single
+ * process, the first to use it.
+ * 
  * @author Edgar Resma
  */
-public class FileQueueService implements QueueService {
+public class FileQueueService implements QueueService, AsyncQueueService {
+
+	private final static Logger LOGGER = Logger.getLogger(FileQueueService.class.getName());
+
+	private static final int PUSH_CHUNK_SIZE = 1024;
 
-	private ConcurrentMap<String, ScheduledFuture> invisibleQueue = new ConcurrentHashMap<String, ScheduledFuture>();
+	private ConcurrentMap<String, VisibilityTimer.Timeout> invisibleQueue = new ConcurrentHashMap<String, VisibilityTimer.Timeout>();
+	private VisibilityTimer visibilityTimer;
 	private ScheduledExecutorService executorService;
 	private FileQueue queueFile;
+	private GroupCommitWriter writer;
+	private QueueNotifier notifier = QueueNotifier.getInstance();
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
 	private long visibilityTimeout;
-	static Properties prop;
+	private Set<String> queueUrls = ConcurrentHashMap.newKeySet();
+	private boolean sweeping;
+	private PullExecutor pullExecutor;
+	private DelayStore delayStore = new DelayStore();
+	private ConcurrentMap<String, Integer> delays = new ConcurrentHashMap<String, Integer>();
+	private Set<String> delayedQueueUrls = ConcurrentHashMap.newKeySet();
+	private boolean releasing;
+	private ConcurrentMap<String, RedrivePolicy> redrivePolicies = new ConcurrentHashMap<String, RedrivePolicy>();
 
 	/**
 	 * Constructor
@@ -33,41 +91,58 @@ public class FileQueueService implements QueueService {
 	 */
 	public FileQueueService(ScheduledExecutorService executorService) {
 		this.executorService = executorService;
+		this.visibilityTimer = new VisibilityTimer(executorService, this::reQueueExpired);
 		initializedFileStorageService();
+		this.writer = new GroupCommitWriter(queueFile);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param executorService
+	 *            executorService to be used by the queue
+	 * @param queueFile
+	 *            File storage service to be used instead of the configured one
+	 */
+	public FileQueueService(ScheduledExecutorService executorService, FileQueue queueFile) {
+		this.executorService = executorService;
+		this.visibilityTimer = new VisibilityTimer(executorService, this::reQueueExpired);
+		this.queueFile = queueFile;
+		this.visibilityTimeout = QueueConfig.getLong("timeout.default", 10);
+		this.writer = new GroupCommitWriter(queueFile);
 	}
 	/**
 	 * Initialized the File Storage Service Used based from properties file:
 	 * 1. FileQueuePrintWriter - will be used as default.
 	 * 2. FileQueueRAF - position-based file storage. 
+	 * 3. FileQueueMapped - segmented memory mapped file storage.
 	 * 
 	 * Properties file also contain the timeout default used for re-queue
 	 * and storage location to be used on local machine.
 	 * 
 	 */
 	private void initializedFileStorageService() {
-		try {
-			prop = new Properties();
-			prop.load(getClass().getClassLoader().getResourceAsStream("aws.local.properties"));
-			String fileService = prop.getProperty("filequeue.impl");
-			visibilityTimeout = Long.valueOf(prop.getProperty("timeout.default"));
-			switch (fileService) {
-			case "FileQueueRAF":
-				queueFile = new FileQueueRAF();
-				break;
+		String fileService = QueueConfig.getProperty("filequeue.impl", "");
+		visibilityTimeout = QueueConfig.getLong("timeout.default", 10);
+		switch (fileService) {
+		case "FileQueueRAF":
+			queueFile = new FileQueueRAF();
+			break;
+		case "FileQueueMapped":
+			queueFile = new FileQueueMapped();
+			break;
 
-			default:
-				queueFile = new FileQueuePrintWriter();
-				break;
-			} 
-		} catch (IOException e) {
+		default:
 			queueFile = new FileQueuePrintWriter();
-			e.printStackTrace();
+			break;
 		}
-	
 	}
 	
 	/**
-	 * This method adds a message into the end of the QueueFile.
+	 * This method adds a message into the end of the QueueFile after the
+	 * default delay of the queue. Concurrent pushes are written together by
+	 * the group commit writer and the call returns once the message satisfies
+	 * the filequeue.fsync policy.
 	 * 
 	 * @param queueUrl
 	 *            URL of the queue
@@ -76,7 +151,141 @@ public class FileQueueService implements QueueService {
 	 */
 	@Override
 	public void push(String queueUrl, String message) {
-		queueFile.add(queueUrl, message);
+		pushDelayed(queueUrl, message, delaySeconds(queueUrl));
+	}
+
+	/**
+	 * This method adds a message into the end of the QueueFile once the delay
+	 * has passed. Until then the message is kept in the DelayStore.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @param delaySeconds
+	 *            Time the message is held back, from 0 to 900 seconds
+	 */
+	@Override
+	public void pushDelayed(String queueUrl, String message, int delaySeconds) {
+		BatchRequests.checkStandard(queueUrl);
+		BatchRequests.checkBody(message);
+		BatchRequests.checkDelay(delaySeconds);
+		long start = System.nanoTime();
+		if (delaySeconds > 0) {
+			delay(queueUrl, Collections.singletonList(message), delaySeconds);
+		} else {
+			writer.write(queueUrl, Collections.singletonList(message));
+			notifier.signal(queueUrl);
+		}
+		metrics(queueUrl).pushed(1, start);
+	}
+
+	/**
+	 * This method adds up to ten messages into the end of the QueueFile with a
+	 * single write.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue
+	 */
+	@Override
+	public void pushBatch(String queueUrl, List<String> messages) {
+		BatchRequests.checkStandard(queueUrl);
+		BatchRequests.checkEntries(messages);
+		BatchRequests.checkBodies(messages);
+		long start = System.nanoTime();
+		int delaySeconds = delaySeconds(queueUrl);
+		if (delaySeconds > 0) {
+			delay(queueUrl, new ArrayList<String>(messages), delaySeconds);
+		} else {
+			writer.write(queueUrl, new ArrayList<String>(messages));
+			notifier.signal(queueUrl);
+		}
+		metrics(queueUrl).pushed(messages.size(), start);
+	}
+
+	/**
+	 * This method adds a message with its group into the end of the partition
+	 * queue of its group, unless its deduplication id was pushed within the
+	 * deduplication window.
+	 * 
+	 * @param queueUrl
+	 *            URL of the FIFO queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @param messageGroupId
+	 *            Group of the message, up to 128 characters
+	 * @param messageDeduplicationId
+	 *            Deduplication id or null to deduplicate by the message body
+	 */
+	@Override
+	public void pushFifo(String queueUrl, String message, String messageGroupId, String messageDeduplicationId) {
+		BatchRequests.checkFifo(queueUrl, messageGroupId);
+		BatchRequests.checkBody(message);
+		long start = System.nanoTime();
+		if (isDuplicate(queueUrl, message, messageDeduplicationId)) {
+			return;
+		}
+		String partitionUrl = fifoPartitions(queueUrl).partitionUrl(messageGroupId);
+		writer.writeMessages(partitionUrl, Collections.singletonList(new Message().withBody(message)
+				.addMessageAttributesEntry(MessageGroups.MESSAGE_GROUP_ID,
+						new MessageAttributeValue().withDataType("String").withStringValue(messageGroupId))));
+		metrics(partitionUrl).pushed(1, start);
+		signal(partitionUrl);
+	}
+
+	private boolean isDuplicate(String queueUrl, String message, String messageDeduplicationId) {
+		String deduplicationId = messageDeduplicationId != null ? messageDeduplicationId
+				: DeduplicationWindow.contentId(message);
+		return !fifoPartitions(queueUrl).deduplicationWindow().add(deduplicationId, System.currentTimeMillis());
+	}
+
+	private FifoPartitions fifoPartitions(String queueUrl) {
+		return FifoPartitions.forQueue(queueUrl);
+	}
+
+	/**
+	 * Wakes consumers waiting on a queue after messages were added or
+	 * returned to it. A partition queue is also made ready in its FIFO queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	private void signal(String queueUrl) {
+		notifier.signal(queueUrl);
+		String fifoUrl = FifoPartitions.fifoUrl(queueUrl);
+		if (fifoUrl != null) {
+			fifoPartitions(fifoUrl).written(queueUrl);
+			notifier.signal(fifoUrl);
+		}
+	}
+
+	/**
+	 * Sets the delay of the messages pushed to a queue without a delay of
+	 * their own. Defaults to queue.delay.<queue name> or else queue.delay.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param delaySeconds
+	 *            Time messages are held back, from 0 to 900 seconds
+	 */
+	public void setDelaySeconds(String queueUrl, int delaySeconds) {
+		BatchRequests.checkDelay(delaySeconds);
+		delays.put(queueUrl, delaySeconds);
+	}
+
+	private int delaySeconds(String queueUrl) {
+		Integer delaySeconds = delays.get(queueUrl);
+		return delaySeconds != null ? delaySeconds : delays.computeIfAbsent(queueUrl, BatchRequests::defaultDelay);
+	}
+
+	/**
+	 * Keeps messages in the DelayStore until the delay has passed.
+	 */
+	private void delay(String queueUrl, List<String> messages, int delaySeconds) {
+		delayStore.add(queueUrl, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delaySeconds), messages);
+		startReleaser(queueUrl);
 	}
 
 	/**
@@ -90,9 +299,98 @@ public class FileQueueService implements QueueService {
 	 *            Number of times to re-add the message
 	 */
 	public void push(String queueUrl, String message, long count) {
-		for (long i = 0; i < count; i++) {
-			queueFile.add(queueUrl, message);
+		BatchRequests.checkStandard(queueUrl);
+		BatchRequests.checkBody(message);
+		for (long written = 0; written < count; written += PUSH_CHUNK_SIZE) {
+			int copies = (int) Math.min(PUSH_CHUNK_SIZE, count - written);
+			long start = System.nanoTime();
+			writer.write(queueUrl, Collections.nCopies(copies, message));
+			metrics(queueUrl).pushed(copies, start);
 		}
+		notifier.signal(queueUrl);
+	}
+
+	/**
+	 * This method adds a message with its typed message attributes into the
+	 * end of the QueueFile once the delay of the queue has passed, like
+	 * {@link #push(String, String)}. Storages that keep no attributes store
+	 * the body only.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @param messageAttributes
+	 *            Typed attributes returned with the pulled message
+	 */
+	public void push(String queueUrl, String message, Map<String, MessageAttributeValue> messageAttributes) {
+		BatchRequests.checkStandard(queueUrl);
+		BatchRequests.checkBody(message);
+		long start = System.nanoTime();
+		List<Message> messages = Collections
+				.singletonList(new Message().withBody(message).withMessageAttributes(messageAttributes));
+		int delaySeconds = delaySeconds(queueUrl);
+		if (delaySeconds > 0) {
+			delayStore.addMessages(queueUrl, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delaySeconds),
+					messages);
+			startReleaser(queueUrl);
+		} else {
+			writer.writeMessages(queueUrl, messages);
+			notifier.signal(queueUrl);
+		}
+		metrics(queueUrl).pushed(1, start);
+	}
+
+	/**
+	 * This method adds a message into the end of the QueueFile without
+	 * waiting for the write.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @return Future completed once the message satisfies the filequeue.fsync
+	 *         policy
+	 */
+	@Override
+	public CompletableFuture<Void> pushAsync(String queueUrl, String message) {
+		BatchRequests.checkStandard(queueUrl);
+		BatchRequests.checkBody(message);
+		int delaySeconds = delaySeconds(queueUrl);
+		if (delaySeconds > 0) {
+			// delayed messages are appended to their bucket on the calling thread
+			pushDelayed(queueUrl, message, delaySeconds);
+			return CompletableFuture.completedFuture(null);
+		}
+		long start = System.nanoTime();
+		return writer.submit(queueUrl, Collections.singletonList(message)).thenRun(() -> {
+			metrics(queueUrl).pushed(1, start);
+			notifier.signal(queueUrl);
+		});
+	}
+
+	/**
+	 * This method pulls the value from the top of Queue File on an I/O thread.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Future completed with the pulled message or null if the queue
+	 *         is empty
+	 */
+	@Override
+	public CompletableFuture<Message> pullAsync(String queueUrl) {
+		return pullExecutor().pull(queueUrl);
+	}
+
+	/**
+	 * Returns the pull executor, creating it on first use.
+	 */
+	private synchronized PullExecutor pullExecutor() {
+		if (pullExecutor == null) {
+			pullExecutor = new PullExecutor(QueueConfig.getInt("filequeue.async.threads", 4), MAX_BATCH_SIZE,
+					this::pullAll);
+		}
+		return pullExecutor;
 	}
 
 	/**
@@ -105,18 +403,353 @@ public class FileQueueService implements QueueService {
 	 */
 	@Override
 	public Message pull(String queueUrl) {
-		Message messageBody = queueFile.pull(queueUrl);
-		if (messageBody != null && !messageBody.getBody().isEmpty()) {
-			makeInvisibleTimer(queueUrl, messageBody.getMessageId(), messageBody.getBody());
-			return new Message().withMessageId(messageBody.getMessageId()).withReceiptHandle(messageBody.getMessageId())
-					.withBody(messageBody.getBody());
+		List<Message> messages = pullAll(queueUrl, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * This method pulls the value from the top of Queue File, waiting for a
+	 * message if the queue is empty. The consumer is woken by pushes of this
+	 * process right away and by pushes of other processes within
+	 * filequeue.poll.interval milliseconds.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param waitTimeSeconds
+	 *            Maximum time to wait for a message, from 0 to 20 seconds
+	 * @return Message pulled from the queue or null if none arrived in time
+	 */
+	@Override
+	public Message pull(String queueUrl, int waitTimeSeconds) {
+		BatchRequests.checkWaitTime(waitTimeSeconds);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+		if (BatchRequests.isFifo(queueUrl)) {
+			return pullFifo(queueUrl, deadline);
 		}
-		return null;
+		try {
+			while (true) {
+				// versions are read first so that a push right after the pull
+				// ends the wait
+				long seenVersion = notifier.version(queueUrl);
+				long seenFileVersion = queueFile.version(queueUrl);
+				Message message = pull(queueUrl);
+				long remaining = deadline - System.nanoTime();
+				if (message != null || remaining <= 0) {
+					return message;
+				}
+				notifier.await(queueFile, queueUrl, seenVersion, seenFileVersion, remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
 
+	/**
+	 * This method pulls up to maxMessages values from the top of Queue File in
+	 * a single pass.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            Maximum number of messages returned, from 1 to 10
+	 * @return Pulled messages in queue order, empty if the queue is empty
+	 */
+	@Override
+	public List<Message> pullBatch(String queueUrl, int maxMessages) {
+		BatchRequests.checkMaxMessages(maxMessages);
+		return pullAll(queueUrl, maxMessages);
 	}
 
 	/**
-	 * Deletes a message by canceling the re-queuing of a message.
+	 * Pulls up to maxMessages messages and starts their visibility timeout,
+	 * in the file if the storage tracks visibility.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            Maximum number of messages returned
+	 */
+	private List<Message> pullAll(String queueUrl, int maxMessages) {
+		if (BatchRequests.isFifo(queueUrl)) {
+			return pullFifo(queueUrl, maxMessages);
+		}
+		return pullAll(queueUrl, maxMessages, redrivePolicy(queueUrl));
+	}
+
+	/**
+	 * Delivers the first staged message of up to maxMessages ready groups of a
+	 * FIFO queue, pulling ready partitions into the stage until enough groups
+	 * are ready. A group stays in flight until its message is deleted,
+	 * returned or its visibility timeout has passed. A partition of an earlier
+	 * process is first held while the storage has a message of it in flight.
+	 * 
+	 * @param queueUrl
+	 *            URL of the FIFO queue
+	 * @param maxMessages
+	 *            Maximum number of messages returned
+	 */
+	private List<Message> pullFifo(String queueUrl, int maxMessages) {
+		FifoPartitions partitions = fifoPartitions(queueUrl);
+		RedrivePolicy redrivePolicy = redrivePolicy(queueUrl);
+		List<Message> messages = new ArrayList<Message>(maxMessages);
+		List<FifoPartitions.Entry> entries = new ArrayList<FifoPartitions.Entry>(maxMessages);
+		while (messages.size() < maxMessages) {
+			entries.clear();
+			partitions.drainTo(entries, maxMessages - messages.size(), System.currentTimeMillis());
+			for (FifoPartitions.Entry entry : entries) {
+				Message message = deliver(partitions, entry, redrivePolicy);
+				if (message != null) {
+					messages.add(message);
+				}
+			}
+			if (!entries.isEmpty()) {
+				continue;
+			}
+			String partitionUrl = partitions.take(System.currentTimeMillis());
+			if (partitionUrl == null) {
+				break;
+			}
+			if (partitions.recovered(partitionUrl) && held(partitions, partitionUrl)) {
+				continue;
+			}
+			List<Message> pulled = Collections.emptyList();
+			try {
+				pulled = pullStored(partitionUrl, MAX_BATCH_SIZE);
+			} finally {
+				partitions.pulled(partitionUrl, pulled, pulled.size() == MAX_BATCH_SIZE,
+						queueFile.tracksVisibility());
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Delivers a message taken from its group. The visibility timeout of a
+	 * storage keeping visibility is restarted, as it has run since the message
+	 * was staged. A message that is no longer in flight in the storage
+	 * abandons its group, the other messages staged for the group are returned
+	 * to the storage.
+	 * 
+	 * @return Delivered message or null if the message was moved to the
+	 *         dead-letter queue or its group abandoned
+	 */
+	private Message deliver(FifoPartitions partitions, FifoPartitions.Entry entry, RedrivePolicy redrivePolicy) {
+		long start = System.nanoTime();
+		String partitionUrl = entry.getPartitionUrl();
+		Message message = entry.getMessage();
+		long visibilityMillis = TimeUnit.SECONDS.toMillis(visibilityTimeout);
+		long deadline = System.currentTimeMillis() + visibilityMillis;
+		if (queueFile.tracksVisibility()
+				&& !queueFile.changeVisibility(partitionUrl, message.getMessageId(), visibilityMillis)) {
+			for (FifoPartitions.Entry abandoned : partitions.abandon(entry)) {
+				queueFile.reQueue(partitionUrl, abandoned.getMessage());
+			}
+			signal(partitionUrl);
+			return null;
+		}
+		if (redrivePolicy.isExceeded(message)) {
+			boolean moved = false;
+			try {
+				deadLetter(partitionUrl, redrivePolicy, Collections.singletonList(message));
+				moved = true;
+			} finally {
+				if (moved) {
+					partitions.completed(entry);
+				} else {
+					// returned to its group once the timeout has passed
+					partitions.delivered(entry, deadline);
+				}
+			}
+			return null;
+		}
+		partitions.delivered(entry, deadline);
+		Map<String, MessageAttributeValue> messageAttributes = new HashMap<String, MessageAttributeValue>(
+				message.getMessageAttributes());
+		messageAttributes.remove(MessageGroups.MESSAGE_GROUP_ID);
+		Message delivered = new Message().withMessageId(message.getMessageId())
+				.withReceiptHandle(message.getMessageId()).withBody(message.getBody())
+				.withAttributes(new HashMap<String, String>(message.getAttributes()))
+				.withMessageAttributes(messageAttributes);
+		delivered.addAttributesEntry(MessageGroups.MESSAGE_GROUP_ID, entry.getGroupId());
+		metrics(partitionUrl).pulled(1, start);
+		return delivered;
+	}
+
+	/**
+	 * Pulls a message of a FIFO queue, waiting until a group is ready.
+	 * Partitions become ready only by this process, so no file is polled, and
+	 * the wait ends no later than the next visibility timeout in flight.
+	 */
+	private Message pullFifo(String queueUrl, long deadline) {
+		FifoPartitions partitions = fifoPartitions(queueUrl);
+		try {
+			while (true) {
+				long seenVersion = notifier.version(queueUrl);
+				Message message = pull(queueUrl);
+				long remaining = deadline - System.nanoTime();
+				if (message != null || remaining <= 0) {
+					return message;
+				}
+				long untilExpiry = partitions.nextDeadline() - System.currentTimeMillis();
+				notifier.await(queueUrl, seenVersion,
+						Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(Math.max(1, untilExpiry))));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Holds a reserved partition of an earlier process while the storage has a
+	 * message of it in flight, which that process pulled before it stopped.
+	 * 
+	 * @return true if the partition is held and must not be pulled
+	 */
+	private boolean held(FifoPartitions partitions, String partitionUrl) {
+		long inFlightDeadline;
+		try {
+			inFlightDeadline = queueFile.inFlightDeadline(partitionUrl);
+		} catch (RuntimeException e) {
+			// ready again and checked on its next pull
+			partitions.pulled(partitionUrl, Collections.<Message>emptyList(), true, queueFile.tracksVisibility());
+			throw e;
+		}
+		if (inFlightDeadline <= System.currentTimeMillis()) {
+			partitions.held(partitionUrl, 0);
+			return false;
+		}
+		partitions.held(partitionUrl, inFlightDeadline);
+		// the sweeper makes the message visible and wakes the consumers
+		startSweeper(partitionUrl);
+		return true;
+	}
+
+	/**
+	 * Returns the dead-letter queue of the messages of a queue. The dead-letter
+	 * queue of a message of a partition is the partition of its group in a
+	 * FIFO dead-letter queue.
+	 */
+	private String deadLetterQueueUrl(String queueUrl, RedrivePolicy redrivePolicy, Message message) {
+		String deadLetterQueueUrl = redrivePolicy.getDeadLetterQueueUrl();
+		if (FifoPartitions.fifoUrl(queueUrl) == null || !BatchRequests.isFifo(deadLetterQueueUrl)) {
+			return deadLetterQueueUrl;
+		}
+		return fifoPartitions(deadLetterQueueUrl).partitionUrl(FifoPartitions.groupOf(message));
+	}
+
+	/**
+	 * Pulls up to maxMessages messages of a queue with the given redrive
+	 * policy.
+	 */
+	private List<Message> pullAll(String queueUrl, int maxMessages, RedrivePolicy redrivePolicy) {
+		long start = System.nanoTime();
+		List<Message> messages = new ArrayList<Message>(maxMessages);
+		List<Message> deadLetters = Collections.emptyList();
+		for (Message message : pullStored(queueUrl, maxMessages)) {
+			if (redrivePolicy.isExceeded(message)) {
+				if (deadLetters.isEmpty()) {
+					deadLetters = new ArrayList<Message>();
+				}
+				deadLetters.add(message);
+			} else {
+				messages.add(message);
+			}
+		}
+		// the delivered messages are re-queued even if the move fails
+		if (!messages.isEmpty() && !queueFile.tracksVisibility()) {
+			makeInvisibleTimer(queueUrl, messages);
+		}
+		if (!deadLetters.isEmpty()) {
+			deadLetter(queueUrl, redrivePolicy, deadLetters);
+		}
+		metrics(queueUrl).pulled(messages.size(), start);
+		return messages;
+	}
+
+	/**
+	 * Pulls up to maxMessages messages from the storage, in flight until their
+	 * visibility timeout has passed if the storage tracks visibility, after
+	 * appending the due delayed messages of the queue.
+	 * 
+	 * @return Pulled messages with their receipt as message id and receipt
+	 *         handle
+	 */
+	private List<Message> pullStored(String queueUrl, int maxMessages) {
+		startReleaser(queueUrl);
+		if (delayStore.nextDue(queueUrl) <= System.currentTimeMillis()) {
+			releaseDelayed(queueUrl);
+		}
+		List<Message> pulled;
+		if (queueFile.tracksVisibility()) {
+			startSweeper(queueUrl);
+			pulled = queueFile.pullAll(queueUrl, maxMessages, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+		} else {
+			pulled = queueFile.pullAll(queueUrl, maxMessages);
+		}
+		List<Message> messages = new ArrayList<Message>(pulled.size());
+		for (Message messageBody : pulled) {
+			messages.add(new Message().withMessageId(messageBody.getMessageId())
+					.withReceiptHandle(messageBody.getMessageId()).withBody(messageBody.getBody())
+					.withAttributes(messageBody.getAttributes())
+					.withMessageAttributes(messageBody.getMessageAttributes()));
+		}
+		return messages;
+	}
+
+	/**
+	 * Sets the redrive policy of a queue. Defaults to queue.redrive.<queue
+	 * name>.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param redrivePolicy
+	 *            Policy or null to keep every message in the queue
+	 */
+	public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+		redrivePolicies.put(queueUrl, redrivePolicy != null ? redrivePolicy : RedrivePolicy.NONE);
+	}
+
+	private RedrivePolicy redrivePolicy(String queueUrl) {
+		RedrivePolicy redrivePolicy = redrivePolicies.get(queueUrl);
+		return redrivePolicy != null ? redrivePolicy
+				: redrivePolicies.computeIfAbsent(queueUrl, RedrivePolicy::forQueue);
+	}
+
+	/**
+	 * Moves pulled messages to the dead-letter queue. The messages are written
+	 * with their message attributes to the dead-letter queue before they are
+	 * deleted from their queue; a storage without visibility tracking has
+	 * already removed them on pull.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param redrivePolicy
+	 *            Policy of the queue
+	 * @param messages
+	 *            Pulled messages received too often
+	 */
+	private void deadLetter(String queueUrl, RedrivePolicy redrivePolicy, List<Message> messages) {
+		String deadLetterQueueUrl = deadLetterQueueUrl(queueUrl, redrivePolicy, messages.get(0));
+		List<String> receiptHandles = new ArrayList<String>(messages.size());
+		for (Message message : messages) {
+			receiptHandles.add(message.getReceiptHandle());
+		}
+		long start = System.nanoTime();
+		writer.writeMessages(deadLetterQueueUrl, messages);
+		metrics(deadLetterQueueUrl).pushed(messages.size(), start);
+		signal(deadLetterQueueUrl);
+		if (queueFile.tracksVisibility()) {
+			writer.acknowledge(queueUrl, receiptHandles);
+		}
+		metrics(queueUrl).deadLettered(messages.size());
+	}
+
+	/**
+	 * Deletes a message by canceling the re-queuing of a message. If the
+	 * storage tracks visibility the deletion is written to the QueueFile
+	 * together with concurrent pushes and deletions by the group commit writer.
 	 * 
 	 * @param queueUrl
 	 *            URL of the queue
@@ -125,29 +758,250 @@ public class FileQueueService implements QueueService {
 	 */
 	@Override
 	public void delete(String queueUrl, String receiptHandle) {
-		ScheduledFuture<?> future = invisibleQueue.remove(receiptHandle);
-		if (future != null) {
-			future.cancel(true);
+		if (BatchRequests.isFifo(queueUrl)) {
+			FifoPartitions partitions = fifoPartitions(queueUrl);
+			String partitionUrl = partitions.partitionUrlOf(receiptHandle);
+			if (partitionUrl != null) {
+				long start = System.nanoTime();
+				int deleted = 0;
+				// deleted before the next message of the group is delivered
+				if (queueFile.tracksVisibility()) {
+					deleted = writer.acknowledge(partitionUrl, Collections.singletonList(receiptHandle));
+				}
+				if (partitions.complete(receiptHandle) && !queueFile.tracksVisibility()) {
+					deleted = 1;
+				}
+				metrics(partitionUrl).deleted(deleted, start);
+				notifier.signal(queueUrl);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		if (queueFile.tracksVisibility()) {
+			int deleted = writer.acknowledge(queueUrl, Collections.singletonList(receiptHandle));
+			metrics(queueUrl).deleted(deleted, start);
+			return;
+		}
+		VisibilityTimer.Timeout timeout = invisibleQueue.remove(receiptHandle);
+		if (timeout != null) {
+			timeout.cancel();
+			metrics(queueUrl).deleted(1, start);
 		}
 	}
 
 	/**
-	 * Schedules a task to return a message into the QueueFile if not deleted
-	 * within a given timeout.
+	 * Deletes a message without waiting for the deletion to be written.
 	 * 
 	 * @param queueUrl
 	 *            URL of the queue
-	 * @param messageId
+	 * @param receiptHandle
 	 *            Identifier of the pulled message from the Queue File
-	 * @param messageBody
-	 *            Contents of the Message
+	 * @return Future completed once the deletion satisfies the filequeue.fsync
+	 *         policy
+	 */
+	@Override
+	public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptHandle) {
+		if (!queueFile.tracksVisibility() || BatchRequests.isFifo(queueUrl)) {
+			delete(queueUrl, receiptHandle);
+			return CompletableFuture.completedFuture(null);
+		}
+		long start = System.nanoTime();
+		return writer.submitAcknowledgements(queueUrl, Collections.singletonList(receiptHandle))
+				.thenAccept(deleted -> metrics(queueUrl).deleted(deleted, start));
+	}
+
+	/**
+	 * Deletes up to ten messages by canceling their re-queuing.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param receiptHandles
+	 *            Identifiers of the pulled messages from the Queue File
 	 */
-	private void makeInvisibleTimer(String queueUrl, String messageId, String messageBody) {
-		Runnable runnableTask = () -> {
-			reQueue(queueUrl, messageId, messageBody);
-		};
-		ScheduledFuture<?> future = executorService.schedule(runnableTask, visibilityTimeout, TimeUnit.SECONDS);
-		invisibleQueue.put(messageId, future);
+	@Override
+	public void deleteBatch(String queueUrl, List<String> receiptHandles) {
+		BatchRequests.checkEntries(receiptHandles);
+		if (queueFile.tracksVisibility() && !BatchRequests.isFifo(queueUrl)) {
+			long start = System.nanoTime();
+			int deleted = writer.acknowledge(queueUrl, new ArrayList<String>(receiptHandles));
+			metrics(queueUrl).deleted(deleted, start);
+			return;
+		}
+		for (String receiptHandle : receiptHandles) {
+			delete(queueUrl, receiptHandle);
+		}
+	}
+
+	/**
+	 * Starts the visibility timeout of the pulled messages. Messages not
+	 * deleted within the timeout are returned into the QueueFile.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages pulled from the Queue File
+	 */
+	private void makeInvisibleTimer(String queueUrl, List<Message> messages) {
+		for (Message message : messages) {
+			invisibleQueue.put(message.getMessageId(),
+					visibilityTimer.schedule(queueUrl, message, visibilityTimeout, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Returns the messages whose visibility timeout expired into the
+	 * QueueFile. Called by the visibility timer with every message expired by
+	 * the same tick.
+	 * 
+	 * @param timeouts
+	 *            Expired visibility timeouts
+	 */
+	private void reQueueExpired(List<VisibilityTimer.Timeout> timeouts) {
+		Set<String> queueUrls = new HashSet<String>();
+		for (VisibilityTimer.Timeout timeout : timeouts) {
+			Message message = timeout.getMessage();
+			try {
+				if (invisibleQueue.remove(message.getMessageId(), timeout)) {
+					queueFile.reQueue(timeout.getQueueUrl(), message);
+					metrics(timeout.getQueueUrl()).expired(1);
+					queueUrls.add(timeout.getQueueUrl());
+				}
+			} catch (RuntimeException e) {
+				// the other timeouts of the tick are still returned
+				LOGGER.severe("Failed to re-queue " + message.getMessageId() + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		for (String queueUrl : queueUrls) {
+			signal(queueUrl);
+		}
+	}
+
+	/**
+	 * Restarts the visibility timeout of a pulled message.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param receiptHandle
+	 *            Identifier of the pulled message from the Queue File
+	 * @param visibilityTimeout
+	 *            Seconds from now until the message is returned into the queue
+	 * @return false if the message was already deleted or returned
+	 */
+	public boolean changeVisibility(String queueUrl, String receiptHandle, long visibilityTimeout) {
+		if (BatchRequests.isFifo(queueUrl)) {
+			FifoPartitions partitions = fifoPartitions(queueUrl);
+			String partitionUrl = partitions.partitionUrlOf(receiptHandle);
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+			if (partitionUrl == null || queueFile.tracksVisibility() && !queueFile.changeVisibility(partitionUrl,
+					receiptHandle, TimeUnit.SECONDS.toMillis(visibilityTimeout))) {
+				return false;
+			}
+			return partitions.extend(receiptHandle, deadline);
+		}
+		if (queueFile.tracksVisibility()) {
+			boolean changed = queueFile.changeVisibility(queueUrl, receiptHandle,
+					TimeUnit.SECONDS.toMillis(visibilityTimeout));
+			if (changed) {
+				notifier.signal(queueUrl);
+			}
+			return changed;
+		}
+		VisibilityTimer.Timeout timeout = invisibleQueue.get(receiptHandle);
+		return timeout != null && timeout.extend(visibilityTimeout, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Remembers a queue for the sweeper and schedules the sweeper on first
+	 * use.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue pulled from
+	 */
+	private void startSweeper(String queueUrl) {
+		if (!queueUrls.add(queueUrl)) {
+			return;
+		}
+		synchronized (this) {
+			if (!sweeping) {
+				sweeping = true;
+				long interval = QueueConfig.getLong("filequeue.sweep.interval", 1000);
+				executorService.scheduleAtFixedRate(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Makes the expired messages of the pulled queues visible again, wakes
+	 * consumers waiting on them and compacts their files.
+	 */
+	private void sweep() {
+		for (String queueUrl : queueUrls) {
+			try {
+				int expired = queueFile.sweep(queueUrl);
+				if (expired > 0) {
+					metrics(queueUrl).expired(expired);
+					signal(queueUrl);
+				}
+				long start = System.nanoTime();
+				long compacted = queueFile.compact(queueUrl);
+				if (compacted > 0) {
+					metrics(queueUrl).compacted(compacted, start);
+				}
+			} catch (RuntimeException e) {
+				// the sweeper must survive a failing queue
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Remembers a queue for the release of delayed messages and schedules the
+	 * release on first use.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue pushed to or pulled from
+	 */
+	private void startReleaser(String queueUrl) {
+		if (!delayedQueueUrls.add(queueUrl)) {
+			return;
+		}
+		synchronized (this) {
+			if (!releasing) {
+				releasing = true;
+				long interval = QueueConfig.getLong("delay.bucket", 1000);
+				executorService.scheduleAtFixedRate(this::releaseDelayed, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Appends the due delayed messages of the used queues to their queues.
+	 */
+	private void releaseDelayed() {
+		for (String queueUrl : delayedQueueUrls) {
+			try {
+				releaseDelayed(queueUrl);
+			} catch (RuntimeException e) {
+				// the release task must survive a failing queue
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Appends the due delayed messages of a queue through the group commit
+	 * writer and wakes consumers waiting on the queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	private void releaseDelayed(String queueUrl) {
+		int released = delayStore.releaseMessages(queueUrl, System.currentTimeMillis(),
+				messages -> writer.submitMessages(queueUrl, messages).join());
+		if (released > 0) {
+			notifier.signal(queueUrl);
+		}
 	}
 
 	/**
@@ -161,8 +1015,55 @@ public class FileQueueService implements QueueService {
 	 *            Contents of the Message
 	 */
 	public void reQueue(String queueUrl, String messageId, String messageBody) {
-		invisibleQueue.remove(messageId);
-		queueFile.reQueue(queueUrl, messageId, messageBody);
+		if (BatchRequests.isFifo(queueUrl)) {
+			// staged again at the front of its group, still pulled from the storage
+			FifoPartitions partitions = fifoPartitions(queueUrl);
+			String partitionUrl = partitions.partitionUrlOf(messageId);
+			if (partitionUrl != null && partitions.retry(messageId)) {
+				metrics(partitionUrl).requeued(System.nanoTime());
+				notifier.signal(queueUrl);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		VisibilityTimer.Timeout timeout = invisibleQueue.remove(messageId);
+		if (timeout != null) {
+			timeout.cancel();
+			// the pulled message carries the receive count
+			queueFile.reQueue(queueUrl, timeout.getMessage());
+		} else {
+			queueFile.reQueue(queueUrl, messageId, messageBody);
+		}
+		metrics(queueUrl).requeued(start);
+		notifier.signal(queueUrl);
+	}
+
+	/**
+	 * Returns the metrics of a queue, reading its file size from the
+	 * storage.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	private QueueMetrics metrics(String queueUrl) {
+		QueueMetrics queueMetrics = metrics.forQueue(queueUrl);
+		if (!queueMetrics.hasFileSize()) {
+			queueMetrics.fileSizeIfAbsent(() -> queueFile.fileSize(queueUrl));
+		}
+		return queueMetrics;
+	}
+
+	/**
+	 * Stops the group commit writer once pending pushes are written, and the
+	 * I/O threads of asynchronous pulls.
+	 */
+	public void shutdown() {
+		writer.close();
+		synchronized (this) {
+			if (pullExecutor != null) {
+				pullExecutor.shutdown();
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,487 @@
+package com.example;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Group Commit Writer
+ *
+ * Funnels the pushes of concurrent producers and the acknowledgements of
+ * deleted messages through a single writer thread. The writer drains every
+ * pending write, appends the messages of each queue with one FileQueue.addAll
+ * call, or FileQueue.addMessages if any of them carries message attributes,
+ * acknowledges the deleted messages of each consumer call with one
+ * FileQueue.deleteAll call, so that every consumer learns how many of its
+ * messages were deleted, and then flushes the written queues according to
+ * the durability policy:
+ *
+ * 1. NEVER - messages are handed to the operating system and never forced.
+ *
+ * 2. INTERVAL - written queues are forced at most once every
+ * filequeue.fsync.interval milliseconds.
+ *
+ * 3. BATCH - written queues are forced after every batch.
+ *
+ * A caller is released only once its write satisfies the policy, so a single
+ * force covers every push and acknowledgement that arrived while the previous
+ * batch was being written. The time of every force is recorded in the fsync
+ * histogram of the queue metrics.
+ *
+ * A storage failure while writing or forcing a queue fails the writes of that
+ * queue, so no caller is told a message is stored when it is not. The writes
+ * of the other queues in the batch still complete.
+ *
+ * @author Edgar Resma
+ */
+public class GroupCommitWriter implements Closeable {
+
+	private final static Logger LOGGER = Logger.getLogger(GroupCommitWriter.class.getName());
+
+	public enum DurabilityPolicy {
+		NEVER, INTERVAL, BATCH;
+
+		/**
+		 * @param value
+		 *            Policy name, case insensitive
+		 * @return Matching policy or NEVER if unknown
+		 */
+		public static DurabilityPolicy fromString(String value) {
+			for (DurabilityPolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(value)) {
+					return policy;
+				}
+			}
+			return NEVER;
+		}
+	}
+
+	private static final long IDLE_POLL_MILLIS = 1000;
+
+	private final FileQueue queueFile;
+	private final DurabilityPolicy policy;
+	private final long intervalMillis;
+	private final int maxBatchSize;
+	private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<PendingWrite>();
+	private Thread writer;
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor using filequeue.fsync, filequeue.fsync.interval and
+	 * filequeue.groupcommit.batch.
+	 *
+	 * @param queueFile
+	 *            File storage service the messages are written to
+	 */
+	public GroupCommitWriter(FileQueue queueFile) {
+		this(queueFile, DurabilityPolicy.fromString(QueueConfig.getProperty("filequeue.fsync", "never")),
+				QueueConfig.getLong("filequeue.fsync.interval", 1000),
+				QueueConfig.getInt("filequeue.groupcommit.batch", 1024));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param queueFile
+	 *            File storage service the messages are written to
+	 * @param policy
+	 *            When written messages are forced to the storage device
+	 * @param intervalMillis
+	 *            Time between two forces for the INTERVAL policy
+	 * @param maxBatchSize
+	 *            Maximum number of pushes written in one batch
+	 */
+	public GroupCommitWriter(FileQueue queueFile, DurabilityPolicy policy, long intervalMillis, int maxBatchSize) {
+		this.queueFile = queueFile;
+		this.policy = policy;
+		this.intervalMillis = Math.max(1, intervalMillis);
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+	}
+
+	/**
+	 * Writes messages and waits until they satisfy the durability policy.
+	 * Failures of the storage are thrown to the caller. An interrupted wait
+	 * keeps the interrupt flag and throws an IllegalStateException, the write
+	 * may still complete.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue in order
+	 */
+	public void write(String queueUrl, List<String> messages) {
+		try {
+			submit(queueUrl, messages).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for write to " + queueUrl, e);
+		} catch (ExecutionException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * Writes messages with their message attributes and waits until they
+	 * satisfy the durability policy. Failures of the storage are thrown to the
+	 * caller. An interrupted wait keeps the interrupt flag and throws an
+	 * IllegalStateException, the write may still complete.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue in order
+	 */
+	public void writeMessages(String queueUrl, List<Message> messages) {
+		try {
+			submitMessages(queueUrl, messages).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for write to " + queueUrl, e);
+		} catch (ExecutionException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * Acknowledges deleted messages and waits until the acknowledgements
+	 * satisfy the durability policy. Failures of the storage are thrown to
+	 * the caller. An interrupted wait keeps the interrupt flag and throws an
+	 * IllegalStateException, the acknowledgement may still complete.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messageIds
+	 *            Identifiers of the pulled messages to delete
+	 * @return Number of messages deleted, without the messages no longer in
+	 *         flight with the given receipt
+	 */
+	public int acknowledge(String queueUrl, List<String> messageIds) {
+		try {
+			return submitAcknowledgements(queueUrl, messageIds).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for acknowledgement to " + queueUrl, e);
+		} catch (ExecutionException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * @return Cause of a failed write, thrown to the caller waiting for it
+	 */
+	private RuntimeException failure(ExecutionException e) {
+		Throwable cause = e.getCause();
+		return cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+	}
+
+	/**
+	 * Queues messages for the writer thread.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue in order
+	 * @return Future completed once the messages satisfy the durability policy
+	 */
+	public CompletableFuture<Void> submit(String queueUrl, List<String> messages) {
+		List<Message> bodies = new ArrayList<Message>(messages.size());
+		for (String message : messages) {
+			bodies.add(new Message().withBody(message));
+		}
+		return submitMessages(queueUrl, bodies);
+	}
+
+	/**
+	 * Queues messages with their message attributes for the writer thread.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue in order
+	 * @return Future completed once the messages satisfy the durability policy
+	 */
+	public CompletableFuture<Void> submitMessages(String queueUrl, List<Message> messages) {
+		return enqueue(new PendingWrite(queueUrl, messages, Collections.<String> emptyList()))
+				.thenApply(deleted -> (Void) null);
+	}
+
+	/**
+	 * Queues acknowledgements of deleted messages for the writer thread.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messageIds
+	 *            Identifiers of the pulled messages to delete
+	 * @return Future completed with the number of messages deleted once the
+	 *         acknowledgements satisfy the durability policy
+	 */
+	public CompletableFuture<Integer> submitAcknowledgements(String queueUrl, List<String> messageIds) {
+		return enqueue(new PendingWrite(queueUrl, Collections.<Message> emptyList(), messageIds));
+	}
+
+	private CompletableFuture<Integer> enqueue(PendingWrite write) {
+		synchronized (this) {
+			if (!running) {
+				write.future.completeExceptionally(new IllegalStateException("Group commit writer is closed"));
+				return write.future;
+			}
+			startWriter();
+			pending.add(write);
+		}
+		return write.future;
+	}
+
+	/**
+	 * Starts the writer thread on first use. Guarded by this writer.
+	 */
+	private void startWriter() {
+		if (writer == null) {
+			writer = new Thread(this::run, "group-commit-writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Writer loop. Drains pending writes into batches until closed. A write
+	 * or force failing for a queue fails the pending writes of that queue
+	 * only.
+	 */
+	private void run() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		Set<String> unforced = new LinkedHashSet<String>();
+		List<PendingWrite> awaitingForce = new ArrayList<PendingWrite>();
+		Map<String, RuntimeException> failures = new HashMap<String, RuntimeException>();
+		long nextForce = System.currentTimeMillis() + intervalMillis;
+		while (running || !pending.isEmpty()) {
+			try {
+				long wait = awaitingForce.isEmpty() ? IDLE_POLL_MILLIS
+						: Math.max(0, nextForce - System.currentTimeMillis());
+				PendingWrite first = pending.poll(wait, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					pending.drainTo(batch, maxBatchSize - 1);
+					Set<String> written = writeBatch(batch, failures);
+					switch (policy) {
+					case BATCH:
+						force(written, failures);
+						complete(batch, failures);
+						break;
+					case INTERVAL:
+						// writes that already failed are not kept waiting
+						awaitingForce.addAll(complete(batch, failures, false));
+						unforced.addAll(written);
+						failures.clear();
+						break;
+					default:
+						complete(batch, failures);
+						break;
+					}
+					batch.clear();
+				}
+				if (!awaitingForce.isEmpty() && System.currentTimeMillis() >= nextForce) {
+					force(unforced, failures);
+					complete(awaitingForce, failures);
+					unforced.clear();
+					awaitingForce.clear();
+					nextForce = System.currentTimeMillis() + intervalMillis;
+				}
+			} catch (InterruptedException e) {
+				running = false;
+			} catch (RuntimeException e) {
+				LOGGER.severe(e.getMessage());
+				e.printStackTrace();
+				EventTracer.getInstance().dumpOnError(e);
+				fail(batch, e);
+				batch.clear();
+				failures.clear();
+			}
+		}
+		force(unforced, failures);
+		complete(awaitingForce, failures);
+	}
+
+	/**
+	 * Appends the messages of a batch grouped per queue and acknowledges the
+	 * deleted messages of each write.
+	 *
+	 * @param batch
+	 *            Pending writes in arrival order
+	 * @param failures
+	 *            Receives the failure of each queue that could not be written
+	 * @return URLs of the queues written to
+	 */
+	private Set<String> writeBatch(List<PendingWrite> batch, Map<String, RuntimeException> failures) {
+		Map<String, List<Message>> messages = new LinkedHashMap<String, List<Message>>();
+		for (PendingWrite write : batch) {
+			group(messages, write.queueUrl, write.messages);
+		}
+		Set<String> written = new LinkedHashSet<String>();
+		for (Map.Entry<String, List<Message>> entry : messages.entrySet()) {
+			try {
+				append(entry.getKey(), entry.getValue());
+				written.add(entry.getKey());
+			} catch (RuntimeException e) {
+				failed(failures, entry.getKey(), e);
+			}
+		}
+		for (PendingWrite write : batch) {
+			if (write.acknowledgements.isEmpty() || failures.containsKey(write.queueUrl)) {
+				continue;
+			}
+			try {
+				write.deleted = queueFile.deleteAll(write.queueUrl, write.acknowledgements);
+				written.add(write.queueUrl);
+			} catch (RuntimeException e) {
+				failed(failures, write.queueUrl, e);
+			}
+		}
+		written.removeAll(failures.keySet());
+		return written;
+	}
+
+	/**
+	 * Appends the messages of a queue, as bodies unless a message carries
+	 * message attributes.
+	 */
+	private void append(String queueUrl, List<Message> messages) {
+		List<String> bodies = new ArrayList<String>(messages.size());
+		for (Message message : messages) {
+			if (message.getMessageAttributes() != null && !message.getMessageAttributes().isEmpty()) {
+				queueFile.addMessages(queueUrl, messages);
+				return;
+			}
+			bodies.add(message.getBody());
+		}
+		queueFile.addAll(queueUrl, bodies);
+	}
+
+	private <T> void group(Map<String, List<T>> groups, String queueUrl, List<T> values) {
+		if (values.isEmpty()) {
+			return;
+		}
+		List<T> queueValues = groups.get(queueUrl);
+		if (queueValues == null) {
+			queueValues = new ArrayList<T>();
+			groups.put(queueUrl, queueValues);
+		}
+		queueValues.addAll(values);
+	}
+
+	private void force(Set<String> queueUrls, Map<String, RuntimeException> failures) {
+		for (String queueUrl : queueUrls) {
+			long start = System.nanoTime();
+			try {
+				queueFile.force(queueUrl);
+				metrics.forQueue(queueUrl).timer(QueueMetrics.Timer.FSYNC).recordSince(start);
+			} catch (RuntimeException e) {
+				failed(failures, queueUrl, e);
+			}
+		}
+	}
+
+	private void failed(Map<String, RuntimeException> failures, String queueUrl, RuntimeException e) {
+		LOGGER.severe(e.getMessage());
+		e.printStackTrace();
+		EventTracer.getInstance().dumpOnError(e);
+		failures.put(queueUrl, e);
+	}
+
+	private void fail(List<PendingWrite> writes, Throwable cause) {
+		for (PendingWrite write : writes) {
+			write.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Completes writes, failing those of the failed queues, and forgets the
+	 * failures.
+	 */
+	private void complete(List<PendingWrite> writes, Map<String, RuntimeException> failures) {
+		complete(writes, failures, true);
+		failures.clear();
+	}
+
+	/**
+	 * Fails the writes of the failed queues and completes the others if
+	 * requested.
+	 *
+	 * @param writes
+	 *            Pending writes
+	 * @param failures
+	 *            Failure of each queue that could not be written or forced
+	 * @param succeed
+	 *            true to complete the writes that did not fail
+	 * @return Writes that did not fail
+	 */
+	private List<PendingWrite> complete(List<PendingWrite> writes, Map<String, RuntimeException> failures,
+			boolean succeed) {
+		List<PendingWrite> succeeded = new ArrayList<PendingWrite>(writes.size());
+		for (PendingWrite write : writes) {
+			RuntimeException failure = failures.get(write.queueUrl);
+			if (failure != null) {
+				write.future.completeExceptionally(failure);
+			} else {
+				if (succeed) {
+					write.future.complete(write.deleted);
+				}
+				succeeded.add(write);
+			}
+		}
+		return succeeded;
+	}
+
+	/**
+	 * Stops accepting writes. Pending writes are still written and forced
+	 * before the writer thread exits.
+	 */
+	@Override
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = writer;
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Messages of a single producer call or acknowledgements of a single
+	 * consumer call.
+	 */
+	private static class PendingWrite {
+		private final String queueUrl;
+		private final List<Message> messages;
+		private final List<String> acknowledgements;
+		private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		private int deleted;
+
+		PendingWrite(String queueUrl, List<Message> messages, List<String> acknowledgements) {
+			this.queueUrl = queueUrl;
+			this.messages = messages;
+			this.acknowledgements = acknowledgements;
+		}
+	}
+
+}
@@ -1,30 +1,54 @@
 package com.example;
 
 import java.net.URI;
-import java.util.UUID;
-import java.util.concurrent.BlockingDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.sqs.model.Message;
 
 /**
  * In-Memory Queue
  * 
- * Implementation of memory-based Queue Messaging Service. A Blocking Dequeue
- * is used to allow re-queuing of messages not deleted after being pulled.
+ * Implementation of memory-based Queue Messaging Service. Each queue is stored
+ * by a QueueEngine which allows re-queuing of messages not deleted after being
+ * pulled ahead of the others. The engines hold envelopes of the message body
+ * and its receive count.
+ * 
+ * The engine of a queue is chosen when the queue is first used, from the
+ * inmemory.engine.<queue name> property or else inmemory.engine, or given
+ * explicitly with createQueue. Ring buffer queues hold inmemory.ring.capacity
+ * messages.
+ * 
+ * Delayed messages wait in a DelayIndex per queue and are added to the queue
+ * once due, by releaseDue or by the next pull of the queue.
+ * 
+ * Pulled messages get a ReceiptHandle with a new generation as message id,
+ * messages in memory have no position. The receive count of the delivery is
+ * returned in the ApproximateReceiveCount attribute and a re-queued message is
+ * added again in an envelope with that count.
+ * 
+ * FIFO queues keep their messages in MessageGroups instead of an engine. The
+ * group of a pulled message is returned in the MessageGroupId attribute and
+ * remembered by receipt until the delivery is completed or re-queued.
+ * 
+ * Operations are recorded by the EventTracer instead of being logged.
  * 
  * @author Edgar Resma
  */
 public class InMemoryQueue {
 	
-	private final static Logger LOGGER = Logger.getLogger(InMemoryQueue.class.getName());
 	
 	private static InMemoryQueue inMemoryQueue;
-	private BlockingDeque<String> messages;
-	private ConcurrentMap<String, BlockingDeque<String>> queue = new ConcurrentHashMap<String, BlockingDeque<String>>();
+	private ConcurrentMap<String, QueueEngine<Envelope>> queue = new ConcurrentHashMap<String, QueueEngine<Envelope>>();
+	private ConcurrentMap<String, DelayIndex<String>> delayed = new ConcurrentHashMap<String, DelayIndex<String>>();
+	private ConcurrentMap<String, MessageGroups<Envelope>> fifo = new ConcurrentHashMap<String, MessageGroups<Envelope>>();
+	private ConcurrentMap<String, String> fifoReceipts = new ConcurrentHashMap<String, String>();
+	private long delayBucketMillis = QueueConfig.getLong("delay.bucket", 1000);
+	private EventTracer tracer = EventTracer.getInstance();
 
 	
 	public static InMemoryQueue getInstance() {
@@ -39,6 +63,20 @@ public class InMemoryQueue {
 	}
 
 
+	/**
+	 * Creates a queue stored by the given engine. Has no effect if the queue
+	 * already exists.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param type
+	 *            Engine storing the messages of the queue
+	 * @return true if the queue was created
+	 */
+	public boolean createQueue(String queueUrl, QueueEngine.Type type) {
+		return queue.putIfAbsent(fromUrl(queueUrl), newEngine(type)) == null;
+	}
+
 	/**
 	 * This method adds a message to the end of the Queue.
 	 * 
@@ -48,15 +86,90 @@ public class InMemoryQueue {
 	 *            Message to be added into the queue
 	 */
 	public void add(String queueUrl, String message) {
-		String queueName = fromUrl(queueUrl);
-		LOGGER.info("Adding to Queue: " + message);
-		if (queue.get(queueName) != null) {
-			queue.get(queueName).add(message);
-		} else {
-			messages = new LinkedBlockingDeque<String>();
-			messages.add(message);
-			queue.put(queueName, messages);
+		getQueue(queueUrl).add(new Envelope(message, 0));
+		tracer.record(EventTracer.Type.PUSH, queueUrl, 1, -1, tracer.body(message));
+	}
+
+	/**
+	 * This method adds messages to the end of the Queue in the given order.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue
+	 */
+	public void addAll(String queueUrl, List<String> messages) {
+		getQueue(queueUrl).addAll(Envelope.of(messages));
+		tracer.record(EventTracer.Type.PUSH, queueUrl, messages.size());
+	}
+
+	/**
+	 * This method adds a message to the end of its group of a FIFO queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the FIFO queue
+	 * @param messageGroupId
+	 *            Group of the message
+	 * @param message
+	 *            Message to be added into the queue
+	 */
+	public void addFifo(String queueUrl, String messageGroupId, String message) {
+		getGroups(fromUrl(queueUrl)).add(messageGroupId, new Envelope(message, 0));
+		tracer.record(EventTracer.Type.PUSH, queueUrl, 1, -1, tracer.body(message));
+	}
+
+	/**
+	 * This method keeps messages back until their due time.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue once due
+	 * @param dueMillis
+	 *            Time the messages become visible
+	 */
+	public void addDelayed(String queueUrl, List<String> messages, long dueMillis) {
+		DelayIndex<String> index = delayed.computeIfAbsent(fromUrl(queueUrl),
+				name -> new DelayIndex<String>(delayBucketMillis));
+		for (String message : messages) {
+			index.add(dueMillis, message);
 		}
+		tracer.record(EventTracer.Type.PUSH, queueUrl, messages.size());
+	}
+
+	/**
+	 * Adds the due delayed messages of every queue to their queues.
+	 * 
+	 * @return Number of messages added
+	 */
+	public int releaseDue() {
+		long now = System.currentTimeMillis();
+		int released = 0;
+		for (Map.Entry<String, DelayIndex<String>> entry : delayed.entrySet()) {
+			released += release(entry.getKey(), entry.getValue(), now);
+		}
+		return released;
+	}
+
+	/**
+	 * Adds the due delayed messages of a queue to the queue before a pull.
+	 */
+	private void releaseDue(String queueName) {
+		DelayIndex<String> index = delayed.get(queueName);
+		if (index != null) {
+			long now = System.currentTimeMillis();
+			if (index.nextDue() <= now) {
+				release(queueName, index, now);
+			}
+		}
+	}
+
+	private int release(String queueName, DelayIndex<String> index, long now) {
+		List<String> due = index.pollDue(now);
+		if (!due.isEmpty()) {
+			getQueueByName(queueName).addAll(Envelope.of(due));
+		}
+		return due.size();
 	}
 
 	/**
@@ -69,20 +182,164 @@ public class InMemoryQueue {
 	 */
 	public Message pull(String queueUrl) {
 		String queueName = fromUrl(queueUrl);
-		String messageBody;
+		if (BatchRequests.isFifo(queueUrl)) {
+			return pullFifo(queueUrl, queueName);
+		}
+		releaseDue(queueName);
+		QueueEngine<Envelope> messages = queue.get(queueName);
+		if (messages == null) {
+			tracer.record(EventTracer.Type.EMPTY, queueUrl, 0);
+			return null;
+		}
+		Envelope envelope = messages.poll();
+		if (envelope == null) {
+			tracer.record(EventTracer.Type.EMPTY, queueUrl, 0);
+			return new Message().withMessageId("").withReceiptHandle("").withBody(null);
+		}
+		tracer.record(EventTracer.Type.PULL, queueUrl, 1, -1, tracer.body(envelope.body));
+		return delivery(queueName, envelope);
+
+	}
+
+	/**
+	 * This method pulls a Message from top of the Queue, waiting for a message
+	 * to be added if the queue is empty.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param timeout
+	 *            Maximum time to wait
+	 * @param unit
+	 *            Unit of the timeout
+	 * @return Pulled message or null if none was added in time
+	 */
+	public Message pull(String queueUrl, long timeout, TimeUnit unit) {
+		String queueName = fromUrl(queueUrl);
+		if (BatchRequests.isFifo(queueUrl)) {
+			return pullFifo(queueUrl, queueName, timeout, unit);
+		}
+		releaseDue(queueName);
+		Envelope envelope;
+		try {
+			envelope = getQueueByName(queueName).poll(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (envelope == null) {
+			tracer.record(EventTracer.Type.EMPTY, queueUrl, 0);
+			return null;
+		}
+		tracer.record(EventTracer.Type.PULL, queueUrl, 1, -1, tracer.body(envelope.body));
+		return delivery(queueName, envelope);
+	}
+
+	/**
+	 * This method pulls up to maxMessages Messages from top of the Queue with a
+	 * single lock of the queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            Maximum number of messages to pull
+	 * @return Pulled messages, empty if the queue is empty
+	 */
+	public List<Message> pull(String queueUrl, int maxMessages) {
+		String queueName = fromUrl(queueUrl);
+		if (BatchRequests.isFifo(queueUrl)) {
+			return pullFifo(queueUrl, queueName, maxMessages);
+		}
+		releaseDue(queueName);
+		List<Envelope> envelopes = new ArrayList<Envelope>(maxMessages);
+		QueueEngine<Envelope> messages = queue.get(queueName);
+		if (messages != null) {
+			messages.drainTo(envelopes, maxMessages);
+		}
+		tracer.record(envelopes.isEmpty() ? EventTracer.Type.EMPTY : EventTracer.Type.PULL, queueUrl,
+				envelopes.size());
+		List<Message> pulled = new ArrayList<Message>(envelopes.size());
+		for (Envelope envelope : envelopes) {
+			pulled.add(delivery(queueName, envelope));
+		}
+		return pulled;
+	}
+
+	/**
+	 * Pulls the first message of the next ready group of a FIFO queue.
+	 */
+	private Message pullFifo(String queueUrl, String queueName) {
+		MessageGroups<Envelope> groups = fifo.get(queueName);
+		if (groups == null) {
+			tracer.record(EventTracer.Type.EMPTY, queueUrl, 0);
+			return null;
+		}
+		MessageGroups.Delivery<Envelope> delivery = groups.poll();
+		if (delivery == null) {
+			tracer.record(EventTracer.Type.EMPTY, queueUrl, 0);
+			return new Message().withMessageId("").withReceiptHandle("").withBody(null);
+		}
+		tracer.record(EventTracer.Type.PULL, queueUrl, 1, -1, tracer.body(delivery.getMessage().body));
+		return delivery(queueName, delivery);
+	}
+
+	/**
+	 * Pulls the first message of the next ready group of a FIFO queue, waiting
+	 * for a group to become ready.
+	 */
+	private Message pullFifo(String queueUrl, String queueName, long timeout, TimeUnit unit) {
+		MessageGroups.Delivery<Envelope> delivery;
 		try {
-			LOGGER.info("Pulling from queue");
-			messageBody = queue.get(queueName).poll();
-		} catch (NullPointerException e) {
-			LOGGER.info("Queue Empty");
+			delivery = getGroups(queueName).poll(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			return null;
 		}
-		String messageId = "";
-		if (messageBody != null) {
-			messageId = UUID.randomUUID().toString();
+		if (delivery == null) {
+			tracer.record(EventTracer.Type.EMPTY, queueUrl, 0);
+			return null;
+		}
+		tracer.record(EventTracer.Type.PULL, queueUrl, 1, -1, tracer.body(delivery.getMessage().body));
+		return delivery(queueName, delivery);
+	}
+
+	/**
+	 * Pulls the first message of up to maxMessages ready groups of a FIFO
+	 * queue.
+	 */
+	private List<Message> pullFifo(String queueUrl, String queueName, int maxMessages) {
+		List<MessageGroups.Delivery<Envelope>> deliveries = new ArrayList<MessageGroups.Delivery<Envelope>>(
+				maxMessages);
+		MessageGroups<Envelope> groups = fifo.get(queueName);
+		if (groups != null) {
+			groups.drainTo(deliveries, maxMessages);
+		}
+		tracer.record(deliveries.isEmpty() ? EventTracer.Type.EMPTY : EventTracer.Type.PULL, queueUrl,
+				deliveries.size());
+		List<Message> pulled = new ArrayList<Message>(deliveries.size());
+		for (MessageGroups.Delivery<Envelope> delivery : deliveries) {
+			pulled.add(delivery(queueName, delivery));
 		}
-		return new Message().withMessageId(messageId).withReceiptHandle(messageId).withBody(messageBody);
+		return pulled;
+	}
 
+	/**
+	 * Ends the delivery of a message pulled from a FIFO queue, letting the
+	 * next message of its group be pulled. Has no effect for other queues and
+	 * for deliveries already ended.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messageId
+	 *            Identifier of the pulled message
+	 */
+	public void complete(String queueUrl, String messageId) {
+		if (fifoReceipts.isEmpty()) {
+			return;
+		}
+		String messageGroupId = fifoReceipts.remove(messageId);
+		if (messageGroupId != null) {
+			getGroups(fromUrl(queueUrl)).complete(messageGroupId);
+		}
 	}
 
 	/**
@@ -94,19 +351,91 @@ public class InMemoryQueue {
 	 *            Identifier of the pulled message from the Queue File
 	 * @param messageBody
 	 *            Contents of the Message
+	 * @param receiveCount
+	 *            Number of times the message was received
 	 */
-	public void reQueue(String queueUrl, String messageId, String messageBody) {
+	public void reQueue(String queueUrl, String messageId, String messageBody, int receiveCount) {
 		String queueName = fromUrl(queueUrl);
-		LOGGER.info("Requeue Started for:" + messageId);
-		messages.addFirst(messageBody);
-		if (queue.get(queueName) != null) {
-			queue.get(queueName).addFirst(messageBody);
+		String messageGroupId = null;
+		if (BatchRequests.isFifo(queueUrl)) {
+			messageGroupId = fifoReceipts.remove(messageId);
+			if (messageGroupId == null) {
+				// the delivery was completed or re-queued before
+				return;
+			}
+		}
+		Envelope requeued = new Envelope(messageBody, receiveCount);
+		if (messageGroupId != null) {
+			getGroups(queueName).retry(messageGroupId, requeued);
 		} else {
-			messages = new LinkedBlockingDeque<String>();
-			messages.add(messageBody);
-			queue.put(queueName, messages);
+			getQueueByName(queueName).addFirst(requeued);
+		}
+		tracer.record(EventTracer.Type.REQUEUE, queueUrl, 1, -1, messageId);
+	}
+
+	/**
+	 * Creates the message of a delivery with its receipt. Messages in memory
+	 * have no position, the generation alone tells deliveries apart.
+	 * 
+	 * @param queueName
+	 *            Name of the queue
+	 * @param envelope
+	 *            Pulled message
+	 * @return Message with the receipt handle as message id
+	 */
+	private Message delivery(String queueName, Envelope envelope) {
+		int receiveCount = envelope.receiveCount == Integer.MAX_VALUE ? Integer.MAX_VALUE
+				: envelope.receiveCount + 1;
+		String messageId = ReceiptHandle.encode(queueName, 0, ReceiptHandle.nextGeneration());
+		return new Message().withMessageId(messageId).withReceiptHandle(messageId).withBody(envelope.body)
+				.addAttributesEntry(RedrivePolicy.RECEIVE_COUNT, Integer.toString(receiveCount));
+	}
+
+	/**
+	 * Creates the message of a delivery from a FIFO queue with its group,
+	 * remembered by receipt until the delivery ends.
+	 */
+	private Message delivery(String queueName, MessageGroups.Delivery<Envelope> delivery) {
+		Message message = delivery(queueName, delivery.getMessage())
+				.addAttributesEntry(MessageGroups.MESSAGE_GROUP_ID, delivery.getGroupId());
+		fifoReceipts.put(message.getReceiptHandle(), delivery.getGroupId());
+		return message;
+	}
+
+	/**
+	 * Returns the messages of a queue, creating the queue if needed.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Messages of the queue
+	 */
+	private QueueEngine<Envelope> getQueue(String queueUrl) {
+		return getQueueByName(fromUrl(queueUrl));
+	}
+
+	private MessageGroups<Envelope> getGroups(String queueName) {
+		return fifo.computeIfAbsent(queueName, name -> new MessageGroups<Envelope>());
+	}
+
+	private QueueEngine<Envelope> getQueueByName(String queueName) {
+		return queue.computeIfAbsent(queueName, name -> newEngine(QueueEngine.Type.fromString(
+				QueueConfig.getProperty("inmemory.engine." + name, QueueConfig.getProperty("inmemory.engine", "")))));
+	}
+
+	/**
+	 * Creates an empty engine.
+	 * 
+	 * @param type
+	 *            Type of the engine
+	 * @return New engine
+	 */
+	private QueueEngine<Envelope> newEngine(QueueEngine.Type type) {
+		switch (type) {
+		case RING:
+			return new RingBufferEngine<Envelope>(QueueConfig.getInt("inmemory.ring.capacity", 65536));
+		default:
+			return new DequeEngine<Envelope>();
 		}
-		LOGGER.info("Requeue Completed for:" + messageId);
 	}
 	/**
 	 * Get queue name from URL
@@ -121,4 +450,26 @@ public class InMemoryQueue {
 		String[] segments = uri.getPath().split("/");		
 		return segments[segments.length-1];
 	}
+
+	/**
+	 * Message body stored by an engine with the number of times it was
+	 * received.
+	 */
+	private static class Envelope {
+		private final String body;
+		private final int receiveCount;
+
+		Envelope(String body, int receiveCount) {
+			this.body = body;
+			this.receiveCount = receiveCount;
+		}
+
+		static List<Envelope> of(List<String> messages) {
+			List<Envelope> envelopes = new ArrayList<Envelope>(messages.size());
+			for (String message : messages) {
+				envelopes.add(new Envelope(message, 0));
+			}
+			return envelopes;
+		}
+	}
 }
@@ -1,10 +1,14 @@
 package com.example;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import com.amazonaws.services.sqs.model.Message;
 
@@ -12,15 +16,42 @@ import com.amazonaws.services.sqs.model.Message;
  * In-Memory Queue Service
  * 
  * Memory-based implementation of Queue Service making use of
- * InMemoryQueue.
+ * InMemoryQueue. Every operation is recorded in the QueueMetrics of its queue.
+ * 
+ * Operations never wait for I/O, so the asynchronous methods run on the
+ * calling thread and return completed futures.
+ * 
+ * Pushes are delayed by the default delay of their queue, see setDelaySeconds.
+ * Delayed messages are released by the next pull of their queue and by a task
+ * run every delay.bucket milliseconds, started by the first delayed push.
+ * 
+ * A pulled message received more often than the maxReceiveCount of the
+ * RedrivePolicy of its queue is added to the dead-letter queue instead of
+ * being delivered. It is in no queue while being moved, so it is neither lost
+ * nor found in both.
+ * 
+ * Messages of FIFO queues are pushed with pushFifo into MessageGroups, so one
+ * message per group is in flight and groups are delivered in parallel. Pushes
+ * are deduplicated by a DeduplicationWindow per queue.
  * 
  * @author Edgar Resma
  */
-public class InMemoryQueueService implements QueueService  {
+public class InMemoryQueueService implements QueueService, AsyncQueueService {
+
+	private final static Logger LOGGER = Logger.getLogger(InMemoryQueueService.class.getName());
 	
+	private static final long VISIBILITY_TIMEOUT = 2;
+
 	private InMemoryQueue queue = InMemoryQueue.getInstance();
-	private ConcurrentMap<String, ScheduledFuture> invisibleQueue = new ConcurrentHashMap<String, ScheduledFuture>();
+	private ConcurrentMap<String, VisibilityTimer.Timeout> invisibleQueue = new ConcurrentHashMap<String, VisibilityTimer.Timeout>();
+	private VisibilityTimer visibilityTimer;
 	private ScheduledExecutorService executorService;
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+	private ConcurrentMap<String, Integer> delays = new ConcurrentHashMap<String, Integer>();
+	private ConcurrentMap<String, RedrivePolicy> redrivePolicies = new ConcurrentHashMap<String, RedrivePolicy>();
+	private ConcurrentMap<String, DeduplicationWindow> deduplicationWindows = new ConcurrentHashMap<String, DeduplicationWindow>();
+	private long deduplicationWindowMillis = QueueConfig.getLong("fifo.deduplication.window", 300000);
+	private boolean releasing;
 	
 	/**
 	 * Constructor
@@ -30,10 +61,12 @@ public class InMemoryQueueService implements QueueService  {
 	 */
 	public InMemoryQueueService(ScheduledExecutorService executorService) {
 		this.executorService = executorService;
+		this.visibilityTimer = new VisibilityTimer(executorService, this::reQueueExpired);
 	}
 
 	/**
-	 * This method adds a message to the end of the Queue.
+	 * This method adds a message to the end of the Queue after the default
+	 * delay of the queue.
 	 * 
 	 * @param queueUrl
 	 *            URL of the queue
@@ -42,7 +75,128 @@ public class InMemoryQueueService implements QueueService  {
 	 */
 	@Override
 	public void push(String queueUrl, String message) {
-		queue.add(queueUrl, message);
+		pushDelayed(queueUrl, message, delaySeconds(queueUrl));
+	}
+
+	/**
+	 * This method adds a message to the end of the Queue once the delay has
+	 * passed.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @param delaySeconds
+	 *            Time the message is held back, from 0 to 900 seconds
+	 */
+	@Override
+	public void pushDelayed(String queueUrl, String message, int delaySeconds) {
+		BatchRequests.checkStandard(queueUrl);
+		BatchRequests.checkBody(message);
+		BatchRequests.checkDelay(delaySeconds);
+		long start = System.nanoTime();
+		if (delaySeconds > 0) {
+			queue.addDelayed(queueUrl, Collections.singletonList(message),
+					System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delaySeconds));
+			startReleaser();
+		} else {
+			queue.add(queueUrl, message);
+		}
+		metrics.forQueue(queueUrl).pushed(1, start);
+	}
+
+	/**
+	 * This method adds up to ten messages to the end of the Queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue
+	 */
+	@Override
+	public void pushBatch(String queueUrl, List<String> messages) {
+		BatchRequests.checkStandard(queueUrl);
+		BatchRequests.checkEntries(messages);
+		BatchRequests.checkBodies(messages);
+		long start = System.nanoTime();
+		int delaySeconds = delaySeconds(queueUrl);
+		if (delaySeconds > 0) {
+			queue.addDelayed(queueUrl, messages, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delaySeconds));
+			startReleaser();
+		} else {
+			queue.addAll(queueUrl, messages);
+		}
+		metrics.forQueue(queueUrl).pushed(messages.size(), start);
+	}
+
+	/**
+	 * This method adds a message to the end of its group of a FIFO queue,
+	 * unless its deduplication id was pushed within the deduplication window.
+	 * 
+	 * @param queueUrl
+	 *            URL of the FIFO queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @param messageGroupId
+	 *            Group of the message, up to 128 characters
+	 * @param messageDeduplicationId
+	 *            Deduplication id or null to deduplicate by the message body
+	 */
+	@Override
+	public void pushFifo(String queueUrl, String message, String messageGroupId, String messageDeduplicationId) {
+		BatchRequests.checkFifo(queueUrl, messageGroupId);
+		BatchRequests.checkBody(message);
+		long start = System.nanoTime();
+		if (isDuplicate(queueUrl, message, messageDeduplicationId)) {
+			return;
+		}
+		queue.addFifo(queueUrl, messageGroupId, message);
+		metrics.forQueue(queueUrl).pushed(1, start);
+	}
+
+	private boolean isDuplicate(String queueUrl, String message, String messageDeduplicationId) {
+		String deduplicationId = messageDeduplicationId != null ? messageDeduplicationId
+				: DeduplicationWindow.contentId(message);
+		DeduplicationWindow window = deduplicationWindows.computeIfAbsent(queueUrl,
+				url -> new DeduplicationWindow(deduplicationWindowMillis));
+		return !window.add(deduplicationId, System.currentTimeMillis());
+	}
+
+	/**
+	 * Sets the delay of the messages pushed to a queue without a delay of
+	 * their own. Defaults to queue.delay.<queue name> or else queue.delay.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param delaySeconds
+	 *            Time messages are held back, from 0 to 900 seconds
+	 */
+	public void setDelaySeconds(String queueUrl, int delaySeconds) {
+		BatchRequests.checkDelay(delaySeconds);
+		delays.put(queueUrl, delaySeconds);
+	}
+
+	private int delaySeconds(String queueUrl) {
+		Integer delaySeconds = delays.get(queueUrl);
+		return delaySeconds != null ? delaySeconds : delays.computeIfAbsent(queueUrl, BatchRequests::defaultDelay);
+	}
+
+	/**
+	 * Schedules the release of delayed messages on first use.
+	 */
+	private synchronized void startReleaser() {
+		if (!releasing) {
+			releasing = true;
+			long interval = QueueConfig.getLong("delay.bucket", 1000);
+			executorService.scheduleAtFixedRate(() -> {
+				try {
+					queue.releaseDue();
+				} catch (RuntimeException e) {
+					// the release task must survive a failing queue
+					e.printStackTrace();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
 	}
 
 	/**
@@ -55,12 +209,64 @@ public class InMemoryQueueService implements QueueService  {
 	 */
 	@Override
 	public Message pull(String queueUrl) {
-		Message message = queue.pull(queueUrl);
-		if (message != null) {
-			makeInvisible(queueUrl, message.getMessageId(), message.getBody());
-			return message;
+		long start = System.nanoTime();
+		Message message;
+		do {
+			message = queue.pull(queueUrl);
+		} while (message != null && message.getBody() != null && deadLetter(queueUrl, message));
+		if (message != null && message.getBody() != null) {
+			makeInvisible(queueUrl, Collections.singletonList(message));
 		}
-		return null;
+		// an existing empty queue returns a message without body
+		metrics.forQueue(queueUrl).pulled(message != null && message.getBody() != null ? 1 : 0, start);
+		return message;
+	}
+
+	/**
+	 * This method pulls a Message from top of the Queue, parking until a
+	 * message is added if the queue is empty.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param waitTimeSeconds
+	 *            Maximum time to wait for a message, from 0 to 20 seconds
+	 * @return Message pulled from the queue or null if none arrived in time
+	 */
+	@Override
+	public Message pull(String queueUrl, int waitTimeSeconds) {
+		BatchRequests.checkWaitTime(waitTimeSeconds);
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+		Message message;
+		do {
+			message = queue.pull(queueUrl, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} while (message != null && message.getBody() != null && deadLetter(queueUrl, message));
+		if (message != null && message.getBody() != null) {
+			makeInvisible(queueUrl, Collections.singletonList(message));
+		}
+		metrics.forQueue(queueUrl).pulled(message != null ? 1 : 0, start);
+		return message;
+	}
+
+	/**
+	 * This method pulls up to maxMessages Messages from top of the Queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            Maximum number of messages returned, from 1 to 10
+	 * @return Pulled messages in queue order, empty if the queue is empty
+	 */
+	@Override
+	public List<Message> pullBatch(String queueUrl, int maxMessages) {
+		BatchRequests.checkMaxMessages(maxMessages);
+		long start = System.nanoTime();
+		List<Message> messages = deadLetter(queueUrl, queue.pull(queueUrl, maxMessages));
+		if (!messages.isEmpty()) {
+			makeInvisible(queueUrl, messages);
+		}
+		metrics.forQueue(queueUrl).pulled(messages.size(), start);
+		return messages;
 	}
 
 	/**
@@ -71,27 +277,185 @@ public class InMemoryQueueService implements QueueService  {
 	 */
 	@Override
 	public void delete(String queueUrl, String messageId) {
-		ScheduledFuture<?> future = invisibleQueue.remove(messageId);
-		if (future != null) {
-			future.cancel(true);
+		long start = System.nanoTime();
+		VisibilityTimer.Timeout timeout = invisibleQueue.remove(messageId);
+		if (timeout != null) {
+			timeout.cancel();
+			queue.complete(queueUrl, messageId);
+			metrics.forQueue(queueUrl).deleted(1, start);
 		}
 	}
 
 	/**
-	 * Schedules a task to return a message into the Queue if not deleted within
-	 * a given timeout.
+	 * Deletes up to ten messages by canceling their re-queuing.
 	 * 
-	 * @param messageId
-	 *            Identifier of the pulled message from the Queue File
-	 * @param messageBody
-	 *            Contents of the Message
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param receiptHandles
+	 *            Identifiers of the pulled messages
+	 */
+	@Override
+	public void deleteBatch(String queueUrl, List<String> receiptHandles) {
+		BatchRequests.checkEntries(receiptHandles);
+		for (String receiptHandle : receiptHandles) {
+			delete(queueUrl, receiptHandle);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> pushAsync(String queueUrl, String message) {
+		push(queueUrl, message);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Pulls a message from the top of the Queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Future completed with the pulled message or null if the queue
+	 *         is empty
+	 */
+	@Override
+	public CompletableFuture<Message> pullAsync(String queueUrl) {
+		List<Message> messages = pullBatch(queueUrl, 1);
+		return CompletableFuture.completedFuture(messages.isEmpty() ? null : messages.get(0));
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptHandle) {
+		delete(queueUrl, receiptHandle);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Sets the redrive policy of a queue. Defaults to queue.redrive.<queue
+	 * name>.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param redrivePolicy
+	 *            Policy or null to keep every message in the queue
 	 */
-	private void makeInvisible(String queueUrl, String messageId, String messageBody) {
-		Runnable runnableTask = () -> {
-			reQueue(queueUrl, messageId, messageBody);
-		};
-		ScheduledFuture<?> future = executorService.schedule(runnableTask, 2, TimeUnit.SECONDS);
-		invisibleQueue.put(messageId, future);
+	public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+		redrivePolicies.put(queueUrl, redrivePolicy != null ? redrivePolicy : RedrivePolicy.NONE);
+	}
+
+	private RedrivePolicy redrivePolicy(String queueUrl) {
+		RedrivePolicy redrivePolicy = redrivePolicies.get(queueUrl);
+		return redrivePolicy != null ? redrivePolicy
+				: redrivePolicies.computeIfAbsent(queueUrl, RedrivePolicy::forQueue);
+	}
+
+	/**
+	 * Moves a pulled message to the dead-letter queue if it was received too
+	 * often.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Pulled message
+	 * @return true if the message was moved and must not be delivered
+	 */
+	private boolean deadLetter(String queueUrl, Message message) {
+		RedrivePolicy redrivePolicy = redrivePolicy(queueUrl);
+		if (!redrivePolicy.isExceeded(message)) {
+			return false;
+		}
+		long start = System.nanoTime();
+		String messageGroupId = message.getAttributes().get(MessageGroups.MESSAGE_GROUP_ID);
+		if (messageGroupId != null && BatchRequests.isFifo(redrivePolicy.getDeadLetterQueueUrl())) {
+			queue.addFifo(redrivePolicy.getDeadLetterQueueUrl(), messageGroupId, message.getBody());
+		} else {
+			queue.add(redrivePolicy.getDeadLetterQueueUrl(), message.getBody());
+		}
+		queue.complete(queueUrl, message.getReceiptHandle());
+		metrics.forQueue(redrivePolicy.getDeadLetterQueueUrl()).pushed(1, start);
+		metrics.forQueue(queueUrl).deadLettered(1);
+		return true;
+	}
+
+	/**
+	 * Moves the pulled messages received too often to the dead-letter queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Pulled messages
+	 * @return Messages to be delivered
+	 */
+	private List<Message> deadLetter(String queueUrl, List<Message> messages) {
+		if (redrivePolicy(queueUrl) == RedrivePolicy.NONE) {
+			return messages;
+		}
+		List<Message> delivered = new ArrayList<Message>(messages.size());
+		for (Message message : messages) {
+			if (!deadLetter(queueUrl, message)) {
+				delivered.add(message);
+			}
+		}
+		return delivered;
+	}
+
+	/**
+	 * Starts the visibility timeout of the pulled messages. Messages not
+	 * deleted within the timeout are returned into the Queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages pulled from the Queue
+	 */
+	private void makeInvisible(String queueUrl, List<Message> messages) {
+		for (Message message : messages) {
+			// the message of an empty queue has no body to return
+			if (message.getBody() == null) {
+				continue;
+			}
+			invisibleQueue.put(message.getMessageId(),
+					visibilityTimer.schedule(queueUrl, message, VISIBILITY_TIMEOUT, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Returns the messages whose visibility timeout expired into the Queue.
+	 * Called by the visibility timer with every message expired by the same
+	 * tick.
+	 * 
+	 * @param timeouts
+	 *            Expired visibility timeouts
+	 */
+	private void reQueueExpired(List<VisibilityTimer.Timeout> timeouts) {
+		for (VisibilityTimer.Timeout timeout : timeouts) {
+			Message message = timeout.getMessage();
+			try {
+				if (invisibleQueue.remove(message.getMessageId(), timeout)) {
+					queue.reQueue(timeout.getQueueUrl(), message.getMessageId(), message.getBody(),
+							RedrivePolicy.receiveCount(message));
+					metrics.forQueue(timeout.getQueueUrl()).expired(1);
+				}
+			} catch (RuntimeException e) {
+				// the other timeouts of the tick are still returned
+				LOGGER.severe("Failed to re-queue " + message.getMessageId() + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Restarts the visibility timeout of a pulled message.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param receiptHandle
+	 *            Identifier of the pulled message
+	 * @param visibilityTimeout
+	 *            Seconds from now until the message is returned into the queue
+	 * @return false if the message was already deleted or returned
+	 */
+	public boolean changeVisibility(String queueUrl, String receiptHandle, long visibilityTimeout) {
+		VisibilityTimer.Timeout timeout = invisibleQueue.get(receiptHandle);
+		return timeout != null && timeout.extend(visibilityTimeout, TimeUnit.SECONDS);
 	}
 
 	/**
@@ -103,8 +467,15 @@ public class InMemoryQueueService implements QueueService  {
 	 *            Contents of the Message
 	 */
 	public void reQueue(String queueUrl, String messageId, String messageBody) {
-		invisibleQueue.remove(messageId);
-		queue.reQueue(queueUrl, messageId, messageBody);
+		long start = System.nanoTime();
+		VisibilityTimer.Timeout timeout = invisibleQueue.remove(messageId);
+		int receiveCount = 0;
+		if (timeout != null) {
+			timeout.cancel();
+			receiveCount = RedrivePolicy.receiveCount(timeout.getMessage());
+		}
+		queue.reQueue(queueUrl, messageId, messageBody, receiveCount);
+		metrics.forQueue(queueUrl).requeued(start);
 	}
 
 	/**
@@ -0,0 +1,137 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency Histogram
+ *
+ * Counts recorded durations in fixed buckets whose bounds double from one
+ * microsecond up to about half an hour. Every bucket is a striped LongAdder,
+ * so recording threads never take a lock and rarely write the same cache line.
+ * Percentiles are read from the buckets and are exact to a factor of two, which
+ * is enough to tell a microsecond write from a millisecond fsync.
+ *
+ * @author Edgar Resma
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 32;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            Duration in nanoseconds, negative values count as zero
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		buckets[bucket(nanos)].increment();
+		totalNanos.add(nanos);
+		long max;
+		while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+		}
+	}
+
+	/**
+	 * Records the time passed since a start read from System.nanoTime.
+	 *
+	 * @param startNanos
+	 *            Start of the measured operation
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Bucket 0 holds durations below one microsecond, bucket i durations from
+	 * 2^(i-1) up to 2^i microseconds and the last bucket everything longer.
+	 */
+	private static int bucket(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/**
+	 * @return Counts read from the buckets. Recordings made meanwhile may be
+	 *         partly included.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		return new Snapshot(counts, count, totalNanos.sum(), maxNanos.get());
+	}
+
+	/**
+	 * Histogram read at one point in time. Durations are given in
+	 * microseconds.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long totalNanos;
+		private final long maxNanos;
+
+		Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+			this.counts = counts;
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+		}
+
+		/**
+		 * @return Number of recorded durations.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return Average duration or 0 if nothing was recorded.
+		 */
+		public long getMeanMicros() {
+			return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos / count);
+		}
+
+		/**
+		 * @return Longest recorded duration.
+		 */
+		public long getMaxMicros() {
+			return TimeUnit.NANOSECONDS.toMicros(maxNanos);
+		}
+
+		/**
+		 * @param quantile
+		 *            Fraction of the recorded durations, from 0 to 1
+		 * @return Upper bound of the bucket holding the quantile, at most the
+		 *         longest recorded duration, or 0 if nothing was recorded
+		 */
+		public long getPercentileMicros(double quantile) {
+			long rank = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(1L << i, getMaxMicros());
+				}
+			}
+			return getMaxMicros();
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package com.example;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Message Codec
+ *
+ * Binary record of a stored message: its body in UTF-8 and its typed message
+ * attributes, with every length written as a variable length number.
+ *
+ * Record: <Version 1 Byte><Body Size varint><Body n Bytes><Attribute Count
+ * varint> followed by each attribute as <Name Size varint><Name n
+ * Bytes><Data Type Size varint><Data Type n Bytes><Value Size varint><Value n
+ * Bytes>. Values of Binary data types are stored as they are, the others in
+ * UTF-8. Names and data types are stored in UTF-8, so custom data types like
+ * Number.float are kept. The version is checked when reading so the record can
+ * change without breaking stored messages.
+ *
+ * Records are encoded into a buffer kept per thread, so encoding a message
+ * allocates no buffer once the buffer has grown to the size of the messages.
+ * Buffers grown past MAX_RETAINED_SIZE are not kept.
+ *
+ * @author Edgar Resma
+ */
+public final class MessageCodec {
+
+	public static final byte VERSION = 1;
+
+	private static final int INITIAL_SIZE = 1024;
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+	private static final int MAX_VAR_SIZE = 5;
+	private static final String BINARY_TYPE = "Binary";
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(INITIAL_SIZE);
+		}
+	};
+
+	private MessageCodec() {
+	}
+
+	/**
+	 * Encodes a message without attributes.
+	 *
+	 * @param body
+	 *            Body of the message
+	 * @return Record between position and limit of the buffer of the thread,
+	 *         valid until the next encode on the thread
+	 */
+	public static ByteBuffer encode(String body) {
+		return encode(body, null);
+	}
+
+	/**
+	 * Encodes a message with its attributes.
+	 *
+	 * @param body
+	 *            Body of the message
+	 * @param messageAttributes
+	 *            Typed attributes of the message, null for none
+	 * @return Record between position and limit of the buffer of the thread,
+	 *         valid until the next encode on the thread
+	 */
+	public static ByteBuffer encode(String body, Map<String, MessageAttributeValue> messageAttributes) {
+		byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+		int attributeCount = messageAttributes == null ? 0 : messageAttributes.size();
+		ByteBuffer buffer = reserve(null, 1 + 2 * MAX_VAR_SIZE + bodyBytes.length);
+		buffer.put(VERSION);
+		ReceiptHandle.putVarLong(buffer, bodyBytes.length);
+		buffer.put(bodyBytes);
+		ReceiptHandle.putVarLong(buffer, attributeCount);
+		if (attributeCount > 0) {
+			for (Map.Entry<String, MessageAttributeValue> attribute : messageAttributes.entrySet()) {
+				MessageAttributeValue value = attribute.getValue();
+				String dataType = value.getDataType() != null ? value.getDataType() : "String";
+				byte[] name = attribute.getKey().getBytes(StandardCharsets.UTF_8);
+				byte[] type = dataType.getBytes(StandardCharsets.UTF_8);
+				byte[] bytes = valueBytes(dataType, value);
+				buffer = reserve(buffer, 3 * MAX_VAR_SIZE + name.length + type.length + bytes.length);
+				putBytes(buffer, name);
+				putBytes(buffer, type);
+				putBytes(buffer, bytes);
+			}
+		}
+		buffer.flip();
+		if (buffer.capacity() <= MAX_RETAINED_SIZE) {
+			buffers.set(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Decodes a record.
+	 *
+	 * @param record
+	 *            Record between position and limit, the position is moved past
+	 *            it
+	 * @return Message with the body and message attributes of the record
+	 * @throws IllegalArgumentException
+	 *             If the record is malformed or of an unknown version
+	 */
+	public static Message decode(ByteBuffer record) {
+		try {
+			byte version = record.get();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unknown message record version " + version);
+			}
+			Message message = new Message().withBody(new String(getBytes(record), StandardCharsets.UTF_8));
+			long attributeCount = ReceiptHandle.getVarLong(record);
+			if (attributeCount > 0) {
+				Map<String, MessageAttributeValue> messageAttributes = new HashMap<String, MessageAttributeValue>();
+				for (long i = 0; i < attributeCount; i++) {
+					String name = new String(getBytes(record), StandardCharsets.UTF_8);
+					String dataType = new String(getBytes(record), StandardCharsets.UTF_8);
+					byte[] bytes = getBytes(record);
+					MessageAttributeValue value = new MessageAttributeValue().withDataType(dataType);
+					if (dataType.startsWith(BINARY_TYPE)) {
+						value.setBinaryValue(ByteBuffer.wrap(bytes));
+					} else {
+						value.setStringValue(new String(bytes, StandardCharsets.UTF_8));
+					}
+					messageAttributes.put(name, value);
+				}
+				message.setMessageAttributes(messageAttributes);
+			}
+			return message;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated message record", e);
+		}
+	}
+
+	private static byte[] valueBytes(String dataType, MessageAttributeValue value) {
+		if (dataType.startsWith(BINARY_TYPE)) {
+			ByteBuffer binary = value.getBinaryValue();
+			if (binary == null) {
+				return new byte[0];
+			}
+			byte[] bytes = new byte[binary.remaining()];
+			binary.duplicate().get(bytes);
+			return bytes;
+		}
+		return value.getStringValue() != null ? value.getStringValue().getBytes(StandardCharsets.UTF_8) : new byte[0];
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		ReceiptHandle.putVarLong(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static byte[] getBytes(ByteBuffer record) {
+		long length = ReceiptHandle.getVarLong(record);
+		if (length < 0 || length > record.remaining()) {
+			throw new IllegalArgumentException("Truncated message record");
+		}
+		byte[] bytes = new byte[(int) length];
+		record.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Makes room for more bytes, starting with the cleared buffer of the
+	 * thread and doubling it as needed.
+	 *
+	 * @param buffer
+	 *            Buffer being written or null to start a record
+	 * @param size
+	 *            Number of bytes needed at most
+	 * @return Buffer with room for the bytes, holding the bytes written so far
+	 */
+	private static ByteBuffer reserve(ByteBuffer buffer, int size) {
+		if (buffer == null) {
+			buffer = buffers.get();
+			buffer.clear();
+		}
+		if (buffer.remaining() >= size) {
+			return buffer;
+		}
+		int capacity = buffer.capacity();
+		while (capacity - buffer.position() < size) {
+			capacity = capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : capacity * 2;
+		}
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+}
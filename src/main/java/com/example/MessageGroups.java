@@ -0,0 +1,296 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message Groups
+ *
+ * Messages of a FIFO queue by message group. Messages of a group are delivered
+ * in the order they were added and only one of them is in flight at a time,
+ * while messages of different groups are delivered in parallel.
+ *
+ * The groups that have messages and none in flight are kept in a ready deque,
+ * so finding the next group to deliver from takes constant time however many
+ * groups are blocked. A group joins the deque when a message is added to it or
+ * its message in flight is completed, and a retried message puts its group at
+ * the front. Groups without messages are dropped.
+ *
+ * @param <T>
+ *            Type of the messages
+ * @author Edgar Resma
+ */
+public class MessageGroups<T> {
+
+	public static final String MESSAGE_GROUP_ID = "MessageGroupId";
+
+	private final Map<String, Group<T>> groups = new HashMap<String, Group<T>>();
+	private final ArrayDeque<Group<T>> ready = new ArrayDeque<Group<T>>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private int size;
+
+	/**
+	 * Adds a message at the end of its group.
+	 *
+	 * @param groupId
+	 *            Message group id
+	 * @param message
+	 *            Message to be added
+	 */
+	public void add(String groupId, T message) {
+		lock.lock();
+		try {
+			Group<T> group = groups.get(groupId);
+			if (group == null) {
+				group = new Group<T>(groupId);
+				groups.put(groupId, group);
+			}
+			group.messages.add(message);
+			size++;
+			if (!group.inFlight && group.messages.size() == 1) {
+				ready.add(group);
+				available.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the first message of the next ready group and puts the group in
+	 * flight.
+	 *
+	 * @return Delivered message or null if no group is ready
+	 */
+	public Delivery<T> poll() {
+		lock.lock();
+		try {
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the first message of the next ready group, waiting up to the
+	 * timeout for a group to become ready.
+	 *
+	 * @param timeout
+	 *            Maximum time to wait
+	 * @param unit
+	 *            Unit of the timeout
+	 * @return Delivered message or null if no group became ready in time
+	 */
+	public Delivery<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (ready.isEmpty()) {
+				if (remaining <= 0) {
+					return null;
+				}
+				remaining = available.awaitNanos(remaining);
+			}
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the first message of up to maxMessages ready groups, one message
+	 * per group.
+	 *
+	 * @param deliveries
+	 *            Receives the delivered messages
+	 * @param maxMessages
+	 *            Maximum number of messages taken
+	 * @return Number of messages taken
+	 */
+	public int drainTo(List<Delivery<T>> deliveries, int maxMessages) {
+		lock.lock();
+		try {
+			int drained = 0;
+			Delivery<T> delivery;
+			while (drained < maxMessages && (delivery = next()) != null) {
+				deliveries.add(delivery);
+				drained++;
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends the delivery of a group after its message was deleted, making the
+	 * next message of the group ready.
+	 *
+	 * @param groupId
+	 *            Message group id of the delivered message
+	 */
+	public void complete(String groupId) {
+		lock.lock();
+		try {
+			Group<T> group = groups.get(groupId);
+			if (group != null && group.inFlight) {
+				group.inFlight = false;
+				release(group, false);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends the delivery of a group by returning its message to the front of
+	 * the group, to be delivered before the later messages of the group.
+	 *
+	 * @param groupId
+	 *            Message group id of the delivered message
+	 * @param message
+	 *            Message to be delivered again
+	 */
+	public void retry(String groupId, T message) {
+		lock.lock();
+		try {
+			Group<T> group = groups.get(groupId);
+			if (group == null) {
+				group = new Group<T>(groupId);
+				groups.put(groupId, group);
+			}
+			boolean wasReady = !group.inFlight && !group.messages.isEmpty();
+			group.messages.addFirst(message);
+			size++;
+			group.inFlight = false;
+			if (wasReady) {
+				ready.remove(group);
+			}
+			release(group, true);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends the delivery of a group and drops the group with its waiting
+	 * messages.
+	 *
+	 * @param groupId
+	 *            Message group id
+	 * @return Waiting messages of the group in order
+	 */
+	public List<T> drop(String groupId) {
+		lock.lock();
+		try {
+			Group<T> group = groups.remove(groupId);
+			if (group == null) {
+				return new ArrayList<T>(0);
+			}
+			if (!group.inFlight && !group.messages.isEmpty()) {
+				ready.remove(group);
+			}
+			size -= group.messages.size();
+			return new ArrayList<T>(group.messages);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of messages waiting, in flight excluded.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of groups with a message in flight.
+	 */
+	public int inFlight() {
+		lock.lock();
+		try {
+			int inFlight = 0;
+			for (Group<T> group : groups.values()) {
+				if (group.inFlight) {
+					inFlight++;
+				}
+			}
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Delivery<T> next() {
+		Group<T> group = ready.poll();
+		if (group == null) {
+			return null;
+		}
+		group.inFlight = true;
+		size--;
+		return new Delivery<T>(group.groupId, group.messages.poll());
+	}
+
+	/**
+	 * Makes a group that is not in flight ready or drops it if it is empty.
+	 */
+	private void release(Group<T> group, boolean first) {
+		if (group.messages.isEmpty()) {
+			groups.remove(group.groupId);
+		} else if (first) {
+			ready.addFirst(group);
+			available.signal();
+		} else {
+			ready.add(group);
+			available.signal();
+		}
+	}
+
+	/**
+	 * Message taken from a group.
+	 */
+	public static class Delivery<T> {
+		private final String groupId;
+		private final T message;
+
+		Delivery(String groupId, T message) {
+			this.groupId = groupId;
+			this.message = message;
+		}
+
+		public String getGroupId() {
+			return groupId;
+		}
+
+		public T getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Messages of one group in order.
+	 */
+	private static class Group<T> {
+		private final String groupId;
+		private final ArrayDeque<T> messages = new ArrayDeque<T>();
+		private boolean inFlight;
+
+		Group(String groupId) {
+			this.groupId = groupId;
+		}
+	}
+
+}
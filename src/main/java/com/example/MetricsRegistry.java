@@ -0,0 +1,207 @@
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics Registry
+ *
+ * Holds the QueueMetrics of every queue used by the process. Metrics are looked
+ * up by queue URL with a single concurrent map read, so callers can fetch them
+ * on every operation.
+ *
+ * When metrics.jmx is true, the default, the metrics of a queue are registered
+ * as MBean com.example:type=QueueMetrics,name=queue on first use. Reporters
+ * found by the ServiceLoader or added later are called every
+ * metrics.report.interval milliseconds by a daemon thread.
+ *
+ * @author Edgar Resma
+ */
+public class MetricsRegistry {
+
+	private final static Logger LOGGER = Logger.getLogger(MetricsRegistry.class.getName());
+
+	private static MetricsRegistry metricsRegistry;
+
+	private final ConcurrentMap<String, QueueMetrics> byName = new ConcurrentHashMap<String, QueueMetrics>();
+	private final ConcurrentMap<String, QueueMetrics> byUrl = new ConcurrentHashMap<String, QueueMetrics>();
+	private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<MetricsReporter>();
+	private final boolean jmx;
+	private final long reportIntervalMillis;
+	private ScheduledExecutorService reportExecutor;
+
+	public static synchronized MetricsRegistry getInstance() {
+		if (metricsRegistry == null) {
+			metricsRegistry = new MetricsRegistry(Boolean.parseBoolean(QueueConfig.getProperty("metrics.jmx", "true")),
+					QueueConfig.getLong("metrics.report.interval", 10000));
+			metricsRegistry.loadReporters();
+		}
+		return metricsRegistry;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param jmx
+	 *            Whether queue metrics are registered as MBeans
+	 * @param reportIntervalMillis
+	 *            Time between two reports to the reporters
+	 */
+	MetricsRegistry(boolean jmx, long reportIntervalMillis) {
+		this.jmx = jmx;
+		this.reportIntervalMillis = Math.max(1, reportIntervalMillis);
+	}
+
+	private void loadReporters() {
+		try {
+			for (MetricsReporter reporter : ServiceLoader.load(MetricsReporter.class)) {
+				addReporter(reporter);
+			}
+		} catch (ServiceConfigurationError e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the metrics of a queue, creating them on first use.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Metrics shared by every user of the queue in the process
+	 */
+	public QueueMetrics forQueue(String queueUrl) {
+		QueueMetrics metrics = byUrl.get(queueUrl);
+		if (metrics == null) {
+			metrics = forName(fromUrl(queueUrl));
+			byUrl.putIfAbsent(queueUrl, metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns the metrics of a queue, creating them on first use.
+	 *
+	 * @param queueName
+	 *            Name of the queue
+	 * @return Metrics shared by every user of the queue in the process
+	 */
+	public QueueMetrics forName(String queueName) {
+		QueueMetrics metrics = byName.get(queueName);
+		if (metrics == null) {
+			QueueMetrics created = new QueueMetrics(queueName);
+			metrics = byName.putIfAbsent(queueName, created);
+			if (metrics == null) {
+				metrics = created;
+				register(created);
+			}
+		}
+		return metrics;
+	}
+
+	private void register(QueueMetrics metrics) {
+		if (!jmx) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = objectName(metrics.getQueueName());
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+			}
+		} catch (JMException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param queueName
+	 *            Name of the queue
+	 * @return Name the metrics of the queue are registered under
+	 */
+	public static ObjectName objectName(String queueName) throws JMException {
+		return new ObjectName("com.example:type=QueueMetrics,name=" + ObjectName.quote(queueName));
+	}
+
+	/**
+	 * @return Metrics of every queue used so far.
+	 */
+	public Collection<QueueMetrics> getQueues() {
+		return new ArrayList<QueueMetrics>(byName.values());
+	}
+
+	/**
+	 * Adds a reporter called every metrics.report.interval milliseconds.
+	 *
+	 * @param reporter
+	 *            Receiver of the metrics
+	 */
+	public synchronized void addReporter(MetricsReporter reporter) {
+		reporters.add(reporter);
+		if (reportExecutor == null) {
+			reportExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "metrics-reporter");
+				thread.setDaemon(true);
+				return thread;
+			});
+			reportExecutor.scheduleAtFixedRate(this::reportAll, reportIntervalMillis, reportIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void reportAll() {
+		for (MetricsReporter reporter : reporters) {
+			try {
+				report(reporter);
+			} catch (RuntimeException e) {
+				// a failing reporter must not stop the others
+				LOGGER.severe(e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reports the metrics of every queue once.
+	 *
+	 * @param reporter
+	 *            Receiver of the metrics
+	 */
+	public void report(MetricsReporter reporter) {
+		for (QueueMetrics metrics : byName.values()) {
+			metrics.report(reporter);
+		}
+		reporter.flush();
+	}
+
+	/**
+	 * Get queue name from URL
+	 *
+	 * @param queueUrl
+	 *            URL used for sqs service
+	 * @return Queue name
+	 */
+	private String fromUrl(String queueUrl) {
+		URI uri = URI.create(queueUrl);
+		String[] segments = uri.getPath().split("/");
+		return segments[segments.length - 1];
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.example;
+
+/**
+ * Metrics Reporter
+ *
+ * Service provider interface bridging the queue metrics to a monitoring
+ * system. Implementations listed in
+ * META-INF/services/com.example.MetricsReporter are loaded by the
+ * MetricsRegistry and called every metrics.report.interval milliseconds with
+ * the metrics of every queue, followed by a flush.
+ *
+ * Counters only grow for the lifetime of the process. Gauges are read when
+ * reported. Histograms hold every duration recorded since start.
+ *
+ * @author Edgar Resma
+ */
+public interface MetricsReporter {
+
+	/*
+	 * Reports a counter of a queue, e.g. pushed.
+	 */
+	public void counter(String queueName, String name, long value);
+	/*
+	 * Reports a gauge of a queue, e.g. depth.
+	 */
+	public void gauge(String queueName, String name, long value);
+	/*
+	 * Reports a latency histogram of a queue, e.g. push.
+	 */
+	public void histogram(String queueName, String name, LatencyHistogram.Snapshot snapshot);
+	/*
+	 * Called once the metrics of all queues are reported.
+	 */
+	public default void flush() {
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Pull Executor
+ *
+ * Runs asynchronous pulls of file queues on a small pool of I/O threads. Each
+ * queue has its own lane of pending pulls, drained by at most one thread at a
+ * time, so the pulls of a queue run in order and never contend for its lock.
+ * A drain takes every pending pull of the lane, up to the batch size, and
+ * serves them with a single pull of that many messages. Pulls arriving while a
+ * batch is read are served by the next one.
+ *
+ * @author Edgar Resma
+ */
+public class PullExecutor {
+
+	private final ExecutorService executor;
+	private final int maxBatchSize;
+	private final BiFunction<String, Integer, List<Message>> pullAll;
+	private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param threads
+	 *            Number of I/O threads shared by all queues
+	 * @param maxBatchSize
+	 *            Maximum number of pulls served by one read
+	 * @param pullAll
+	 *            Pulls up to the given number of messages from a queue
+	 */
+	public PullExecutor(int threads, int maxBatchSize, BiFunction<String, Integer, List<Message>> pullAll) {
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			Thread thread = new Thread(runnable, "queue-pull-executor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.pullAll = pullAll;
+	}
+
+	/**
+	 * Queues a pull of a single message.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Future completed with the pulled message or null if the queue
+	 *         is empty
+	 */
+	public CompletableFuture<Message> pull(String queueUrl) {
+		CompletableFuture<Message> future = new CompletableFuture<Message>();
+		Lane lane = lanes.computeIfAbsent(queueUrl, Lane::new);
+		lane.pending.add(future);
+		lane.schedule();
+		return future;
+	}
+
+	/**
+	 * Stops the I/O threads. Pending pulls complete exceptionally.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		for (Lane lane : lanes.values()) {
+			lane.failAll(new RejectedExecutionException("Pull executor is shut down"));
+		}
+	}
+
+	/**
+	 * Pending pulls of a single queue.
+	 */
+	private class Lane {
+		private final String queueUrl;
+		private final Queue<CompletableFuture<Message>> pending = new ConcurrentLinkedQueue<CompletableFuture<Message>>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		Lane(String queueUrl) {
+			this.queueUrl = queueUrl;
+		}
+
+		void schedule() {
+			if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this::drain);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+					failAll(e);
+				}
+			}
+		}
+
+		private void drain() {
+			try {
+				List<CompletableFuture<Message>> batch = new ArrayList<CompletableFuture<Message>>(maxBatchSize);
+				CompletableFuture<Message> future;
+				while (batch.size() < maxBatchSize && (future = pending.poll()) != null) {
+					// a cancelled pull must not take a message
+					if (!future.isDone()) {
+						batch.add(future);
+					}
+				}
+				if (!batch.isEmpty()) {
+					serve(batch);
+				}
+			} finally {
+				scheduled.set(false);
+			}
+			// pulls queued meanwhile are served by the next drain
+			schedule();
+		}
+
+		private void serve(List<CompletableFuture<Message>> batch) {
+			List<Message> messages;
+			try {
+				messages = pullAll.apply(queueUrl, batch.size());
+			} catch (RuntimeException e) {
+				for (CompletableFuture<Message> future : batch) {
+					future.completeExceptionally(e);
+				}
+				return;
+			}
+			// a pull cancelled while reading leaves its message to the
+			// visibility timeout
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).complete(i < messages.size() ? messages.get(i) : null);
+			}
+		}
+
+		void failAll(Throwable cause) {
+			CompletableFuture<Message> future;
+			while ((future = pending.poll()) != null) {
+				future.completeExceptionally(cause);
+			}
+		}
+	}
+
+}
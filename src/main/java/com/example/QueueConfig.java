@@ -0,0 +1,121 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Queue Config
+ *
+ * Loads aws.local.properties from the classpath once and caches it for the
+ * lifetime of the JVM. System properties of the same name take precedence over
+ * the file so a single setting can be overridden without repackaging.
+ *
+ * @author Edgar Resma
+ */
+public final class QueueConfig {
+
+	private final static Logger LOGGER = Logger.getLogger(QueueConfig.class.getName());
+
+	private static final String PROPERTIES_FILE = "aws.local.properties";
+	private static final Properties prop = load();
+
+	private QueueConfig() {
+	}
+
+	/**
+	 * Reads the properties file from the classpath.
+	 *
+	 * @return Loaded properties, empty if the file is missing or unreadable
+	 */
+	private static Properties load() {
+		Properties properties = new Properties();
+		try (InputStream in = QueueConfig.class.getClassLoader().getResourceAsStream(PROPERTIES_FILE)) {
+			if (in != null) {
+				properties.load(in);
+			} else {
+				LOGGER.warning(PROPERTIES_FILE + " not found on the classpath");
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.getMessage());
+			e.printStackTrace();
+		}
+		return properties;
+	}
+
+	/**
+	 * @param key
+	 *            Property name
+	 * @return Property value or null if not set
+	 */
+	public static String getProperty(String key) {
+		return System.getProperty(key, prop.getProperty(key));
+	}
+
+	/**
+	 * @param key
+	 *            Property name
+	 * @param defaultValue
+	 *            Value returned if the property is not set
+	 * @return Property value or the default
+	 */
+	public static String getProperty(String key, String defaultValue) {
+		String value = getProperty(key);
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	/**
+	 * @param key
+	 *            Property name
+	 * @param defaultValue
+	 *            Value returned if the property is not set or not a number
+	 * @return Property value as long or the default
+	 */
+	public static long getLong(String key, long defaultValue) {
+		String value = getProperty(key);
+		try {
+			return value != null ? Long.parseLong(value.trim()) : defaultValue;
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid value for " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            Property name
+	 * @param defaultValue
+	 *            Value returned if the property is not set or not a number
+	 * @return Property value as int or the default
+	 */
+	public static int getInt(String key, int defaultValue) {
+		return (int) getLong(key, defaultValue);
+	}
+
+	/**
+	 * Returns the name of a queue, the last segment of the path of its URL. The
+	 * URL is cut with plain string operations instead of URI.create, as the
+	 * name is needed on every push and pull, and nothing is cached.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Queue name
+	 */
+	public static String queueName(String queueUrl) {
+		int end = queueUrl.length();
+		int query = queueUrl.indexOf('?');
+		if (query >= 0) {
+			end = query;
+		}
+		int fragment = queueUrl.indexOf('#');
+		if (fragment >= 0 && fragment < end) {
+			end = fragment;
+		}
+		while (end > 0 && queueUrl.charAt(end - 1) == '/') {
+			end--;
+		}
+		return queueUrl.substring(queueUrl.lastIndexOf('/', end - 1) + 1, end);
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue Engine
+ *
+ * Storage of the messages of a single in-memory queue with two
+ * implementations:
+ *
+ * 1. DequeEngine - Linked blocking deque, unbounded. Used as default.
+ *
+ * 2. RingBufferEngine - Preallocated lock-free ring buffer, bounded. Avoids
+ * allocations and lock contention between producers and consumers.
+ *
+ * @param <E>
+ *            Type of the stored messages
+ *
+ * @author Edgar Resma
+ */
+public interface QueueEngine<E> {
+
+	enum Type {
+		DEQUE, RING;
+
+		/**
+		 * @param value
+		 *            Engine name, case insensitive
+		 * @return Matching engine type or DEQUE if unknown
+		 */
+		public static Type fromString(String value) {
+			for (Type type : values()) {
+				if (type.name().equalsIgnoreCase(value)) {
+					return type;
+				}
+			}
+			return DEQUE;
+		}
+	}
+
+	/*
+	 * Add a message to the end of the queue, waiting for space if bounded.
+	 */
+	public void add(E message);
+	/*
+	 * Add messages to the end of the queue in order.
+	 */
+	public default void addAll(List<E> messages) {
+		for (E message : messages) {
+			add(message);
+		}
+	}
+	/*
+	 * Add a returned message ahead of the messages never pulled.
+	 */
+	public void addFirst(E message);
+	/*
+	 * Returns the message on top of the queue or null if empty.
+	 */
+	public E poll();
+	/*
+	 * Returns the message on top of the queue, waiting up to the timeout for
+	 * a message to be added.
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException;
+	/*
+	 * Moves up to maxMessages messages from the top of the queue.
+	 */
+	public default int drainTo(List<E> messages, int maxMessages) {
+		int drained = 0;
+		E message;
+		while (drained < maxMessages && (message = poll()) != null) {
+			messages.add(message);
+			drained++;
+		}
+		return drained;
+	}
+	/*
+	 * Returns the number of messages in the queue.
+	 */
+	public int size();
+
+}
@@ -0,0 +1,152 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Queue File Handle
+ *
+ * Open file and resolved paths of a single queue. Handles are shared through
+ * the QueueFileRegistry and reference counted so that an evicted handle is only
+ * closed once the last caller has released it.
+ *
+ * @author Edgar Resma
+ */
+public class QueueFileHandle implements Closeable {
+
+	private final String queueName;
+	private final File file;
+	private final QueueLock lock;
+	private final QueueLock tailLock;
+	private final File temp;
+	private final RandomAccessFile raf;
+	private final VisibleIndex visibleIndex = new VisibleIndex();
+	private RecordBlock recordBlock;
+	private int references;
+	private boolean evicted;
+	private boolean closed;
+	private volatile boolean recovered;
+
+	/**
+	 * Constructor
+	 *
+	 * @param queueName
+	 *            Name of the queue
+	 * @param directory
+	 *            Directory holding the queue files
+	 * @param raf
+	 *            Opened queue file
+	 */
+	QueueFileHandle(String queueName, File directory, RandomAccessFile raf) {
+		this.queueName = queueName;
+		this.file = new File(directory, "messages");
+		this.lock = QueueLockManager.getInstance().forDirectory(directory);
+		this.tailLock = QueueLockManager.getInstance().forTail(directory);
+		this.temp = new File(directory, "messages.temp");
+		this.raf = raf;
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public QueueLock getLock() {
+		return lock;
+	}
+
+	public QueueLock getTailLock() {
+		return tailLock;
+	}
+
+	public File getTemp() {
+		return temp;
+	}
+
+	public RandomAccessFile getRaf() {
+		return raf;
+	}
+
+	public FileChannel getChannel() {
+		return raf.getChannel();
+	}
+
+	/**
+	 * @return Index of returned messages, guarded by the queue lock
+	 */
+	public VisibleIndex getVisibleIndex() {
+		return visibleIndex;
+	}
+
+	/**
+	 * @return Last block of records decompressed, guarded by the queue lock
+	 */
+	public RecordBlock getRecordBlock() {
+		return recordBlock;
+	}
+
+	public void setRecordBlock(RecordBlock recordBlock) {
+		this.recordBlock = recordBlock;
+	}
+
+	/**
+	 * @return true once the queue file was checked after being opened
+	 */
+	public boolean isRecovered() {
+		return recovered;
+	}
+
+	public void setRecovered(boolean recovered) {
+		this.recovered = recovered;
+	}
+
+	/**
+	 * Registers a caller of the handle. Guarded by the registry.
+	 */
+	void retain() {
+		references++;
+	}
+
+	/**
+	 * Unregisters a caller of the handle. Guarded by the registry.
+	 *
+	 * @return true if the handle was evicted and has no more callers
+	 */
+	boolean releaseAndCheckIdle() {
+		references--;
+		return evicted && references == 0;
+	}
+
+	/**
+	 * Flags the handle as removed from the registry. Guarded by the registry.
+	 *
+	 * @return true if the handle has no callers and can be closed right away
+	 */
+	boolean evict() {
+		evicted = true;
+		return references == 0;
+	}
+
+	/**
+	 * Closes the underlying file. Further calls have no effect.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
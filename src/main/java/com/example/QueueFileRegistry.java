@@ -0,0 +1,193 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.google.common.io.Files;
+
+/**
+ * Queue File Registry
+ *
+ * Keeps the queue files of the process open between calls instead of reopening
+ * them on every add, pull or re-queue. Queue names and paths are resolved once
+ * per queue and the storage location is read once from QueueConfig.
+ *
+ * At most filequeue.handles.max queues are kept open. When the budget is
+ * exceeded the least recently used queue is evicted; its file is closed as soon
+ * as no caller is using it anymore. All handles are closed on JVM shutdown.
+ *
+ * @author Edgar Resma
+ */
+public class QueueFileRegistry implements Closeable {
+
+	private final static Logger LOGGER = Logger.getLogger(QueueFileRegistry.class.getName());
+
+	private static final int DEFAULT_MAX_HANDLES = 128;
+	private static QueueFileRegistry registry;
+
+	private final File storageLocation;
+	private final int maxHandles;
+	private final ConcurrentMap<String, String> queueNames = new ConcurrentHashMap<String, String>();
+	private final LinkedHashMap<String, QueueFileHandle> handles;
+	private boolean closed;
+
+	public static synchronized QueueFileRegistry getInstance() {
+		if (registry == null) {
+			registry = new QueueFileRegistry(QueueConfig.getProperty("filequeue.location", ""),
+					QueueConfig.getInt("filequeue.handles.max", DEFAULT_MAX_HANDLES));
+			Runtime.getRuntime().addShutdownHook(new Thread(registry::close, "queue-file-registry-shutdown"));
+		}
+		return registry;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param storageLocation
+	 *            Directory containing one sub-directory per queue
+	 * @param maxHandles
+	 *            Maximum number of queue files kept open
+	 */
+	QueueFileRegistry(String storageLocation, int maxHandles) {
+		this.storageLocation = new File(storageLocation);
+		this.maxHandles = Math.max(1, maxHandles);
+		this.handles = new LinkedHashMap<String, QueueFileHandle>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, QueueFileHandle> eldest) {
+				if (size() > QueueFileRegistry.this.maxHandles) {
+					LOGGER.fine("Evicting queue file " + eldest.getKey());
+					if (eldest.getValue().evict()) {
+						eldest.getValue().close();
+					}
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the open handle of a queue, opening the queue file if needed.
+	 * Every acquire must be followed by a release of the same handle.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param initializer
+	 *            Called with the queue file when it is newly created
+	 * @return Handle of the queue
+	 */
+	public QueueFileHandle acquire(String queueUrl, Consumer<RandomAccessFile> initializer) throws IOException {
+		String queueName = queueName(queueUrl);
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Queue file registry is closed");
+			}
+			QueueFileHandle handle = handles.get(queueName);
+			if (handle == null) {
+				handle = open(queueName, initializer);
+				handles.put(queueName, handle);
+			}
+			handle.retain();
+			return handle;
+		}
+	}
+
+	/**
+	 * Releases a handle obtained from acquire.
+	 *
+	 * @param handle
+	 *            Handle to be released, ignored if null
+	 */
+	public void release(QueueFileHandle handle) {
+		if (handle == null) {
+			return;
+		}
+		boolean idle;
+		synchronized (this) {
+			idle = handle.releaseAndCheckIdle();
+		}
+		if (idle) {
+			handle.close();
+		}
+	}
+
+	/**
+	 * Opens or creates the queue file.
+	 *
+	 * @param queueName
+	 *            Name of the queue
+	 * @param initializer
+	 *            Called with the queue file when it is empty
+	 * @return New handle of the queue
+	 */
+	private QueueFileHandle open(String queueName, Consumer<RandomAccessFile> initializer) throws IOException {
+		File directory = new File(storageLocation, queueName);
+		File file = new File(directory, "messages");
+		Files.createParentDirs(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if (raf.length() == 0) {
+			initializer.accept(raf);
+		}
+		return new QueueFileHandle(queueName, directory, raf);
+	}
+
+	/**
+	 * @return Number of queue files currently open in the registry.
+	 */
+	public synchronized int size() {
+		return handles.size();
+	}
+
+	/**
+	 * Closes every handle. Handles still in use are closed on release.
+	 */
+	@Override
+	public void close() {
+		List<QueueFileHandle> idle = new ArrayList<QueueFileHandle>();
+		synchronized (this) {
+			closed = true;
+			for (QueueFileHandle handle : handles.values()) {
+				if (handle.evict()) {
+					idle.add(handle);
+				}
+			}
+			handles.clear();
+		}
+		for (QueueFileHandle handle : idle) {
+			handle.close();
+		}
+	}
+
+	/**
+	 * Get queue name from URL. Parsed names are cached per URL.
+	 *
+	 * @param queueUrl
+	 *            URL used for sqs service
+	 * @return Queue name
+	 *
+	 */
+	public String queueName(String queueUrl) {
+		String queueName = queueNames.get(queueUrl);
+		if (queueName == null) {
+			URI uri = URI.create(queueUrl);
+			String[] segments = uri.getPath().split("/");
+			queueName = segments[segments.length - 1];
+			queueNames.putIfAbsent(queueUrl, queueName);
+		}
+		return queueName;
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue Lock
+ *
+ * Mutual exclusion for a single queue, inside the process and across
+ * processes. Threads of the process first acquire a ReentrantLock; the
+ * outermost holder then takes an exclusive FileLock on the queue lock file.
+ *
+ * Waiters spin briefly with tryLock before parking on the ReentrantLock or
+ * blocking in the operating system for the file lock. File locks are released
+ * by the operating system when a process dies, so a crashed process never
+ * leaves a stale lock behind.
+ *
+ * Wait times of contended acquisitions are recorded to find hot queues, also
+ * in the lock wait histogram of the queue metrics.
+ *
+ * @author Edgar Resma
+ */
+public class QueueLock {
+
+	private static final int SPIN_TRIES = 32;
+
+	private final String name;
+	private final File file;
+	private final ReentrantLock local = new ReentrantLock();
+	private RandomAccessFile raf;
+	private FileLock fileLock;
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder contentions = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final LatencyHistogram waits;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 *            Name of the locked queue
+	 * @param file
+	 *            Lock file shared by all processes using the queue
+	 * @param metrics
+	 *            Metrics of the locked queue
+	 */
+	QueueLock(String name, File file, QueueMetrics metrics) {
+		this.name = name;
+		this.file = file;
+		this.waits = metrics.timer(QueueMetrics.Timer.LOCK_WAIT);
+	}
+
+	/**
+	 * Acquires the lock, waiting for other threads and processes.
+	 */
+	public void lock() throws InterruptedException, IOException {
+		long start = 0;
+		if (!spinLocal()) {
+			start = System.nanoTime();
+			local.lockInterruptibly();
+		}
+		if (local.getHoldCount() == 1) {
+			try {
+				if (!spinFile()) {
+					if (start == 0) {
+						start = System.nanoTime();
+					}
+					lockFile();
+				}
+			} catch (InterruptedException | IOException | RuntimeException e) {
+				local.unlock();
+				throw e;
+			}
+		}
+		acquisitions.increment();
+		if (start != 0) {
+			recordWait(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Releases the lock. The file lock is released with the outermost hold.
+	 */
+	public void unlock() {
+		try {
+			if (local.getHoldCount() == 1 && fileLock != null) {
+				fileLock.release();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (local.getHoldCount() == 1) {
+				fileLock = null;
+			}
+			local.unlock();
+		}
+	}
+
+	private boolean spinLocal() {
+		for (int i = 0; i < SPIN_TRIES; i++) {
+			if (local.tryLock()) {
+				return true;
+			}
+			Thread.yield();
+		}
+		return false;
+	}
+
+	private boolean spinFile() throws IOException {
+		for (int i = 0; i < SPIN_TRIES; i++) {
+			fileLock = channel().tryLock();
+			if (fileLock != null) {
+				return true;
+			}
+			Thread.yield();
+		}
+		return false;
+	}
+
+	/**
+	 * Blocks until the file lock is granted by the operating system.
+	 */
+	private void lockFile() throws InterruptedException, IOException {
+		try {
+			fileLock = channel().lock();
+		} catch (ClosedChannelException e) {
+			// an interrupt closes the channel; it is reopened on next use
+			raf = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException("Interrupted while waiting for lock of " + name);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the channel of the lock file, opening it if needed. Called by
+	 * the local lock holder only.
+	 */
+	private FileChannel channel() throws IOException {
+		if (raf == null || !raf.getChannel().isOpen()) {
+			file.getParentFile().mkdirs();
+			raf = new RandomAccessFile(file, "rw");
+		}
+		return raf.getChannel();
+	}
+
+	private void recordWait(long nanos) {
+		contentions.increment();
+		waitNanos.add(nanos);
+		waits.record(nanos);
+		long max;
+		while ((max = maxWaitNanos.get()) < nanos && !maxWaitNanos.compareAndSet(max, nanos)) {
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Number of times the lock was acquired.
+	 */
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	/**
+	 * @return Number of acquisitions that had to wait.
+	 */
+	public long getContentions() {
+		return contentions.sum();
+	}
+
+	/**
+	 * @return Total time spent waiting for the lock in nanoseconds.
+	 */
+	public long getWaitNanos() {
+		return waitNanos.sum();
+	}
+
+	/**
+	 * @return Longest wait for the lock in nanoseconds.
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+}
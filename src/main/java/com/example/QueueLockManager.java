@@ -0,0 +1,163 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Queue Lock Manager
+ *
+ * Hands out one QueueLock per queue directory for the whole process. File locks
+ * are held on behalf of the process, so every user of a queue in the process
+ * must share the same QueueLock.
+ *
+ * Besides the queue lock, a queue has a tail lock on a separate file for
+ * backends whose appends only write past the published tail. Producers holding
+ * the tail lock then proceed while consumers hold the queue lock. Whoever needs
+ * both takes the queue lock first. The delayed lock of a queue guards its
+ * delayed messages and is taken before the others.
+ *
+ * A FIFO queue is claimed by the first process using it with a FileLock on its
+ * fifo lock file, held until the process exits. A queue of the mapped storage
+ * is claimed the same way on its mapped lock file.
+ *
+ * @author Edgar Resma
+ */
+public class QueueLockManager {
+
+	public static final String LOCK_FILE_NAME = "queue.lock";
+	public static final String TAIL_LOCK_FILE_NAME = "tail.lock";
+	public static final String DELAYED_LOCK_FILE_NAME = "delayed.lock";
+	public static final String FIFO_LOCK_FILE_NAME = "fifo.lock";
+	public static final String MAPPED_LOCK_FILE_NAME = "mapped.lock";
+
+	private static QueueLockManager lockManager;
+
+	private final ConcurrentMap<File, QueueLock> locks = new ConcurrentHashMap<File, QueueLock>();
+	private final Map<File, FileLock> claims = new HashMap<File, FileLock>();
+
+	public static synchronized QueueLockManager getInstance() {
+		if (lockManager == null) {
+			lockManager = new QueueLockManager();
+		}
+		return lockManager;
+	}
+
+	private QueueLockManager() {
+	}
+
+	/**
+	 * Returns the lock of a queue.
+	 *
+	 * @param directory
+	 *            Directory holding the queue files
+	 * @return Lock shared by every user of the queue in the process
+	 */
+	public QueueLock forDirectory(File directory) {
+		return forFile(directory.getName(), directory.getName(), new File(directory, LOCK_FILE_NAME));
+	}
+
+	/**
+	 * Returns the tail lock of a queue, guarding appends only.
+	 *
+	 * @param directory
+	 *            Directory holding the queue files
+	 * @return Tail lock shared by every user of the queue in the process
+	 */
+	public QueueLock forTail(File directory) {
+		return forFile(directory.getName() + "/tail", directory.getName(), new File(directory, TAIL_LOCK_FILE_NAME));
+	}
+
+	/**
+	 * Returns the delayed lock of a queue, guarding its delayed messages.
+	 *
+	 * @param directory
+	 *            Directory holding the queue files
+	 * @return Delayed lock shared by every user of the queue in the process
+	 */
+	public QueueLock forDelayed(File directory) {
+		return forFile(directory.getName() + "/delayed", directory.getName(),
+				new File(directory, DELAYED_LOCK_FILE_NAME));
+	}
+
+	/**
+	 * Claims a FIFO queue for the process. Claiming a queue the process has
+	 * already claimed has no effect.
+	 *
+	 * @param directory
+	 *            Directory holding the FIFO queue files
+	 * @throws IllegalStateException
+	 *             If another process has claimed the queue
+	 */
+	public void claim(File directory) {
+		claim(directory, FIFO_LOCK_FILE_NAME);
+	}
+
+	/**
+	 * Claims a queue for the process on the given lock file. Claiming a queue
+	 * the process has already claimed has no effect.
+	 *
+	 * @param directory
+	 *            Directory holding the queue files
+	 * @param lockFileName
+	 *            Name of the lock file of the claim
+	 * @throws IllegalStateException
+	 *             If another process has claimed the queue
+	 */
+	public synchronized void claim(File directory, String lockFileName) {
+		File file = new File(directory, lockFileName).getAbsoluteFile();
+		if (claims.containsKey(file)) {
+			return;
+		}
+		FileLock claim;
+		try {
+			file.getParentFile().mkdirs();
+			// the channel stays open with the claim until the process exits
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			claim = channel.tryLock();
+			if (claim == null) {
+				channel.close();
+				throw new IllegalStateException(
+						"Queue " + directory.getName() + " is used by another process.");
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		claims.put(file, claim);
+	}
+
+	private QueueLock forFile(String name, String queueName, File lockFile) {
+		File file = lockFile.getAbsoluteFile();
+		QueueLock lock = locks.get(file);
+		if (lock == null) {
+			QueueLock created = new QueueLock(name, file, MetricsRegistry.getInstance().forName(queueName));
+			lock = locks.putIfAbsent(file, created);
+			if (lock == null) {
+				lock = created;
+			}
+		}
+		return lock;
+	}
+
+	/**
+	 * @return Locks of all queues sorted by total wait time, most contended
+	 *         first.
+	 */
+	public List<QueueLock> getStatistics() {
+		List<QueueLock> statistics = new ArrayList<QueueLock>(locks.values());
+		Collections.sort(statistics, Comparator.comparingLong(QueueLock::getWaitNanos).reversed());
+		return statistics;
+	}
+
+}
@@ -0,0 +1,410 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Queue Metrics
+ *
+ * Counters, latency histograms and gauges of a single queue as seen by this
+ * process. Counters are striped LongAdders and histograms have fixed buckets,
+ * so producers and consumers record on the hot path without a lock.
+ *
+ * Depth and in-flight count follow from the counters. The age of the oldest
+ * message is taken from push times sampled every AGE_RESOLUTION_MILLIS, so it
+ * is exact to that resolution while the samples fit in MAX_AGE_SAMPLES. Other
+ * processes sharing a file queue are not seen; the file size is read from the
+ * storage.
+ *
+ * The metrics are published as a dynamic MBean with one attribute per counter,
+ * gauge and histogram statistic, e.g. Pushed, Depth or PushP99Micros.
+ *
+ * @author Edgar Resma
+ */
+public class QueueMetrics implements DynamicMBean {
+
+	public enum Counter {
+		PUSHED, PULLED, DELETED, REQUEUED, EXPIRED, DEAD_LETTERED, COMPACTED_BYTES
+	}
+
+	public enum Timer {
+		PUSH, PULL, DELETE, REQUEUE, LOCK_WAIT, FSYNC, COMPACTION
+	}
+
+	public enum Gauge {
+		DEPTH, IN_FLIGHT, OLDEST_AGE_MILLIS, FILE_SIZE
+	}
+
+	private static final long AGE_RESOLUTION_MILLIS = 100;
+	private static final int MAX_AGE_SAMPLES = 4096;
+
+	private final String queueName;
+	private final LongAdder[] counters = new LongAdder[Counter.values().length];
+	private final LatencyHistogram[] timers = new LatencyHistogram[Timer.values().length];
+	private final Queue<long[]> ageSamples = new ConcurrentLinkedQueue<long[]>();
+	private final AtomicInteger ageSampleCount = new AtomicInteger();
+	private volatile long lastSampleMillis;
+	private volatile LongSupplier fileSize;
+	private final MBeanInfo info;
+
+	/**
+	 * Constructor
+	 *
+	 * @param queueName
+	 *            Name of the queue
+	 */
+	public QueueMetrics(String queueName) {
+		this.queueName = queueName;
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = new LatencyHistogram();
+		}
+		this.info = buildInfo();
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	/**
+	 * Counts pushed messages and samples their push time.
+	 *
+	 * @param messages
+	 *            Number of messages pushed
+	 * @param startNanos
+	 *            Start of the push read from System.nanoTime
+	 */
+	public void pushed(int messages, long startNanos) {
+		long now = System.currentTimeMillis();
+		if (now - lastSampleMillis >= AGE_RESOLUTION_MILLIS) {
+			samplePush(now);
+		}
+		counters[Counter.PUSHED.ordinal()].add(messages);
+		timers[Timer.PUSH.ordinal()].recordSince(startNanos);
+	}
+
+	/**
+	 * Remembers the number of messages pushed before now. Messages pushed
+	 * from now on are at most as old as the sample.
+	 */
+	private void samplePush(long now) {
+		lastSampleMillis = now;
+		prune();
+		if (ageSampleCount.get() < MAX_AGE_SAMPLES) {
+			ageSamples.add(new long[] { counters[Counter.PUSHED.ordinal()].sum(), now });
+			ageSampleCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drops the samples of messages already consumed, keeping the sample of
+	 * the oldest message left.
+	 */
+	private void prune() {
+		long consumed = consumed();
+		long[] oldest;
+		while ((oldest = ageSamples.peek()) != null && oldest[0] < consumed && isConsumed(consumed, oldest)) {
+			if (ageSamples.remove(oldest)) {
+				ageSampleCount.decrementAndGet();
+			}
+		}
+	}
+
+	private boolean isConsumed(long consumed, long[] oldest) {
+		for (long[] sample : ageSamples) {
+			if (sample != oldest) {
+				return sample[0] <= consumed;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Number of messages taken out of the queue for good, counting
+	 *         returned messages as not taken.
+	 */
+	private long consumed() {
+		return sum(Counter.PULLED) + sum(Counter.DEAD_LETTERED) - sum(Counter.REQUEUED) - sum(Counter.EXPIRED);
+	}
+
+	/**
+	 * Counts pulled messages. Empty pulls only record their latency.
+	 *
+	 * @param messages
+	 *            Number of messages pulled
+	 * @param startNanos
+	 *            Start of the pull read from System.nanoTime
+	 */
+	public void pulled(int messages, long startNanos) {
+		if (messages > 0) {
+			counters[Counter.PULLED.ordinal()].add(messages);
+		}
+		timers[Timer.PULL.ordinal()].recordSince(startNanos);
+	}
+
+	/**
+	 * Counts deleted messages.
+	 *
+	 * @param messages
+	 *            Number of messages deleted
+	 * @param startNanos
+	 *            Start of the delete read from System.nanoTime
+	 */
+	public void deleted(int messages, long startNanos) {
+		if (messages > 0) {
+			counters[Counter.DELETED.ordinal()].add(messages);
+		}
+		timers[Timer.DELETE.ordinal()].recordSince(startNanos);
+	}
+
+	/**
+	 * Counts a message returned into the queue by its consumer.
+	 *
+	 * @param startNanos
+	 *            Start of the re-queue read from System.nanoTime
+	 */
+	public void requeued(long startNanos) {
+		counters[Counter.REQUEUED.ordinal()].increment();
+		timers[Timer.REQUEUE.ordinal()].recordSince(startNanos);
+	}
+
+	/**
+	 * Counts messages returned into the queue by an expired visibility
+	 * timeout.
+	 *
+	 * @param messages
+	 *            Number of messages returned
+	 */
+	public void expired(int messages) {
+		counters[Counter.EXPIRED.ordinal()].add(messages);
+	}
+
+	/**
+	 * Counts messages moved to the dead-letter queue instead of being
+	 * delivered.
+	 *
+	 * @param messages
+	 *            Number of messages moved
+	 */
+	public void deadLettered(int messages) {
+		counters[Counter.DEAD_LETTERED.ordinal()].add(messages);
+	}
+
+	/**
+	 * Records a compaction that removed deleted messages from the file.
+	 *
+	 * @param bytes
+	 *            Number of bytes removed
+	 * @param startNanos
+	 *            Start of the compaction read from System.nanoTime
+	 */
+	public void compacted(long bytes, long startNanos) {
+		counters[Counter.COMPACTED_BYTES.ordinal()].add(bytes);
+		timers[Timer.COMPACTION.ordinal()].recordSince(startNanos);
+	}
+
+	/**
+	 * @param timer
+	 *            Measured operation
+	 * @return Histogram of the operation
+	 */
+	public LatencyHistogram timer(Timer timer) {
+		return timers[timer.ordinal()];
+	}
+
+	/**
+	 * @param counter
+	 *            Counted event
+	 * @return Current value of the counter
+	 */
+	public long sum(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * Sets where the file size is read from, unless already set.
+	 *
+	 * @param fileSize
+	 *            Size of the queue files in bytes
+	 */
+	public void fileSizeIfAbsent(LongSupplier fileSize) {
+		if (this.fileSize == null) {
+			this.fileSize = fileSize;
+		}
+	}
+
+	public boolean hasFileSize() {
+		return fileSize != null;
+	}
+
+	/**
+	 * @param gauge
+	 *            Measured state
+	 * @return Current value of the gauge, never negative
+	 */
+	public long gauge(Gauge gauge) {
+		switch (gauge) {
+		case DEPTH:
+			return Math.max(0, sum(Counter.PUSHED) - consumed());
+		case IN_FLIGHT:
+			return inFlight();
+		case OLDEST_AGE_MILLIS:
+			return oldestAgeMillis();
+		default:
+			LongSupplier size = fileSize;
+			return size != null ? size.getAsLong() : 0;
+		}
+	}
+
+	private long inFlight() {
+		return Math.max(0, consumed() - sum(Counter.DELETED) - sum(Counter.DEAD_LETTERED));
+	}
+
+	private long oldestAgeMillis() {
+		prune();
+		long consumed = consumed();
+		if (consumed >= sum(Counter.PUSHED)) {
+			return 0;
+		}
+		long[] oldest = ageSamples.peek();
+		return oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest[1]);
+	}
+
+	/**
+	 * Reports every counter, gauge and histogram of the queue.
+	 *
+	 * @param reporter
+	 *            Receiver of the metrics
+	 */
+	public void report(MetricsReporter reporter) {
+		for (Counter counter : Counter.values()) {
+			reporter.counter(queueName, metricName(counter), sum(counter));
+		}
+		for (Gauge gauge : Gauge.values()) {
+			reporter.gauge(queueName, metricName(gauge), gauge(gauge));
+		}
+		for (Timer timer : Timer.values()) {
+			reporter.histogram(queueName, metricName(timer), timer(timer).snapshot());
+		}
+	}
+
+	private static String metricName(Enum<?> metric) {
+		return metric.name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return Values of all attributes of the MBean by attribute name.
+	 */
+	public Map<String, Long> attributes() {
+		final Map<String, Long> attributes = new LinkedHashMap<String, Long>();
+		report(new MetricsReporter() {
+			@Override
+			public void counter(String queueName, String name, long value) {
+				attributes.put(attributeName(name), value);
+			}
+
+			@Override
+			public void gauge(String queueName, String name, long value) {
+				attributes.put(attributeName(name), value);
+			}
+
+			@Override
+			public void histogram(String queueName, String name, LatencyHistogram.Snapshot snapshot) {
+				String prefix = attributeName(name);
+				attributes.put(prefix + "Count", snapshot.getCount());
+				attributes.put(prefix + "MeanMicros", snapshot.getMeanMicros());
+				attributes.put(prefix + "P50Micros", snapshot.getPercentileMicros(0.5));
+				attributes.put(prefix + "P99Micros", snapshot.getPercentileMicros(0.99));
+				attributes.put(prefix + "P999Micros", snapshot.getPercentileMicros(0.999));
+				attributes.put(prefix + "MaxMicros", snapshot.getMaxMicros());
+			}
+		});
+		return attributes;
+	}
+
+	/**
+	 * @return Metric name in upper camel case, e.g. LockWait for lock_wait.
+	 */
+	private static String attributeName(String name) {
+		StringBuilder attribute = new StringBuilder(name.length());
+		boolean upper = true;
+		for (char c : name.toCharArray()) {
+			if (c == '_') {
+				upper = true;
+			} else {
+				attribute.append(upper ? Character.toUpperCase(c) : c);
+				upper = false;
+			}
+		}
+		return attribute.toString();
+	}
+
+	private MBeanInfo buildInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : attributes().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of queue " + queueName,
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = attributes().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] names) {
+		Map<String, Long> attributes = attributes();
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			if (attributes.containsKey(name)) {
+				list.add(new Attribute(name, attributes.get(name)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Queue metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return info;
+	}
+
+}
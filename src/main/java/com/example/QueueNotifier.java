@@ -0,0 +1,231 @@
+package com.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Queue Notifier
+ *
+ * Wakes consumers waiting for messages on file queues. Every queue has a
+ * version that is increased whenever messages may have become available.
+ * Pushes and re-queues of the process signal the queue directly. Messages
+ * written by other processes are noticed by a single poller thread which, while
+ * consumers are waiting, compares FileQueue.version of the awaited queues every
+ * filequeue.poll.interval milliseconds. Waiting consumers never read the disk
+ * themselves and the poller sleeps while nobody waits.
+ *
+ * @author Edgar Resma
+ */
+public class QueueNotifier {
+
+	private final static Logger LOGGER = Logger.getLogger(QueueNotifier.class.getName());
+
+	private static QueueNotifier queueNotifier;
+
+	private final ConcurrentMap<String, Waiters> queues = new ConcurrentHashMap<String, Waiters>();
+	private final long pollIntervalMillis;
+	private int waiting;
+	private Thread poller;
+
+	public static synchronized QueueNotifier getInstance() {
+		if (queueNotifier == null) {
+			queueNotifier = new QueueNotifier(QueueConfig.getLong("filequeue.poll.interval", 100));
+		}
+		return queueNotifier;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param pollIntervalMillis
+	 *            Time between two checks for messages of other processes
+	 */
+	QueueNotifier(long pollIntervalMillis) {
+		this.pollIntervalMillis = Math.max(1, pollIntervalMillis);
+	}
+
+	/**
+	 * Returns the current version of a queue. Read it before pulling so that a
+	 * message arriving right after the pull is not missed by await.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Version of the queue
+	 */
+	public long version(String queueUrl) {
+		Waiters waiters = waiters(queueUrl);
+		synchronized (waiters) {
+			return waiters.version;
+		}
+	}
+
+	/**
+	 * Wakes the consumers waiting on a queue.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 */
+	public void signal(String queueUrl) {
+		Waiters waiters = queues.get(queueUrl);
+		if (waiters != null) {
+			synchronized (waiters) {
+				waiters.version++;
+				waiters.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until the queue is signalled after the given versions were read
+	 * or the timeout elapses.
+	 *
+	 * @param queueFile
+	 *            File storage service holding the queue
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param seenVersion
+	 *            Version returned by version before the last pull
+	 * @param seenFileVersion
+	 *            FileQueue.version read before the last pull
+	 * @param timeoutNanos
+	 *            Maximum time to wait
+	 */
+	public void await(FileQueue queueFile, String queueUrl, long seenVersion, long seenFileVersion,
+			long timeoutNanos) throws InterruptedException {
+		long fileVersion = queueFile.version(queueUrl);
+		if (fileVersion != seenFileVersion) {
+			return;
+		}
+		Waiters waiters = waiters(queueUrl);
+		long deadline = System.nanoTime() + timeoutNanos;
+		synchronized (waiters) {
+			if (waiters.count == 0) {
+				waiters.queueFile = queueFile;
+				waiters.fileVersion = fileVersion;
+			}
+			waiters.count++;
+		}
+		register();
+		try {
+			synchronized (waiters) {
+				long remaining = timeoutNanos;
+				while (waiters.version == seenVersion && remaining > 0) {
+					TimeUnit.NANOSECONDS.timedWait(waiters, remaining);
+					remaining = deadline - System.nanoTime();
+				}
+			}
+		} finally {
+			synchronized (waiters) {
+				waiters.count--;
+			}
+			unregister();
+		}
+	}
+
+	/**
+	 * Waits until the queue is signalled after the given version was read or
+	 * the timeout elapses, for queues whose messages become available only by
+	 * this process, like FIFO queues, so no file is polled.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param seenVersion
+	 *            Version returned by version before the last pull
+	 * @param timeoutNanos
+	 *            Maximum time to wait
+	 */
+	public void await(String queueUrl, long seenVersion, long timeoutNanos) throws InterruptedException {
+		Waiters waiters = waiters(queueUrl);
+		long deadline = System.nanoTime() + timeoutNanos;
+		synchronized (waiters) {
+			long remaining = timeoutNanos;
+			while (waiters.version == seenVersion && remaining > 0) {
+				TimeUnit.NANOSECONDS.timedWait(waiters, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+		}
+	}
+
+	private Waiters waiters(String queueUrl) {
+		return queues.computeIfAbsent(queueUrl, url -> new Waiters());
+	}
+
+	/**
+	 * Counts a waiting consumer and starts the poller on first use.
+	 */
+	private synchronized void register() {
+		waiting++;
+		if (poller == null) {
+			poller = new Thread(this::poll, "queue-notifier");
+			poller.setDaemon(true);
+			poller.start();
+		}
+		notifyAll();
+	}
+
+	private synchronized void unregister() {
+		waiting--;
+	}
+
+	/**
+	 * Poller loop. Signals the awaited queues whose files have changed.
+	 */
+	private void poll() {
+		while (true) {
+			try {
+				synchronized (this) {
+					while (waiting == 0) {
+						wait();
+					}
+				}
+				Thread.sleep(pollIntervalMillis);
+				for (Map.Entry<String, Waiters> entry : queues.entrySet()) {
+					check(entry.getKey(), entry.getValue());
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				// the poller must survive a failing queue
+				LOGGER.severe(e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Signals a queue if its file has changed since the waiters started.
+	 */
+	private void check(String queueUrl, Waiters waiters) {
+		FileQueue queueFile;
+		long fileVersion;
+		synchronized (waiters) {
+			if (waiters.count == 0) {
+				return;
+			}
+			queueFile = waiters.queueFile;
+			fileVersion = waiters.fileVersion;
+		}
+		long current = queueFile.version(queueUrl);
+		if (current != fileVersion) {
+			synchronized (waiters) {
+				waiters.fileVersion = current;
+				waiters.version++;
+				waiters.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Consumers waiting on a single queue.
+	 */
+	private static class Waiters {
+		private long version;
+		private int count;
+		private FileQueue queueFile;
+		private long fileVersion;
+	}
+
+}
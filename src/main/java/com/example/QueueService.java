@@ -1,9 +1,31 @@
 package com.example;
 
+import java.util.List;
+
 import com.amazonaws.services.sqs.model.Message;
 
 public interface QueueService {
 
+	/**
+	 * Maximum number of entries in a batch request, same as SQS.
+	 */
+	int MAX_BATCH_SIZE = 10;
+
+	/**
+	 * Maximum wait time of a long poll in seconds, same as SQS.
+	 */
+	int MAX_WAIT_TIME_SECONDS = 20;
+
+	/**
+	 * Maximum delay of a message in seconds, same as SQS.
+	 */
+	int MAX_DELAY_SECONDS = 900;
+
+	/**
+	 * Maximum length of a message group id, same as SQS.
+	 */
+	int MAX_MESSAGE_GROUP_ID_LENGTH = 128;
+
 	/**
 	 * This method adds a message into the end of the QueueFile.
 	 * 
@@ -13,6 +35,36 @@ public interface QueueService {
 	 *            Message to be added into the queue
 	 */
 	void push(String queueUrl, String message);
+	/**
+	 * This method adds a message into the end of the Queue once the delay has
+	 * passed. The message cannot be pulled before.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @param delaySeconds
+	 *            Time the message is held back, from 0 to 900 seconds
+	 */
+	void pushDelayed(String queueUrl, String message, int delaySeconds);
+	/**
+	 * This method adds a message into the end of its message group of a FIFO
+	 * queue, a queue named with the .fifo suffix. Messages of a group are
+	 * pulled in order and one at a time: the next message of a group is held
+	 * back until the pulled one is deleted or returned. A message whose
+	 * deduplication id was pushed within fifo.deduplication.window
+	 * milliseconds is dropped.
+	 * 
+	 * @param queueUrl
+	 *            URL of the FIFO queue
+	 * @param message
+	 *            Message to be added into the queue
+	 * @param messageGroupId
+	 *            Group of the message, up to 128 characters
+	 * @param messageDeduplicationId
+	 *            Deduplication id or null to deduplicate by the message body
+	 */
+	void pushFifo(String queueUrl, String message, String messageGroupId, String messageDeduplicationId);
 	/**
 	 * This method pulls the value from the top of Queue File and deletes it.
 	 * 
@@ -22,6 +74,17 @@ public interface QueueService {
 	 *         delete method and the message from the queue
 	 */
 	Message pull(String queueUrl);
+	/**
+	 * This method pulls the value from the top of the Queue, waiting for a
+	 * message to arrive if the queue is empty.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param waitTimeSeconds
+	 *            Maximum time to wait for a message, from 0 to 20 seconds
+	 * @return Message pulled from the queue or null if none arrived in time
+	 */
+	Message pull(String queueUrl, int waitTimeSeconds);
 	/**
 	 * This method deletes the message using the given receipt handle..
 	 * 
@@ -31,5 +94,42 @@ public interface QueueService {
 	 *            Identifier of the message to be deleted
 	 */
 	void delete(String queueUrl, String receiptHandle);
-	
+	/**
+	 * This method adds up to ten messages into the end of the QueueFile in
+	 * the given order.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param messages
+	 *            Messages to be added into the queue
+	 * @throws com.amazonaws.services.sqs.model.EmptyBatchRequestException
+	 *             If no message is given
+	 * @throws com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException
+	 *             If more than ten messages are given
+	 */
+	void pushBatch(String queueUrl, List<String> messages);
+	/**
+	 * This method pulls up to maxMessages values from the top of the Queue.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param maxMessages
+	 *            Maximum number of messages returned, from 1 to 10
+	 * @return Pulled messages in queue order, empty if the queue is empty
+	 */
+	List<Message> pullBatch(String queueUrl, int maxMessages);
+	/**
+	 * This method deletes up to ten messages using their receipt handles.
+	 * 
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @param receiptHandles
+	 *            Identifiers of the messages to be deleted
+	 * @throws com.amazonaws.services.sqs.model.EmptyBatchRequestException
+	 *             If no receipt handle is given
+	 * @throws com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException
+	 *             If more than ten receipt handles are given
+	 */
+	void deleteBatch(String queueUrl, List<String> receiptHandles);
+
 }
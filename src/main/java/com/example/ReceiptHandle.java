@@ -0,0 +1,146 @@
+package com.example;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receipt Handle
+ *
+ * Receipt of a single delivery of a message. A handle packs a tag of the queue
+ * name, the position of the message in its storage and the generation of the
+ * delivery into a short url-safe token: 4 bytes of tag followed by position and
+ * generation as variable length numbers, in Base64 without padding. Small
+ * positions and generations give tokens of 8 to 16 characters.
+ *
+ * A storage keeps the generation of the last delivery with the message, so it
+ * validates a receipt by comparing two numbers at the position of the handle
+ * without reading the message. Handles of other queues are told apart by their
+ * tag, malformed handles decode to null. Generations are counters instead of
+ * random numbers, so issuing a receipt never draws from SecureRandom.
+ *
+ * @author Edgar Resma
+ */
+public final class ReceiptHandle {
+
+	private static final int MAX_SIZE = 4 + 10 + 10;
+	private static final AtomicLong generations = new AtomicLong();
+
+	private final long position;
+	private final long generation;
+
+	private ReceiptHandle(long position, long generation) {
+		this.position = position;
+		this.generation = generation;
+	}
+
+	/**
+	 * @return Generation unique within the process, for storages that keep no
+	 *         counter of their own.
+	 */
+	public static long nextGeneration() {
+		return generations.incrementAndGet();
+	}
+
+	/**
+	 * Creates the token of a delivery.
+	 *
+	 * @param queueName
+	 *            Name of the queue the message was pulled from
+	 * @param position
+	 *            Position of the message in its storage, not negative
+	 * @param generation
+	 *            Generation of the delivery, not negative
+	 * @return Token given to the consumer as receipt handle
+	 */
+	public static String encode(String queueName, long position, long generation) {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_SIZE);
+		buffer.putInt(queueName.hashCode());
+		putVarLong(buffer, position);
+		putVarLong(buffer, generation);
+		buffer.flip();
+		ByteBuffer token = Base64.getUrlEncoder().withoutPadding().encode(buffer);
+		return new String(token.array(), 0, token.limit(), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Reads a token created by encode.
+	 *
+	 * @param queueName
+	 *            Name of the queue the token is used with
+	 * @param token
+	 *            Receipt handle given by the consumer
+	 * @return Decoded handle or null if the token is malformed or belongs to
+	 *         another queue
+	 */
+	public static ReceiptHandle decode(String queueName, String token) {
+		if (token == null || token.length() > (MAX_SIZE * 4 + 2) / 3) {
+			return null;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(token));
+			if (buffer.getInt() != queueName.hashCode()) {
+				return null;
+			}
+			long position = getVarLong(buffer);
+			long generation = getVarLong(buffer);
+			if (buffer.hasRemaining() || position < 0 || generation < 0) {
+				return null;
+			}
+			return new ReceiptHandle(position, generation);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the queue tag of a token, so that the queue of a token is found
+	 * among several queues with one lookup.
+	 *
+	 * @param token
+	 *            Receipt handle given by the consumer
+	 * @return Hash code of the name of the queue of the token, 0 if the token
+	 *         is malformed
+	 */
+	public static int tag(String token) {
+		if (token == null || token.length() > (MAX_SIZE * 4 + 2) / 3) {
+			return 0;
+		}
+		try {
+			return ByteBuffer.wrap(Base64.getUrlDecoder().decode(token)).getInt();
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			return 0;
+		}
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed receipt handle");
+	}
+
+}
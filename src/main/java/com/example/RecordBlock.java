@@ -0,0 +1,234 @@
+package com.example;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Record Block
+ *
+ * Records of a batch of messages compressed together, so that the repeated
+ * field names and values of small messages compress as well as one large
+ * message. A block is built by adding the records in order and compressed
+ * with the Deflater of the JDK, or decompressed once and then read record by
+ * record.
+ *
+ * Compressed Block: <Codec 1 Byte><Record Count varint><Raw Size
+ * varint><Compressed n Bytes> - Raw Size is the size of the uncompressed
+ * records, each stored as <Record Size varint><Record n Bytes>.
+ *
+ * Deflaters and inflaters are kept per thread and reset before each use, so
+ * their native memory is not allocated for every block.
+ *
+ * @author Edgar Resma
+ */
+public class RecordBlock {
+
+	public static final byte DEFLATE = 1;
+
+	private static final int INITIAL_SIZE = 4096;
+	private static final int MAX_VAR_SIZE = 5;
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater();
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private byte[] data;
+	private int size;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int count;
+	private long position = -1;
+	private long id;
+
+	/**
+	 * Creates an empty block to add records to.
+	 */
+	public RecordBlock() {
+		this.data = new byte[INITIAL_SIZE];
+	}
+
+	private RecordBlock(byte[] data, long position, long id) {
+		this.data = data;
+		this.size = data.length;
+		this.position = position;
+		this.id = id;
+	}
+
+	/**
+	 * Adds a record after the records of the block.
+	 *
+	 * @param record
+	 *            Record between position and limit, left unchanged
+	 */
+	public void add(ByteBuffer record) {
+		int length = record.remaining();
+		if (data.length - size < MAX_VAR_SIZE + length) {
+			data = Arrays.copyOf(data, Math.max(2 * data.length, size + MAX_VAR_SIZE + length));
+		}
+		ByteBuffer target = ByteBuffer.wrap(data, size, data.length - size);
+		ReceiptHandle.putVarLong(target, length);
+		int start = target.position();
+		target.put(record.duplicate());
+		addBounds(start, start + length);
+		size = target.position();
+	}
+
+	/**
+	 * @param index
+	 *            Index of the record in the block
+	 * @return Record between position and limit, backed by the block
+	 */
+	public ByteBuffer record(int index) {
+		if (index < 0 || index >= count) {
+			throw new IllegalArgumentException("No record " + index + " in a block of " + count);
+		}
+		return ByteBuffer.wrap(data, starts[index], ends[index] - starts[index]);
+	}
+
+	/**
+	 * @return Number of records in the block
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * @return Size of the uncompressed records in bytes
+	 */
+	public int rawSize() {
+		return size;
+	}
+
+	/**
+	 * Removes all records to build the next block.
+	 */
+	public void clear() {
+		size = 0;
+		count = 0;
+	}
+
+	/**
+	 * @param position
+	 *            Position of the block entry in the queue file
+	 * @param id
+	 *            Id of the block entry
+	 * @return true if the block was decompressed from that block entry
+	 */
+	public boolean isAt(long position, long id) {
+		return this.position == position && this.id == id;
+	}
+
+	/**
+	 * Compresses the records of the block.
+	 *
+	 * @param level
+	 *            Deflater level from 1 for the fastest to 9 for the smallest
+	 * @return Compressed block between position and limit
+	 */
+	public ByteBuffer compress(int level) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(data, 0, size);
+		deflater.finish();
+		byte[] compressed = new byte[1 + 2 * MAX_VAR_SIZE + size / 2 + 64];
+		ByteBuffer header = ByteBuffer.wrap(compressed);
+		header.put(DEFLATE);
+		ReceiptHandle.putVarLong(header, count);
+		ReceiptHandle.putVarLong(header, size);
+		int length = header.position();
+		while (!deflater.finished()) {
+			if (length == compressed.length) {
+				compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+			}
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		return ByteBuffer.wrap(compressed, 0, length);
+	}
+
+	/**
+	 * Decompresses a block.
+	 *
+	 * @param compressed
+	 *            Compressed block between position and limit
+	 * @param position
+	 *            Position of the block entry in the queue file
+	 * @param id
+	 *            Id of the block entry
+	 * @return Block holding the records
+	 * @throws IllegalArgumentException
+	 *             If the block is malformed or of an unknown codec
+	 */
+	public static RecordBlock decompress(ByteBuffer compressed, long position, long id) {
+		ByteBuffer buffer = compressed.duplicate();
+		if (!buffer.hasRemaining() || buffer.get() != DEFLATE) {
+			throw new IllegalArgumentException("Unknown block codec at " + position);
+		}
+		long recordCount;
+		long rawSize;
+		try {
+			recordCount = ReceiptHandle.getVarLong(buffer);
+			rawSize = ReceiptHandle.getVarLong(buffer);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated block at " + position, e);
+		}
+		if (recordCount < 0 || rawSize < 0 || rawSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Malformed block at " + position);
+		}
+		RecordBlock block = new RecordBlock(new byte[(int) rawSize], position, id);
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		try {
+			int inflated = 0;
+			while (inflated < rawSize && !inflater.finished() && !inflater.needsInput()) {
+				inflated += inflater.inflate(block.data, inflated, block.data.length - inflated);
+			}
+			if (inflated != rawSize) {
+				throw new IllegalArgumentException("Truncated block at " + position);
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Malformed block at " + position, e);
+		}
+		ByteBuffer records = ByteBuffer.wrap(block.data);
+		try {
+			while (records.hasRemaining()) {
+				long length = ReceiptHandle.getVarLong(records);
+				if (length < 0 || length > records.remaining()) {
+					throw new IllegalArgumentException("Truncated block at " + position);
+				}
+				block.addBounds(records.position(), records.position() + (int) length);
+				records.position(records.position() + (int) length);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated block at " + position, e);
+		}
+		if (block.count != recordCount) {
+			throw new IllegalArgumentException("Malformed block at " + position);
+		}
+		return block;
+	}
+
+	private void addBounds(int start, int end) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, 2 * count);
+			ends = Arrays.copyOf(ends, 2 * count);
+		}
+		starts[count] = start;
+		ends[count] = end;
+		count++;
+	}
+
+}
@@ -0,0 +1,121 @@
+package com.example;
+
+import java.net.URI;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Redrive Policy
+ *
+ * Moves messages that were received too often to a dead-letter queue. The
+ * storages count the receives of every message and return the count of a
+ * delivery in the ApproximateReceiveCount attribute of the pulled message.
+ * Once the count exceeds maxReceiveCount the Queue Service adds the message to
+ * the dead-letter queue and removes it from its queue instead of delivering
+ * it, so a message that keeps failing stops coming back to the head.
+ *
+ * The policy of a queue is read from queue.redrive.<queue name> as
+ * <maxReceiveCount>,<dead-letter queue>, where the dead-letter queue is a URL
+ * or the name of a queue next to the source queue. Limits follow SQS.
+ *
+ * @author Edgar Resma
+ */
+public final class RedrivePolicy {
+
+	private final static Logger LOGGER = Logger.getLogger(RedrivePolicy.class.getName());
+
+	public static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+	public static final int MAX_RECEIVE_COUNT = 1000;
+
+	/**
+	 * Policy of queues without a dead-letter queue.
+	 */
+	public static final RedrivePolicy NONE = new RedrivePolicy();
+
+	private final int maxReceiveCount;
+	private final String deadLetterQueueUrl;
+
+	private RedrivePolicy() {
+		this.maxReceiveCount = Integer.MAX_VALUE;
+		this.deadLetterQueueUrl = null;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxReceiveCount
+	 *            Receives of a message before it is moved, from 1 to 1000
+	 * @param deadLetterQueueUrl
+	 *            URL of the queue the messages are moved to
+	 */
+	public RedrivePolicy(int maxReceiveCount, String deadLetterQueueUrl) {
+		if (maxReceiveCount < 1 || maxReceiveCount > MAX_RECEIVE_COUNT) {
+			throw new IllegalArgumentException("Value " + maxReceiveCount + " for maxReceiveCount must be between 1 and "
+					+ MAX_RECEIVE_COUNT);
+		}
+		if (deadLetterQueueUrl == null || deadLetterQueueUrl.isEmpty()) {
+			throw new IllegalArgumentException("A dead-letter queue is required.");
+		}
+		this.maxReceiveCount = maxReceiveCount;
+		this.deadLetterQueueUrl = deadLetterQueueUrl;
+	}
+
+	/**
+	 * Reads the policy of a queue from queue.redrive.<queue name>.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue
+	 * @return Configured policy or NONE if none or an invalid one is set
+	 */
+	public static RedrivePolicy forQueue(String queueUrl) {
+		URI uri = URI.create(queueUrl);
+		String[] segments = uri.getPath().split("/");
+		String queueName = segments[segments.length - 1];
+		String policy = QueueConfig.getProperty("queue.redrive." + queueName, "");
+		if (policy.isEmpty()) {
+			return NONE;
+		}
+		String[] parts = policy.split(",", 2);
+		try {
+			String target = parts.length == 2 ? parts[1].trim() : "";
+			if (!target.isEmpty() && !target.contains("/")) {
+				// a dead-letter queue next to the source queue
+				target = queueUrl.substring(0, queueUrl.length() - queueName.length()) + target;
+			}
+			return new RedrivePolicy(Integer.parseInt(parts[0].trim()), target);
+		} catch (IllegalArgumentException e) {
+			LOGGER.warning("Invalid value for queue.redrive." + queueName + ": " + policy);
+			return NONE;
+		}
+	}
+
+	/**
+	 * @param message
+	 *            Pulled message
+	 * @return Receives of the message including this one, 0 if the storage
+	 *         does not count them
+	 */
+	public static int receiveCount(Message message) {
+		String count = message.getAttributes().get(RECEIVE_COUNT);
+		return count != null ? Integer.parseInt(count) : 0;
+	}
+
+	/**
+	 * @param message
+	 *            Pulled message
+	 * @return true if the message must go to the dead-letter queue
+	 */
+	public boolean isExceeded(Message message) {
+		return this != NONE && receiveCount(message) > maxReceiveCount;
+	}
+
+	public int getMaxReceiveCount() {
+		return maxReceiveCount;
+	}
+
+	public String getDeadLetterQueueUrl() {
+		return deadLetterQueueUrl;
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.example;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ring Buffer Engine
+ *
+ * Queue engine storing the messages in a preallocated array used as a bounded
+ * multi-producer/multi-consumer ring buffer. Every slot has a sequence telling
+ * whether it is free for the producer of a given turn or filled for its
+ * consumer. Producers and consumers claim slots with a compare-and-set on their
+ * own counter and never take a lock, and no node is allocated per message. Both
+ * counters are padded so that producers and consumers do not write to the same
+ * cache line.
+ *
+ * Returned messages go to a separate priority lane that is always polled
+ * before the ring. Returns are rare, so the lane is a plain concurrent queue.
+ *
+ * A producer finding the ring full backs off until a consumer frees a slot.
+ * Consumers waiting in poll with a timeout park on a condition that producers
+ * only signal when somebody waits.
+ *
+ * @param <E>
+ *            Type of the stored messages
+ *
+ * @author Edgar Resma
+ */
+public class RingBufferEngine<E> implements QueueEngine<E> {
+
+	private static final int SPIN_TRIES = 64;
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Object[] buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final Sequence tail = new Sequence();
+	private final Sequence head = new Sequence();
+	private final Queue<E> lane = new ConcurrentLinkedQueue<E>();
+	private final AtomicInteger laneSize = new AtomicInteger();
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            Number of messages the ring holds, rounded up to a power of
+	 *            two
+	 */
+	public RingBufferEngine(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.buffer = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+	}
+
+	@Override
+	public void add(E message) {
+		int tries = 0;
+		while (!offer(message)) {
+			backOff(tries++);
+		}
+		signalWaiters();
+	}
+
+	/**
+	 * Adds a message to the ring if a slot is free.
+	 *
+	 * @param message
+	 *            Message to be added
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E message) {
+		long position = tail.get();
+		while (true) {
+			int slot = (int) (position & mask);
+			long difference = sequences.get(slot) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					buffer[slot] = message;
+					// volatile write, ordered before the check for waiters
+					sequences.set(slot, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	@Override
+	public void addFirst(E message) {
+		lane.add(message);
+		laneSize.incrementAndGet();
+		signalWaiters();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		if (laneSize.get() > 0) {
+			E message = lane.poll();
+			if (message != null) {
+				laneSize.decrementAndGet();
+				return message;
+			}
+		}
+		long position = head.get();
+		while (true) {
+			int slot = (int) (position & mask);
+			long difference = sequences.get(slot) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E message = (E) buffer[slot];
+					buffer[slot] = null;
+					// free the slot for the producer of the next turn
+					sequences.lazySet(slot, position + mask + 1);
+					return message;
+				}
+				position = head.get();
+			} else if (difference < 0) {
+				return null;
+			} else {
+				position = head.get();
+			}
+		}
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E message = poll();
+		if (message != null) {
+			return message;
+		}
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			waiters.incrementAndGet();
+			try {
+				while ((message = poll()) == null && nanos > 0) {
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+				return message;
+			} finally {
+				waiters.decrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, buffer.length)) + laneSize.get();
+	}
+
+	/**
+	 * @return Number of messages the ring holds, without the lane.
+	 */
+	public int capacity() {
+		return buffer.length;
+	}
+
+	private void signalWaiters() {
+		if (waiters.get() > 0) {
+			lock.lock();
+			try {
+				notEmpty.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void backOff(int tries) {
+		if (tries < SPIN_TRIES) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(Math.min(MAX_BACKOFF_NANOS, 1000L << Math.min(10, tries - SPIN_TRIES)));
+		}
+	}
+
+	/**
+	 * Counter padded with unused fields on both sides to sit alone in its cache
+	 * line.
+	 */
+	private static class Sequence extends SequenceValue {
+		long p9, p10, p11, p12, p13, p14, p15;
+	}
+
+	private static class SequenceValue extends SequencePadding {
+		private static final AtomicLongFieldUpdater<SequenceValue> UPDATER = AtomicLongFieldUpdater
+				.newUpdater(SequenceValue.class, "value");
+
+		volatile long value;
+
+		long get() {
+			return value;
+		}
+
+		boolean compareAndSet(long expected, long updated) {
+			return UPDATER.compareAndSet(this, expected, updated);
+		}
+	}
+
+	private static class SequencePadding {
+		long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+}
@@ -0,0 +1,293 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Visibility Timer
+ *
+ * Hashed timing wheel tracking the visibility timeout of pulled messages. The
+ * wheel is an array of buckets, each a doubly linked list of timeouts, and a
+ * single task scheduled at a fixed rate advances it one tick at a time. A
+ * timeout is placed in the bucket of its deadline tick, so scheduling,
+ * cancelling and extending a timeout are constant time and only lock one
+ * bucket. Timeouts further away than one turn of the wheel stay in their bucket
+ * until the tick of their deadline comes around.
+ *
+ * Every timeout expired by a tick is handed to the expiry handler in a single
+ * call. Memory is one small node per message in flight and cancelled timeouts
+ * are unlinked at once instead of waiting in the executor queue.
+ *
+ * @author Edgar Resma
+ */
+public class VisibilityTimer {
+
+	private final static Logger LOGGER = Logger.getLogger(VisibilityTimer.class.getName());
+
+	/**
+	 * Receives the timeouts expired by a tick.
+	 */
+	public interface ExpiryHandler {
+		void expired(List<Timeout> timeouts);
+	}
+
+	private final ScheduledExecutorService executorService;
+	private final ExpiryHandler handler;
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile long lastTick;
+	private boolean started;
+
+	/**
+	 * Constructor using visibility.tick and visibility.wheel.size.
+	 *
+	 * @param executorService
+	 *            Executor advancing the wheel and running the expiry handler
+	 * @param handler
+	 *            Called with the timeouts expired by each tick
+	 */
+	public VisibilityTimer(ScheduledExecutorService executorService, ExpiryHandler handler) {
+		this(executorService, handler, QueueConfig.getLong("visibility.tick", 100),
+				QueueConfig.getInt("visibility.wheel.size", 512));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param executorService
+	 *            Executor advancing the wheel and running the expiry handler
+	 * @param handler
+	 *            Called with the timeouts expired by each tick
+	 * @param tickMillis
+	 *            Resolution of the timer
+	 * @param wheelSize
+	 *            Number of buckets, rounded up to a power of two
+	 */
+	public VisibilityTimer(ScheduledExecutorService executorService, ExpiryHandler handler, long tickMillis,
+			int wheelSize) {
+		this.executorService = executorService;
+		this.handler = handler;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int buckets = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.wheel = new Bucket[buckets];
+		for (int i = 0; i < buckets; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = buckets - 1;
+	}
+
+	/**
+	 * Starts a timeout for a pulled message.
+	 *
+	 * @param queueUrl
+	 *            URL of the queue the message was pulled from
+	 * @param message
+	 *            Pulled message
+	 * @param delay
+	 *            Time until the message expires
+	 * @param unit
+	 *            Unit of the delay
+	 * @return Timeout that can be cancelled or extended
+	 */
+	public Timeout schedule(String queueUrl, Message message, long delay, TimeUnit unit) {
+		start();
+		Timeout timeout = new Timeout(queueUrl, message);
+		synchronized (timeout) {
+			insert(timeout, unit.toNanos(delay));
+		}
+		size.incrementAndGet();
+		return timeout;
+	}
+
+	/**
+	 * Schedules the tick task on first use.
+	 */
+	private synchronized void start() {
+		if (!started) {
+			started = true;
+			long tickMillis = TimeUnit.NANOSECONDS.toMillis(tickNanos);
+			executorService.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Links a timeout into the bucket of its deadline. A bucket already passed
+	 * for that tick is skipped for the next one to be visited. Guarded by the
+	 * timeout.
+	 */
+	private void insert(Timeout timeout, long delayNanos) {
+		long elapsed = System.nanoTime() - startTime + delayNanos;
+		long target = Math.max((elapsed + tickNanos - 1) / tickNanos, lastTick + 1);
+		while (true) {
+			Bucket bucket = wheel[(int) (target & mask)];
+			synchronized (bucket) {
+				if (bucket.visitedTick < target) {
+					timeout.deadlineTick = target;
+					bucket.add(timeout);
+					return;
+				}
+				target = Math.max(bucket.visitedTick, lastTick) + 1;
+			}
+		}
+	}
+
+	/**
+	 * Advances the wheel to the current time and hands the expired timeouts to
+	 * the handler.
+	 */
+	void tick() {
+		long now = (System.nanoTime() - startTime) / tickNanos;
+		long from = Math.max(lastTick + 1, now - mask);
+		List<Timeout> expired = new ArrayList<Timeout>();
+		for (long tick = from; tick <= now; tick++) {
+			Bucket bucket = wheel[(int) (tick & mask)];
+			synchronized (bucket) {
+				bucket.expire(now, expired);
+				bucket.visitedTick = tick;
+			}
+		}
+		if (now > lastTick) {
+			lastTick = now;
+		}
+		if (!expired.isEmpty()) {
+			size.addAndGet(-expired.size());
+			try {
+				handler.expired(expired);
+			} catch (RuntimeException e) {
+				// the tick task must survive a failing handler
+				LOGGER.severe(e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of timeouts neither expired nor cancelled.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Timeout of a single message.
+	 */
+	public class Timeout {
+		private final String queueUrl;
+		private final Message message;
+		private long deadlineTick;
+		private volatile Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		Timeout(String queueUrl, Message message) {
+			this.queueUrl = queueUrl;
+			this.message = message;
+		}
+
+		public String getQueueUrl() {
+			return queueUrl;
+		}
+
+		public Message getMessage() {
+			return message;
+		}
+
+		/**
+		 * Stops the timeout.
+		 *
+		 * @return false if the timeout already expired or was cancelled
+		 */
+		public synchronized boolean cancel() {
+			if (!unlink()) {
+				return false;
+			}
+			size.decrementAndGet();
+			return true;
+		}
+
+		/**
+		 * Restarts the timeout with a new delay from now.
+		 *
+		 * @param delay
+		 *            Time until the message expires
+		 * @param unit
+		 *            Unit of the delay
+		 * @return false if the timeout already expired or was cancelled
+		 */
+		public synchronized boolean extend(long delay, TimeUnit unit) {
+			if (!unlink()) {
+				return false;
+			}
+			insert(this, unit.toNanos(delay));
+			return true;
+		}
+
+		private boolean unlink() {
+			Bucket current = bucket;
+			while (current != null) {
+				synchronized (current) {
+					if (bucket == current) {
+						current.remove(this);
+						return true;
+					}
+				}
+				current = bucket;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Timeouts sharing a slot of the wheel.
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private long visitedTick = -1;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.previous = null;
+			timeout.next = head;
+			if (head != null) {
+				head.previous = timeout;
+			}
+			head = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.previous != null) {
+				timeout.previous.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.previous = timeout.previous;
+			}
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		void expire(long now, List<Timeout> expired) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadlineTick <= now) {
+					remove(timeout);
+					expired.add(timeout);
+				}
+				timeout = next;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.example;
+
+import java.util.Arrays;
+
+/**
+ * Visible Index
+ *
+ * Positions of the visible entries of a RAF queue file that lie before its
+ * scanned position, that is messages returned into the queue by a re-queue or
+ * an expired visibility timeout. Entries after the scanned position were never
+ * pulled and are all visible, so a pull takes the indexed entries and then
+ * reads on from there without walking the invisible entries in between.
+ *
+ * Positions are kept sorted in a primitive array. The first position is taken
+ * in constant time and returned messages are few, so inserting into the array
+ * is cheap.
+ *
+ * The index belongs to the handle of the queue file and is only used with the
+ * queue lock held. It is tagged with the change counter of the queue file
+ * header it matches. When another process changed the queue the counters
+ * differ and the index has to be rebuilt from the file.
+ *
+ * @author Edgar Resma
+ */
+public class VisibleIndex {
+
+	private long[] positions = new long[16];
+	private int first;
+	private int last;
+	private long changes = -1;
+
+	/**
+	 * @param changes
+	 *            Change counter read from the queue file header
+	 * @return true if the index matches the queue file
+	 */
+	public boolean isSynced(long changes) {
+		return this.changes == changes;
+	}
+
+	/**
+	 * Empties the index before a rebuild for the given change counter.
+	 *
+	 * @param changes
+	 *            Change counter read from the queue file header
+	 */
+	public void reset(long changes) {
+		first = 0;
+		last = 0;
+		this.changes = changes;
+	}
+
+	/**
+	 * Follows a change of the queue file made by this process.
+	 *
+	 * @param seen
+	 *            Change counter before the change
+	 * @param changes
+	 *            Change counter written with the change
+	 */
+	public void advance(long seen, long changes) {
+		if (this.changes == seen) {
+			this.changes = changes;
+		}
+	}
+
+	/**
+	 * Adds the position of an entry made visible.
+	 *
+	 * @param position
+	 *            Position of the entry
+	 */
+	public void add(long position) {
+		int index = Arrays.binarySearch(positions, first, last, position);
+		if (index >= 0) {
+			return;
+		}
+		index = -index - 1;
+		if (last == positions.length) {
+			if (first > 0) {
+				// reuse the space of taken positions
+				System.arraycopy(positions, first, positions, 0, last - first);
+				index -= first;
+				last -= first;
+				first = 0;
+			} else {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+		}
+		System.arraycopy(positions, index, positions, index + 1, last - index);
+		positions[index] = position;
+		last++;
+	}
+
+	/**
+	 * Removes the position of an entry.
+	 *
+	 * @param position
+	 *            Position of the entry
+	 * @return false if the position was not indexed
+	 */
+	public boolean remove(long position) {
+		int index = Arrays.binarySearch(positions, first, last, position);
+		if (index < 0) {
+			return false;
+		}
+		System.arraycopy(positions, index + 1, positions, index, last - index - 1);
+		last--;
+		return true;
+	}
+
+	/**
+	 * @return Lowest indexed position or -1 if empty
+	 */
+	public long first() {
+		return first < last ? positions[first] : -1;
+	}
+
+	/**
+	 * Removes the lowest indexed position.
+	 */
+	public void removeFirst() {
+		if (first < last) {
+			first++;
+		}
+		if (first == last) {
+			first = 0;
+			last = 0;
+		}
+	}
+
+	/**
+	 * @return Number of indexed positions
+	 */
+	public int size() {
+		return last - first;
+	}
+
+}
@@ -1,5 +1,17 @@
 package com.example.model;
 
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.example.MessageCodec;
+
 public class FileMessage {
 	/**
 	 * FileMessage
@@ -7,26 +19,58 @@ public class FileMessage {
 	 * Used to systematically contain parts of a message in the queue. This
 	 * should be able return these parts as one message.
 	 * 
+	 * A line is
+	 * v3:<requeueCount>:<visibilityDeadline>:<receiptId>:<attributes>:<message>
+	 * where the message is kept as it is except for backslashes, line feeds
+	 * and carriage returns, escaped as \\, \n and \r, so the line stays
+	 * readable and a message may hold line breaks and separators. The
+	 * attributes are written as name;DataType;value entries separated by
+	 * commas, empty for none, with colons, semicolons and commas escaped by a
+	 * backslash as well. Values of Binary data types are written in Base64.
+	 * 
+	 * Lines of the v2 format hold a MessageCodec record in Base64 instead of
+	 * the attributes and message, lines of the first format hold the message
+	 * as it is after the third separator. Both are still read.
+	 * 
 	 * @author Edgar Resma
 	 */
+	private static final String RECORD_PREFIX = "v3:";
+	private static final String ENCODED_PREFIX = "v2:";
+	private static final String BINARY_TYPE = "Binary";
+
 	private long requeueCount;
 	private long visibilityDeadline;
 	private String receiptId;
 	private String message;
+	private Map<String, MessageAttributeValue> messageAttributes = Collections.emptyMap();
 
 	public FileMessage() {
 	}
 
 	public FileMessage(String message) {
 		try {
-			if (message != null) {
-				String[] parts = message.split(":");
+			if (message != null && message.startsWith(RECORD_PREFIX)) {
+				String[] parts = message.substring(RECORD_PREFIX.length()).split(":", 4);
+				setRequeueCount(Long.valueOf(parts[0]));
+				setVisibilityDeadline(Long.valueOf(parts[1]));
+				setReceiptId(parts[2]);
+				setMessage(unescape(parts[3], readAttributes(parts[3])));
+			} else if (message != null && message.startsWith(ENCODED_PREFIX)) {
+				String[] parts = message.substring(ENCODED_PREFIX.length()).split(":", 4);
+				setRequeueCount(Long.valueOf(parts[0]));
+				setVisibilityDeadline(Long.valueOf(parts[1]));
+				setReceiptId(parts[2]);
+				Message record = MessageCodec.decode(ByteBuffer.wrap(Base64.getDecoder().decode(parts[3])));
+				setMessage(record.getBody());
+				setMessageAttributes(record.getMessageAttributes());
+			} else if (message != null) {
+				String[] parts = message.split(":", 4);
 				setRequeueCount(Long.valueOf(parts[0]));
 				setVisibilityDeadline(Long.valueOf(parts[1]));
 				setReceiptId(parts[2]);
 				setMessage(parts[3]);
 			}
-		} catch (NumberFormatException e) {
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
 			setRequeueCount(new Long(0));
 			setVisibilityDeadline(new Long(0));
 			setReceiptId(new String());
@@ -41,6 +85,14 @@ public class FileMessage {
 		this.setMessage(message);
 	}
 
+	public FileMessage(long requeueCount, long visibilityDeadline, String receiptId, String message,
+			Map<String, MessageAttributeValue> messageAttributes) {
+		this(requeueCount, visibilityDeadline, receiptId, message);
+		if (messageAttributes != null) {
+			this.setMessageAttributes(messageAttributes);
+		}
+	}
+
 	public Long getRequeueCount() {
 		return requeueCount;
 	}
@@ -73,9 +125,155 @@ public class FileMessage {
 		this.message = message;
 	}
 
+	public Map<String, MessageAttributeValue> getMessageAttributes() {
+		return messageAttributes;
+	}
+
+	public void setMessageAttributes(Map<String, MessageAttributeValue> messageAttributes) {
+		this.messageAttributes = messageAttributes;
+	}
+
 	@Override
 	public String toString() {
-		return getRequeueCount() + ":" + getVisibilityDeadline() + ":" + getReceiptId() + ":" + getMessage();
+		StringBuilder line = new StringBuilder(RECORD_PREFIX.length() + 32 + getMessage().length());
+		line.append(RECORD_PREFIX).append(getRequeueCount()).append(':').append(getVisibilityDeadline()).append(':')
+				.append(getReceiptId()).append(':');
+		boolean first = true;
+		for (Map.Entry<String, MessageAttributeValue> attribute : getMessageAttributes().entrySet()) {
+			MessageAttributeValue value = attribute.getValue();
+			String dataType = value.getDataType() != null ? value.getDataType() : "String";
+			if (!first) {
+				line.append(',');
+			}
+			first = false;
+			escape(line, attribute.getKey(), true);
+			line.append(';');
+			escape(line, dataType, true);
+			line.append(';');
+			escape(line, dataType.startsWith(BINARY_TYPE) ? binaryValue(value) : stringValue(value), true);
+		}
+		line.append(':');
+		escape(line, getMessage(), false);
+		return line.toString();
+	}
+
+	/**
+	 * Appends text with backslashes and line breaks escaped.
+	 * 
+	 * @param line
+	 *            Line being written
+	 * @param text
+	 *            Text to be appended
+	 * @param field
+	 *            Escape the separators of the attributes as well
+	 */
+	private static void escape(StringBuilder line, String text, boolean field) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case ':':
+			case ';':
+			case ',':
+				if (field) {
+					line.append('\\');
+				}
+				line.append(c);
+				break;
+			default:
+				line.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Reads the attributes field at the start of the rest of a line.
+	 * 
+	 * @param rest
+	 *            Attributes and message of the line
+	 * @return Index of the message in the rest of the line
+	 */
+	private int readAttributes(String rest) {
+		Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+		List<String> entry = new ArrayList<String>(3);
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i < rest.length(); i++) {
+			char c = rest.charAt(i);
+			if (c == '\\' && i + 1 < rest.length()) {
+				token.append(unescape(rest.charAt(++i)));
+			} else if (c == ';' || c == ',' || c == ':') {
+				entry.add(token.toString());
+				token.setLength(0);
+				if (c == ';') {
+					continue;
+				}
+				if (entry.size() == 3) {
+					attributes.put(entry.get(0), attribute(entry.get(1), entry.get(2)));
+				} else if (entry.size() != 1 || !entry.get(0).isEmpty() || !attributes.isEmpty()) {
+					throw new IllegalArgumentException("Malformed message attribute " + entry);
+				}
+				entry.clear();
+				if (c == ':') {
+					setMessageAttributes(attributes.isEmpty() ? Collections.<String, MessageAttributeValue>emptyMap()
+							: attributes);
+					return i + 1;
+				}
+			} else {
+				token.append(c);
+			}
+		}
+		throw new IllegalArgumentException("Missing message");
+	}
+
+	/**
+	 * @return Message of the rest of a line with its escapes removed
+	 */
+	private static String unescape(String rest, int start) {
+		if (rest.indexOf('\\', start) < 0) {
+			return rest.substring(start);
+		}
+		StringBuilder message = new StringBuilder(rest.length() - start);
+		for (int i = start; i < rest.length(); i++) {
+			char c = rest.charAt(i);
+			message.append(c == '\\' && i + 1 < rest.length() ? unescape(rest.charAt(++i)) : c);
+		}
+		return message.toString();
+	}
+
+	private static char unescape(char escaped) {
+		return escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped;
+	}
+
+	private static MessageAttributeValue attribute(String dataType, String value) {
+		MessageAttributeValue attribute = new MessageAttributeValue().withDataType(dataType);
+		if (dataType.startsWith(BINARY_TYPE)) {
+			attribute.setBinaryValue(ByteBuffer.wrap(Base64.getDecoder().decode(value)));
+		} else {
+			attribute.setStringValue(value);
+		}
+		return attribute;
+	}
+
+	private static String binaryValue(MessageAttributeValue value) {
+		ByteBuffer binary = value.getBinaryValue();
+		if (binary == null) {
+			return "";
+		}
+		byte[] bytes = new byte[binary.remaining()];
+		binary.duplicate().get(bytes);
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+	private static String stringValue(MessageAttributeValue value) {
+		return value.getStringValue() != null ? value.getStringValue() : "";
 	}
 
 }
@@ -2,10 +2,15 @@ package com.example;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.isA;
 import static org.mockito.Mockito.mock;
@@ -14,13 +19,22 @@ import static org.mockito.Mockito.verify;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -31,6 +45,8 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.example.model.FileMessage;
 
 public class FileQueueTest {
 
@@ -200,4 +216,726 @@ public class FileQueueTest {
 		// Assert
 		assertEquals(executions, recieipts.size());
 	}
+
+	@Test
+	public void When_MoreQueuesOpenedThanHandleBudget_Expect_LeastRecentlyUsedEvicted() throws IOException {
+		// Arrange
+		QueueFileRegistry registry = new QueueFileRegistry(temporaryFolder.getRoot().getPath(), 2);
+		String[] queueUrls = { SQS_URL + "queue1", SQS_URL + "queue2", SQS_URL + "queue3" };
+		List<QueueFileHandle> acquired = new ArrayList<QueueFileHandle>();
+		// Act
+		for (String queueUrl : queueUrls) {
+			QueueFileHandle handle = registry.acquire(queueUrl, raf -> {
+			});
+			acquired.add(handle);
+			registry.release(handle);
+		}
+		// Assert
+		assertEquals(2, registry.size());
+		assertEquals(false, acquired.get(0).getChannel().isOpen());
+		assertEquals(true, acquired.get(2).getChannel().isOpen());
+		registry.close();
+		assertEquals(false, acquired.get(2).getChannel().isOpen());
+	}
+
+	@Test
+	public void When_MappedQueueSpansSegments_Expect_PollMessagesInSameOrderFIFO() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_MappedQueueSpansSegments_Expect_PollMessagesInSameOrderFIFO";
+		QueueService queue = new FileQueueService(scheduledExecutorService,
+				new FileQueueMapped(temporaryFolder.getRoot().getPath(), 32));
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		String[] msgArray = { "Message 1", "Message 2", "Message 3", "A message larger than one segment" };
+		String[] msgPullArray = new String[4];
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		for (int i = 0; i < msgArray.length; i++) {
+			queue.push(queueUrl, msgArray[i]);
+		}
+		for (int i = 0; i < msgPullArray.length; i++) {
+			msgPullArray[i] = queue.pull(queueUrl).getBody();
+		}
+		// Assert
+		assertArrayEquals(msgArray, msgPullArray);
+		assertNull(queue.pull(queueUrl));
+		File directory = new File(temporaryFolder.getRoot(), "When_MappedQueueSpansSegments_Expect_PollMessagesInSameOrderFIFO");
+		assertEquals(1, directory.list((dir, name) -> name.endsWith(".segment")).length);
+	}
+
+	@Test
+	public void When_MappedMessageIsPulledAndNotDeleted_Expect_GetRequeuedMessagePulled() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_MappedMessageIsPulledAndNotDeleted_Expect_GetRequeuedMessagePulled";
+		FileQueueService queue = new FileQueueService(scheduledExecutorService,
+				new FileQueueMapped(temporaryFolder.getRoot().getPath(), 32));
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		String msg1 = "Message 1";
+		String msg2 = "Message 2";
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		queue.push(queueUrl, msg1);
+		queue.push(queueUrl, msg2);
+		Message pull1 = queue.pull(queueUrl);
+		// manually run re-queue of the scheduled task
+		queue.reQueue(queueUrl, pull1.getReceiptHandle(), pull1.getBody());
+		// Assert
+		assertEquals(msg1, queue.pull(queueUrl).getBody());
+		assertEquals(msg2, queue.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void When_StaleReceiptIsRequeued_Expect_IgnoredAndCurrentDeliveryKept() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_StaleReceiptIsRequeued_Expect_IgnoredAndCurrentDeliveryKept";
+		String otherQueueUrl = SQS_URL + "When_StaleReceiptIsRequeued_Expect_IgnoredAndCurrentDeliveryKept_Other";
+		FileQueue queueFile = new FileQueueMapped(temporaryFolder.getRoot().getPath(), 1024);
+		// Act
+		queueFile.add(queueUrl, "Message 1");
+		queueFile.add(otherQueueUrl, "Message 2");
+		Message first = queueFile.pull(queueUrl);
+		queueFile.reQueue(queueUrl, first.getMessageId(), first.getBody());
+		Message second = queueFile.pull(queueUrl);
+		Message other = queueFile.pull(otherQueueUrl);
+		queueFile.reQueue(queueUrl, first.getMessageId(), first.getBody());
+		queueFile.reQueue(otherQueueUrl, second.getMessageId(), second.getBody());
+		Message afterStale = queueFile.pull(queueUrl);
+		Message otherAfterForeign = queueFile.pull(otherQueueUrl);
+		queueFile.reQueue(queueUrl, second.getMessageId(), second.getBody());
+		Message third = queueFile.pull(queueUrl);
+		// Assert
+		assertEquals("Message 1", second.getBody());
+		assertEquals("Message 2", other.getBody());
+		assertNotEquals(first.getMessageId(), second.getMessageId());
+		assertTrue(second.getMessageId().length() < 20);
+		assertNull(afterStale);
+		assertNull(otherAfterForeign);
+		assertEquals("Message 1", third.getBody());
+	}
+
+	@Test
+	public void When_PushingWithBatchDurability_Expect_MessagesWrittenAndForced() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_PushingWithBatchDurability_Expect_MessagesWrittenAndForced";
+		FileQueue queueFile = mock(FileQueue.class);
+		GroupCommitWriter writer = new GroupCommitWriter(queueFile, GroupCommitWriter.DurabilityPolicy.BATCH, 1000,
+				1024);
+		List<String> messages = new ArrayList<String>();
+		messages.add("Message 1");
+		messages.add("Message 2");
+		// Act
+		writer.write(queueUrl, messages);
+		writer.close();
+		// Assert
+		verify(queueFile, times(1)).addAll(queueUrl, messages);
+		verify(queueFile, times(1)).force(queueUrl);
+	}
+
+	@Test
+	public void When_ForceFailsWithBatchDurability_Expect_WriteFails() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_ForceFailsWithBatchDurability_Expect_WriteFails";
+		FileQueue queueFile = mock(FileQueue.class);
+		doThrow(new UncheckedIOException(new IOException("No space left on device"))).when(queueFile)
+				.force(queueUrl);
+		GroupCommitWriter writer = new GroupCommitWriter(queueFile, GroupCommitWriter.DurabilityPolicy.BATCH, 1000,
+				1024);
+		List<String> messages = Collections.singletonList("Message 1");
+		UncheckedIOException failure = null;
+		// Act
+		try {
+			writer.write(queueUrl, messages);
+		} catch (UncheckedIOException e) {
+			failure = e;
+		}
+		writer.close();
+		// Assert
+		assertEquals("No space left on device", failure.getCause().getMessage());
+		verify(queueFile, times(1)).addAll(queueUrl, messages);
+	}
+
+	@Test
+	public void When_AcknowledgingWithBatchDurability_Expect_DeletionsWrittenAndForced() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_AcknowledgingWithBatchDurability_Expect_DeletionsWrittenAndForced";
+		FileQueue queueFile = mock(FileQueue.class);
+		GroupCommitWriter writer = new GroupCommitWriter(queueFile, GroupCommitWriter.DurabilityPolicy.BATCH, 1000,
+				1024);
+		List<String> messageIds = new ArrayList<String>();
+		messageIds.add("80:1");
+		messageIds.add("114:2");
+		// Act
+		writer.acknowledge(queueUrl, messageIds);
+		writer.close();
+		// Assert
+		verify(queueFile, times(1)).deleteAll(queueUrl, messageIds);
+		verify(queueFile, times(0)).addAll(queueUrl, messageIds);
+		verify(queueFile, times(1)).force(queueUrl);
+	}
+
+	@Test
+	public void When_AcknowledgementWriteFails_Expect_AcknowledgeFailsWithoutForce() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_AcknowledgementWriteFails_Expect_AcknowledgeFailsWithoutForce";
+		FileQueue queueFile = mock(FileQueue.class);
+		doThrow(new UncheckedIOException(new IOException("Input/output error"))).when(queueFile).deleteAll(queueUrl,
+				null);
+		GroupCommitWriter writer = new GroupCommitWriter(queueFile, GroupCommitWriter.DurabilityPolicy.BATCH, 1000,
+				1024);
+		UncheckedIOException failure = null;
+		// Act
+		try {
+			writer.acknowledge(queueUrl, Collections.singletonList("80:1"));
+		} catch (UncheckedIOException e) {
+			failure = e;
+		}
+		writer.close();
+		// Assert
+		assertEquals("Input/output error", failure.getCause().getMessage());
+		verify(queueFile, times(0)).force(queueUrl);
+	}
+
+	@Test
+	public void When_PushingAndPullingBatch_Expect_PollMessagesInSameOrderFIFO() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_PushingAndPullingBatch_Expect_PollMessagesInSameOrderFIFO";
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		List<String> msgList = Arrays.asList("Message 1", "Message 2", "Message 3", "Message 4");
+		List<String> msgPullList = new ArrayList<String>();
+		List<String> receipts = new ArrayList<String>();
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		queue.pushBatch(queueUrl, msgList);
+		for (Message message : queue.pullBatch(queueUrl, 3)) {
+			msgPullList.add(message.getBody());
+			receipts.add(message.getReceiptHandle());
+		}
+		msgPullList.add(queue.pullBatch(queueUrl, 3).get(0).getBody());
+		queue.deleteBatch(queueUrl, receipts);
+		// Assert
+		assertEquals(msgList, msgPullList);
+		assertEquals(0, queue.pullBatch(queueUrl, 3).size());
+	}
+
+	@Test
+	public void When_QueueLockIsContended_Expect_ExclusiveAccessAndWaitRecorded() throws Exception {
+		// Arrange
+		QueueLock lock = QueueLockManager.getInstance().forDirectory(temporaryFolder.newFolder("locked"));
+		int threads = 4;
+		int iterations = 200;
+		int[] counter = new int[1];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch latch = new CountDownLatch(threads);
+		// Act
+		for (int i = 0; i < threads; i++) {
+			executor.execute(() -> {
+				try {
+					for (int j = 0; j < iterations; j++) {
+						lock.lock();
+						try {
+							// re-entering must not block on the file lock
+							lock.lock();
+							lock.unlock();
+							counter[0]++;
+						} finally {
+							lock.unlock();
+						}
+					}
+				} catch (InterruptedException | IOException e) {
+					e.printStackTrace();
+				} finally {
+					latch.countDown();
+				}
+			});
+		}
+		latch.await(5, TimeUnit.SECONDS);
+		executor.shutdown();
+		// Assert
+		assertEquals(threads * iterations, counter[0]);
+		assertEquals(threads * iterations * 2, lock.getAcquisitions());
+		assertEquals(true, QueueLockManager.getInstance().getStatistics().contains(lock));
+	}
+
+	@Test
+	public void When_ProducersAndConsumersShareQueue_Expect_EveryMessagePulledOnce() throws Exception {
+		// Arrange
+		String queueUrl = SQS_URL + "When_ProducersAndConsumersShareQueue_Expect_EveryMessagePulledOnce";
+		FileQueue queueFile = new FileQueueRAF();
+		int producers = 4;
+		int messagesPerProducer = 100;
+		Set<String> pulled = Collections.synchronizedSet(new HashSet<String>());
+		ExecutorService executor = Executors.newFixedThreadPool(producers + 1);
+		CountDownLatch produced = new CountDownLatch(producers);
+		// Act
+		for (int i = 0; i < producers; i++) {
+			int producer = i;
+			executor.execute(() -> {
+				for (int j = 0; j < messagesPerProducer; j++) {
+					queueFile.add(queueUrl, "Message " + producer + "-" + j);
+				}
+				produced.countDown();
+			});
+		}
+		Future<?> consumer = executor.submit(() -> {
+			while (true) {
+				boolean done = produced.getCount() == 0;
+				List<Message> messages = queueFile.pullAll(queueUrl, 10);
+				for (Message message : messages) {
+					assertEquals(true, pulled.add(message.getBody()));
+				}
+				if (messages.isEmpty() && done) {
+					break;
+				}
+			}
+		});
+		consumer.get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+		// Assert
+		assertEquals(producers * messagesPerProducer, pulled.size());
+		assertNull(queueFile.pull(queueUrl));
+	}
+
+	@Test
+	public void When_LongPollingEmptyQueue_Expect_MessageWrittenByOtherProducerPulled() throws Exception {
+		// Arrange
+		String queueUrl = SQS_URL + "When_LongPollingEmptyQueue_Expect_MessageWrittenByOtherProducerPulled";
+		// writes straight to the file like a producer in another process
+		FileQueue otherProducer = new FileQueueRAF();
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		String msg1 = "Message 1";
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		Future<Message> pull = executor.submit(() -> queue.pull(queueUrl, 5));
+		Thread.sleep(200);
+		otherProducer.add(queueUrl, msg1);
+		Message pulled = pull.get(5, TimeUnit.SECONDS);
+		executor.shutdown();
+		// Assert
+		assertEquals(msg1, pulled.getBody());
+		assertNull(queue.pull(queueUrl, 0));
+	}
+
+	@Test
+	public void When_PulledMessageExpiresBeforeRestart_Expect_RedeliveredWithoutTimers() throws Exception {
+		// Arrange
+		String queueUrl = SQS_URL + "When_PulledMessageExpiresBeforeRestart_Expect_RedeliveredWithoutTimers";
+		FileQueue queueFile = new FileQueueRAF();
+		String msg1 = "Message 1";
+		String msg2 = "Message 2";
+		// Act
+		queueFile.addAll(queueUrl, Arrays.asList(msg1, msg2));
+		Message expiring = queueFile.pullAll(queueUrl, 1, 100).get(0);
+		Message deleted = queueFile.pullAll(queueUrl, 1, 100).get(0);
+		queueFile.delete(queueUrl, deleted.getMessageId());
+		Thread.sleep(200);
+		// a new instance keeps nothing in memory, like a restarted process
+		FileQueue restarted = new FileQueueRAF();
+		Message redelivered = restarted.pullAll(queueUrl, 10, 100).get(0);
+		boolean staleReceiptAccepted = restarted.changeVisibility(queueUrl, expiring.getMessageId(), 0);
+		restarted.delete(queueUrl, redelivered.getMessageId());
+		Thread.sleep(200);
+		// Assert
+		assertEquals(msg1, expiring.getBody());
+		assertEquals(msg2, deleted.getBody());
+		assertEquals(msg1, redelivered.getBody());
+		assertFalse(staleReceiptAccepted);
+		assertEquals(0, restarted.sweep(queueUrl));
+		assertNull(restarted.pull(queueUrl));
+	}
+
+	@Test
+	public void When_DeadSpaceCrossesThreshold_Expect_CompactedAndInFlightMessagesStillDeletable() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_DeadSpaceCrossesThreshold_Expect_CompactedAndInFlightMessagesStillDeletable";
+		// compacts at half dead space in steps of about ten entries
+		FileQueue queueFile = new FileQueueRAF(50, 0, 300);
+		List<String> msgList = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			msgList.add("Message " + i);
+		}
+		// Act
+		queueFile.addAll(queueUrl, msgList);
+		List<Message> pulled = queueFile.pullAll(queueUrl, 60, 60000);
+		long belowThreshold = queueFile.compact(queueUrl);
+		// leave one message in flight in the middle of the deleted ones
+		for (Message message : pulled) {
+			if (!message.getBody().equals("Message 30")) {
+				queueFile.delete(queueUrl, message.getMessageId());
+			}
+		}
+		long removed = queueFile.compact(queueUrl);
+		boolean inFlightChanged = queueFile.changeVisibility(queueUrl, pulled.get(30).getMessageId(), 0);
+		List<String> msgPullList = new ArrayList<String>();
+		for (Message message : queueFile.pullAll(queueUrl, 100, 60000)) {
+			msgPullList.add(message.getBody());
+			queueFile.delete(queueUrl, message.getMessageId());
+		}
+		// Assert
+		assertEquals(0, belowThreshold);
+		assertTrue(removed > 0);
+		assertTrue(inFlightChanged);
+		assertEquals("Message 30", msgPullList.get(0));
+		assertEquals(msgList.subList(60, 100), msgPullList.subList(1, msgPullList.size()));
+		assertNull(queueFile.pull(queueUrl));
+	}
+
+	@Test
+	public void When_MessagesRequeuedBehindInFlightMessages_Expect_PulledFirstInQueueOrder() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_MessagesRequeuedBehindInFlightMessages_Expect_PulledFirstInQueueOrder";
+		FileQueue queueFile = new FileQueueRAF();
+		List<String> msgList = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			msgList.add("Message " + i);
+		}
+		List<String> msgPullList = new ArrayList<String>();
+		// Act
+		queueFile.addAll(queueUrl, msgList);
+		List<Message> pulled = queueFile.pullAll(queueUrl, 50, 60000);
+		queueFile.reQueue(queueUrl, pulled.get(40).getMessageId(), pulled.get(40).getBody());
+		queueFile.reQueue(queueUrl, pulled.get(10).getMessageId(), pulled.get(10).getBody());
+		queueFile.add(queueUrl, "Message 50");
+		for (Message message : queueFile.pullAll(queueUrl, 10, 60000)) {
+			msgPullList.add(message.getBody());
+		}
+		// Assert
+		assertEquals(Arrays.asList("Message 10", "Message 40", "Message 50"), msgPullList);
+		assertNull(queueFile.pull(queueUrl));
+	}
+
+	@Test
+	public void When_PrintWriterMessageIsRequeued_Expect_PulledFirstAndReadLinesTruncated() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_PrintWriterMessageIsRequeued_Expect_PulledFirstAndReadLinesTruncated";
+		FileQueue queueFile = new FileQueuePrintWriter();
+		File file = new File(new File(QueueConfig.getProperty("filequeue.location", ""),
+				"When_PrintWriterMessageIsRequeued_Expect_PulledFirstAndReadLinesTruncated"), "messages");
+		List<String> msgPullList = new ArrayList<String>();
+		// Act
+		queueFile.addAll(queueUrl, Arrays.asList("Message 1", "Message 2", "Message 3"));
+		Message pull1 = queueFile.pull(queueUrl);
+		long unreadLength = file.length();
+		queueFile.reQueue(queueUrl, pull1.getMessageId(), pull1.getBody());
+		for (Message message : queueFile.pullAll(queueUrl, 10)) {
+			msgPullList.add(message.getBody());
+		}
+		// Assert
+		assertEquals(Arrays.asList("Message 1", "Message 2", "Message 3"), msgPullList);
+		assertNotNull(ReceiptHandle.decode(
+				"When_PrintWriterMessageIsRequeued_Expect_PulledFirstAndReadLinesTruncated", pull1.getMessageId()));
+		assertTrue(unreadLength > 0);
+		assertEquals(0, file.length());
+		assertNull(queueFile.pull(queueUrl));
+	}
+
+	@Test
+	public void When_PushingAndPullingAsync_Expect_EveryMessagePulledOnceAndDeleted() throws Exception {
+		// Arrange
+		String queueUrl = SQS_URL + "When_PushingAndPullingAsync_Expect_EveryMessagePulledOnceAndDeleted";
+		FileQueueService asyncQueue = new FileQueueService(scheduledExecutorService, new FileQueueRAF());
+		int count = 50;
+		List<CompletableFuture<Void>> pushes = new ArrayList<CompletableFuture<Void>>();
+		List<CompletableFuture<Message>> pulls = new ArrayList<CompletableFuture<Message>>();
+		Set<String> pulled = new HashSet<String>();
+		String receiptHandle = null;
+		// Act
+		for (int i = 0; i < count; i++) {
+			pushes.add(asyncQueue.pushAsync(queueUrl, "Message " + i));
+		}
+		CompletableFuture.allOf(pushes.toArray(new CompletableFuture<?>[count])).get(10, TimeUnit.SECONDS);
+		for (int i = 0; i < count + 1; i++) {
+			pulls.add(asyncQueue.pullAsync(queueUrl));
+		}
+		List<CompletableFuture<Void>> deletes = new ArrayList<CompletableFuture<Void>>();
+		for (CompletableFuture<Message> pull : pulls) {
+			Message message = pull.get(10, TimeUnit.SECONDS);
+			if (message != null) {
+				assertTrue(pulled.add(message.getBody()));
+				receiptHandle = message.getReceiptHandle();
+				deletes.add(asyncQueue.deleteAsync(queueUrl, receiptHandle));
+			}
+		}
+		CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[deletes.size()])).get(10, TimeUnit.SECONDS);
+		// a receipt deleted again is not counted
+		asyncQueue.delete(queueUrl, receiptHandle);
+		asyncQueue.shutdown();
+		// Assert
+		assertEquals(count, pulled.size());
+		assertEquals(count, MetricsRegistry.getInstance().forQueue(queueUrl).sum(QueueMetrics.Counter.DELETED));
+	}
+
+	@Test
+	public void When_DelayedMessagesOutliveTheStore_Expect_ReleasedOnceDueInOrder() throws Exception {
+		// Arrange
+		String queueUrl = SQS_URL + "When_DelayedMessagesOutliveTheStore_Expect_ReleasedOnceDueInOrder";
+		String location = temporaryFolder.newFolder().getAbsolutePath();
+		FileQueue queueFile = new FileQueueRAF();
+		long due = 100000;
+		// Act
+		new DelayStore(location, 1000, false).add(queueUrl, due + 1500, Arrays.asList("Message 3"));
+		new DelayStore(location, 1000, false).add(queueUrl, due, Arrays.asList("Message 1", "Message 2"));
+		// a new instance finds the buckets of the previous one, like a restarted process
+		DelayStore restarted = new DelayStore(location, 1000, false);
+		long nextDue = restarted.nextDue(queueUrl);
+		int early = restarted.release(queueUrl, due - 1, messages -> queueFile.addAll(queueUrl, messages));
+		int released = restarted.release(queueUrl, due + 1000, messages -> queueFile.addAll(queueUrl, messages));
+		List<Message> pulled = queueFile.pullAll(queueUrl, 10);
+		// Assert
+		assertEquals(due, nextDue);
+		assertEquals(0, early);
+		assertEquals(2, released);
+		assertEquals(2, pulled.size());
+		assertEquals("Message 1", pulled.get(0).getBody());
+		assertEquals("Message 2", pulled.get(1).getBody());
+		assertEquals(due + 2000, restarted.nextDue(queueUrl));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void When_BodyIsEmpty_Expect_IllegalArgument() {
+		queue.push(SQS_URL + "When_BodyIsEmpty_Expect_IllegalArgument", "");
+	}
+
+	@Test
+	public void When_MessageExceedsMaxReceiveCount_Expect_MovedToDeadLetterQueue() throws Exception {
+		// Arrange
+		String queueUrl = SQS_URL + "When_MessageExceedsMaxReceiveCount_Expect_MovedToDeadLetterQueue";
+		String deadLetterQueueUrl = queueUrl + "_DLQ";
+		FileQueueService redriveQueue = new FileQueueService(scheduledExecutorService, new FileQueueRAF());
+		redriveQueue.setRedrivePolicy(queueUrl, new RedrivePolicy(2, deadLetterQueueUrl));
+		// Act
+		redriveQueue.push(queueUrl, "Poison", Collections.singletonMap("Origin",
+				new MessageAttributeValue().withDataType("String").withStringValue("orders")));
+		Message first = redriveQueue.pull(queueUrl);
+		redriveQueue.reQueue(queueUrl, first.getReceiptHandle(), first.getBody());
+		// a new storage reads the receive count from the file
+		FileQueueService restarted = new FileQueueService(scheduledExecutorService, new FileQueueRAF());
+		restarted.setRedrivePolicy(queueUrl, new RedrivePolicy(2, deadLetterQueueUrl));
+		Message second = restarted.pull(queueUrl);
+		restarted.reQueue(queueUrl, second.getReceiptHandle(), second.getBody());
+		Message third = restarted.pull(queueUrl);
+		Message deadLetter = restarted.pull(deadLetterQueueUrl);
+		restarted.delete(deadLetterQueueUrl, deadLetter.getReceiptHandle());
+		redriveQueue.shutdown();
+		restarted.shutdown();
+		// Assert
+		assertEquals(1, RedrivePolicy.receiveCount(first));
+		assertEquals(2, RedrivePolicy.receiveCount(second));
+		assertNull(third);
+		assertEquals("Poison", deadLetter.getBody());
+		assertEquals("orders", deadLetter.getMessageAttributes().get("Origin").getStringValue());
+		assertEquals(1, RedrivePolicy.receiveCount(deadLetter));
+		assertEquals(1, MetricsRegistry.getInstance().forQueue(queueUrl).sum(QueueMetrics.Counter.DEAD_LETTERED));
+	}
+
+	@Test
+	public void When_FifoGroupHasMessageInFlight_Expect_NextOfGroupHeldBackAndOtherGroupsOfPartitionDelivered() {
+		// Arrange
+		// the deduplication ids of a queue outlive the process
+		String queueUrl = SQS_URL + "When_FifoGroupHasMessageInFlight" + System.currentTimeMillis() + ".fifo";
+		FileQueueService fifoQueue = new FileQueueService(scheduledExecutorService, new FileQueueRAF());
+		// Act
+		// groups A and Q share a partition
+		fifoQueue.pushFifo(queueUrl, "A1", "A", "a-1");
+		fifoQueue.pushFifo(queueUrl, "A1", "A", "a-1");
+		fifoQueue.pushFifo(queueUrl, "A2", "A", "a-2");
+		fifoQueue.pushFifo(queueUrl, "Q1", "Q", null);
+		fifoQueue.pushFifo(queueUrl, "Q1", "Q", null);
+		List<Message> first = fifoQueue.pullBatch(queueUrl, 10);
+		Message blocked = fifoQueue.pull(queueUrl);
+		fifoQueue.deleteBatch(queueUrl,
+				Arrays.asList(first.get(0).getReceiptHandle(), first.get(1).getReceiptHandle()));
+		List<Message> second = fifoQueue.pullBatch(queueUrl, 10);
+		fifoQueue.delete(queueUrl, second.get(0).getReceiptHandle());
+		Message empty = fifoQueue.pull(queueUrl);
+		fifoQueue.shutdown();
+		// Assert
+		assertEquals(2, first.size());
+		assertEquals("A1", first.get(0).getBody());
+		assertEquals("A", first.get(0).getAttributes().get(MessageGroups.MESSAGE_GROUP_ID));
+		assertEquals("Q1", first.get(1).getBody());
+		assertNull(blocked);
+		assertEquals(1, second.size());
+		assertEquals("A2", second.get(0).getBody());
+		assertNull(empty);
+	}
+
+	@Test
+	public void When_FifoQueueRestartedWithMessageInFlight_Expect_PartitionHeldUntilDeadlineAndDuplicatesDropped()
+			throws IOException {
+		// Arrange
+		String queueUrl = SQS_URL + "When_FifoQueueRestarted" + System.currentTimeMillis() + ".fifo";
+		File directory = temporaryFolder.newFolder();
+		FileQueue queueFile = new FileQueueRAF();
+		long now = System.currentTimeMillis();
+		FifoPartitions stopped = new FifoPartitions(queueUrl, directory, 1, 1000, 300000);
+		String partition = stopped.partitionUrl("A");
+		stopped.deduplicationWindow().add("a-1", now);
+		queueFile.addMessages(partition, Arrays.asList(groupMessage("A1", "A"), groupMessage("A2", "A")));
+		queueFile.pullAll(partition, 1, 60000);
+		// Act
+		// a new instance of the same directory, like a restarted process
+		FifoPartitions restarted = new FifoPartitions(queueUrl, directory, 1, 1000, 300000);
+		String taken = restarted.take(now);
+		boolean recovered = restarted.recovered(taken);
+		long inFlightDeadline = queueFile.inFlightDeadline(taken);
+		restarted.held(taken, inFlightDeadline);
+		String next = restarted.take(now);
+		String released = restarted.take(inFlightDeadline);
+		boolean duplicate = !restarted.deduplicationWindow().add("a-1", now);
+		// Assert
+		assertEquals(partition, taken);
+		assertTrue(recovered);
+		assertTrue(inFlightDeadline > now);
+		assertNull(next);
+		assertEquals(partition, released);
+		assertFalse(restarted.recovered(released));
+		assertTrue(duplicate);
+	}
+
+	private static Message groupMessage(String body, String messageGroupId) {
+		return new Message().withBody(body).addMessageAttributesEntry(MessageGroups.MESSAGE_GROUP_ID,
+				new MessageAttributeValue().withDataType("String").withStringValue(messageGroupId));
+	}
+
+	@Test
+	public void When_BodyHasSeparatorsAndNonAscii_Expect_SameBodyAndMessageAttributes() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_BodyHasSeparatorsAndNonAscii_Expect_SameBodyAndMessageAttributes";
+		String lineQueueUrl = queueUrl + "_Lines";
+		String body = "Gr\u00f6\u00dfe: 3 \u20ac\nline:2";
+		Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+		attributes.put("Count", new MessageAttributeValue().withDataType("Number").withStringValue("42"));
+		attributes.put("Blob", new MessageAttributeValue().withDataType("Binary")
+				.withBinaryValue(ByteBuffer.wrap(new byte[] { 0, -1, 7 })));
+		FileQueueService rafQueue = new FileQueueService(scheduledExecutorService, new FileQueueRAF());
+		FileQueueService lineQueue = new FileQueueService(scheduledExecutorService, new FileQueuePrintWriter());
+		// Act
+		rafQueue.push(queueUrl, body, attributes);
+		rafQueue.push(queueUrl, body);
+		List<Message> fromRaf = rafQueue.pullBatch(queueUrl, 10);
+		rafQueue.deleteBatch(queueUrl,
+				Arrays.asList(fromRaf.get(0).getReceiptHandle(), fromRaf.get(1).getReceiptHandle()));
+		lineQueue.push(lineQueueUrl, body, attributes);
+		Message fromLines = lineQueue.pull(lineQueueUrl);
+		lineQueue.delete(lineQueueUrl, fromLines.getReceiptHandle());
+		rafQueue.shutdown();
+		lineQueue.shutdown();
+		// Assert
+		assertEquals(2, fromRaf.size());
+		assertEquals(body, fromRaf.get(0).getBody());
+		assertEquals("42", fromRaf.get(0).getMessageAttributes().get("Count").getStringValue());
+		assertEquals("Number", fromRaf.get(0).getMessageAttributes().get("Count").getDataType());
+		assertEquals(ByteBuffer.wrap(new byte[] { 0, -1, 7 }),
+				fromRaf.get(0).getMessageAttributes().get("Blob").getBinaryValue());
+		assertEquals(body, fromRaf.get(1).getBody());
+		assertTrue(fromRaf.get(1).getMessageAttributes().isEmpty());
+		assertEquals(body, fromLines.getBody());
+		assertEquals("42", fromLines.getMessageAttributes().get("Count").getStringValue());
+	}
+
+	@Test
+	public void When_MessageWithAttributesStoredAsLineOrSegment_Expect_LineReadableAndAttributesKept() {
+		// Arrange
+		String queueUrl = SQS_URL + "When_MessageWithAttributesStoredAsLineOrSegment_Expect_LineReadableAndAttributesKept";
+		String body = "a:b\\c\nd";
+		Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+		attributes.put("Count", new MessageAttributeValue().withDataType("Number").withStringValue("4;2"));
+		FileQueueService mappedQueue = new FileQueueService(scheduledExecutorService,
+				new FileQueueMapped(temporaryFolder.getRoot().getPath(), 64));
+		// Act
+		String line = new FileMessage(1, 0, "", body, attributes).toString();
+		FileMessage read = new FileMessage(line);
+		mappedQueue.push(queueUrl, body, attributes);
+		Message pulled = mappedQueue.pull(queueUrl);
+		mappedQueue.reQueue(queueUrl, pulled.getReceiptHandle(), pulled.getBody());
+		Message pulledAgain = mappedQueue.pull(queueUrl);
+		mappedQueue.shutdown();
+		// Assert
+		assertEquals("v3:1:0::Count;Number;4\\;2:a:b\\\\c\\nd", line);
+		assertEquals(body, read.getMessage());
+		assertEquals("4;2", read.getMessageAttributes().get("Count").getStringValue());
+		assertEquals(body, pulled.getBody());
+		assertEquals("4;2", pulled.getMessageAttributes().get("Count").getStringValue());
+		assertEquals("Number", pulledAgain.getMessageAttributes().get("Count").getDataType());
+	}
+
+	@Test
+	public void When_MessageWithAttributesPushedToDelayedQueue_Expect_ReleasedWithAttributesAfterDelay()
+			throws Exception {
+		// Arrange
+		String queueUrl = SQS_URL + "When_MessageWithAttributesPushedToDelayedQueue_Expect_ReleasedWithAttributesAfterDelay";
+		Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+		attributes.put("Count", new MessageAttributeValue().withDataType("Number").withStringValue("42"));
+		FileQueueService queueService = new FileQueueService(scheduledExecutorService, new FileQueueRAF());
+		queueService.setDelaySeconds(queueUrl, 1);
+		// Act
+		queueService.push(queueUrl, "Message 1", attributes);
+		Message early = queueService.pull(queueUrl);
+		// due times are rounded up to the end of their delay.bucket
+		Thread.sleep(2100);
+		Message released = queueService.pull(queueUrl);
+		queueService.delete(queueUrl, released.getReceiptHandle());
+		queueService.shutdown();
+		// Assert
+		assertNull(early);
+		assertEquals("Message 1", released.getBody());
+		assertEquals("42", released.getMessageAttributes().get("Count").getStringValue());
+	}
+
+	@Test
+	public void When_QueueCompressed_Expect_SmallerFileAndMessagesInOrderThroughCompaction() {
+		// Arrange
+		String queueName = "When_QueueCompressed_Expect_SmallerFileAndMessagesInOrderThroughCompaction";
+		String queueUrl = SQS_URL + queueName;
+		String plainQueueUrl = queueUrl + "_Plain";
+		// blocks of about 30 messages, compacted in steps of a few entries
+		System.setProperty("filequeue.compress." + queueName, "true");
+		System.setProperty("filequeue.compress.block", "2048");
+		System.setProperty("filequeue.compress.threshold", "1024");
+		FileQueue queueFile = new FileQueueRAF(10, 0, 300);
+		FileQueue plainQueueFile = new FileQueueRAF(50, 0, 300);
+		List<String> msgList = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			msgList.add("{\"orderId\":" + i + ",\"status\":\"CREATED\",\"customer\":\"customer-" + i % 7 + "\"}");
+		}
+		// Act
+		queueFile.addAll(queueUrl, msgList);
+		plainQueueFile.addAll(plainQueueUrl, msgList);
+		long compressedSize = queueFile.fileSize(queueUrl);
+		long plainSize = plainQueueFile.fileSize(plainQueueUrl);
+		List<Message> pulled = queueFile.pullAll(queueUrl, 150, 60000);
+		// leave one message in flight in the first and in the fourth block
+		for (Message message : pulled) {
+			if (message != pulled.get(30) && message != pulled.get(100)) {
+				queueFile.delete(queueUrl, message.getMessageId());
+			}
+		}
+		long removed = queueFile.compact(queueUrl);
+		queueFile.changeVisibility(queueUrl, pulled.get(30).getMessageId(), 0);
+		queueFile.changeVisibility(queueUrl, pulled.get(100).getMessageId(), 0);
+		List<String> msgPullList = new ArrayList<String>();
+		for (Message message : queueFile.pullAll(queueUrl, 200, 60000)) {
+			msgPullList.add(message.getBody());
+			queueFile.delete(queueUrl, message.getMessageId());
+		}
+		long emptySize = queueFile.compact(queueUrl) > 0 ? queueFile.fileSize(queueUrl) : -1;
+		System.clearProperty("filequeue.compress." + queueName);
+		System.clearProperty("filequeue.compress.block");
+		System.clearProperty("filequeue.compress.threshold");
+		for (Message message : plainQueueFile.pullAll(plainQueueUrl, 200, 60000)) {
+			plainQueueFile.delete(plainQueueUrl, message.getMessageId());
+		}
+		// Assert
+		assertTrue(compressedSize * 2 < plainSize);
+		assertTrue(removed > 0);
+		assertEquals(msgList.get(30), msgPullList.get(0));
+		assertEquals(msgList.get(100), msgPullList.get(1));
+		assertEquals(msgList.subList(150, 200), msgPullList.subList(2, msgPullList.size()));
+		assertTrue(emptySize >= 0 && emptySize < compressedSize);
+		assertNull(queueFile.pull(queueUrl));
+	}
 }
@@ -1,20 +1,26 @@
 package com.example;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
@@ -179,4 +185,382 @@ public class InMemoryQueueTest {
 		assertEquals(executions, recieipts.size());
 	}
 
+	@Test
+	public void When_PushingAndPullingBatch_Expect_MessagesInOrderAndOneTimerTaskScheduled() {
+		// Arrange
+		String queueUrl = "When_PushingAndPullingBatch_Expect_MessagesInOrderAndOneTimerTaskScheduled";
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		List<String> msgList = Arrays.asList("Message 1", "Message 2", "Message 3");
+		List<String> msgPullList = new ArrayList<String>();
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		queue.pushBatch(queueUrl, msgList);
+		List<Message> pulled = queue.pullBatch(queueUrl, QueueService.MAX_BATCH_SIZE);
+		for (Message message : pulled) {
+			msgPullList.add(message.getBody());
+		}
+		// Assert
+		assertEquals(msgList, msgPullList);
+		assertEquals(3, queue.invisibleQueueSize());
+		verify(scheduledExecutorService, times(1)).scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(),
+				any(TimeUnit.class));
+	}
+
+	@Test
+	public void When_BatchIsDeleted_Expect_NoMessagesPendingForDelete() {
+		// Arrange
+		String queueUrl = "When_BatchIsDeleted_Expect_NoMessagesPendingForDelete";
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		List<String> receipts = new ArrayList<String>();
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		queue.pushBatch(queueUrl, Arrays.asList("Message 1", "Message 2"));
+		for (Message message : queue.pullBatch(queueUrl, 2)) {
+			receipts.add(message.getReceiptHandle());
+		}
+		queue.deleteBatch(queueUrl, receipts);
+		// Assert
+		assertEquals(0, queue.invisibleQueueSize());
+		assertTrue(queue.pullBatch(queueUrl, 1).isEmpty());
+	}
+
+	@Test(expected = TooManyEntriesInBatchRequestException.class)
+	public void When_PushingMoreThanTenMessages_Expect_TooManyEntriesInBatchRequest() {
+		// Arrange
+		String queueUrl = "When_PushingMoreThanTenMessages_Expect_TooManyEntriesInBatchRequest";
+		// Act
+		queue.pushBatch(queueUrl, Collections.nCopies(QueueService.MAX_BATCH_SIZE + 1, "Message"));
+	}
+
+	@Test
+	public void When_VisibilityTimeoutsExpire_Expect_OnlyPendingTimeoutsHandledInOneBatch() throws InterruptedException {
+		// Arrange
+		List<List<String>> batches = new ArrayList<List<String>>();
+		VisibilityTimer timer = new VisibilityTimer(scheduledExecutorService, timeouts -> {
+			List<String> bodies = new ArrayList<String>();
+			for (VisibilityTimer.Timeout timeout : timeouts) {
+				bodies.add(timeout.getMessage().getBody());
+			}
+			batches.add(bodies);
+		}, 10, 8);
+		// Act
+		timer.schedule("queue", new Message().withBody("Message 1"), 50, TimeUnit.MILLISECONDS);
+		VisibilityTimer.Timeout cancelled = timer.schedule("queue", new Message().withBody("Message 2"), 50,
+				TimeUnit.MILLISECONDS);
+		VisibilityTimer.Timeout extended = timer.schedule("queue", new Message().withBody("Message 3"), 50,
+				TimeUnit.MILLISECONDS);
+		timer.schedule("queue", new Message().withBody("Message 4"), 50, TimeUnit.MILLISECONDS);
+		cancelled.cancel();
+		extended.extend(1, TimeUnit.HOURS);
+		// manually run the tick task once the timeouts are due
+		Thread.sleep(100);
+		timer.tick();
+		// Assert
+		assertEquals(1, batches.size());
+		assertEquals(2, batches.get(0).size());
+		assertTrue(batches.get(0).containsAll(Arrays.asList("Message 1", "Message 4")));
+		assertEquals(1, timer.size());
+		assertFalse(cancelled.cancel());
+	}
+
+	@Test
+	public void When_LongPollingEmptyQueue_Expect_ParkedUntilMessagePushed() throws Exception {
+		// Arrange
+		String queueUrl = "When_LongPollingEmptyQueue_Expect_ParkedUntilMessagePushed";
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		String msg1 = "Message 1";
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		Future<Message> pull = executor.submit(() -> queue.pull(queueUrl, 5));
+		Thread.sleep(200);
+		queue.push(queueUrl, msg1);
+		Message pulled = pull.get(5, TimeUnit.SECONDS);
+		executor.shutdown();
+		// Assert
+		assertEquals(msg1, pulled.getBody());
+		assertNull(queue.pull(queueUrl, 0));
+	}
+
+	@Test
+	public void When_RingBufferQueueMessageIsNotDeleted_Expect_RequeuedMessagePulledFirst() {
+		// Arrange
+		String queueUrl = "When_RingBufferQueueMessageIsNotDeleted_Expect_RequeuedMessagePulledFirst";
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		// Act
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		InMemoryQueue.getInstance().createQueue(queueUrl, QueueEngine.Type.RING);
+		queue.pushBatch(queueUrl, Arrays.asList("Message 1", "Message 2"));
+		Message pull1 = queue.pull(queueUrl);
+		// manually run re-queue of the scheduled task
+		queue.reQueue(queueUrl, pull1.getReceiptHandle(), pull1.getBody());
+		// Assert
+		assertEquals("Message 1", queue.pull(queueUrl).getBody());
+		assertEquals("Message 2", queue.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void When_RingBufferIsFull_Expect_OfferRejectedAndSlotsReusedInOrder() {
+		// Arrange
+		RingBufferEngine<String> engine = new RingBufferEngine<String>(3);
+		List<String> pulled = new ArrayList<String>();
+		// Act
+		for (int i = 0; i < engine.capacity(); i++) {
+			engine.add("Message " + i);
+		}
+		boolean offeredWhenFull = engine.offer("Rejected");
+		engine.drainTo(pulled, 2);
+		engine.add("Message 4");
+		engine.add("Message 5");
+		engine.drainTo(pulled, 10);
+		// Assert
+		assertEquals(4, engine.capacity());
+		assertFalse(offeredWhenFull);
+		assertEquals(Arrays.asList("Message 0", "Message 1", "Message 2", "Message 3", "Message 4", "Message 5"),
+				pulled);
+		assertNull(engine.poll());
+		assertEquals(0, engine.size());
+	}
+
+	@Test
+	public void When_RingBufferIsSharedByProducersAndConsumers_Expect_EveryMessagePulledOnce() throws Exception {
+		// Arrange
+		RingBufferEngine<String> engine = new RingBufferEngine<String>(16);
+		int threads = 4;
+		int messagesPerProducer = 10000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+		Set<String> pulled = Collections.synchronizedSet(new HashSet<String>());
+		List<Future<?>> consumers = new ArrayList<Future<?>>();
+		// Act
+		for (int i = 0; i < threads; i++) {
+			int producer = i;
+			executor.execute(() -> {
+				for (int j = 0; j < messagesPerProducer; j++) {
+					engine.add(producer + "-" + j);
+				}
+			});
+		}
+		for (int i = 0; i < threads; i++) {
+			consumers.add(executor.submit(() -> {
+				String message;
+				while ((message = engine.poll(500, TimeUnit.MILLISECONDS)) != null) {
+					assertTrue(pulled.add(message));
+				}
+				return null;
+			}));
+		}
+		for (Future<?> consumer : consumers) {
+			consumer.get(30, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+		// Assert
+		assertEquals(threads * messagesPerProducer, pulled.size());
+	}
+
+	@Test
+	public void When_MessagesArePushedPulledAndDeleted_Expect_MetricsPublishedOverJmx() throws Exception {
+		// Arrange
+		String queueUrl = "https://sqs.us-east-2.amazonaws.com/123456789012/When_MessagesArePushedPulledAndDeleted";
+		ScheduledFuture<?> mockFuture = mock(ScheduledFuture.class);
+		doReturn(mockFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(),
+				any(TimeUnit.class));
+		List<String> reported = new ArrayList<String>();
+		// Act
+		queue.pushBatch(queueUrl, Arrays.asList("Message 1", "Message 2", "Message 3"));
+		Message message = queue.pull(queueUrl);
+		queue.delete(queueUrl, message.getReceiptHandle());
+		queue.pull(queueUrl);
+		MetricsRegistry.getInstance().forQueue(queueUrl).report(new MetricsReporter() {
+			@Override
+			public void counter(String queueName, String name, long value) {
+				reported.add(name + "=" + value);
+			}
+
+			@Override
+			public void gauge(String queueName, String name, long value) {
+				reported.add(name + "=" + value);
+			}
+
+			@Override
+			public void histogram(String queueName, String name, LatencyHistogram.Snapshot snapshot) {
+				reported.add(name + "=" + snapshot.getCount());
+			}
+		});
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		javax.management.ObjectName name = MetricsRegistry.objectName("When_MessagesArePushedPulledAndDeleted");
+		// Assert
+		assertEquals(3L, server.getAttribute(name, "Pushed"));
+		assertEquals(2L, server.getAttribute(name, "Pulled"));
+		assertEquals(1L, server.getAttribute(name, "Deleted"));
+		assertEquals(1L, server.getAttribute(name, "Depth"));
+		assertEquals(1L, server.getAttribute(name, "InFlight"));
+		assertEquals(2L, server.getAttribute(name, "PullCount"));
+		assertTrue(reported.containsAll(Arrays.asList("pushed=3", "depth=1", "in_flight=1", "push=1", "delete=1")));
+	}
+
+	@Test
+	public void When_TracerRingWrapsAround_Expect_LatestEventsDumpedInOrderWithoutBodies() {
+		// Arrange
+		EventTracer tracer = new EventTracer(true, 4, 1, false);
+		String queueUrl = "When_TracerRingWrapsAround";
+		// Act
+		for (int i = 0; i < 6; i++) {
+			tracer.record(EventTracer.Type.PUSH, queueUrl, i, -1, tracer.body("Message " + i));
+		}
+		List<String> events = tracer.dump();
+		// Assert
+		assertEquals(4, events.size());
+		assertTrue(events.get(0).endsWith("PUSH When_TracerRingWrapsAround count=2"));
+		assertTrue(events.get(3).endsWith("PUSH When_TracerRingWrapsAround count=5"));
+		assertTrue(new EventTracer(false, 4, 1, true).dump().isEmpty());
+	}
+
+	@Test
+	public void When_ConsumerContainerHandlesMessages_Expect_AllDeletedAndConcurrencyCapped() throws Exception {
+		// Arrange
+		String queueUrl = "When_ConsumerContainerHandlesMessages";
+		ScheduledExecutorService timers = Executors.newScheduledThreadPool(1);
+		InMemoryQueueService service = new InMemoryQueueService(timers);
+		ConsumerContainer container = new ConsumerContainer(service, false, 1, 20, 0);
+		int count = 40;
+		int concurrency = 3;
+		CountDownLatch handled = new CountDownLatch(count);
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+		Set<String> bodies = Collections.synchronizedSet(new HashSet<String>());
+		// Act
+		ConsumerContainer.Subscription subscription = container.subscribe(queueUrl, message -> {
+			int now = active.incrementAndGet();
+			maxActive.accumulateAndGet(now, Math::max);
+			Thread.sleep(2);
+			bodies.add(message.getBody());
+			active.decrementAndGet();
+			handled.countDown();
+		}, concurrency);
+		for (int i = 0; i < count; i++) {
+			service.push(queueUrl, "Message " + i);
+		}
+		boolean done = handled.await(10, TimeUnit.SECONDS);
+		boolean closed = container.close(5, TimeUnit.SECONDS);
+		timers.shutdownNow();
+		// Assert
+		assertTrue(done);
+		assertTrue(closed);
+		assertEquals(count, bodies.size());
+		assertTrue(maxActive.get() <= concurrency);
+		assertEquals(0, subscription.getInFlight());
+		assertEquals(0, service.invisibleQueueSize());
+	}
+
+	@Test
+	public void When_MessagesArePushedWithDelay_Expect_HeldBackUntilTheirBucketIsDue() {
+		// Arrange
+		String queueUrl = "https://sqs.us-east-2.amazonaws.com/test/When_MessagesArePushedWithDelay";
+		DelayIndex<String> index = new DelayIndex<String>(1000);
+		long now = 10000;
+		// Act
+		index.add(now + 2500, "Message 3");
+		index.add(now + 500, "Message 1");
+		index.add(now + 900, "Message 2");
+		List<String> early = index.pollDue(now + 500);
+		long nextDue = index.nextDue();
+		List<String> due = index.pollDue(now + 1000);
+		int waiting = index.size();
+		queue.pushDelayed(queueUrl, "Delayed", 60);
+		queue.push(queueUrl, "Immediate");
+		List<Message> pulled = queue.pullBatch(queueUrl, 10);
+		// Assert
+		assertTrue(early.isEmpty());
+		assertEquals(now + 1000, nextDue);
+		assertEquals(Arrays.asList("Message 1", "Message 2"), due);
+		assertEquals(1, waiting);
+		assertEquals(now + 3000, index.nextDue());
+		assertEquals(1, pulled.size());
+		assertEquals("Immediate", pulled.get(0).getBody());
+		verify(scheduledExecutorService, times(1)).scheduleAtFixedRate(any(Runnable.class), eq(1000L), eq(1000L),
+				eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void When_DelayExceedsFifteenMinutes_Expect_IllegalArgument() {
+		queue.pushDelayed("When_DelayExceedsFifteenMinutes", "Message", QueueService.MAX_DELAY_SECONDS + 1);
+	}
+
+	@Test
+	public void When_MessageExceedsMaxReceiveCount_Expect_MovedToDeadLetterQueue() {
+		// Arrange
+		String queueUrl = "https://sqs.us-east-2.amazonaws.com/test/When_MessageExceedsMaxReceiveCount";
+		String deadLetterQueueUrl = queueUrl + "_DLQ";
+		queue.setRedrivePolicy(queueUrl, new RedrivePolicy(2, deadLetterQueueUrl));
+		// Act
+		queue.push(queueUrl, "Poison");
+		queue.push(queueUrl, "Poison");
+		Message first = queue.pull(queueUrl);
+		queue.reQueue(queueUrl, first.getReceiptHandle(), first.getBody());
+		Message second = queue.pull(queueUrl);
+		queue.reQueue(queueUrl, second.getReceiptHandle(), second.getBody());
+		List<Message> third = queue.pullBatch(queueUrl, 10);
+		Message deadLetter = queue.pull(deadLetterQueueUrl);
+		// Assert
+		assertEquals(1, RedrivePolicy.receiveCount(first));
+		assertEquals(2, RedrivePolicy.receiveCount(second));
+		assertEquals(1, third.size());
+		assertEquals(1, RedrivePolicy.receiveCount(third.get(0)));
+		assertEquals("Poison", deadLetter.getBody());
+		assertEquals(1, MetricsRegistry.getInstance().forQueue(queueUrl).sum(QueueMetrics.Counter.DEAD_LETTERED));
+	}
+
+	@Test
+	public void When_GroupHasMessageInFlight_Expect_NextOfGroupHeldBackAndDuplicatesDropped() {
+		// Arrange
+		String queueUrl = "https://sqs.us-east-2.amazonaws.com/test/When_GroupHasMessageInFlight.fifo";
+		// Act
+		queue.pushFifo(queueUrl, "A1", "A", "a-1");
+		queue.pushFifo(queueUrl, "A1", "A", "a-1");
+		queue.pushFifo(queueUrl, "A2", "A", "a-2");
+		queue.pushFifo(queueUrl, "B1", "B", null);
+		queue.pushFifo(queueUrl, "B1", "B", null);
+		List<Message> first = queue.pullBatch(queueUrl, 10);
+		Message blocked = queue.pull(queueUrl);
+		queue.delete(queueUrl, first.get(0).getReceiptHandle());
+		List<Message> second = queue.pullBatch(queueUrl, 10);
+		// Assert
+		assertEquals(2, first.size());
+		assertEquals("A1", first.get(0).getBody());
+		assertEquals("A", first.get(0).getAttributes().get(MessageGroups.MESSAGE_GROUP_ID));
+		assertEquals("B1", first.get(1).getBody());
+		assertNull(blocked.getBody());
+		assertEquals(1, second.size());
+		assertEquals("A2", second.get(0).getBody());
+	}
+
+	@Test
+	public void When_EmptyQueuePulledWhileMessageInFlight_Expect_MessageRedelivered() throws Exception {
+		// Arrange
+		String queueUrl = "When_EmptyQueuePulledWhileMessageInFlight";
+		ScheduledExecutorService timers = Executors.newScheduledThreadPool(1);
+		InMemoryQueueService service = new InMemoryQueueService(timers);
+		service.push(queueUrl, "m1");
+		// Act
+		Message pulled = service.pull(queueUrl);
+		Message empty = service.pull(queueUrl);
+		int invisible = service.invisibleQueueSize();
+		Message redelivered = null;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (redelivered == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			Message message = service.pull(queueUrl);
+			redelivered = message.getBody() != null ? message : null;
+		}
+		timers.shutdownNow();
+		// Assert
+		assertEquals("m1", pulled.getBody());
+		assertNull(empty.getBody());
+		assertEquals(1, invisible);
+		assertEquals("m1", redelivered.getBody());
+	}
 }